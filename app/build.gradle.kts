@@ -42,6 +42,16 @@ android {
         resources.excludes.add("META-INF/LICENSE.txt");
         resources.excludes.add("META-INF/NOTICE.txt");
     }
+    testOptions {
+        unitTests {
+            isIncludeAndroidResources = true
+            // ./gradlew test -Pgtask.benchmark.large=true 运行10k和50k便签的同步基准
+            all {
+                it.systemProperty("gtask.benchmark.large",
+                    project.findProperty("gtask.benchmark.large") ?: "false")
+            }
+        }
+    }
 }
 
 dependencies {
@@ -65,6 +75,7 @@ dependencies {
     implementation(files("..\\httpcomponents-client-4.5.14-bin\\lib\\httpclient-win-4.5.14.jar"))
     implementation(files("..\\httpcomponents-client-4.5.14-bin\\lib\\httpcore-4.4.16.jar"))
     testImplementation(libs.junit)
+    testImplementation(libs.robolectric)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
@@ -70,6 +70,26 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * 用于一次查询便签和它的数据行的Uri（note LEFT JOIN data），只支持查询
+     * 两个表都有的列需要加表名前缀，例如note._id、data._id
+     */
+    public static final Uri CONTENT_NOTE_DATA_URI = Uri.parse("content://" + AUTHORITY + "/note_data");
+
+    /**
+     * 用于查询和确认同步待发送操作的Uri
+     */
+    public static final Uri CONTENT_OUTBOX_URI = Uri.parse("content://" + AUTHORITY + "/sync_outbox");
+
+    /**
+     * 用于查询和清理备份变更记录的Uri
+     */
+    public static final Uri CONTENT_BACKUP_JOURNAL_URI = Uri.parse("content://" + AUTHORITY + "/backup_journal");
+
+    // 同步待发送操作的类型，由数据库触发器写入。只记录已同步笔记的删除，
+    // 新建、修改和移动的笔记还在笔记表中，同步时按local_modified和gtask_id扫描得到
+    public static final int OUTBOX_OP_DELETE = 8; // 从数据库中删除
+
     // 笔记表的列名接口，定义了笔记表中的各个列名
     public interface NoteColumns {
         /**
@@ -173,6 +193,18 @@ public class Notes {
          * <P> 类型 : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * 上一次同步完成时同步内容的哈希，本地修改后内容哈希不变说明没有需要同步的变化
+         * <P> 类型 : TEXT </P>
+         */
+        public static final String SYNC_HASH = "sync_hash";
+
+        /**
+         * 上一次同步完成时的便签正文，同步冲突时作为三方合并的基础版本
+         * <P> 类型 : TEXT </P>
+         */
+        public static final String SYNC_BASE = "sync_base";
     }
 
     // 数据表的列名接口，定义了数据表中的各个列名
@@ -244,6 +276,54 @@ public class Notes {
         public static final String DATA5 = "data5";
     }
 
+    // 同步待发送操作表的列名接口，记录已同步后被删除的笔记，每个笔记最多一行
+    public interface OutboxColumns {
+        /**
+         * 行的唯一ID，只增不减，重新写入时得到新的ID
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * 被删除的笔记或文件夹的ID
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * 删除时笔记的Google任务ID，用来找到远端的任务
+         * <P> 类型: TEXT </P>
+         */
+        public static final String GTASK_ID = "gtask_id";
+
+        /**
+         * 待发送的操作，目前只有{@link Notes#OUTBOX_OP_DELETE}
+         * <P> 类型: INTEGER </P>
+         */
+        public static final String OPERATIONS = "operations";
+
+        /**
+         * 写入的时间
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String MODIFIED_DATE = "modified_date";
+    }
+
+    // 备份变更记录表的列名接口，每个笔记最多一行，笔记或它的数据每次变化都得到新的ID
+    public interface BackupJournalColumns {
+        /**
+         * 行的唯一ID，只增不减，增量备份记录上次备份时的最大ID
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * 发生变化（新建、修改或删除）的笔记或文件夹的ID
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+    }
+
     // 文本笔记类，继承自DataColumns接口，定义了文本笔记的相关常量
     public static final class TextNote implements DataColumns {
         /**
@@ -18,39 +18,91 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.BackupJournalColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
+import net.micode.notes.tool.BackupUtils;
 
 // 继承自SQLiteOpenHelper，用于管理笔记应用的数据库
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     // 数据库文件名
     private static final String DB_NAME = "note.db";
     // 数据库版本号
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 11;
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-
+        createNoteTable(db);
+        createDataTable(db);
+        createOutboxTable(db);
+        createBackupJournalTable(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // 第5版增加同步待发送操作表
+        if (oldVersion < 5) {
+            createOutboxTable(db);
+        }
+        // 第6版增加同步内容哈希
+        if (oldVersion < 6) {
+            db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.SYNC_HASH
+                    + " TEXT NOT NULL DEFAULT ''");
+        }
+        // 第7版增加三方合并的基础版本
+        if (oldVersion < 7) {
+            db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.SYNC_BASE
+                    + " TEXT NOT NULL DEFAULT ''");
+        }
+        // 第8版增加备份变更记录表，升级前的变化没有记录，下一次备份需要是完整备份
+        if (oldVersion < 8) {
+            createBackupJournalTable(db);
+        }
+        // 第9版增加widget_id索引，用于从便签找到小部件和从小部件找到便签
+        if (oldVersion < 9) {
+            db.execSQL(CREATE_NOTE_WIDGET_ID_INDEX_SQL);
+        }
+        // 第10版同步待发送操作表只记录删除，去掉新建、修改和移入回收站的触发器和记录
+        if (oldVersion >= 5 && oldVersion < 10) {
+            reCreateOutboxTriggers(db);
+            db.execSQL("DELETE FROM " + TABLE.OUTBOX + " WHERE (" + OutboxColumns.OPERATIONS
+                    + " & " + Notes.OUTBOX_OP_DELETE + ")=0 OR " + OutboxColumns.GTASK_ID + "=''");
+        }
+        // 第11版备份变更记录只在备份的列变化时写入，同步自己的字段不再记录
+        if (oldVersion >= 8 && oldVersion < 11) {
+            reCreateBackupJournalTriggers(db);
+        }
+    }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            pruneBackupJournal(db);
+        }
     }
 
     // 定义数据库表名的接口
     public interface TABLE {
         public static final String NOTE = "note"; // 笔记表名
         public static final String DATA = "data"; // 数据表名
+        public static final String OUTBOX = "sync_outbox"; // 同步待发送操作表名
+        public static final String BACKUP_JOURNAL = "backup_journal"; // 备份变更记录表名
     }
 
     // 日志标签，用于标识该类相关的日志信息
     private static final String TAG = "NotesDatabaseHelper";
+
+    // 打开数据库时读取备份链的位置
+    private final Context mContext;
     // 单例实例，用于确保整个应用中只有一个数据库帮助类实例
     private static NotesDatabaseHelper mInstance;
 
@@ -73,7 +125,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," + // 是否本地修改，不能为空，默认值为0
                     NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," + // 原始父ID，不能为空，默认值为0
                     NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," + // Google任务ID，不能为空，默认值为空字符串
-                    NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" + // 版本号，不能为空，默认值为0
+                    NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," + // 版本号，不能为空，默认值为0
+                    NoteColumns.SYNC_HASH + " TEXT NOT NULL DEFAULT ''," + // 上次同步内容的哈希，默认值为空字符串
+                    NoteColumns.SYNC_BASE + " TEXT NOT NULL DEFAULT ''" + // 上次同步时的便签正文，默认值为空字符串
                     ")";
 
     // 创建数据表的SQL语句
@@ -92,6 +146,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" + // 通用数据列5，不能为空，默认值为空字符串
                     ")";
 
+    // 创建笔记表中widget_id索引的SQL语句
+    private static final String CREATE_NOTE_WIDGET_ID_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS widget_id_index ON " +
+                    TABLE.NOTE + "(" + NoteColumns.WIDGET_ID + ");";
+
     // 创建数据表中note_id索引的SQL语句
     private static final String CREATE_DATA_NOTE_ID_INDEX_SQL =
             "CREATE INDEX IF NOT EXISTS note_id_index ON " +
@@ -221,14 +280,147 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
                     " END";
 
+    // 创建同步待发送操作表的SQL语句，每个笔记最多一行，ID使用AUTOINCREMENT保证只增不减
+    private static final String CREATE_OUTBOX_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + TABLE.OUTBOX + "(" +
+                    OutboxColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," + // 唯一ID，合并时重新分配
+                    OutboxColumns.NOTE_ID + " INTEGER NOT NULL UNIQUE," + // 笔记ID，每个笔记只有一行
+                    OutboxColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," + // Google任务ID
+                    OutboxColumns.OPERATIONS + " INTEGER NOT NULL DEFAULT 0," + // 待发送操作的按位组合
+                    OutboxColumns.MODIFIED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)" + // 最后合并时间
+                    ")";
+
+    /**
+     * 删除已经同步过的笔记时记录删除操作，笔记行已经不存在，远端任务只能通过记录的Google任务ID找到。
+     * 只记录删除：新建、修改、移动和移入回收站的笔记还在笔记表中，同步时按local_modified、gtask_id
+     * 和parent_id扫描就能找到，不需要另外记录。同步自己删除笔记时在同一个批次中删除这里写入的行
+     */
+    private static final String OUTBOX_ON_DELETE_TRIGGER =
+            "CREATE TRIGGER outbox_on_delete " +
+                    " AFTER DELETE ON " + TABLE.NOTE +
+                    " WHEN old." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+                    " AND old." + NoteColumns.GTASK_ID + "<>''" +
+                    " BEGIN" +
+                    "  INSERT OR REPLACE INTO " + TABLE.OUTBOX + "(" +
+                    OutboxColumns.NOTE_ID + "," + OutboxColumns.GTASK_ID + "," +
+                    OutboxColumns.OPERATIONS + ") VALUES(" +
+                    "old." + NoteColumns.ID + ",old." + NoteColumns.GTASK_ID + "," +
+                    Notes.OUTBOX_OP_DELETE + ");" +
+                    " END";
+
+    // 创建备份变更记录表的SQL语句，每个笔记最多一行，ID使用AUTOINCREMENT保证只增不减
+    private static final String CREATE_BACKUP_JOURNAL_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + TABLE.BACKUP_JOURNAL + "(" +
+                    BackupJournalColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," + // 唯一ID，每次变化重新分配
+                    BackupJournalColumns.NOTE_ID + " INTEGER NOT NULL UNIQUE" + // 笔记ID，每个笔记只有一行
+                    ")";
+
+    // 记录一个笔记发生了变化，INSERT OR REPLACE使这一行得到新的ID
+    private static String journalReplace(String noteId) {
+        return "  INSERT OR REPLACE INTO " + TABLE.BACKUP_JOURNAL + "(" +
+                BackupJournalColumns.NOTE_ID + ") VALUES(" + noteId + ");";
+    }
+
+    // 已删除便签的变更记录超过这个数量时结束备份链，备份链长期没有新的备份时记录不会无限增长
+    static final int MAX_JOURNAL_DELETES = 5000;
+
+    // 便签已经不存在的变更记录
+    private static final String JOURNAL_DELETED_SELECTION = BackupJournalColumns.NOTE_ID
+            + " NOT IN (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE + ")";
+
+    // 备份的列（BackupArchive中的NOTE_PROJECTION）有变化，gtask_id、local_modified、version等同步和内部字段不算
+    private static final String NOTE_BACKUP_COLUMNS_CHANGED =
+            " (old." + NoteColumns.PARENT_ID + " IS NOT new." + NoteColumns.PARENT_ID +
+                    " OR old." + NoteColumns.ORIGIN_PARENT_ID + " IS NOT new." + NoteColumns.ORIGIN_PARENT_ID +
+                    " OR old." + NoteColumns.TYPE + " IS NOT new." + NoteColumns.TYPE +
+                    " OR old." + NoteColumns.CREATED_DATE + " IS NOT new." + NoteColumns.CREATED_DATE +
+                    " OR old." + NoteColumns.MODIFIED_DATE + " IS NOT new." + NoteColumns.MODIFIED_DATE +
+                    " OR old." + NoteColumns.ALERTED_DATE + " IS NOT new." + NoteColumns.ALERTED_DATE +
+                    " OR old." + NoteColumns.BG_COLOR_ID + " IS NOT new." + NoteColumns.BG_COLOR_ID +
+                    " OR old." + NoteColumns.HAS_ATTACHMENT + " IS NOT new." + NoteColumns.HAS_ATTACHMENT +
+                    " OR old." + NoteColumns.WIDGET_ID + " IS NOT new." + NoteColumns.WIDGET_ID +
+                    " OR old." + NoteColumns.WIDGET_TYPE + " IS NOT new." + NoteColumns.WIDGET_TYPE +
+                    " OR old." + NoteColumns.SNIPPET + " IS NOT new." + NoteColumns.SNIPPET + ")";
+
+    // 备份的数据列（BackupArchive中的DATA_PROJECTION）有变化
+    private static final String DATA_BACKUP_COLUMNS_CHANGED =
+            " (old." + DataColumns.NOTE_ID + " IS NOT new." + DataColumns.NOTE_ID +
+                    " OR old." + DataColumns.MIME_TYPE + " IS NOT new." + DataColumns.MIME_TYPE +
+                    " OR old." + DataColumns.CREATED_DATE + " IS NOT new." + DataColumns.CREATED_DATE +
+                    " OR old." + DataColumns.MODIFIED_DATE + " IS NOT new." + DataColumns.MODIFIED_DATE +
+                    " OR old." + DataColumns.CONTENT + " IS NOT new." + DataColumns.CONTENT +
+                    " OR old." + DataColumns.DATA1 + " IS NOT new." + DataColumns.DATA1 +
+                    " OR old." + DataColumns.DATA2 + " IS NOT new." + DataColumns.DATA2 +
+                    " OR old." + DataColumns.DATA3 + " IS NOT new." + DataColumns.DATA3 +
+                    " OR old." + DataColumns.DATA4 + " IS NOT new." + DataColumns.DATA4 +
+                    " OR old." + DataColumns.DATA5 + " IS NOT new." + DataColumns.DATA5 + ")";
+
+    /**
+     * 笔记或文件夹新建、修改或删除时记录到备份变更记录
+     * 修改只在备份的列变化时记录，同步回写gtask_id、清除local_modified和版本号加一不再删除并重新插入记录
+     */
+    private static final String JOURNAL_ON_NOTE_INSERT_TRIGGER =
+            "CREATE TRIGGER journal_on_note_insert " +
+                    " AFTER INSERT ON " + TABLE.NOTE +
+                    " WHEN new." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+                    " BEGIN" +
+                    journalReplace("new." + NoteColumns.ID) +
+                    " END";
+
+    private static final String JOURNAL_ON_NOTE_UPDATE_TRIGGER =
+            "CREATE TRIGGER journal_on_note_update " +
+                    " AFTER UPDATE ON " + TABLE.NOTE +
+                    " WHEN new." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+                    " AND" + NOTE_BACKUP_COLUMNS_CHANGED +
+                    " BEGIN" +
+                    journalReplace("new." + NoteColumns.ID) +
+                    " END";
+
+    private static final String JOURNAL_ON_NOTE_DELETE_TRIGGER =
+            "CREATE TRIGGER journal_on_note_delete " +
+                    " AFTER DELETE ON " + TABLE.NOTE +
+                    " WHEN old." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+                    " BEGIN" +
+                    journalReplace("old." + NoteColumns.ID) +
+                    " END";
+
+    /**
+     * 数据新建、修改或删除时记录所属的笔记，增量备份以笔记为单位保存数据
+     */
+    private static final String JOURNAL_ON_DATA_INSERT_TRIGGER =
+            "CREATE TRIGGER journal_on_data_insert " +
+                    " AFTER INSERT ON " + TABLE.DATA +
+                    " BEGIN" +
+                    journalReplace("new." + DataColumns.NOTE_ID) +
+                    " END";
+
+    private static final String JOURNAL_ON_DATA_UPDATE_TRIGGER =
+            "CREATE TRIGGER journal_on_data_update " +
+                    " AFTER UPDATE ON " + TABLE.DATA +
+                    " WHEN" + DATA_BACKUP_COLUMNS_CHANGED +
+                    " BEGIN" +
+                    journalReplace("new." + DataColumns.NOTE_ID) +
+                    " END";
+
+    private static final String JOURNAL_ON_DATA_DELETE_TRIGGER =
+            "CREATE TRIGGER journal_on_data_delete " +
+                    " AFTER DELETE ON " + TABLE.DATA +
+                    " BEGIN" +
+                    journalReplace("old." + DataColumns.NOTE_ID) +
+                    " END";
+
     // 构造函数，调用父类构造函数传入上下文、数据库名、游标工厂（这里为null）和版本号
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        mContext = context.getApplicationContext();
+        // 使用WAL和连接池，导出、同步等长时间的读不会阻塞界面上的写入
+        setWriteAheadLoggingEnabled(true);
     }
 
     // 创建笔记表的方法，包括执行创建表SQL语句、重新创建触发器和创建系统文件夹
     public void createNoteTable(SQLiteDatabase db) {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
+        db.execSQL(CREATE_NOTE_WIDGET_ID_INDEX_SQL);
         reCreateNoteTableTriggers(db);
         createSystemFolder(db);
         Log.d(TAG, "note table has been created");
@@ -308,6 +500,80 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
     }
 
+    // 创建同步待发送操作表的方法，包括执行创建表SQL语句和在笔记表上创建记录删除的触发器
+    public void createOutboxTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_OUTBOX_TABLE_SQL);
+        reCreateOutboxTriggers(db);
+        Log.d(TAG, "sync outbox table has been created");
+    }
+
+    // 重新创建同步待发送操作触发器的方法，先删除旧触发器，再创建新触发器
+    private void reCreateOutboxTriggers(SQLiteDatabase db) {
+        // 第10版之前还有记录新建、修改和移入回收站的触发器
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_on_trash");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_on_delete");
+
+        db.execSQL(OUTBOX_ON_DELETE_TRIGGER);
+    }
+
+    // 创建备份变更记录表的方法，包括执行创建表SQL语句和在笔记表、数据表上创建记录变化的触发器
+    public void createBackupJournalTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_BACKUP_JOURNAL_TABLE_SQL);
+        reCreateBackupJournalTriggers(db);
+        Log.d(TAG, "backup journal table has been created");
+    }
+
+    // 重新创建备份变更记录触发器的方法，先删除旧触发器，再创建新触发器
+    private void reCreateBackupJournalTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS journal_on_note_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_on_note_update");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_on_note_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_on_data_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_on_data_update");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_on_data_delete");
+
+        db.execSQL(JOURNAL_ON_NOTE_INSERT_TRIGGER);
+        db.execSQL(JOURNAL_ON_NOTE_UPDATE_TRIGGER);
+        db.execSQL(JOURNAL_ON_NOTE_DELETE_TRIGGER);
+        db.execSQL(JOURNAL_ON_DATA_INSERT_TRIGGER);
+        db.execSQL(JOURNAL_ON_DATA_UPDATE_TRIGGER);
+        db.execSQL(JOURNAL_ON_DATA_DELETE_TRIGGER);
+    }
+
+    /**
+     * 清理备份变更记录，每次打开数据库时执行，不依赖于是否进行备份：
+     * 当前备份链之后的增量备份只读取起点之后的记录，起点及之前的记录都删除；
+     * 没有备份链时下一次备份是完整备份，已删除便签的记录不再需要，存在的便签每个最多一行；
+     * 有备份链但已删除便签的记录仍然超过MAX_JOURNAL_DELETES时结束备份链，下一次备份改为完整备份
+     * @param db 可写的数据库
+     */
+    private void pruneBackupJournal(SQLiteDatabase db) {
+        long floor = BackupUtils.getJournalFloor(mContext);
+        int count = 0;
+        if (floor >= 0) {
+            count += db.delete(TABLE.BACKUP_JOURNAL, BackupJournalColumns.ID + "<=?", new String[] {
+                    String.valueOf(floor)
+            });
+            long deletes = DatabaseUtils.queryNumEntries(db, TABLE.BACKUP_JOURNAL,
+                    JOURNAL_DELETED_SELECTION);
+            if (deletes > MAX_JOURNAL_DELETES) {
+                Log.w(TAG, deletes + " deleted notes in backup journal, end the backup chain");
+                BackupUtils.endBackupChain(mContext);
+                floor = -1;
+            }
+        }
+        if (floor < 0) {
+            count += db.delete(TABLE.BACKUP_JOURNAL, JOURNAL_DELETED_SELECTION, null);
+        }
+        if (count > 0) {
+            Log.d(TAG, "pruned " + count + " backup journal rows");
+            // 小部件按变更记录找变化的便签，记录被删除后需要全部刷新
+            mContext.getContentResolver().notifyChange(Notes.CONTENT_BACKUP_JOURNAL_URI, null);
+        }
+    }
+
     // 获取单例实例的方法，确保整个应用中只有一个数据库帮助类实例
     static synchronized NotesDatabaseHelper getInstance(Context context) {
         if (mInstance == null) {
@@ -316,5 +582,35 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         return mInstance;
     }
 
+    /**
+     * 在当前线程开始一个读快照，直到endReadSnapshot，本线程通过NotesProvider的查询
+     * （包括游标后续分段读取）都读到同一个数据库版本
+     * API 35以上使用DEFERRED只读事务，WAL模式下不阻塞写入；更低的版本只有会阻塞写入的事务，
+     * 此时只在blockWriters为true时开始事务，否则返回false，由调用方自己检查数据是否在读取期间变化
+     * @param context 上下文对象
+     * @param blockWriters 系统不支持只读事务时，是否用阻塞写入的事务代替
+     * @return 是否开始了快照，为true时必须在同一个线程调用endReadSnapshot
+     */
+    public static boolean beginReadSnapshot(Context context, boolean blockWriters) {
+        SQLiteDatabase db = getInstance(context).getReadableDatabase();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.VANILLA_ICE_CREAM) {
+            db.beginTransactionReadOnly();
+            return true;
+        }
+        if (blockWriters) {
+            db.beginTransactionNonExclusive();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 结束beginReadSnapshot开始的快照，快照中没有写入，直接结束事务
+     * @param context 上下文对象
+     */
+    public static void endReadSnapshot(Context context) {
+        getInstance(context).getReadableDatabase().endTransaction();
+    }
+
 // 当数据库第一次创建时调用的方法，调用创建笔记表
 }
\ No newline at end of file
@@ -18,9 +18,12 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -32,6 +35,11 @@ import net.micode.notes.R;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.gtask.remote.SyncScheduler;
+import net.micode.notes.widget.WidgetUpdateCoordinator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
 
 // 自定义的 ContentProvider，用于管理笔记数据的增删改查操作
 public class NotesProvider extends ContentProvider {
@@ -41,6 +49,8 @@ public class NotesProvider extends ContentProvider {
     private NotesDatabaseHelper mHelper;
     // 日志标签，用于标识该类的日志信息
     private static final String TAG = "NotesProvider";
+    // 当前线程正在执行的批量操作中需要通知的 URI，不在批量操作中时为 null
+    private final ThreadLocal<HashSet<Uri>> mBatchNotifyUris = new ThreadLocal<HashSet<Uri>>();
 
     // 定义不同 URI 匹配结果的常量
     private static final int URI_NOTE = 1;
@@ -49,6 +59,9 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_DATA_ITEM = 4;
     private static final int URI_SEARCH = 5;
     private static final int URI_SEARCH_SUGGEST = 6;
+    private static final int URI_OUTBOX = 7;
+    private static final int URI_NOTE_DATA = 8;
+    private static final int URI_BACKUP_JOURNAL = 9;
 
     // 静态代码块，在类加载时初始化 UriMatcher
     static {
@@ -66,6 +79,12 @@ public class NotesProvider extends ContentProvider {
         // 匹配搜索建议的 URI
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
+        // 匹配同步待发送操作的 URI，只支持查询和删除，写入由数据库触发器完成
+        mMatcher.addURI(Notes.AUTHORITY, "sync_outbox", URI_OUTBOX);
+        // 匹配便签和数据联合查询的 URI，只支持查询
+        mMatcher.addURI(Notes.AUTHORITY, "note_data", URI_NOTE_DATA);
+        // 匹配备份变更记录的 URI，只支持查询和删除，写入由数据库触发器完成
+        mMatcher.addURI(Notes.AUTHORITY, "backup_journal", URI_BACKUP_JOURNAL);
     }
 
     /**
@@ -87,11 +106,18 @@ public class NotesProvider extends ContentProvider {
             + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
             + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
+    // 便签和数据的联合查询
+    private static final String NOTE_DATA_JOIN = TABLE.NOTE + " LEFT JOIN " + TABLE.DATA
+            + " ON " + TABLE.DATA + "." + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "."
+            + NoteColumns.ID;
+
     // 初始化 ContentProvider 时调用的方法
     @Override
     public boolean onCreate() {
         // 获取数据库帮助类的单例实例
         mHelper = NotesDatabaseHelper.getInstance(getContext());
+        // 便签变化时更新桌面上对应的小部件，包括同步等不经过编辑界面的修改
+        WidgetUpdateCoordinator.getInstance(getContext()).start();
         return true;
     }
 
@@ -129,6 +155,21 @@ public class NotesProvider extends ContentProvider {
                 c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs, null, null, sortOrder);
                 break;
+            case URI_OUTBOX:
+                // 查询同步待发送的操作
+                c = db.query(TABLE.OUTBOX, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
+            case URI_BACKUP_JOURNAL:
+                // 查询上次备份之后发生变化的便签
+                c = db.query(TABLE.BACKUP_JOURNAL, projection, selection, selectionArgs, null,
+                        null, sortOrder);
+                break;
+            case URI_NOTE_DATA:
+                // 便签连同它的数据行一次查出，文件夹没有数据行，对应的数据列为 NULL
+                c = db.query(NOTE_DATA_JOIN, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
             case URI_SEARCH:
             case URI_SEARCH_SUGGEST:
                 // 搜索操作不允许指定排序和投影
@@ -182,6 +223,9 @@ public class NotesProvider extends ContentProvider {
             case URI_NOTE:
                 // 插入笔记
                 insertedId = noteId = db.insert(TABLE.NOTE, null, values);
+                if (noteId > 0) {
+                    requestPushIfModified(values);
+                }
                 break;
             case URI_DATA:
                 if (values.containsKey(DataColumns.NOTE_ID)) {
@@ -198,14 +242,12 @@ public class NotesProvider extends ContentProvider {
         }
         // 通知笔记 URI 数据发生变化
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
 
         // 通知数据 URI 数据发生变化
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -254,16 +296,24 @@ public class NotesProvider extends ContentProvider {
                         DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
                 deleteData = true;
                 break;
+            case URI_OUTBOX:
+                // 同步确认后删除已经发送的操作
+                count = db.delete(TABLE.OUTBOX, selection, selectionArgs);
+                break;
+            case URI_BACKUP_JOURNAL:
+                // 删除之后的增量备份不再读取的记录
+                count = db.delete(TABLE.BACKUP_JOURNAL, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (count > 0) {
             if (deleteData) {
                 // 通知笔记 URI 数据发生变化
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
             // 通知当前 URI 数据发生变化
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
@@ -311,16 +361,75 @@ public class NotesProvider extends ContentProvider {
         }
 
         if (count > 0) {
+            if (!updateData) {
+                requestPushIfModified(values);
+            }
             if (updateData) {
                 // 通知笔记 URI 数据发生变化
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
             // 通知当前 URI 数据发生变化
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
 
+    // 批量操作的方法，所有操作在同一个事务中执行，结束后统一发送一次通知
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        HashSet<Uri> notifyUris = new HashSet<Uri>();
+        boolean success = false;
+        mBatchNotifyUris.set(notifyUris);
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchNotifyUris.remove();
+            if (success) {
+                // 单条笔记或数据的变化合并为对整张表的通知
+                for (Uri uri : notifyUris) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
+        }
+    }
+
+    // 用户的修改会设置local_modified，同步自己的写操作不会，只有前者需要安排推送同步
+    private void requestPushIfModified(ContentValues values) {
+        Integer localModified = values.getAsInteger(NoteColumns.LOCAL_MODIFIED);
+        if (localModified != null && localModified == 1) {
+            SyncScheduler.requestPush(getContext());
+        }
+    }
+
+    // 发送数据变化通知，批量操作中只记录下来
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> batchUris = mBatchNotifyUris.get();
+        if (batchUris == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            return;
+        }
+        switch (mMatcher.match(uri)) {
+            case URI_NOTE:
+            case URI_NOTE_ITEM:
+                batchUris.add(Notes.CONTENT_NOTE_URI);
+                break;
+            case URI_DATA:
+            case URI_DATA_ITEM:
+                batchUris.add(Notes.CONTENT_DATA_URI);
+                break;
+            default:
+                batchUris.add(uri);
+                break;
+        }
+    }
+
     // 解析选择条件的方法，用于拼接 SQL 语句
     private String parseSelection(String selection) {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
@@ -48,6 +48,19 @@ public class MetaData extends Task {
         return mRelatedGid;
     }
 
+    //远端meta内容的同步哈希，和本地内容的哈希相同时不需要更新meta
+    public String getSyncHash() {
+        if (getNotes() == null) {
+            return "";
+        }
+        try {
+            return SqlNote.computeSyncHash(new JSONObject(getNotes().trim()));
+        } catch (JSONException e) {
+            Log.w(TAG, "failed to parse meta info");
+            return "";
+        }
+    }
+
     //判断当前数据是否为空，若为空则返回真即值得保存
     @Override
     public boolean isWorthSaving() {
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+
+import java.util.ArrayList;
+
+/*
+ * Description：同步过程中收集本地的写操作，分块通过applyBatch提交
+ * 每一块在NotesProvider中是一个事务，只发一次数据变化通知
+ */
+public class SqlBatch {
+    private static final String TAG = SqlBatch.class.getSimpleName();
+
+    // 每一块的操作数上限，一个便签的操作不会被拆到两块中
+    private static final int MAX_OPERATIONS = 300;
+
+    /*
+     * 一块提交完成后回调，此时新建便签的id已经可用
+     */
+    public interface OnCommitListener {
+        void onCommit(SqlNote sqlNote) throws NetworkFailureException;
+    }
+
+    /*
+     * 写入本地之前回调，用来先提交缓存的远端动作
+     * 否则清除local_modified的写操作可能先于对应的远端修改生效，同步失败后修改就丢失了
+     */
+    public interface OnBeforeCommitListener {
+        void onBeforeCommit() throws NetworkFailureException;
+    }
+
+    private ContentResolver mContentResolver;
+
+    private ArrayList<ContentProviderOperation> mOperations;
+
+    private ArrayList<SqlNote> mNotes;
+
+    private ArrayList<OnCommitListener> mListeners;
+
+    private OnBeforeCommitListener mBeforeCommitListener;
+
+    // 已经提交的操作总数，用于统计同步写入的行数
+    private int mCommittedCount;
+
+    public SqlBatch(Context context) {
+        mContentResolver = context.getContentResolver();
+        mOperations = new ArrayList<ContentProviderOperation>();
+        mNotes = new ArrayList<SqlNote>();
+        mListeners = new ArrayList<OnCommitListener>();
+        mCommittedCount = 0;
+    }
+
+    /*
+     * 加入一个便签的修改，listener可以为null
+     * 同一个便签可以多次加入，例如先写gtask_id，再在版本校验下清除local_modified
+     */
+    public void add(SqlNote sqlNote, boolean validateVersion, OnCommitListener listener)
+            throws NetworkFailureException {
+        sqlNote.appendCommitOperations(mOperations, validateVersion);
+        mNotes.add(sqlNote);
+        mListeners.add(listener);
+        if (mOperations.size() >= MAX_OPERATIONS) {
+            commit();
+        }
+    }
+
+    /*
+     * 加入不属于SqlNote的操作，例如刷新sync_id
+     * 一次加入的几个操作在同一块中提交
+     */
+    public void add(ContentProviderOperation... operations) throws NetworkFailureException {
+        for (ContentProviderOperation operation : operations) {
+            mOperations.add(operation);
+        }
+        if (mOperations.size() >= MAX_OPERATIONS) {
+            commit();
+        }
+    }
+
+    public void setOnBeforeCommitListener(OnBeforeCommitListener listener) {
+        mBeforeCommitListener = listener;
+    }
+
+    public int getCommittedCount() {
+        return mCommittedCount;
+    }
+
+    public boolean isEmpty() {
+        return mOperations.isEmpty();
+    }
+
+    /*
+     * 提交当前缓存的操作，完成后更新各个SqlNote并依次调用回调
+     */
+    public void commit() throws NetworkFailureException {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        if (mBeforeCommitListener != null) {
+            mBeforeCommitListener.onBeforeCommit();
+        }
+
+        ArrayList<ContentProviderOperation> operations = mOperations;
+        ArrayList<SqlNote> notes = mNotes;
+        ArrayList<OnCommitListener> listeners = mListeners;
+        mOperations = new ArrayList<ContentProviderOperation>();
+        mNotes = new ArrayList<SqlNote>();
+        mListeners = new ArrayList<OnCommitListener>();
+
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("apply local batch failed");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("apply local batch failed");
+        }
+        mCommittedCount += operations.size();
+
+        for (SqlNote sqlNote : notes) {
+            sqlNote.onBatchCommitted(results);
+        }
+        for (int i = 0; i < notes.size(); i++) {
+            if (listeners.get(i) != null) {
+                listeners.get(i).onCommit(notes.get(i));
+            }
+        }
+    }
+
+    /*
+     * 丢弃还没有提交的操作
+     */
+    public void clear() {
+        mOperations.clear();
+        mNotes.clear();
+        mListeners.clear();
+    }
+}
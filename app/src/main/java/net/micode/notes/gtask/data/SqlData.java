@@ -16,12 +16,13 @@
 
 package net.micode.notes.gtask.data;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -34,6 +35,8 @@ import net.micode.notes.gtask.exception.ActionFailureException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+
 //用于支持小米便签最底层的数据库相关操作，和sqlnote的关系上是子集关系，即data是note的子集（节点）。
 //SqlData其实就是也就是所谓数据中的数据
 public class SqlData {
@@ -82,6 +85,9 @@ public class SqlData {
 
     private ContentValues mDiffDataValues;
 
+    //批量提交时本条数据的操作在操作列表中的位置
+    private ArrayList<Integer> mPendingOps;
+
     /*
      * 构造函数，用于初始化数据
      * mContentResolver用于获取ContentProvider提供的数据
@@ -95,6 +101,7 @@ public class SqlData {
         mDataContentData1 = 0;
         mDataContentData3 = "";
         mDiffDataValues = new ContentValues();
+        mPendingOps = new ArrayList<Integer>();
     }
 
     /*
@@ -108,6 +115,7 @@ public class SqlData {
         mIsCreate = false;
         loadFromCursor(c);
         mDiffDataValues = new ContentValues();
+        mPendingOps = new ArrayList<Integer>();
     }
 
     /*
@@ -177,39 +185,41 @@ public class SqlData {
     }
 
     /*
-     * commit函数用于把当前造作所做的修改保存到数据库     */
-    public void commit(long noteId, boolean validateVersion, long version) {
+     * 把当前的修改转成ContentProviderOperation加入ops，由SqlNote统一提交
+     * noteOpIndex不小于0时表示所属便签在同一批中新建，note_id由插入结果回填     */
+    public void appendCommitOperations(ArrayList<ContentProviderOperation> ops, long noteId,
+                                       int noteOpIndex, boolean validateVersion, long version) {
 
         if (mIsCreate) {
             if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
                 mDiffDataValues.remove(DataColumns.ID);
             }
 
-            mDiffDataValues.put(DataColumns.NOTE_ID, noteId);
-            Uri uri = mContentResolver.insert(Notes.CONTENT_DATA_URI, mDiffDataValues);
-            try {
-                mDataId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_DATA_URI).withValues(mDiffDataValues);
+            if (noteOpIndex >= 0) {
+                builder.withValueBackReference(DataColumns.NOTE_ID, noteOpIndex);
+            } else {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
             }
+            mPendingOps.add(ops.size());
+            ops.add(builder.build());
         } else {
             if (mDiffDataValues.size() > 0) {
-                int result = 0;
-                if (!validateVersion) {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues, null, null);
-                } else {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                                    Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues,
-                            " ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
-                                    + " WHERE " + NoteColumns.VERSION + "=?)", new String[]{
-                                    String.valueOf(noteId), String.valueOf(version)
-                            });
-                }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId))
+                        .withValues(mDiffDataValues);
+                if (validateVersion) {
+                    builder.withSelection(" ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                            + " WHERE " + NoteColumns.VERSION + "=?)", new String[]{
+                            String.valueOf(noteId), String.valueOf(version)
+                    });
+                    if (noteOpIndex >= 0) {
+                        builder.withSelectionBackReference(0, noteOpIndex);
+                    }
                 }
+                mPendingOps.add(ops.size());
+                ops.add(builder.build());
             }
         }
 
@@ -217,6 +227,29 @@ public class SqlData {
         mIsCreate = false;
     }
 
+    /*
+     * 批量提交完成后根据结果设置新建数据的id
+     * 返回false表示有更新没有写入（用户可能在同步时修改了便签），需要重新从数据库读取     */
+    public boolean onBatchCommitted(ContentProviderResult[] results) {
+        boolean written = true;
+        for (int index : mPendingOps) {
+            ContentProviderResult result = results[index];
+            if (result.uri != null) {
+                try {
+                    mDataId = Long.valueOf(result.uri.getPathSegments().get(1));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Get note id error :" + e.toString());
+                    throw new ActionFailureException("create note failed");
+                }
+            } else if (result.count != null && result.count == 0) {
+                Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                written = false;
+            }
+        }
+        mPendingOps.clear();
+        return written;
+    }
+
     //获取当前id
     public long getId() {
         return mDataId;
@@ -17,15 +17,19 @@
 package net.micode.notes.gtask.data;
 
 import android.appwidget.AppWidgetManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
@@ -35,6 +39,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 
 /*
@@ -51,17 +58,17 @@ public class SqlNote {
 
     private static final int INVALID_ID = -99999;
 
-    // 集合了interface NoteColumns中所有SF常量（17个）
+    // 集合了interface NoteColumns中所有SF常量（19个）
     public static final String[] PROJECTION_NOTE = new String[]{
             NoteColumns.ID, NoteColumns.ALERTED_DATE, NoteColumns.BG_COLOR_ID,
             NoteColumns.CREATED_DATE, NoteColumns.HAS_ATTACHMENT, NoteColumns.MODIFIED_DATE,
             NoteColumns.NOTES_COUNT, NoteColumns.PARENT_ID, NoteColumns.SNIPPET, NoteColumns.TYPE,
             NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE, NoteColumns.SYNC_ID,
             NoteColumns.LOCAL_MODIFIED, NoteColumns.ORIGIN_PARENT_ID, NoteColumns.GTASK_ID,
-            NoteColumns.VERSION
+            NoteColumns.VERSION, NoteColumns.SYNC_HASH, NoteColumns.SYNC_BASE
     };
 
-    //以下设置17个列的编号
+    //以下设置19个列的编号
     public static final int ID_COLUMN = 0;
 
     public static final int ALERTED_DATE_COLUMN = 1;
@@ -96,6 +103,10 @@ public class SqlNote {
 
     public static final int VERSION_COLUMN = 16;
 
+    public static final int SYNC_HASH_COLUMN = 17;
+
+    public static final int SYNC_BASE_COLUMN = 18;
+
     //一下定义了17个内部的变量，其中12个可以由content中获得，5个需要初始化为0或者new
     private Context mContext;
 
@@ -129,10 +140,20 @@ public class SqlNote {
 
     private long mVersion;
 
+    private String mSyncHash;
+
+    private String mSyncBase;
+
     private ContentValues mDiffNoteValues;
 
     private ArrayList<SqlData> mDataList;
 
+    //批量提交时便签本身的操作在操作列表中的位置
+    private ArrayList<Integer> mPendingOps;
+
+    //新建便签的插入操作在操作列表中的位置，没有时为-1
+    private int mInsertOpIndex;
+
     /*
      * 构造函数
      *  mIsCreate用于标示构造方式
@@ -155,8 +176,12 @@ public class SqlNote {
         mWidgetType = Notes.TYPE_WIDGET_INVALIDE;
         mOriginParent = 0;
         mVersion = 0;
+        mSyncHash = "";
+        mSyncBase = "";
         mDiffNoteValues = new ContentValues();
         mDataList = new ArrayList<SqlData>();
+        mPendingOps = new ArrayList<Integer>();
+        mInsertOpIndex = -1;
     }
 
     /*
@@ -173,6 +198,8 @@ public class SqlNote {
         if (mType == Notes.TYPE_NOTE)
             loadDataContent();
         mDiffNoteValues = new ContentValues();
+        mPendingOps = new ArrayList<Integer>();
+        mInsertOpIndex = -1;
     }
     /*
      * 构造函数
@@ -188,7 +215,8 @@ public class SqlNote {
         if (mType == Notes.TYPE_NOTE)
             loadDataContent();
         mDiffNoteValues = new ContentValues();
-
+        mPendingOps = new ArrayList<Integer>();
+        mInsertOpIndex = -1;
     }
 
     /*
@@ -232,6 +260,8 @@ public class SqlNote {
         mWidgetId = c.getInt(WIDGET_ID_COLUMN);
         mWidgetType = c.getInt(WIDGET_TYPE_COLUMN);
         mVersion = c.getLong(VERSION_COLUMN);
+        mSyncHash = c.getString(SYNC_HASH_COLUMN);
+        mSyncBase = c.getString(SYNC_BASE_COLUMN);
     }
 
     /*
@@ -471,6 +501,159 @@ public class SqlNote {
         mDiffNoteValues.put(NoteColumns.SYNC_ID, syncId);
     }
 
+    /*
+     * 记录本次同步后的内容哈希
+     */
+    public void setSyncHash(String hash) {
+        mSyncHash = hash;
+        mDiffNoteValues.put(NoteColumns.SYNC_HASH, hash);
+    }
+
+    /*
+     * 记录本次同步后的正文，下一次冲突时作为合并的基础版本
+     */
+    public void setSyncBase(String base) {
+        mSyncBase = base;
+        mDiffNoteValues.put(NoteColumns.SYNC_BASE, base);
+    }
+
+    public String getSyncBase() {
+        return mSyncBase;
+    }
+
+    /*
+     * 当前内容已经和远端一致，记录同步哈希和合并的基础版本
+     */
+    public void markSynced() {
+        markSynced(getContent());
+    }
+
+    /*
+     * 同上，js为和远端一致的getContent格式的内容
+     */
+    public void markSynced(JSONObject js) {
+        setSyncHash(computeSyncHash(js));
+        setSyncBase(getNoteText(js));
+    }
+
+    /*
+     * 便签正文，即NOTE类型数据的content，文件夹或还没写入数据库时为空字符串
+     */
+    public String getNoteText() {
+        return getNoteText(getContent());
+    }
+
+    public static String getNoteText(JSONObject js) {
+        JSONArray dataArray = js == null ? null : js.optJSONArray(GTaskStringUtils.META_HEAD_DATA);
+        if (dataArray != null) {
+            for (int i = 0; i < dataArray.length(); i++) {
+                JSONObject data = dataArray.optJSONObject(i);
+                if (data != null
+                        && DataConstants.NOTE.equals(data.optString(DataColumns.MIME_TYPE))) {
+                    return data.optString(DataColumns.CONTENT);
+                }
+            }
+        }
+        return "";
+    }
+
+    /*
+     * 修改便签正文（例如合并后的内容），摘要同时更新
+     */
+    public boolean setNoteText(String text) {
+        JSONObject js = getContent();
+        if (js == null || !isNoteType()) {
+            return false;
+        }
+        try {
+            js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE).put(NoteColumns.SNIPPET, text);
+            JSONArray dataArray = js.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
+            for (int i = 0; i < dataArray.length(); i++) {
+                JSONObject data = dataArray.getJSONObject(i);
+                if (DataConstants.NOTE.equals(data.optString(DataColumns.MIME_TYPE))) {
+                    data.put(DataColumns.CONTENT, text);
+                    return setContent(js);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+        }
+        return false;
+    }
+
+    /*
+     * 上一次同步完成时的内容哈希，从未同步过时为空字符串
+     */
+    public String getSyncHash() {
+        return mSyncHash;
+    }
+
+    /*
+     * 当前内容的同步哈希，新建还没写入数据库的便签返回空字符串
+     */
+    public String computeSyncHash() {
+        return computeSyncHash(getContent());
+    }
+
+    /*
+     * 计算getContent格式的json（也就是远端meta中保存的格式）的同步哈希
+     * 修改时间、创建时间和gtask_id等不需要比较的字段不参与计算，只打开保存而没有改动时哈希不变
+     * id参与计算，因为远端meta中的id在本地更新时会被写回
+     */
+    public static String computeSyncHash(JSONObject js) {
+        if (js == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        JSONObject note = js.optJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+        if (note != null) {
+            appendHashField(sb, note.optString(NoteColumns.ID));
+            appendHashField(sb, note.optString(NoteColumns.TYPE));
+            appendHashField(sb, note.optString(NoteColumns.PARENT_ID));
+            appendHashField(sb, note.optString(NoteColumns.SNIPPET));
+            appendHashField(sb, note.optString(NoteColumns.ALERTED_DATE));
+            appendHashField(sb, note.optString(NoteColumns.BG_COLOR_ID));
+            appendHashField(sb, note.optString(NoteColumns.HAS_ATTACHMENT));
+            appendHashField(sb, note.optString(NoteColumns.WIDGET_ID));
+            appendHashField(sb, note.optString(NoteColumns.WIDGET_TYPE));
+        }
+        JSONArray dataArray = js.optJSONArray(GTaskStringUtils.META_HEAD_DATA);
+        if (dataArray != null) {
+            for (int i = 0; i < dataArray.length(); i++) {
+                JSONObject data = dataArray.optJSONObject(i);
+                if (data == null) {
+                    continue;
+                }
+                appendHashField(sb, data.optString(DataColumns.ID));
+                appendHashField(sb, data.optString(DataColumns.MIME_TYPE));
+                appendHashField(sb, data.optString(DataColumns.CONTENT));
+                appendHashField(sb, data.optString(DataColumns.DATA1));
+                appendHashField(sb, data.optString(DataColumns.DATA3));
+            }
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(sb.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, e.toString());
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, e.toString());
+        }
+        return "";
+    }
+
+    // 每个字段前写入长度，避免不同字段拼接后相同
+    private static void appendHashField(StringBuilder sb, String value) {
+        sb.append(value.length()).append(':').append(value);
+    }
+
     /*
      * 初始化本地修改，即撤销所有当前修改
      */
@@ -508,69 +691,127 @@ public class SqlNote {
 
     /*
      * commit函数用于把当前造作所做的修改保存到数据库
+     * 便签和数据的写入在同一个事务中完成
      */
     public void commit(boolean validateVersion) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        appendCommitOperations(ops, validateVersion);
+        if (ops.isEmpty()) {
+            return;
+        }
+
+        try {
+            onBatchCommitted(mContentResolver.applyBatch(Notes.AUTHORITY, ops));
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("commit note failed");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("commit note failed");
+        }
+    }
+
+    /*
+     * 把当前的修改（包括便签下的数据）转成ContentProviderOperation加入ops，不直接写数据库
+     * 同一批中新建的便签，之后的操作通过back reference引用插入结果中的id
+     */
+    public void appendCommitOperations(ArrayList<ContentProviderOperation> ops,
+                                       boolean validateVersion) {
         if (mIsCreate) {
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
                 mDiffNoteValues.remove(NoteColumns.ID);
             }
 
-            Uri uri = mContentResolver.insert(Notes.CONTENT_NOTE_URI, mDiffNoteValues);
-            try {
-                mId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
-            }
-            if (mId == 0) {
-                throw new IllegalStateException("Create thread id failed");
-            }
+            mInsertOpIndex = ops.size();
+            mPendingOps.add(mInsertOpIndex);
+            ops.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(mDiffNoteValues).build());
 
             if (mType == Notes.TYPE_NOTE) {
                 //直接使用sqldata中的实现
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, false, -1);
+                    sqlData.appendCommitOperations(ops, mId, mInsertOpIndex, false, -1);
                 }
             }
         } else {
-            if (mId <= 0 && mId != Notes.ID_ROOT_FOLDER && mId != Notes.ID_CALL_RECORD_FOLDER) {
+            if (mInsertOpIndex < 0 && mId <= 0 && mId != Notes.ID_ROOT_FOLDER
+                    && mId != Notes.ID_CALL_RECORD_FOLDER) {
                 Log.e(TAG, "No such note");
                 throw new IllegalStateException("Try to update note with invalid id");
             }
             if (mDiffNoteValues.size() > 0) {
                 mVersion++;
-                int result = 0;
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(Notes.CONTENT_NOTE_URI).withValues(mDiffNoteValues);
                 //构造字符串
                 if (!validateVersion) {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?)", new String[]{
+                    builder.withSelection("(" + NoteColumns.ID + "=?)", new String[]{
                             String.valueOf(mId)
                     });
                 } else {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                                    + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
-                            new String[]{
-                                    String.valueOf(mId), String.valueOf(mVersion)
-                            });
+                    builder.withSelection("(" + NoteColumns.ID + "=?) AND ("
+                            + NoteColumns.VERSION + "<=?)", new String[]{
+                            String.valueOf(mId), String.valueOf(mVersion)
+                    });
                 }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                if (mInsertOpIndex >= 0) {
+                    builder.withSelectionBackReference(0, mInsertOpIndex);
                 }
+                mPendingOps.add(ops.size());
+                ops.add(builder.build());
             }
 
             if (mType == Notes.TYPE_NOTE) {
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, validateVersion, mVersion);
+                    sqlData.appendCommitOperations(ops, mId, mInsertOpIndex, validateVersion,
+                            mVersion);
                 }
             }
         }
 
-        // refresh local info
-        loadFromCursor(mId);
-        if (mType == Notes.TYPE_NOTE)
-            loadDataContent();
-
         mDiffNoteValues.clear();
         mIsCreate = false;
     }
+
+    /*
+     * 批量提交完成后根据结果设置新建便签和数据的id
+     * 写入的值已经保存在成员变量中，只有更新被跳过时才重新从数据库读取
+     */
+    public void onBatchCommitted(ContentProviderResult[] results) {
+        boolean written = true;
+        for (int index : mPendingOps) {
+            ContentProviderResult result = results[index];
+            if (result.uri != null) {
+                try {
+                    mId = Long.valueOf(result.uri.getPathSegments().get(1));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Get note id error :" + e.toString());
+                    throw new ActionFailureException("create note failed");
+                }
+                if (mId == 0) {
+                    throw new IllegalStateException("Create thread id failed");
+                }
+            } else if (result.count != null && result.count == 0) {
+                Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                written = false;
+            }
+        }
+        mPendingOps.clear();
+        mInsertOpIndex = -1;
+
+        if (mType == Notes.TYPE_NOTE) {
+            for (SqlData sqlData : mDataList) {
+                if (!sqlData.onBatchCommitted(results)) {
+                    written = false;
+                }
+            }
+        }
+
+        // refresh local info
+        if (!written) {
+            loadFromCursor(mId);
+            if (mType == Notes.TYPE_NOTE)
+                loadDataContent();
+        }
+    }
 }
@@ -40,8 +40,11 @@ public class Task extends Node {
 
     private String mNotes;
 
-    //将在实例中存储数据的类型
-    private JSONObject mMetaInfo;
+    //meta的原始JSON字符串，与MetaData共用，用到时再解析，不长期持有解析后的JSONObject
+    private String mMetaInfo;
+
+    //远端保存这个Task的meta的节点，同步时用来更新或删除meta，代替按gid索引的表
+    private MetaData mMetaData;
 
     //对应的优先兄弟Task的指针
     private Task mPriorSibling;
@@ -49,6 +52,9 @@ public class Task extends Node {
     //所在的任务列表的指针
     private TaskList mParent;
 
+    //在所在任务列表中的位置，由TaskList维护，不在列表中时为-1
+    private int mPositionInParent;
+
     public Task() {
         super();
         mCompleted = false;
@@ -57,7 +63,9 @@ public class Task extends Node {
         mPriorSibling = null;
         //当前Task所在的TaskList
         mParent = null;
+        mPositionInParent = -1;
         mMetaInfo = null;
+        mMetaData = null;
     }
 
     public JSONObject getCreateAction(int actionId) {
@@ -213,7 +221,8 @@ public class Task extends Node {
     public JSONObject getLocalJSONFromContent() {
         String name = getName();
         try {
-            if (mMetaInfo == null) {
+            JSONObject metaInfo = parseMetaInfo();
+            if (metaInfo == null) {
                 // new task created from web
                 if (name == null) {
                     Log.w(TAG, "the note seems to be an empty one");
@@ -232,8 +241,8 @@ public class Task extends Node {
                 return js;
             } else {
                 // synced task
-                JSONObject note = mMetaInfo.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
-                JSONArray dataArray = mMetaInfo.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
+                JSONObject note = metaInfo.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+                JSONArray dataArray = metaInfo.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
 
                 for (int i = 0; i < dataArray.length(); i++) {
                     JSONObject data = dataArray.getJSONObject(i);
@@ -244,7 +253,7 @@ public class Task extends Node {
                 }
 
                 note.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
-                return mMetaInfo;
+                return metaInfo;
             }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -254,9 +263,12 @@ public class Task extends Node {
     }
 
     public void setMetaInfo(MetaData metaData) {
+        mMetaData = metaData;
         if (metaData != null && metaData.getNotes() != null) {
             try {
-                mMetaInfo = new JSONObject(metaData.getNotes());
+                // only check that it can be parsed, the object is not kept
+                new JSONObject(metaData.getNotes());
+                mMetaInfo = metaData.getNotes();
             } catch (JSONException e) {
                 Log.w(TAG, e.toString());
                 mMetaInfo = null;
@@ -264,11 +276,35 @@ public class Task extends Node {
         }
     }
 
+    public MetaData getMetaData() {
+        return mMetaData;
+    }
+
+    /*
+     * 只记录meta节点，不改变加载时的meta内容，用于同步中新建的meta
+     */
+    public void setMetaData(MetaData metaData) {
+        mMetaData = metaData;
+    }
+
+    private JSONObject parseMetaInfo() {
+        if (mMetaInfo == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(mMetaInfo);
+        } catch (JSONException e) {
+            Log.w(TAG, e.toString());
+            return null;
+        }
+    }
+
     public int getSyncAction(Cursor c) {
         try {
             JSONObject noteInfo = null;
-            if (mMetaInfo != null && mMetaInfo.has(GTaskStringUtils.META_HEAD_NOTE)) {
-                noteInfo = mMetaInfo.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+            JSONObject metaInfo = parseMetaInfo();
+            if (metaInfo != null && metaInfo.has(GTaskStringUtils.META_HEAD_NOTE)) {
+                noteInfo = metaInfo.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
             }
 
             if (noteInfo == null) {
@@ -322,6 +358,16 @@ public class Task extends Node {
                 || (getNotes() != null && getNotes().trim().length() > 0);
     }
 
+    @Override
+    public void setGid(String gid) {
+        String oldGid = getGid();
+        super.setGid(gid);
+        // keep the gid index of the parent list in sync
+        if (mParent != null) {
+            mParent.onChildGidChanged(this, oldGid);
+        }
+    }
+
     public void setCompleted(boolean completed) {
         this.mCompleted = completed;
     }
@@ -354,4 +400,12 @@ public class Task extends Node {
         return this.mParent;
     }
 
+    int getPositionInParent() {
+        return this.mPositionInParent;
+    }
+
+    void setPositionInParent(int position) {
+        this.mPositionInParent = position;
+    }
+
 }
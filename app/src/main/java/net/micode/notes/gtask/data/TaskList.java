@@ -28,6 +28,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 
 public class TaskList extends Node {
@@ -37,10 +40,14 @@ public class TaskList extends Node {
     private int mIndex;
     //类中主要的保存数据的单元，用来实现一个以Task为元素的ArrayList
     private ArrayList<Task> mChildren;
+    //gid到Task的索引，第一次按gid查找时才建立，之后由Task.setGid维护
+    //Task在mChildren中的位置记在Task自己身上，同步时加载的列表不需要额外的哈希表
+    private HashMap<String, Task> mChildGidIndex;
 
     public TaskList() {
         super();
         mChildren = new ArrayList<Task>();
+        mChildGidIndex = null;
         mIndex = 1;
     }
 
@@ -232,28 +239,29 @@ public class TaskList extends Node {
 
     /**
      * 返回值为是否成功添加任务。
-     * 在当前任务表末尾添加新的任务。
+     * 在当前任务表末尾添加新的任务，只需要设置新任务自己的PriorSibling。
      */
     public boolean addChildTask(Task task) {
-        boolean ret = false;
-        if (task != null && !mChildren.contains(task)) {
-            ret = mChildren.add(task);
-            if (ret) {
-                // need to set prior sibling and parent
-                task.setPriorSibling(mChildren.isEmpty() ? null : mChildren
-                        .get(mChildren.size() - 1));
-                task.setParent(this);
-                //注意：每一次ArrayList的变化都要紧跟相关Task中PriorSibling的更改
-                //，接下来几个函数都有相关操作
-            }
+        if (task == null || containsChildTask(task)) {
+            return false;
         }
-        return ret;
+
+        // need to set prior sibling and parent
+        Task priorSibling = mChildren.isEmpty() ? null : mChildren.get(mChildren.size() - 1);
+        mChildren.add(task);
+        indexChildTask(task, mChildren.size() - 1);
+        task.setPriorSibling(priorSibling);
+        task.setParent(this);
+        //注意：每一次ArrayList的变化都要紧跟相关Task中PriorSibling的更改
+        //，接下来几个函数都有相关操作
+        return true;
     }
 
     /**
      * @param task
      * @param index
      * @return 在当前任务表的指定位置添加新的任务。
+     * 只有index之后的Task需要更新位置索引，PriorSibling只改动前后两个Task
      */
     public boolean addChildTask(Task task, int index) {
         if (index < 0 || index > mChildren.size()) {
@@ -261,9 +269,9 @@ public class TaskList extends Node {
             return false;
         }
 
-        int pos = mChildren.indexOf(task);
-        if (task != null && pos == -1) {
+        if (task != null && !containsChildTask(task)) {
             mChildren.add(index, task);
+            reindexChildTasks(index);
 
             // update the task list
             Task preTask = null;
@@ -274,6 +282,7 @@ public class TaskList extends Node {
                 afterTask = mChildren.get(index + 1);
 
             task.setPriorSibling(preTask);
+            task.setParent(this);
             if (afterTask != null)
                 afterTask.setPriorSibling(task);
         }
@@ -287,24 +296,29 @@ public class TaskList extends Node {
      * 删除TaskList中的一个Task
      */
     public boolean removeChildTask(Task task) {
-        boolean ret = false;
-        int index = mChildren.indexOf(task);
-        if (index != -1) {
-            ret = mChildren.remove(task);
-
-            if (ret) {
-                // reset prior sibling and parent
-                task.setPriorSibling(null);
-                task.setParent(null);
-
-                // update the task list
-                if (index != mChildren.size()) {
-                    mChildren.get(index).setPriorSibling(
-                            index == 0 ? null : mChildren.get(index - 1));
-                }
-            }
+        if (!containsChildTask(task)) {
+            return false;
+        }
+
+        int index = task.getPositionInParent();
+        mChildren.remove(index);
+        task.setPositionInParent(-1);
+        if (mChildGidIndex != null && task.getGid() != null
+                && mChildGidIndex.get(task.getGid()) == task) {
+            mChildGidIndex.remove(task.getGid());
         }
-        return ret;
+        reindexChildTasks(index);
+
+        // reset prior sibling and parent
+        task.setPriorSibling(null);
+        task.setParent(null);
+
+        // update the task list
+        if (index != mChildren.size()) {
+            mChildren.get(index).setPriorSibling(
+                    index == 0 ? null : mChildren.get(index - 1));
+        }
+        return true;
     }
 
     /**
@@ -319,13 +333,12 @@ public class TaskList extends Node {
             return false;
         }
 
-        int pos = mChildren.indexOf(task);
-        if (pos == -1) {
+        if (!containsChildTask(task)) {
             Log.e(TAG, "move child task: the task should in the list");
             return false;
         }
 
-        if (pos == index)
+        if (task.getPositionInParent() == index)
             return true;
         return (removeChildTask(task) && addChildTask(task, index));
     }
@@ -335,13 +348,18 @@ public class TaskList extends Node {
      * @return返回寻找结果 按gid寻找Task
      */
     public Task findChildTaskByGid(String gid) {
-        for (int i = 0; i < mChildren.size(); i++) {
-            Task t = mChildren.get(i);
-            if (t.getGid().equals(gid)) {
-                return t;
+        if (gid == null) {
+            return null;
+        }
+        if (mChildGidIndex == null) {
+            mChildGidIndex = new HashMap<String, Task>();
+            for (Task task : mChildren) {
+                if (task.getGid() != null) {
+                    mChildGidIndex.put(task.getGid(), task);
+                }
             }
         }
-        return null;
+        return mChildGidIndex.get(gid);
     }
 
     /**
@@ -349,7 +367,7 @@ public class TaskList extends Node {
      * @return 返回指定Task的index
      */
     public int getChildTaskIndex(Task task) {
-        return mChildren.indexOf(task);
+        return containsChildTask(task) ? task.getPositionInParent() : -1;
     }
 
     /**
@@ -369,15 +387,53 @@ public class TaskList extends Node {
      * @return 返回指定gid的Task
      */
     public Task getChilTaskByGid(String gid) {
-        for (Task task : mChildren) {
-            if (task.getGid().equals(gid))
-                return task;
+        return findChildTaskByGid(gid);
+    }
+
+    /**
+     * 子Task的gid变化后更新gid索引，由Task.setGid调用
+     */
+    void onChildGidChanged(Task task, String oldGid) {
+        if (mChildGidIndex == null || !containsChildTask(task)) {
+            return;
+        }
+        if (oldGid != null && mChildGidIndex.get(oldGid) == task) {
+            mChildGidIndex.remove(oldGid);
+        }
+        if (task.getGid() != null) {
+            mChildGidIndex.put(task.getGid(), task);
+        }
+    }
+
+    /**
+     * 只读的子Task列表，修改需要通过addChildTask/removeChildTask以保持索引一致
+     */
+    public List<Task> getChildTaskList() {
+        return Collections.unmodifiableList(mChildren);
+    }
+
+    private boolean containsChildTask(Task task) {
+        if (task == null) {
+            return false;
         }
-        return null;
+        int position = task.getPositionInParent();
+        return position >= 0 && position < mChildren.size() && mChildren.get(position) == task;
     }
 
-    public ArrayList<Task> getChildTaskList() {
-        return this.mChildren;
+    private void indexChildTask(Task task, int position) {
+        task.setPositionInParent(position);
+        if (mChildGidIndex != null && task.getGid() != null) {
+            mChildGidIndex.put(task.getGid(), task);
+        }
+    }
+
+    /**
+     * 从from开始重新记录位置，插入和删除时只影响之后的Task
+     */
+    private void reindexChildTasks(int from) {
+        for (int i = from; i < mChildren.size(); i++) {
+            indexChildTask(mChildren.get(i), i);
+        }
     }
 
     public void setIndex(int index) {
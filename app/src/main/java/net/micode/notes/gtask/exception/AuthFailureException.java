@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.exception;
+
+/*
+ * Description：服务器拒绝了当前的登录会话（cookie过期或失效），需要重新登录
+ * 继承NetworkFailureException，没有处理它的调用者仍然按网络异常处理
+ */
+public class AuthFailureException extends NetworkFailureException {
+    private static final long serialVersionUID = -4193561875322084019L;
+
+    public AuthFailureException() {
+        super();
+    }
+
+    public AuthFailureException(String paramString) {
+        super(paramString);
+    }
+
+    public AuthFailureException(String paramString, Throwable paramThrowable) {
+        super(paramString, paramThrowable);
+    }
+}
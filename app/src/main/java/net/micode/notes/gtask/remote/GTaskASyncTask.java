@@ -22,14 +22,17 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
 
 import net.micode.notes.R;
+import net.micode.notes.tool.TaskExecutor;
 import net.micode.notes.ui.NotesListActivity;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
 
-public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
+/*
+ * Description：执行一次GTask同步，在TaskExecutor的网络线程池中以后台优先级运行
+ */
+public class GTaskASyncTask extends TaskExecutor.BackgroundTask<Integer> {
 
     private static int GTASK_SYNC_NOTIFICATION_ID = 5234235;
 
@@ -45,6 +48,9 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
 
     private OnCompleteListener mOnCompleteListener;
 
+    // 后台定时同步不显示通知
+    private boolean mShowNotification = true;
+
     public GTaskASyncTask(Context context, OnCompleteListener listener) {
         mContext = context;
         mOnCompleteListener = listener;
@@ -53,13 +59,24 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
         mTaskManager = GTaskManager.getInstance();
     }
 
+    public void setShowNotification(boolean show) {
+        mShowNotification = show;
+    }
+
     public void cancelSync() {
         mTaskManager.cancelSync();
     }
 
-    public void publishProgess(String message) {
-        publishProgress(new String[] {
-                message
+    public void execute() {
+        TaskExecutor.getInstance().execute(TaskExecutor.POOL_NETWORK,
+                TaskExecutor.PRIORITY_BACKGROUND, null, this);
+    }
+
+    public void publishProgess(final String message) {
+        runOnMainThread(new Runnable() {
+            public void run() {
+                onProgressUpdate(message);
+            }
         });
     }
 
@@ -82,6 +99,9 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
 //        mNotifiManager.notify(GTASK_SYNC_NOTIFICATION_ID, notification);
 //    }
     private void showNotification(int tickerId, String content) {
+        if (!mShowNotification) {
+            return;
+        }
         PendingIntent pendingIntent;
         if (tickerId != R.string.ticker_success) {
             pendingIntent = PendingIntent.getActivity(mContext, 0, new Intent(mContext,
@@ -102,17 +122,16 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
     }
 
     @Override
-    protected Integer doInBackground(Void... unused) {
+    protected Integer doInBackground() {
         publishProgess(mContext.getString(R.string.sync_progress_login, NotesPreferenceActivity
                 .getSyncAccountName(mContext)));
         return mTaskManager.sync(mContext, this);
     }
 
-    @Override
-    protected void onProgressUpdate(String... progress) {
-        showNotification(R.string.ticker_syncing, progress[0]);
+    private void onProgressUpdate(String progress) {
+        showNotification(R.string.ticker_syncing, progress);
         if (mContext instanceof GTaskSyncService) {
-            ((GTaskSyncService) mContext).sendBroadcast(progress[0]);
+            ((GTaskSyncService) mContext).sendBroadcast(progress);
         }
     }
 
@@ -131,12 +150,7 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
                     .getString(R.string.error_sync_cancelled));
         }
         if (mOnCompleteListener != null) {
-            new Thread(new Runnable() {
-
-                public void run() {
-                    mOnCompleteListener.onComplete();
-                }
-            }).start();
+            mOnCompleteListener.onComplete();
         }
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Date;
+import java.util.List;
+
+/*
+ * Description：登录GTask后的会话（cookie、请求地址和client version），保存在私有的SharedPreferences中
+ * 进程重启后直接恢复，不用再获取auth token和请求任务页面
+ * 会话只在服务器拒绝时才重新登录，另外超过SESSION_MAX_AGE或cookie过期时不再使用
+ * 会话文件在 backup_rules 和 data_extraction_rules 中排除，不随自动备份和换机迁移带走
+ */
+class GTaskAuthSession {
+    private static final String TAG = GTaskAuthSession.class.getSimpleName();
+
+    private static final String PREFERENCE_NAME = "gtask_auth_session";
+
+    private static final String KEY_ACCOUNT = "account";
+
+    private static final String KEY_GET_URL = "get_url";
+
+    private static final String KEY_POST_URL = "post_url";
+
+    private static final String KEY_CLIENT_VERSION = "client_version";
+
+    private static final String KEY_COOKIES = "cookies";
+
+    private static final String KEY_CREATE_TIME = "create_time";
+
+    private static final String COOKIE_NAME = "name";
+
+    private static final String COOKIE_VALUE = "value";
+
+    private static final String COOKIE_DOMAIN = "domain";
+
+    private static final String COOKIE_PATH = "path";
+
+    private static final String COOKIE_EXPIRY = "expiry";
+
+    private static final String COOKIE_SECURE = "secure";
+
+    // cookie没有过期时间时，会话最多使用这么久
+    private static final long SESSION_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private String mAccount;
+
+    private String mGetUrl;
+
+    private String mPostUrl;
+
+    private long mClientVersion;
+
+    private JSONArray mCookies;
+
+    private long mCreateTime;
+
+    private GTaskAuthSession() {
+    }
+
+    /*
+     * 登录成功后记录当前会话
+     */
+    public static GTaskAuthSession capture(String account, String getUrl, String postUrl,
+            long clientVersion, List<Cookie> cookies) {
+        GTaskAuthSession session = new GTaskAuthSession();
+        session.mAccount = account;
+        session.mGetUrl = getUrl;
+        session.mPostUrl = postUrl;
+        session.mClientVersion = clientVersion;
+        session.mCreateTime = System.currentTimeMillis();
+        session.mCookies = new JSONArray();
+        try {
+            for (Cookie cookie : cookies) {
+                JSONObject js = new JSONObject();
+                js.put(COOKIE_NAME, cookie.getName());
+                js.put(COOKIE_VALUE, cookie.getValue());
+                js.put(COOKIE_DOMAIN, cookie.getDomain());
+                js.put(COOKIE_PATH, cookie.getPath());
+                js.put(COOKIE_EXPIRY, cookie.getExpiryDate() == null ? 0
+                        : cookie.getExpiryDate().getTime());
+                js.put(COOKIE_SECURE, cookie.isSecure());
+                session.mCookies.put(js);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+        }
+        return session;
+    }
+
+    /*
+     * 读取保存的会话，账号不同、已经过期或者没有时返回null
+     */
+    public static GTaskAuthSession load(Context context, String account) {
+        SharedPreferences preferences = getPreferences(context);
+        if (account == null || !account.equals(preferences.getString(KEY_ACCOUNT, null))) {
+            return null;
+        }
+
+        GTaskAuthSession session = new GTaskAuthSession();
+        session.mAccount = account;
+        session.mGetUrl = preferences.getString(KEY_GET_URL, null);
+        session.mPostUrl = preferences.getString(KEY_POST_URL, null);
+        session.mClientVersion = preferences.getLong(KEY_CLIENT_VERSION, -1);
+        session.mCreateTime = preferences.getLong(KEY_CREATE_TIME, 0);
+        try {
+            session.mCookies = new JSONArray(preferences.getString(KEY_COOKIES, "[]"));
+        } catch (JSONException e) {
+            Log.w(TAG, "failed to parse saved cookies");
+            return null;
+        }
+
+        if (session.mGetUrl == null || session.mPostUrl == null || session.mClientVersion == -1
+                || session.mCookies.length() == 0 || session.isExpired()) {
+            return null;
+        }
+        return session;
+    }
+
+    public void save(Context context) {
+        getPreferences(context).edit()
+                .putString(KEY_ACCOUNT, mAccount)
+                .putString(KEY_GET_URL, mGetUrl)
+                .putString(KEY_POST_URL, mPostUrl)
+                .putLong(KEY_CLIENT_VERSION, mClientVersion)
+                .putString(KEY_COOKIES, mCookies.toString())
+                .putLong(KEY_CREATE_TIME, mCreateTime)
+                .commit();
+    }
+
+    public static void clear(Context context) {
+        getPreferences(context).edit().clear().commit();
+    }
+
+    public String getGetUrl() {
+        return mGetUrl;
+    }
+
+    public String getPostUrl() {
+        return mPostUrl;
+    }
+
+    public long getClientVersion() {
+        return mClientVersion;
+    }
+
+    /*
+     * 把保存的cookie放入cookieStore
+     */
+    public void applyTo(CookieStore cookieStore) {
+        for (int i = 0; i < mCookies.length(); i++) {
+            JSONObject js = mCookies.optJSONObject(i);
+            if (js == null) {
+                continue;
+            }
+            BasicClientCookie cookie = new BasicClientCookie(js.optString(COOKIE_NAME),
+                    js.optString(COOKIE_VALUE));
+            cookie.setDomain(js.optString(COOKIE_DOMAIN, null));
+            cookie.setPath(js.optString(COOKIE_PATH, null));
+            long expiry = js.optLong(COOKIE_EXPIRY, 0);
+            if (expiry > 0) {
+                cookie.setExpiryDate(new Date(expiry));
+            }
+            cookie.setSecure(js.optBoolean(COOKIE_SECURE, false));
+            cookieStore.addCookie(cookie);
+        }
+    }
+
+    private boolean isExpired() {
+        long now = System.currentTimeMillis();
+        if (now - mCreateTime > SESSION_MAX_AGE || now < mCreateTime) {
+            return true;
+        }
+        for (int i = 0; i < mCookies.length(); i++) {
+            JSONObject js = mCookies.optJSONObject(i);
+            long expiry = js == null ? 0 : js.optLong(COOKIE_EXPIRY, 0);
+            if (expiry > 0 && expiry <= now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+}
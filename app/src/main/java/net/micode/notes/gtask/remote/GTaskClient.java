@@ -20,6 +20,7 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
+import android.content.Context;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
@@ -28,6 +29,7 @@ import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.AuthFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
@@ -38,6 +40,7 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
@@ -51,11 +54,16 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -73,6 +81,20 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    // 一次提交的action_list的字节上限（按UTF-8估算），超过时先提交已缓存的动作
+    private static final int MAX_ACTION_LIST_BYTES = 32 * 1024;
+
+    // 一次提交的动作数量上限
+    private static final int MAX_ACTION_LIST_SIZE = 100;
+
+    // 幂等请求网络失败后的最大重试次数
+    private static final int MAX_RETRIES = 3;
+
+    // 重试等待时间的基数和上限，等待时间在[0, min(上限, 基数*2^n))中随机选取
+    private static final long RETRY_BASE_DELAY_MS = 500;
+
+    private static final long RETRY_MAX_DELAY_MS = 8000;
+
     private static GTaskClient mInstance = null;
 
     private DefaultHttpClient mHttpClient;
@@ -85,7 +107,7 @@ public class GTaskClient {
 
     private boolean mLoggedin;
 
-    private long mLastLoginTime;
+    private Context mContext;
 
     private int mActionId;
 
@@ -93,16 +115,49 @@ public class GTaskClient {
 
     private JSONArray mUpdateArray;
 
+    private int mUpdateArrayBytes;
+
+    // action_id到新建节点的映射，提交后用返回的new_id设置节点的gid
+    private HashMap<Integer, Node> mPendingCreateNodes;
+
+    // 新建节点到action_id的映射，用于判断prior sibling是否还在同一批中等待new_id
+    private HashMap<Node, Integer> mPendingCreateActionIds;
+
+    // 新建时prior sibling还没有gid、因此没有带prior_sibling_id的任务，
+    // 提交得到gid后用移动动作放到prior sibling之后
+    private ArrayList<Task> mUnorderedTasks;
+
+    private Random mRandom;
+
+    // 当前同步的性能数据，没有同步时为null
+    private SyncMetrics mMetrics;
+
+    // 正在执行、可以中止的请求，取消同步时调用abort
+    private volatile HttpUriRequest mRunningRequest;
+
+    private volatile boolean mCancelled;
+
+    // 退避重试时在这个对象上等待，取消时唤醒
+    private final Object mCancelLock = new Object();
+
     private GTaskClient() {
         mHttpClient = null;
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
         mLoggedin = false;
-        mLastLoginTime = 0;
+        mContext = null;
         mActionId = 1;
         mAccount = null;
         mUpdateArray = null;
+        mUpdateArrayBytes = 0;
+        mPendingCreateNodes = new HashMap<Integer, Node>();
+        mPendingCreateActionIds = new HashMap<Node, Integer>();
+        mUnorderedTasks = new ArrayList<Task>();
+        mRandom = new Random();
+        mMetrics = null;
+        mRunningRequest = null;
+        mCancelled = false;
     }
 
     /*用来获取的实例化对象
@@ -116,34 +171,32 @@ public class GTaskClient {
         return mInstance;
     }
 
-    /*用来实现登录操作的函数，传入的参数是一个Activity
-     * 设置登录操作限制时间，如果超时则需要重新登录
+    /*用来实现登录操作的函数，传入的参数是一个Context
+     * 从界面发起时为Activity，需要用户授权时可以直接弹出界面；后台同步时没有Activity，只能发出通知
+     * 优先恢复保存的会话，会话只有在服务器拒绝时才重新登录（见refreshLogin）
      * 有两种登录方式，使用用户自己的URL登录或者使用谷歌官方的URL登录
      * 返回true或者false，即最后是否登陆成功
      * */
-    public boolean login(Activity activity) {
-        // we suppose that the cookie would expire after 5 minutes
-        // then we need to re-login
-        //判断距离最后一次登录操作是否超过5分钟
-        final long interval = 1000 * 60 * 5;
-        if (mLastLoginTime + interval < System.currentTimeMillis()) {
-            mLoggedin = false;
-        }
+    public boolean login(Context context) {
+        mContext = context.getApplicationContext();
+        String accountName = NotesPreferenceActivity.getSyncAccountName(context);
 
         // need to re-login after account switch
-        if (mLoggedin
-                && !TextUtils.equals(getSyncAccount().name, NotesPreferenceActivity
-                .getSyncAccountName(activity))) {
+        if (mLoggedin && !TextUtils.equals(getSyncAccount().name, accountName)) {
             mLoggedin = false;
         }
-        //如果没超过时间，则不需要重新登录
         if (mLoggedin) {
             Log.d(TAG, "already logged in");
             return true;
         }
-        //更新最后登录时间，改为系统当前的时间
-        mLastLoginTime = System.currentTimeMillis();
-        String authToken = loginGoogleAccount(activity, false);//判断是否登录到谷歌账户
+
+        // 进程重启后恢复保存的会话
+        if (restoreSession(accountName)) {
+            Log.d(TAG, "restored saved session");
+            return true;
+        }
+
+        String authToken = loginGoogleAccount(context, false);//判断是否登录到谷歌账户
         if (authToken == null) {
             Log.e(TAG, "login google account failed");
             return false;
@@ -160,7 +213,7 @@ public class GTaskClient {
             mGetUrl = url.toString() + "ig";//设置用户对应的getUrl
             mPostUrl = url.toString() + "r/ig";//设置用户对应的postUrl
 
-            if (tryToLoginGtask(activity, authToken)) {
+            if (tryToLoginGtask(context, authToken)) {
                 mLoggedin = true;
             }
         }
@@ -170,23 +223,69 @@ public class GTaskClient {
         if (!mLoggedin) {
             mGetUrl = GTASK_GET_URL;
             mPostUrl = GTASK_POST_URL;
-            if (!tryToLoginGtask(activity, authToken)) {
+            if (!tryToLoginGtask(context, authToken)) {
                 return false;
             }
         }
 
+        mLoggedin = true;
+        saveSession();
+        return true;
+    }
+
+    /*
+     * 恢复保存的会话，不发出任何请求，会话失效时由第一个请求发现
+     */
+    private boolean restoreSession(String accountName) {
+        GTaskAuthSession session = GTaskAuthSession.load(mContext, accountName);
+        if (session == null) {
+            return false;
+        }
+        mHttpClient = createHttpClient();
+        session.applyTo(mHttpClient.getCookieStore());
+        mGetUrl = session.getGetUrl();
+        mPostUrl = session.getPostUrl();
+        mClientVersion = session.getClientVersion();
+        mAccount = new Account(accountName, "com.google");
         mLoggedin = true;
         return true;
     }
 
+    private void saveSession() {
+        GTaskAuthSession.capture(mAccount.name, mGetUrl, mPostUrl, mClientVersion,
+                mHttpClient.getCookieStore().getCookies()).save(mContext);
+    }
+
+    /*
+     * 服务器拒绝了当前会话，丢弃保存的会话并重新登录
+     */
+    private boolean refreshLogin() {
+        Log.w(TAG, "session rejected by server, login again");
+        mLoggedin = false;
+        if (mContext == null) {
+            return false;
+        }
+        GTaskAuthSession.clear(mContext);
+        return login(mContext);
+    }
+
+    /*
+     * 移除或切换同步账号时调用，清除内存中和保存的会话
+     */
+    public void logout(Context context) {
+        mLoggedin = false;
+        mHttpClient = null;
+        GTaskAuthSession.clear(context);
+    }
+
     /*具体实现登录谷歌账户的方法
      * 使用令牌机制
      * 使用AccountManager来管理注册账号
      * 返回值是账号的令牌
      * */
-    private String loginGoogleAccount(Activity activity, boolean invalidateToken) {
+    private String loginGoogleAccount(Context context, boolean invalidateToken) {
         String authToken; //令牌，是登录操作保证安全性的一个方法
-        AccountManager accountManager = AccountManager.get(activity);//AccountManager这个类给用户提供了集中注册账号的接口
+        AccountManager accountManager = AccountManager.get(context);//AccountManager这个类给用户提供了集中注册账号的接口
         Account[] accounts = accountManager.getAccountsByType("com.google");//获取全部以com.google结尾的account
 
 
@@ -195,7 +294,7 @@ public class GTaskClient {
             return null;
         }
 
-        String accountName = NotesPreferenceActivity.getSyncAccountName(activity);
+        String accountName = NotesPreferenceActivity.getSyncAccountName(context);
         Account account = null;
         //遍历获得的accounts信息，寻找已经记录过的账户信息
         for (Account a : accounts) {
@@ -213,15 +312,22 @@ public class GTaskClient {
 
         // get the token now
         //获取选中账号的令牌
-        AccountManagerFuture<Bundle> accountManagerFuture = accountManager.getAuthToken(account,
-                "goanna_mobile", null, activity, null, null);
+        AccountManagerFuture<Bundle> accountManagerFuture;
+        if (context instanceof Activity) {
+            accountManagerFuture = accountManager.getAuthToken(account, "goanna_mobile", null,
+                    (Activity) context, null, null);
+        } else {
+            // 后台同步，需要用户确认时由系统发出通知
+            accountManagerFuture = accountManager.getAuthToken(account, "goanna_mobile", null,
+                    true, null, null);
+        }
         try {
             Bundle authTokenBundle = accountManagerFuture.getResult();
             authToken = authTokenBundle.getString(AccountManager.KEY_AUTHTOKEN);
             //如果是invalidateToken，那么需要调用invalidateAuthToken(String, String)方法废除这个无效token
             if (invalidateToken) {
                 accountManager.invalidateAuthToken("com.google", authToken);
-                loginGoogleAccount(activity, false);
+                loginGoogleAccount(context, false);
             }
         } catch (Exception e) {
             Log.e(TAG, "get auth token failed");
@@ -232,12 +338,12 @@ public class GTaskClient {
     }
 
     //尝试登陆Gtask，这只是一个预先判断令牌是否是有效以及是否能登上GTask的方法,而不是具体实现登陆的方法
-    private boolean tryToLoginGtask(Activity activity, String authToken) {
+    private boolean tryToLoginGtask(Context context, String authToken) {
         if (!loginGtask(authToken)) {
             // maybe the auth token is out of date, now let's invalidate the
             // token and try again
             //删除过一个无效的authToken，申请一个新的后再次尝试登陆
-            authToken = loginGoogleAccount(activity, true);
+            authToken = loginGoogleAccount(context, true);
             if (authToken == null) {
                 Log.e(TAG, "login google account failed");
                 return false;
@@ -253,23 +359,15 @@ public class GTaskClient {
 
     //实现登录GTask的具体操作
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        //socket是一种通信连接实现数据的交换的端口
-        HttpParams httpParameters = new BasicHttpParams(); //实例化一个新的HTTP参数类
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);//设置连接超时时间
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);//设置设置端口超时时间
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();//设置本地cookie
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        mHttpClient = createHttpClient();
 
         // login gtask
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;//设置登录的url
             HttpGet httpGet = new HttpGet(loginUrl);//通过登录的uri实例化网页上资源的查找
             HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            onRequest(null);
+            response = execute(httpGet);
 
             // get the cookie now
             //获取CookieStore里存放的cookie,看如果存有“GTL”，则说明有验证成功的有效的cookie
@@ -305,11 +403,27 @@ public class GTaskClient {
             // simply catch all exceptions
             Log.e(TAG, "httpget gtask_url failed");
             return false;
+        } finally {
+            mRunningRequest = null;
         }
 
         return true;
     }
 
+    private DefaultHttpClient createHttpClient() {
+        int timeoutConnection = 10000;
+        int timeoutSocket = 15000;
+        //socket是一种通信连接实现数据的交换的端口
+        HttpParams httpParameters = new BasicHttpParams(); //实例化一个新的HTTP参数类
+        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);//设置连接超时时间
+        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);//设置设置端口超时时间
+        DefaultHttpClient httpClient = new DefaultHttpClient(httpParameters);
+        BasicCookieStore localBasicCookieStore = new BasicCookieStore();//设置本地cookie
+        httpClient.setCookieStore(localBasicCookieStore);
+        HttpProtocolParams.setUseExpectContinue(httpClient.getParams(), false);
+        return httpClient;
+    }
+
     private int getActionId() {
         return mActionId++;
     }
@@ -336,12 +450,14 @@ public class GTaskClient {
             Log.d(TAG, "encoding: " + contentEncoding);
         }
 
-        InputStream input = entity.getContent();
+        // 统计的是网络上收到的（压缩后的）字节数
+        CountingInputStream counter = new CountingInputStream(entity.getContent());
+        InputStream input = counter;
         if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {//GZIP是使用DEFLATE进行压缩数据的另一个压缩库
-            input = new GZIPInputStream(entity.getContent());
+            input = new GZIPInputStream(counter);
         } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {//DEFLATE是一个无专利的压缩算法，它可以实现无损数据压缩
             Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
+            input = new InflaterInputStream(counter, inflater);
         }
 
         try {
@@ -358,6 +474,68 @@ public class GTaskClient {
             }
         } finally {
             input.close();
+            SyncMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onBytesReceived(counter.getCount());
+            }
+        }
+    }
+
+    /*
+     * 记录一次请求，entity为请求体，GET请求时为null
+     * */
+    private void onRequest(HttpEntity entity) {
+        SyncMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onRequest(entity == null ? 0 : entity.getContentLength());
+        }
+    }
+
+    /*
+     * 同步开始时设置，结束时设为null
+     * */
+    public void setMetrics(SyncMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /*
+     * 统计读取的字节数
+     * */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+            mCount = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
         }
     }
 
@@ -368,6 +546,25 @@ public class GTaskClient {
      * 将资源再次放入json后返回
      * */
     private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+        try {
+            return executePost(js);
+        } catch (AuthFailureException e) {
+            // 会话失效，服务器没有处理这个请求，重新登录后再发送一次
+            if (!refreshLogin()) {
+                throw e;
+            }
+            try {
+                if (js.has(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION)) {
+                    js.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+                }
+            } catch (JSONException je) {
+                Log.e(TAG, je.toString());
+            }
+            return executePost(js);
+        }
+    }
+
+    private JSONObject executePost(JSONObject js) throws NetworkFailureException {
         if (!mLoggedin) {//未登录
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
@@ -382,15 +579,30 @@ public class GTaskClient {
 
             // execute the post
             //执行这个请求
-            HttpResponse response = mHttpClient.execute(httpPost);
+            onRequest(entity);
+            // 含有新建动作的请求也可以中止：服务器可能已经新建了任务但拿不到new_id，
+            // GTaskManager记录这些便签，下次同步时认领远端对应的任务而不是重复新建
+            HttpResponse response = execute(httpPost);
+            int status = response.getStatusLine().getStatusCode();
+            if (isAuthFailure(status)) {
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                throw new AuthFailureException("postRequest: session rejected, status " + status);
+            }
             String jsString = getResponseContent(response.getEntity());
             return new JSONObject(jsString);
 
+        } catch (AuthFailureException e) {
+            throw e;
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new NetworkFailureException("postRequest failed");
         } catch (IOException e) {
+            if (mCancelled) {
+                throw new NetworkFailureException("postRequest cancelled");
+            }
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new NetworkFailureException("postRequest failed");
@@ -398,77 +610,198 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("unable to convert response content to jsonobject");
+        } catch (NetworkFailureException e) {
+            throw e;
         } catch (Exception e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("error occurs when posting request");
+        } finally {
+            mRunningRequest = null;
         }
     }
 
-    /*创建单个任务
-     * 传入参数是一个.gtask.data.Task包里Task类的对象
-     * 利用json获取Task里的内容,并且创建相应的jsPost
-     * 利用postRequest得到任务的返回信息
-     * 使用task.setGid设置task的new_ID
+    /*
+     * 执行可以被cancel中止的请求，已经取消时不再发出
+     * 调用者读完响应后需要把mRunningRequest置为null
      * */
-    public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+    private HttpResponse execute(HttpUriRequest request) throws IOException,
+            NetworkFailureException {
+        checkCancelled();
+        mRunningRequest = request;
+        // 设置之前可能已经取消，再检查一次
+        checkCancelled();
+        return mHttpClient.execute(request);
+    }
 
-            // action_list
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    private void checkCancelled() throws NetworkFailureException {
+        if (mCancelled) {
+            throw new NetworkFailureException("sync cancelled");
+        }
+    }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    /*
+     * 取消同步：中止正在执行的请求并唤醒退避等待，之后的请求直接失败
+     * 可以在任意线程调用
+     * */
+    public void cancel() {
+        mCancelled = true;
+        HttpUriRequest request = mRunningRequest;
+        if (request != null) {
+            request.abort();
+        }
+        synchronized (mCancelLock) {
+            mCancelLock.notifyAll();
+        }
+    }
 
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+    /*
+     * 同步开始时调用，清除上一次的取消状态
+     * */
+    public void resetCancelled() {
+        mCancelled = false;
+    }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
-        }
+    /*
+     * 未授权、禁止访问或被重定向（到登录页面）说明会话已经失效
+     * */
+    private static boolean isAuthFailure(int status) {
+        return status == 401 || status == 403 || (status >= 300 && status < 400);
     }
 
     /*
-     * 创建一个任务列表，与createTask几乎一样，区别就是最后设置的是tasklist的gid     */
-    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+     * 发送幂等的请求，网络失败时按带随机抖动的指数退避重试
+     * 新建动作重复发送会在远端产生重复的任务，不能使用这个函数
+     * 会话失效已经在postRequest中重新登录过一次，再失败时直接抛出，不再退避重试
+     * */
+    private JSONObject postIdempotentRequest(JSONObject js) throws NetworkFailureException {
+        int attempt = 0;
+        while (true) {
+            try {
+                return postRequest(js);
+            } catch (AuthFailureException e) {
+                throw e;
+            } catch (NetworkFailureException e) {
+                if (attempt >= MAX_RETRIES || mCancelled) {
+                    throw e;
+                }
+                waitBeforeRetry(attempt++);
+            }
+        }
+    }
 
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    /*
+     * 第attempt次重试前等待，全随机抖动避免多个客户端同时重试
+     * */
+    private void waitBeforeRetry(int attempt) throws NetworkFailureException {
+        long ceiling = Math.min(RETRY_MAX_DELAY_MS, RETRY_BASE_DELAY_MS << attempt);
+        long delay = (long) (mRandom.nextDouble() * ceiling);
+        Log.w(TAG, "request failed, retry " + (attempt + 1) + " in " + delay + "ms");
+        long deadline = System.currentTimeMillis() + delay;
+        synchronized (mCancelLock) {
+            long remaining = delay;
+            while (remaining > 0 && !mCancelled) {
+                try {
+                    mCancelLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new NetworkFailureException("retry interrupted");
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        checkCancelled();
+    }
 
-            // client version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    /*
+     * 创建单个任务
+     * 新建动作和更新动作放在同一个action_list中缓存，在commitUpdate时一起提交
+     * 提交后由返回结果中的new_id设置task的gid，因此调用后task.getGid()可能仍为null
+     * 如果prior sibling也在同一批中新建，它还没有gid，协议中没有引用同一批中新建节点的方式，
+     * 这时不带prior_sibling_id新建，提交得到gid后再用移动动作调整位置
+     * */
+    public void createTask(Task task) throws NetworkFailureException {
+        // 所在的任务列表还没有gid时需要先提交，才能得到list_id
+        TaskList parent = task.getParent();
+        if (parent != null && parent.getGid() == null) {
+            commitUpdate();
+        }
 
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+        int actionId = getActionId();
+        JSONObject action = task.getCreateAction(actionId);
+        if (!hasRoomFor(action)) {
+            // 先提交缓存的动作，prior sibling此时已经得到gid，重新生成动作
+            commitUpdate();
+            action = task.getCreateAction(actionId);
+        }
+        Task priorSibling = task.getPriorSibling();
+        if (priorSibling != null && priorSibling.getGid() == null
+                && mPendingCreateActionIds.containsKey(priorSibling)) {
+            mUnorderedTasks.add(task);
+        }
+        addAction(action);
+        addPendingCreateNode(actionId, task);
+    }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
+    /*
+     * 新建后prior sibling已经有gid的任务，在缓存中加入移动到prior sibling之后的动作，
+     * 按新建的顺序加入，前一个任务先到位
+     * */
+    private void addReorderActions() throws NetworkFailureException {
+        ArrayList<Task> tasks = new ArrayList<Task>(mUnorderedTasks);
+        mUnorderedTasks.clear();
+        for (Task task : tasks) {
+            Task priorSibling = task.getPriorSibling();
+            TaskList parent = task.getParent();
+            if (task.getGid() == null || priorSibling == null || priorSibling.getGid() == null
+                    || parent == null) {
+                continue;
+            }
+            try {
+                JSONObject action = new JSONObject();
+                action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                        GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
+                action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
+                action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
+                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, priorSibling.getGid());
+                action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, parent.getGid());
+                action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, parent.getGid());
+                addAction(action);
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("reorder task: handing jsonobject failed");
+            }
         }
     }
 
+    private void addPendingCreateNode(int actionId, Node node) {
+        mPendingCreateNodes.put(actionId, node);
+        mPendingCreateActionIds.put(node, actionId);
+    }
+
+    private void clearPendingCreateNodes() {
+        mPendingCreateNodes.clear();
+        mPendingCreateActionIds.clear();
+        mUnorderedTasks.clear();
+    }
+
+    /*
+     * 创建一个任务列表，与createTask一样放入缓存的action_list中
+     * 调用方需要立即使用tasklist的gid，所以放入后马上提交，和缓存的更新共用一次请求
+     * */
+    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
+        int actionId = getActionId();
+        addAction(tasklist.getCreateAction(actionId));
+        addPendingCreateNode(actionId, tasklist);
+        commitUpdate();
+    }
+
     /*
      * 同步更新操作
      * 使用JSONObject进行数据存储，使用jsPost.put，Put的信息包括UpdateArray和ClientVersion
      * 使用postRequest发送这个jspost,进行处理
+     * 返回结果中的new_id按action_id对应到缓存的新建节点上
+     * 新建的任务需要调整位置时，移动动作留在缓存中，和之后的动作一起在下一次提交
      * */
     public void commitUpdate() throws NetworkFailureException {
         if (mUpdateArray != null) {
@@ -481,31 +814,107 @@ public class GTaskClient {
                 // client_version
                 jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-                postRequest(jsPost);
+                // 只有更新动作时重复提交结果不变，可以重试；含有新建动作时不重试
+                JSONObject jsResponse = mPendingCreateNodes.isEmpty() ? postIdempotentRequest(jsPost)
+                        : postRequest(jsPost);
+                JSONArray actionList = mUpdateArray;
                 mUpdateArray = null;
+                mUpdateArrayBytes = 0;
+
+                if (!mPendingCreateNodes.isEmpty()) {
+                    setNewIds(actionList, jsResponse);
+                }
+                if (!mUnorderedTasks.isEmpty()) {
+                    // 放入缓存，和之后的动作一起提交
+                    addReorderActions();
+                }
             } catch (JSONException e) {
                 Log.e(TAG, e.toString());
                 e.printStackTrace();
+                clearPendingCreateNodes();
                 throw new ActionFailureException("commit update: handing jsonobject failed");
             }
         }
     }
 
+    /*
+     * 把返回结果中的new_id设置到对应的新建节点
+     * 结果中带有action_id时按action_id对应，否则按提交时的顺序对应
+     * */
+    private void setNewIds(JSONArray actionList, JSONObject jsResponse) throws JSONException {
+        JSONArray results = jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            if (!result.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                continue;
+            }
+
+            int actionId;
+            if (result.has(GTaskStringUtils.GTASK_JSON_ACTION_ID)) {
+                actionId = result.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID);
+            } else if (i < actionList.length()) {
+                actionId = actionList.getJSONObject(i).getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID);
+            } else {
+                continue;
+            }
+
+            Node node = mPendingCreateNodes.remove(actionId);
+            if (node != null) {
+                mPendingCreateActionIds.remove(node);
+                node.setGid(result.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+            }
+        }
+
+        if (!mPendingCreateNodes.isEmpty()) {
+            Log.e(TAG, "no new_id returned for " + mPendingCreateNodes.size() + " created nodes");
+            clearPendingCreateNodes();
+            throw new ActionFailureException("commit update: new_id is missing");
+        }
+    }
+
+    /*
+     * 把一个动作放入缓存的action_list
+     * 缓存的动作数量或字节数超过上限时先提交
+     * */
+    private void addAction(JSONObject action) throws NetworkFailureException {
+        int bytes = getActionBytes(action);
+        // 提交后缓存中可能加入了调整位置的移动动作，再检查一次
+        while (!hasRoomFor(bytes)) {
+            commitUpdate();
+        }
+
+        if (mUpdateArray == null) {
+            mUpdateArray = new JSONArray();
+            mUpdateArrayBytes = 0;
+        }
+        mUpdateArray.put(action);
+        mUpdateArrayBytes += bytes;
+    }
+
+    private boolean hasRoomFor(JSONObject action) {
+        return hasRoomFor(getActionBytes(action));
+    }
+
+    private boolean hasRoomFor(int bytes) {
+        return mUpdateArray == null || (mUpdateArray.length() < MAX_ACTION_LIST_SIZE
+                && mUpdateArrayBytes + bytes <= MAX_ACTION_LIST_BYTES);
+    }
+
+    private static int getActionBytes(JSONObject action) {
+        return action.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
     /*
      * 添加更新的事项
      * 调用commitUpdate()实现
      * */
     public void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
+            // the node may still be waiting for its new_id in the buffer
+            if (node.getGid() == null && !mPendingCreateNodes.isEmpty()) {
                 commitUpdate();
             }
-
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
+            addAction(node.getUpdateAction(getActionId()));
         }
     }
 
@@ -547,7 +956,7 @@ public class GTaskClient {
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            postRequest(jsPost);
+            postIdempotentRequest(jsPost);
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -575,7 +984,7 @@ public class GTaskClient {
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            postRequest(jsPost);
+            postIdempotentRequest(jsPost);
             mUpdateArray = null;
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -596,13 +1005,16 @@ public class GTaskClient {
         }
 
         try {
-            HttpGet httpGet = new HttpGet(mGetUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
-
-            // get the task list
             //筛选工作，把筛选出的字符串放入jsString
-            String resString = getResponseContent(response.getEntity());
+            String resString;
+            try {
+                resString = getTaskListsPage();
+            } catch (AuthFailureException e) {
+                if (!refreshLogin()) {
+                    throw e;
+                }
+                resString = getTaskListsPage();
+            }
             String jsBegin = "_setup(";
             String jsEnd = ")}</script>";
             int begin = resString.indexOf(jsBegin);
@@ -614,14 +1026,6 @@ public class GTaskClient {
             JSONObject js = new JSONObject(jsString);
             //获取GTASK_JSON_LISTS
             return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
-        } catch (ClientProtocolException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("gettasklists: httpget failed");
-        } catch (IOException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("gettasklists: httpget failed");
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -629,6 +1033,47 @@ public class GTaskClient {
         }
     }
 
+    /*
+     * 获取任务列表页面，GET请求是幂等的，网络失败时退避重试
+     * */
+    private String getTaskListsPage() throws NetworkFailureException {
+        int attempt = 0;
+        while (true) {
+            try {
+                HttpGet httpGet = new HttpGet(mGetUrl);
+                onRequest(null);
+                HttpResponse response = execute(httpGet);
+                int status = response.getStatusLine().getStatusCode();
+                if (isAuthFailure(status)) {
+                    if (response.getEntity() != null) {
+                        response.getEntity().consumeContent();
+                    }
+                    throw new AuthFailureException("gettasklists: session rejected, status " + status);
+                }
+                String content = getResponseContent(response.getEntity());
+                if (content.indexOf("_setup(") < 0) {
+                    // 会话失效时GET被重定向到登录页面，返回的页面中没有任务数据
+                    throw new AuthFailureException("gettasklists: no task data in page");
+                }
+                return content;
+            } catch (ClientProtocolException e) {
+                Log.e(TAG, e.toString());
+                e.printStackTrace();
+                throw new NetworkFailureException("gettasklists: httpget failed");
+            } catch (IOException e) {
+                checkCancelled();
+                Log.e(TAG, e.toString());
+                if (attempt >= MAX_RETRIES) {
+                    e.printStackTrace();
+                    throw new NetworkFailureException("gettasklists: httpget failed");
+                }
+            } finally {
+                mRunningRequest = null;
+            }
+            waitBeforeRetry(attempt++);
+        }
+    }
+
     /*
      * 通过传入的TASKList的gid,从网络上获取相应属于这个任务列表的任务
      * */
@@ -651,7 +1096,7 @@ public class GTaskClient {
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            JSONObject jsResponse = postRequest(jsPost);
+            JSONObject jsResponse = postIdempotentRequest(jsPost);
             return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -667,5 +1112,7 @@ public class GTaskClient {
     //重置更新的内容
     public void resetUpdateArray() {
         mUpdateArray = null;
+        mUpdateArrayBytes = 0;
+        clearPendingCreateNodes();
     }
 }
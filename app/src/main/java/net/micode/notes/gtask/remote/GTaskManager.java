@@ -17,19 +17,22 @@
 package net.micode.notes.gtask.remote;
 
 import android.app.Activity;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.SqlBatch;
 import net.micode.notes.gtask.data.SqlNote;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
@@ -37,14 +40,18 @@ import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.tool.TextMerger;
+import net.micode.notes.ui.NotesPreferenceActivity;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class GTaskManager {
@@ -54,31 +61,52 @@ public class GTaskManager {
     public static final int STATE_INTERNAL_ERROR = 2;
     public static final int STATE_SYNC_IN_PROGRESS = 3;
     public static final int STATE_SYNC_CANCELLED = 4;
+    // 等待new_id的远程新建便签数量上限，达到后提交并回写本地
+    private static final int MAX_PENDING_REMOTE_TASKS = 50;
+    // 每次从同步待发送操作表中读取的行数
+    private static final int OUTBOX_PAGE_SIZE = 100;
+    // 便签阶段每处理这么多条便签提交一次，中断后重新同步时已提交的部分不会再发送
+    private static final int COMMIT_INTERVAL = 50;
+    // 便签阶段每页读取的便签数量，一页应能放入一个CursorWindow
+    private static final int NOTE_PAGE_SIZE = 200;
+
+    // 新建请求被中止或失败时还没有拿到gid的便签id，服务器可能已经新建了任务
+    // 每项为"便签id:发出请求前远端最新的修改时间"，只认领比这个时间新的任务
+    private static final String PREFERENCE_UNCONFIRMED_CREATES = "pref_gtask_unconfirmed_creates";
     private static GTaskManager mInstance = null;
 
     private Activity mActivity;
     private Context mContext;
     private ContentResolver mContentResolver;
     private boolean mSyncing;
-    private boolean mCancelled;
-    private HashMap<String, TaskList> mGTaskListHashMap;
-    private HashMap<String, Node> mGTaskHashMap;
-    private HashMap<String, MetaData> mMetaHashMap;
+    private volatile boolean mCancelled;        //可能由其他线程设置，每次循环都检查
+    private RemoteNodeTable mRemoteNodes;       //按gid排序的远端节点，和按gtask_id排序的本地游标归并
+    private HashMap<String, MetaData> mMetaHashMap;    //任务已经不在远端的meta，其余的meta挂在各自的Task上
     private TaskList mMetaList;
     private HashSet<Long> mLocalDeleteIdMap;
-    private HashMap<String, Long> mGidToNid;
-    private HashMap<Long, String> mNidToGid;
+    private GTaskSyncSession mSession;          //远端TaskList索引和gid-id映射，每次同步新建
+    private LinkedHashMap<Task, SqlNote> mPendingRemoteTasks;
+    private SqlBatch mLocalBatch;
+    private HashSet<Long> mExistingNoteIds;
+    private HashSet<Long> mExistingDataIds;
+    private long mOutboxWatermark;              //本次同步读到的最大操作ID，同步成功后确认到这里
+    private SyncMetrics mMetrics;               //本次同步的性能数据，结束时写入日志
+    private HashMap<Long, Long> mUnconfirmedCreates; //上次同步没有确认新建结果的便签到当时远端最新的修改时间，本次认领远端对应的任务
+    private long mRemoteLastModified;           //本次同步读到的远端列表和任务的最大修改时间（服务器的时间）
 
     private GTaskManager() {                                   //对象初始化函数
         mSyncing = false;                                      //正在同步,flase代表未执行
         mCancelled = false;                                    //全局标识，flase代表可以执行
-        mGTaskListHashMap = new HashMap<String, TaskList>();   //<>代表Java的泛型,就是创建一个用类型作为参数的类。
-        mGTaskHashMap = new HashMap<String, Node>();
-        mMetaHashMap = new HashMap<String, MetaData>();
+        mRemoteNodes = new RemoteNodeTable();
+        mMetaHashMap = new HashMap<String, MetaData>();   //<>代表Java的泛型,就是创建一个用类型作为参数的类。
         mMetaList = null;
         mLocalDeleteIdMap = new HashSet<Long>();
-        mGidToNid = new HashMap<String, Long>();    //GoogleID to NodeID??
-        mNidToGid = new HashMap<Long, String>();    //NodeID to GoogleID???通过hashmap散列表建立映射
+        mPendingRemoteTasks = new LinkedHashMap<Task, SqlNote>();
+        mExistingNoteIds = new HashSet<Long>();
+        mExistingDataIds = new HashSet<Long>();
+        mOutboxWatermark = 0;
+        mUnconfirmedCreates = new HashMap<Long, Long>();
+        mRemoteLastModified = 0;
     }
 
     /**
@@ -119,50 +147,98 @@ public class GTaskManager {
         }
         mContext = context;
         mContentResolver = mContext.getContentResolver();
+        mLocalBatch = new SqlBatch(mContext);                  //同步过程中的本地写操作分块批量提交
+        mLocalBatch.setOnBeforeCommitListener(new SqlBatch.OnBeforeCommitListener() {
+            public void onBeforeCommit() throws NetworkFailureException {
+                // 本地写操作（清除local_modified等）只能在对应的远端动作提交之后生效
+                GTaskClient.getInstance().commitUpdate();
+            }
+        });
         mSyncing = true;
         mCancelled = false;
-        mGTaskListHashMap.clear();
-        mGTaskHashMap.clear();
+        mSession = new GTaskSyncSession();
+        mRemoteNodes.clear();
         mMetaHashMap.clear();
         mLocalDeleteIdMap.clear();
-        mGidToNid.clear();
-        mNidToGid.clear();
+        mPendingRemoteTasks.clear();
+        mExistingNoteIds.clear();
+        mExistingDataIds.clear();
+        mOutboxWatermark = 0;
+        mRemoteLastModified = 0;
+        mMetrics = new SyncMetrics();
+        mUnconfirmedCreates = loadUnconfirmedCreates(mContext);
+        boolean completed = false;
 
         try {
             GTaskClient client = GTaskClient.getInstance();    //getInstance即为创建一个实例,client--客户机
             client.resetUpdateArray();     //JSONArray类型，reset即置为NULL
+            client.setMetrics(mMetrics);
+            client.resetCancelled();
+            if (mCancelled) {
+                // 开始之前已经被取消
+                client.cancel();
+            }
 
             // login google task
+            mMetrics.beginPhase(SyncMetrics.PHASE_LOGIN);
             if (!mCancelled) {
-                if (!client.login(mActivity)) {
+                // 从界面发起时用Activity登录，后台定时同步时只有context
+                if (!client.login(mActivity != null ? mActivity : mContext)) {
                     throw new NetworkFailureException("login google task failed");
                 }
             }
 
+            if (mCancelled) {
+                // 登录前已经取消，没有可用的账号，不再继续
+                mMetrics.setResult(STATE_SYNC_CANCELLED);
+                return STATE_SYNC_CANCELLED;
+            }
+
             // get the task list from google
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
+            mMetrics.beginPhase(SyncMetrics.PHASE_INIT_LIST);
             initGTaskList();                                 //获取Google上的JSONtasklist转为本地TaskList
 
             // do content sync work
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
             syncContent();
+
+            completed = !mCancelled;
+            mMetrics.setResult(mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS);
         } catch (NetworkFailureException e) {                       //分为两种异常，此类异常为网络异常
             Log.e(TAG, e.toString());                             //创建日志文件（调试信息），error
-            return STATE_NETWORK_ERROR;
+            // 取消时正在执行的请求被中止，不算网络错误
+            int state = mCancelled ? STATE_SYNC_CANCELLED : STATE_NETWORK_ERROR;
+            mMetrics.setResult(state);
+            return state;
         } catch (ActionFailureException e) {                        //此类异常为操作异常
             Log.e(TAG, e.toString());
+            mMetrics.setResult(STATE_INTERNAL_ERROR);
             return STATE_INTERNAL_ERROR;
         } catch (Exception e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
+            mMetrics.setResult(STATE_INTERNAL_ERROR);
             return STATE_INTERNAL_ERROR;
         } finally {
-            mGTaskListHashMap.clear();
-            mGTaskHashMap.clear();
+            GTaskClient.getInstance().setMetrics(null);
+            if (mCancelled) {
+                // 丢弃还没有发出的远端动作，对应的本地写操作也在下面丢弃
+                GTaskClient.getInstance().resetUpdateArray();
+            }
+            saveUnconfirmedCreates(completed);
+            mMetrics.addRowsWritten(mLocalBatch.getCommittedCount());
+            mMetrics.finish(mContext);
+            mSession.close();
+            mRemoteNodes.clear();
             mMetaHashMap.clear();
+            mMetaList = null;
             mLocalDeleteIdMap.clear();
-            mGidToNid.clear();
-            mNidToGid.clear();
+            mPendingRemoteTasks.clear();
+            mLocalBatch.clear();
+            mExistingNoteIds.clear();
+            mExistingDataIds.clear();
+            mActivity = null;                                    //不再持有Activity，避免泄漏
             mSyncing = false;
         }
 
@@ -171,7 +247,7 @@ public class GTaskManager {
 
     /**
      * 初始化GtaskList，获取Google上的JSONtasklist转为本地TaskList。
-     * 获得的数据存储在mMetaList，mGTaskListHashMap，mGTaskHashMap
+     * 获得的数据存储在mMetaList，mSession，mRemoteNodes，meta挂在各自的Task上
      *
      * @return void
      * @throws NetworkFailureException
@@ -186,9 +262,10 @@ public class GTaskManager {
             //因为ajax请求不刷新页面，但配合js可以实现局部刷新，因此json常常被用来作为异步请求的返回对象使用。
             JSONArray jsTaskLists = client.getTaskLists();
 
-            // init meta list first
+            // find meta list first, its content is loaded after the tasks
             mMetaList = null;                                       //TaskList类型
-            for (int i = 0; i < jsTaskLists.length(); i++) {
+            String metaListGid = null;
+            for (int i = 0; i < jsTaskLists.length() && !mCancelled; i++) {
                 JSONObject object = jsTaskLists.getJSONObject(i);  //JSONObject与JSONArray一个为对象，一个为数组。此处取出单个JASONObject
                 String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
                 String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
@@ -196,23 +273,14 @@ public class GTaskManager {
                 if (name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
                     mMetaList = new TaskList();                    //MetaList意为元表,Tasklist类型，此处为初始化
                     mMetaList.setContentByRemoteJSON(object);      //将JSON中部分数据复制到自己定义的对象中相对应的数据：name->mname...
-
-                    // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);   //原注释为get action_list------list？？？
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();            //继承自Node
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {                             //if not worth to save，metadata将不加入mMetaList
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
-                        }
-                    }
+                    metaListGid = gid;
                 }
             }
 
+            if (mCancelled) {
+                return;
+            }
+
             // create meta list if not existed
             if (mMetaList == null) {
                 mMetaList = new TaskList();
@@ -222,7 +290,7 @@ public class GTaskManager {
             }
 
             // init task list
-            for (int i = 0; i < jsTaskLists.length(); i++) {
+            for (int i = 0; i < jsTaskLists.length() && !mCancelled; i++) {
                 JSONObject object = jsTaskLists.getJSONObject(i);
                 String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);  //通过getString函数传入本地某个标志数据的名称，获取其在远端的名称。
                 String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
@@ -232,8 +300,9 @@ public class GTaskManager {
                         + GTaskStringUtils.FOLDER_META)) {
                     TaskList tasklist = new TaskList();     //继承自Node
                     tasklist.setContentByRemoteJSON(object);
-                    mGTaskListHashMap.put(gid, tasklist);
-                    mGTaskHashMap.put(gid, tasklist);          //为什么加两遍？？？
+                    mSession.addTaskList(tasklist);           //按gid和名字建立索引
+                    mRemoteNodes.add(tasklist);
+                    mRemoteLastModified = Math.max(mRemoteLastModified, tasklist.getLastModified());
 
                     // load tasks
                     JSONArray jsTasks = client.getTaskList(gid);
@@ -242,14 +311,19 @@ public class GTaskManager {
                         gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
                         Task task = new Task();
                         task.setContentByRemoteJSON(object);
+                        mRemoteLastModified = Math.max(mRemoteLastModified, task.getLastModified());
                         if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
                             tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
+                            mRemoteNodes.add(task);
                         }
                     }
                 }
             }
+
+            // load meta data
+            if (metaListGid != null && !mCancelled) {
+                loadMetaData(client, metaListGid);
+            }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -257,6 +331,34 @@ public class GTaskManager {
         }
     }
 
+    /**
+     * 加载meta并挂到各自的Task上。meta不加入mMetaList，也不按gid另建索引，
+     * 只有任务已经不在远端的meta放进mMetaHashMap，等本地删除对应便签时一起删除。
+     * 远端接口每个列表一次返回全部内容，节点本身仍然都在内存中，这里只去掉每个meta额外的索引开销
+     *
+     * @param client      GTaskClient
+     * @param metaListGid meta列表的gid
+     * @throws NetworkFailureException
+     * @throws JSONException
+     */
+    private void loadMetaData(GTaskClient client, String metaListGid)
+            throws NetworkFailureException, JSONException {
+        JSONArray jsMetas = client.getTaskList(metaListGid);
+        for (int i = 0; i < jsMetas.length() && !mCancelled; i++) {
+            MetaData metaData = new MetaData();            //继承自Node
+            metaData.setContentByRemoteJSON(jsMetas.getJSONObject(i));
+            if (!metaData.isWorthSaving() || metaData.getGid() == null) {
+                continue;
+            }
+            Node node = mRemoteNodes.get(metaData.getRelatedGid());
+            if (node instanceof Task) {
+                ((Task) node).setMetaInfo(metaData);
+            } else if (metaData.getRelatedGid() != null) {
+                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
+            }
+        }
+    }
+
     /**
      * 本地内容同步操作
      *
@@ -274,18 +376,22 @@ public class GTaskManager {
             return;
         }
 
+        // for local deleted note which is no longer in database
+        mMetrics.beginPhase(SyncMetrics.PHASE_FOLDERS);
+        drainOutbox();
+
         // for local deleted note
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
                     "(type<>? AND parent_id=?)", new String[]{
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, null);
+                    }, NoteColumns.GTASK_ID + " ASC");
             if (c != null) {
-                while (c.moveToNext()) {
+                mRemoteNodes.startScan();
+                while (!mCancelled && c.moveToNext()) {
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    node = mGTaskHashMap.get(gid);
+                    node = mRemoteNodes.match(gid);
                     if (node != null) {
-                        mGTaskHashMap.remove(gid);
                         doContentSync(Node.SYNC_ACTION_DEL_REMOTE, node, c);
                     }
 
@@ -305,65 +411,227 @@ public class GTaskManager {
         syncFolder();
 
         // for note existing in database
-        try {
+        mMetrics.beginPhase(SyncMetrics.PHASE_NOTES);
+        // 分页读取，一页读完之后才会有本地写入；按键值翻页，写入不会使行被跳过或重复读到
+        int noteCount = 0;
+        String lastGid = "";
+
+        // local add: notes without gtask id, paged by id
+        long lastId = 0;
+        boolean hasMore = true;
+        while (hasMore && !mCancelled) {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[]{
-                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
-            if (c != null) {
-                while (c.moveToNext()) {
+                    "(type=? AND parent_id<>? AND gtask_id='' AND _id>?)", new String[]{
+                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER),
+                            String.valueOf(lastId)
+                    }, NoteColumns.ID + " ASC LIMIT " + NOTE_PAGE_SIZE);
+            if (c == null) {
+                Log.w(TAG, "failed to query existing note in database");
+                break;
+            }
+            try {
+                hasMore = c.getCount() == NOTE_PAGE_SIZE;
+                while (!mCancelled && c.moveToNext()) {
+                    // commit what has been done so far so that an interrupted sync does not resend it
+                    if (noteCount > 0 && noteCount % COMMIT_INTERVAL == 0) {
+                        commitProgress();
+                    }
+                    lastId = c.getLong(SqlNote.ID_COLUMN);
+                    doContentSync(Node.SYNC_ACTION_ADD_REMOTE, null, c);
+                    noteCount++;
+                }
+            } finally {
+                c.close();
+                c = null;
+            }
+        }
+
+        // synced notes, merge-joined with the remote nodes by gtask id
+        hasMore = true;
+        mRemoteNodes.startScan();
+        while (hasMore && !mCancelled) {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                    "(type=? AND parent_id<>? AND gtask_id>?)", new String[]{
+                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER),
+                            lastGid
+                    }, NoteColumns.GTASK_ID + " ASC LIMIT " + NOTE_PAGE_SIZE);
+            if (c == null) {
+                Log.w(TAG, "failed to query existing note in database");
+                break;
+            }
+            try {
+                hasMore = c.getCount() == NOTE_PAGE_SIZE;
+                while (!mCancelled && c.moveToNext()) {
+                    if (noteCount > 0 && noteCount % COMMIT_INTERVAL == 0) {
+                        commitProgress();
+                    }
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    node = mGTaskHashMap.get(gid);
+                    lastGid = gid;
+                    noteCount++;
+
+                    node = mRemoteNodes.match(gid);
                     if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));   //通过hashmap建立联系
-                        mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);   //通过hashmap建立联系
+                        mSession.putMapping(gid, c.getLong(SqlNote.ID_COLUMN));   //通过hashmap建立联系
                         syncType = node.getSyncAction(c);
+                    } else if (mSession.getNid(gid) != null) {
+                        // created remotely earlier in this sync
+                        continue;
                     } else {
-                        if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
-                            // local add
-                            syncType = Node.SYNC_ACTION_ADD_REMOTE;
-                        } else {
-                            // remote delete
-                            syncType = Node.SYNC_ACTION_DEL_LOCAL;
-                        }
+                        // remote delete
+                        syncType = Node.SYNC_ACTION_DEL_LOCAL;
                     }
                     doContentSync(syncType, node, c);
                 }
-            } else {
-                Log.w(TAG, "failed to query existing note in database");
-            }
-
-        } finally {
-            if (c != null) {
+            } finally {
                 c.close();
                 c = null;
             }
         }
 
+        // write back the remote tasks created above
+        commitRemoteTasks();
+
+        // check the local ids carried by the remote adds in bulk
+        ArrayList<Node> remainingNodes = mRemoteNodes.getUnmatched();
+        loadExistingLocalIds(remainingNodes);
+
         // go through remaining items
-        Iterator<Map.Entry<String, Node>> iter = mGTaskHashMap.entrySet().iterator();   //Iterator迭代器
-        while (iter.hasNext()) {
-            Map.Entry<String, Node> entry = iter.next();
-            node = entry.getValue();
-            doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
+        for (Node remainingNode : remainingNodes) {
+            if (mCancelled) {
+                break;
+            }
+            doContentSync(Node.SYNC_ACTION_ADD_LOCAL, remainingNode, null);
         }
 
+        // apply the local writes collected above
+        mLocalBatch.commit();
+
         // mCancelled can be set by another thread, so we neet to check one by    //thread----线程
         // one
         // clear local delete table
         if (!mCancelled) {
-            if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
-                throw new ActionFailureException("failed to batch-delete local deleted notes");
-            }
+            deleteLocalNotes();
         }
 
         // refresh local sync id
+        mMetrics.beginPhase(SyncMetrics.PHASE_REFRESH);
         if (!mCancelled) {
+            GTaskClient.getInstance().commitUpdate();
+            // 上一次提交中新建的任务调整位置的移动动作在提交后才加入缓存，读取sync id之前提交
             GTaskClient.getInstance().commitUpdate();
             refreshLocalSyncId();
         }
 
+        // all recorded operations have been sent
+        if (!mCancelled) {
+            acknowledgeOutbox();
+        }
+
+    }
+
+    /**
+     * 提交目前为止缓存的远端动作和本地写操作。
+     * 提交后已经处理过的便签local_modified已清除、新建的便签已有gtask_id，
+     * 同步中断后重新开始时按这两个字段就不会再次发送；没有处理到的便签照常同步。
+     * 不保存单独的进度：跳过的便签会在refreshLocalSyncId中被当作已同步，丢掉远端的修改
+     *
+     * @throws NetworkFailureException
+     */
+    private void commitProgress() throws NetworkFailureException {
+        if (mCancelled) {
+            return;
+        }
+        commitRemoteTasks();
+        GTaskClient.getInstance().commitUpdate();
+        mLocalBatch.commit();
+    }
+
+    /**
+     * 删除回收站中已经同步的便签和远端已删除的便签。
+     * 删除触发器会为有gtask_id的便签在同步待发送操作表中记录一次删除，这些删除已经在远端生效
+     * 或者本来就来自远端，和便签的删除放在同一个批次中一起删掉，避免下次同步再读到
+     *
+     * @throws NetworkFailureException
+     */
+    private void deleteLocalNotes() throws NetworkFailureException {
+        for (long id : mLocalDeleteIdMap) {
+            if (id == Notes.ID_ROOT_FOLDER) {
+                Log.e(TAG, "Don't delete system folder root");
+                continue;
+            }
+            mLocalBatch.add(ContentProviderOperation.newDelete(
+                            ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id)).build(),
+                    ContentProviderOperation.newDelete(Notes.CONTENT_OUTBOX_URI)
+                            .withSelection(OutboxColumns.NOTE_ID + "=?", new String[]{
+                                    String.valueOf(id)
+                            }).build());
+        }
+        mLocalBatch.commit();
+    }
+
+    /**
+     * 分页读取同步待发送操作表，把已经从数据库中删除的便签在远端删除。
+     * 表中只记录删除，新建、修改、移动和移入回收站的便签还在数据库中，由后面按local_modified
+     * 和gtask_id的扫描处理；升级前记录的还在数据库中的便签也跳过，这里只记录读到的位置。
+     * 操作在同步成功后才确认，失败重试时再读一遍，远端已经不存在的节点直接跳过
+     *
+     * @throws NetworkFailureException
+     */
+    private void drainOutbox() throws NetworkFailureException {
+        long lastId = 0;
+        boolean hasMore = true;
+        while (hasMore && !mCancelled) {
+            ArrayList<Long> noteIds = new ArrayList<Long>();
+            ArrayList<String> gids = new ArrayList<String>();
+            Cursor c = mContentResolver.query(Notes.CONTENT_OUTBOX_URI, new String[]{
+                    OutboxColumns.ID, OutboxColumns.NOTE_ID, OutboxColumns.GTASK_ID,
+                    OutboxColumns.OPERATIONS
+            }, OutboxColumns.ID + ">?", new String[]{
+                    String.valueOf(lastId)
+            }, OutboxColumns.ID + " ASC LIMIT " + OUTBOX_PAGE_SIZE);
+            if (c == null) {
+                Log.w(TAG, "failed to query sync outbox");
+                return;
+            }
+            try {
+                hasMore = c.getCount() == OUTBOX_PAGE_SIZE;
+                while (!mCancelled && c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    String gid = c.getString(2);
+                    if ((c.getInt(3) & Notes.OUTBOX_OP_DELETE) != 0 && !TextUtils.isEmpty(gid)) {
+                        noteIds.add(c.getLong(1));
+                        gids.add(gid);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            HashSet<Long> existing = DataUtils.getExistingNoteIds(mContentResolver, noteIds);
+            for (int i = 0; i < noteIds.size() && !mCancelled; i++) {
+                if (existing.contains(noteIds.get(i))) {
+                    continue;
+                }
+                Node node = mRemoteNodes.take(gids.get(i));
+                if (node != null) {
+                    doContentSync(Node.SYNC_ACTION_DEL_REMOTE, node, null);
+                }
+            }
+        }
+        mOutboxWatermark = lastId;
+    }
+
+    /**
+     * 同步成功后删除本次读到的操作，同步过程中新记录的操作留到下一次
+     */
+    private void acknowledgeOutbox() {
+        if (mOutboxWatermark <= 0) {
+            return;
+        }
+        mContentResolver.delete(Notes.CONTENT_OUTBOX_URI, OutboxColumns.ID + "<=?",
+                new String[]{
+                        String.valueOf(mOutboxWatermark)
+                });
     }
 
     /**
@@ -386,11 +654,9 @@ public class GTaskManager {
             if (c != null) {
                 c.moveToNext();
                 gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                node = mGTaskHashMap.get(gid);
+                node = mRemoteNodes.take(gid);
                 if (node != null) {
-                    mGTaskHashMap.remove(gid);
-                    mGidToNid.put(gid, (long) Notes.ID_ROOT_FOLDER);
-                    mNidToGid.put((long) Notes.ID_ROOT_FOLDER, gid);
+                    mSession.putMapping(gid, Notes.ID_ROOT_FOLDER);
                     // for system folder, only update remote name if necessary
                     if (!node.getName().equals(
                             GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_DEFAULT))
@@ -417,11 +683,9 @@ public class GTaskManager {
             if (c != null) {
                 if (c.moveToNext()) {
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    node = mGTaskHashMap.get(gid);
+                    node = mRemoteNodes.take(gid);
                     if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, (long) Notes.ID_CALL_RECORD_FOLDER);
-                        mNidToGid.put((long) Notes.ID_CALL_RECORD_FOLDER, gid);
+                        mSession.putMapping(gid, Notes.ID_CALL_RECORD_FOLDER);
                         // for system folder, only update remote name if
                         // necessary
                         if (!node.getName().equals(
@@ -447,15 +711,14 @@ public class GTaskManager {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
                     "(type=? AND parent_id<>?)", new String[]{
                             String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    }, NoteColumns.GTASK_ID + " ASC");
             if (c != null) {
-                while (c.moveToNext()) {
+                mRemoteNodes.startScan();
+                while (!mCancelled && c.moveToNext()) {
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    node = mGTaskHashMap.get(gid);
+                    node = mRemoteNodes.match(gid);
                     if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
-                        mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
+                        mSession.putMapping(gid, c.getLong(SqlNote.ID_COLUMN));
                         syncType = node.getSyncAction(c);
                     } else {
                         if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
@@ -479,17 +742,20 @@ public class GTaskManager {
         }
 
         // for remote add folders
-        Iterator<Map.Entry<String, TaskList>> iter = mGTaskListHashMap.entrySet().iterator();
-        while (iter.hasNext()) {
-            Map.Entry<String, TaskList> entry = iter.next();
-            gid = entry.getKey();
-            node = entry.getValue();
-            if (mGTaskHashMap.containsKey(gid)) {
-                mGTaskHashMap.remove(gid);
+        for (TaskList tasklist : mSession.getTaskLists()) {
+            if (mCancelled) {
+                break;
+            }
+            gid = tasklist.getGid();
+            node = tasklist;
+            if (mRemoteNodes.take(gid) != null) {
                 doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
             }
         }
 
+        // notes are added under the folders, so the folder ids must be ready
+        mLocalBatch.commit();
+
         if (!mCancelled)
             GTaskClient.getInstance().commitUpdate();
     }
@@ -523,7 +789,7 @@ public class GTaskManager {
                 mLocalDeleteIdMap.add(c.getLong(SqlNote.ID_COLUMN));
                 break;
             case Node.SYNC_ACTION_DEL_REMOTE:
-                meta = mMetaHashMap.get(node.getGid());
+                meta = getMetaData(node);
                 if (meta != null) {
                     GTaskClient.getInstance().deleteNode(meta);
                 }
@@ -533,12 +799,11 @@ public class GTaskManager {
                 updateLocalNode(node, c);
                 break;
             case Node.SYNC_ACTION_UPDATE_REMOTE:
-                updateRemoteNode(node, c);
+                updateRemoteNode(node, c, false);
                 break;
             case Node.SYNC_ACTION_UPDATE_CONFLICT:
-                // merging both modifications maybe a good idea
-                // right now just use local update simply
-                updateRemoteNode(node, c);
+                // 便签正文做三方合并，其他字段使用本地的修改
+                updateRemoteNode(node, c, true);
                 break;
             case Node.SYNC_ACTION_NONE:
                 break;
@@ -564,9 +829,11 @@ public class GTaskManager {
             if (node.getName().equals(
                     GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_DEFAULT)) {
                 sqlNote = new SqlNote(mContext, Notes.ID_ROOT_FOLDER);
+                sqlNote.markSynced();
             } else if (node.getName().equals(
                     GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_CALL_NOTE)) {
                 sqlNote = new SqlNote(mContext, Notes.ID_CALL_RECORD_FOLDER);
+                sqlNote.markSynced();
             } else {
                 sqlNote = new SqlNote(mContext);
                 sqlNote.setContent(node.getLocalJSONFromContent());
@@ -575,14 +842,18 @@ public class GTaskManager {
         } else {
             sqlNote = new SqlNote(mContext);
             JSONObject js = node.getLocalJSONFromContent();
+            // id都能沿用时本地内容和meta相同，可以直接记录同步哈希
+            boolean idsKept = true;
             try {
                 if (js.has(GTaskStringUtils.META_HEAD_NOTE)) {
                     JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
                     if (note.has(NoteColumns.ID)) {
                         long id = note.getLong(NoteColumns.ID);
-                        if (DataUtils.existInNoteDatabase(mContentResolver, id)) {
+                        // add返回false说明id已被占用；否则id由本节点占用，后面的节点不能再用
+                        if (!mExistingNoteIds.add(id)) {
                             // the id is not available, have to create a new one
                             note.remove(NoteColumns.ID);
+                            idsKept = false;
                         }
                     }
                 }
@@ -593,10 +864,11 @@ public class GTaskManager {
                         JSONObject data = dataArray.getJSONObject(i);
                         if (data.has(DataColumns.ID)) {
                             long dataId = data.getLong(DataColumns.ID);
-                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)) {
+                            if (!mExistingDataIds.add(dataId)) {
                                 // the data id is not available, have to create
                                 // a new one
                                 data.remove(DataColumns.ID);
+                                idsKept = false;
                             }
                         }
                     }
@@ -608,24 +880,79 @@ public class GTaskManager {
             }
             sqlNote.setContent(js);
 
-            Long parentId = mGidToNid.get(((Task) node).getParent().getGid());
+            Long parentId = mSession.getNid(((Task) node).getParent().getGid());
             if (parentId == null) {
                 Log.e(TAG, "cannot find task's parent id locally");
                 throw new ActionFailureException("cannot add local node");
             }
             sqlNote.setParentId(parentId.longValue());
+
+            if (idsKept) {
+                try {
+                    js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE).put(NoteColumns.PARENT_ID,
+                            parentId.longValue());
+                    sqlNote.markSynced(js);
+                } catch (JSONException e) {
+                    Log.w(TAG, e.toString());
+                }
+            }
         }
 
         // create the local node
-        sqlNote.setGtaskId(node.getGid());
-        sqlNote.commit(false);
+        // 新建便签的id要等批量提交后才知道，映射和meta在回调中更新
+        final Node remoteNode = node;
+        final String gid = node.getGid();
+        sqlNote.setGtaskId(gid);
+        mLocalBatch.add(sqlNote, false, new SqlBatch.OnCommitListener() {
+            public void onCommit(SqlNote note) throws NetworkFailureException {
+                // update gid-nid mapping
+                mSession.putMapping(gid, note.getId());
+
+                // update meta
+                updateRemoteMeta(remoteNode, note);
+            }
+        });
+    }
 
-        // update gid-nid mapping
-        mGidToNid.put(node.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), node.getGid());
+    /**
+     * 一次查出远程新增便签的meta中带的本地id哪些已经存在，代替addLocalNode中逐个的查询
+     *
+     * @param nodes 等待在本地新增的节点
+     */
+    private void loadExistingLocalIds(Collection<Node> nodes) {
+        HashSet<Long> noteIds = new HashSet<Long>();
+        HashSet<Long> dataIds = new HashSet<Long>();
+        for (Node node : nodes) {
+            if (!(node instanceof Task)) {
+                continue;
+            }
+            JSONObject js = node.getLocalJSONFromContent();
+            if (js == null) {
+                continue;
+            }
+            try {
+                if (js.has(GTaskStringUtils.META_HEAD_NOTE)) {
+                    JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+                    if (note.has(NoteColumns.ID)) {
+                        noteIds.add(note.getLong(NoteColumns.ID));
+                    }
+                }
+                if (js.has(GTaskStringUtils.META_HEAD_DATA)) {
+                    JSONArray dataArray = js.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
+                    for (int i = 0; i < dataArray.length(); i++) {
+                        JSONObject data = dataArray.getJSONObject(i);
+                        if (data.has(DataColumns.ID)) {
+                            dataIds.add(data.getLong(DataColumns.ID));
+                        }
+                    }
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, e.toString());
+            }
+        }
 
-        // update meta
-        updateRemoteMeta(node.getGid(), sqlNote);
+        mExistingNoteIds = DataUtils.getExistingNoteIds(mContentResolver, noteIds);
+        mExistingDataIds = DataUtils.getExistingDataIds(mContentResolver, dataIds);
     }
 
     /**
@@ -645,17 +972,25 @@ public class GTaskManager {
         sqlNote = new SqlNote(mContext, c);
         sqlNote.setContent(node.getLocalJSONFromContent());
 
-        Long parentId = (node instanceof Task) ? mGidToNid.get(((Task) node).getParent().getGid())
+        Long parentId = (node instanceof Task) ? mSession.getNid(((Task) node).getParent().getGid())
                 : new Long(Notes.ID_ROOT_FOLDER);
         if (parentId == null) {
             Log.e(TAG, "cannot find task's parent id locally");
             throw new ActionFailureException("cannot update local node");
         }
         sqlNote.setParentId(parentId.longValue());
-        sqlNote.commit(true);
 
-        // update meta info
-        updateRemoteMeta(node.getGid(), sqlNote);
+        // 本地内容和远端一致，记录同步哈希并清除修改标记（冲突但本地内容没有变化时也走这里）
+        sqlNote.markSynced();
+        sqlNote.resetLocalModified();
+
+        // update meta info after the local write is applied
+        final Node remoteNode = node;
+        mLocalBatch.add(sqlNote, true, new SqlBatch.OnCommitListener() {
+            public void onCommit(SqlNote note) throws NetworkFailureException {
+                updateRemoteMeta(remoteNode, note);
+            }
+        });
     }
 
     /**
@@ -679,19 +1014,31 @@ public class GTaskManager {
             Task task = new Task();
             task.setContentByLocalJSON(sqlNote.getContent());
 
-            String parentGid = mNidToGid.get(sqlNote.getParentId());
+            String parentGid = mSession.getGid(sqlNote.getParentId());
             if (parentGid == null) {
                 Log.e(TAG, "cannot find task's parent tasklist");           //调试信息
                 throw new ActionFailureException("cannot add remote task");
             }
-            mGTaskListHashMap.get(parentGid).addChildTask(task);            //在本地生成的GTaskList中增加子结点
+            // 上次新建这个便签的请求没有返回结果，服务器上可能已经有了对应的任务
+            Long sentAfter = mUnconfirmedCreates.get(sqlNote.getId());
+            if (sentAfter != null) {
+                Task created = findUnconfirmedTask(mSession.getTaskList(parentGid), task.getName(),
+                        sqlNote.getId(), sentAfter);
+                if (created != null) {
+                    adoptRemoteTask(created, sqlNote);
+                    return;
+                }
+            }
+            mSession.getTaskList(parentGid).addChildTask(task);            //在本地生成的GTaskList中增加子结点
 
             //登录远程服务器，创建Task
+            //新建动作和其他动作一起批量提交，拿到gid后再由commitRemoteTasks添加meta并回写本地
             GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
-
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            mPendingRemoteTasks.put(task, sqlNote);
+            if (mPendingRemoteTasks.size() >= MAX_PENDING_REMOTE_TASKS) {
+                commitRemoteTasks();
+            }
+            return;
         } else {
             TaskList tasklist = null;
 
@@ -704,20 +1051,10 @@ public class GTaskManager {
             else
                 folderName += sqlNote.getSnippet();
 
-            //iterator迭代器，通过统一的接口迭代所有的map元素
-            Iterator<Map.Entry<String, TaskList>> iter = mGTaskListHashMap.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, TaskList> entry = iter.next();
-                String gid = entry.getKey();
-                TaskList list = entry.getValue();
-
-                if (list.getName().equals(folderName)) {
-                    tasklist = list;
-                    if (mGTaskHashMap.containsKey(gid)) {
-                        mGTaskHashMap.remove(gid);
-                    }
-                    break;
-                }
+            //通过名字索引查找同名的TaskList，不再遍历所有TaskList
+            tasklist = mSession.findTaskListByName(folderName);
+            if (tasklist != null) {
+                mRemoteNodes.take(tasklist.getGid());
             }
 
             // no match we can add now
@@ -725,20 +1062,161 @@ public class GTaskManager {
                 tasklist = new TaskList();
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
                 GTaskClient.getInstance().createTaskList(tasklist);
-                mGTaskListHashMap.put(tasklist.getGid(), tasklist);
+                mSession.addTaskList(tasklist);
             }
             n = (Node) tasklist;
         }
 
         // update local note
         sqlNote.setGtaskId(n.getGid());
-        sqlNote.commit(false);
+        mLocalBatch.add(sqlNote, false, null);
+        sqlNote.markSynced();
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        mLocalBatch.add(sqlNote, true, null);
 
         // gid-id mapping                                             //创建id间的映射
-        mGidToNid.put(n.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), n.getGid());
+        mSession.putMapping(n.getGid(), sqlNote.getId());
+    }
+
+    /**
+     * 提交缓存的远程新建便签，拿到gid后添加meta，并更新本地的gtask_id和gid-id映射
+     *
+     * @throws NetworkFailureException
+     */
+    private void commitRemoteTasks() throws NetworkFailureException {
+        if (mPendingRemoteTasks.isEmpty()) {
+            return;
+        }
+
+        GTaskClient.getInstance().commitUpdate();
+        for (Map.Entry<Task, SqlNote> entry : mPendingRemoteTasks.entrySet()) {
+            Task task = entry.getKey();
+            SqlNote sqlNote = entry.getValue();
+            if (task.getGid() == null) {
+                Log.e(TAG, "remote task has no gid after commit");
+                throw new ActionFailureException("cannot add remote task");
+            }
+
+            // add meta
+            updateRemoteMeta(task, sqlNote);
+
+            // update local note
+            sqlNote.setGtaskId(task.getGid());
+            mLocalBatch.add(sqlNote, false, null);
+            sqlNote.markSynced();
+            sqlNote.resetLocalModified();
+            mLocalBatch.add(sqlNote, true, null);
+
+            // gid-id mapping
+            mSession.putMapping(task.getGid(), sqlNote.getId());
+        }
+        mPendingRemoteTasks.clear();
+        mLocalBatch.commit();
+    }
+
+    /**
+     * 在便签所在的列表中找上次没有确认的新建请求建出的任务：名字和便签相同、还没有和本地匹配、
+     * 在发出请求之后才修改过（发出请求时已经存在的同名任务是用户在别处建的），
+     * 没有meta（meta还没来得及新建）或者meta记录的正是这个便签
+     *
+     * @param tasklist   ---便签所在的远端列表
+     * @param name       ---便签在远端的名字
+     * @param noteId     ---本地便签id
+     * @param sentAfter  ---发出请求前远端最新的修改时间
+     * @return 找到的任务，没有则返回null
+     */
+    private Task findUnconfirmedTask(TaskList tasklist, String name, long noteId, long sentAfter) {
+        for (Task task : tasklist.getChildTaskList()) {
+            if (task.getGid() == null || !TextUtils.equals(task.getName(), name)
+                    || task.getLastModified() <= sentAfter) {
+                continue;
+            }
+            if (task.getMetaData() != null) {
+                JSONObject js = task.getLocalJSONFromContent();
+                JSONObject note = js == null ? null : js.optJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+                if (note == null || note.optLong(NoteColumns.ID, -1) != noteId) {
+                    continue;
+                }
+            }
+            if (mRemoteNodes.take(task.getGid()) != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把远端已有的任务当作这个便签新建的结果：补上meta，回写gtask_id和gid-id映射，和commitRemoteTasks相同
+     *
+     * @throws NetworkFailureException
+     */
+    private void adoptRemoteTask(Task task, SqlNote sqlNote) throws NetworkFailureException {
+        Log.d(TAG, "adopt remote task " + task.getGid() + " for note " + sqlNote.getId());
+        updateRemoteMeta(task, sqlNote);
+
+        sqlNote.setGtaskId(task.getGid());
+        mLocalBatch.add(sqlNote, false, null);
+        sqlNote.markSynced();
+        sqlNote.resetLocalModified();
+        mLocalBatch.add(sqlNote, true, null);
+
+        mSession.putMapping(task.getGid(), sqlNote.getId());
+    }
+
+    private static HashMap<Long, Long> loadUnconfirmedCreates(Context context) {
+        HashMap<Long, Long> creates = new HashMap<Long, Long>();
+        String value = context.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).getString(PREFERENCE_UNCONFIRMED_CREATES, "");
+        for (String item : TextUtils.split(value, ",")) {
+            // 旧版本只记录了便签id，没有时间时和以前一样不限制
+            int colon = item.indexOf(':');
+            try {
+                if (colon < 0) {
+                    creates.put(Long.parseLong(item), 0L);
+                } else {
+                    creates.put(Long.parseLong(item.substring(0, colon)),
+                            Long.parseLong(item.substring(colon + 1)));
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "invalid unconfirmed create " + item);
+            }
+        }
+        return creates;
+    }
+
+    /**
+     * 同步完成后所有便签都有了gtask_id，清除记录；
+     * 否则保留上次的记录，再加上这次已经发出或缓存着、还没有回写gtask_id的新建便签
+     *
+     * @param completed ---同步是否完整结束
+     */
+    private void saveUnconfirmedCreates(boolean completed) {
+        ArrayList<String> items = new ArrayList<String>();
+        if (!completed) {
+            // 上次已经记录的保留原来的时间，那次的请求也可能已经在服务器上建好了任务
+            HashMap<Long, Long> creates = new HashMap<Long, Long>(mUnconfirmedCreates);
+            for (SqlNote sqlNote : mPendingRemoteTasks.values()) {
+                if (!creates.containsKey(sqlNote.getId())) {
+                    creates.put(sqlNote.getId(), mRemoteLastModified);
+                }
+            }
+            for (Map.Entry<Long, Long> entry : creates.entrySet()) {
+                items.add(entry.getKey() + ":" + entry.getValue());
+            }
+        }
+        mUnconfirmedCreates.clear();
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME, Context.MODE_PRIVATE)
+                .edit().putString(PREFERENCE_UNCONFIRMED_CREATES, TextUtils.join(",", items)).commit();
+    }
+
+    /**
+     * 账号变化后本地不再有gtask_id，上次没有确认的新建也不再有意义
+     *
+     * @param context
+     */
+    public static void clearUnconfirmedCreates(Context context) {
+        context.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME, Context.MODE_PRIVATE)
+                .edit().remove(PREFERENCE_UNCONFIRMED_CREATES).commit();
     }
 
     /**
@@ -748,19 +1226,44 @@ public class GTaskManager {
      * @param c    --Cursor
      * @throws NetworkFailureException
      */
-    private void updateRemoteNode(Node node, Cursor c) throws NetworkFailureException {
+    private void updateRemoteNode(Node node, Cursor c, boolean conflict)
+            throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
 
         SqlNote sqlNote = new SqlNote(mContext, c);
+        String hash = sqlNote.computeSyncHash();
+
+        // 本地被修改过，但需要同步的内容和上次同步时相同（例如只打开保存），不用上传
+        if (hash.length() > 0 && hash.equals(sqlNote.getSyncHash())) {
+            if (conflict) {
+                // 只有远端真正修改了，直接使用远端的内容
+                updateLocalNode(node, c);
+            } else {
+                sqlNote.resetLocalModified();
+                mLocalBatch.add(sqlNote, true, null);
+            }
+            return;
+        }
+
+        if (conflict && sqlNote.isNoteType()) {
+            mergeConflict((Task) node, sqlNote);
+        }
 
         // update remotely
+        // 本地内容只会改变任务名（文件夹名），名字没变时不发送更新
+        String oldName = node.getName();
         node.setContentByLocalJSON(sqlNote.getContent());
-        GTaskClient.getInstance().addUpdateNode(node);                                //GTaskClient用途为从本地登陆远端服务器
+        if (!TextUtils.equals(oldName, node.getName())) {
+            if (node instanceof TaskList) {
+                mSession.onTaskListRenamed((TaskList) node, oldName);     //文件夹改名后更新名字索引
+            }
+            GTaskClient.getInstance().addUpdateNode(node);                            //GTaskClient用途为从本地登陆远端服务器
+        }
 
         // update meta
-        updateRemoteMeta(node.getGid(), sqlNote);
+        updateRemoteMeta(node, sqlNote);
 
         // move task if necessary
         if (sqlNote.isNoteType()) {
@@ -768,14 +1271,14 @@ public class GTaskManager {
             TaskList preParentList = task.getParent();
             //preParentList为通过node获取的父节点列表
 
-            String curParentGid = mNidToGid.get(sqlNote.getParentId());
-            //curParentGid为通过光标在数据库中找到sqlNote的mParentId，再通过mNidToGid由long类型转为String类型的Gid
+            String curParentGid = mSession.getGid(sqlNote.getParentId());
+            //curParentGid为通过光标在数据库中找到sqlNote的mParentId，再通过gid-id映射由long类型转为String类型的Gid
 
             if (curParentGid == null) {
                 Log.e(TAG, "cannot find task's parent tasklist");
                 throw new ActionFailureException("cannot update remote task");
             }
-            TaskList curParentList = mGTaskListHashMap.get(curParentGid);
+            TaskList curParentList = mSession.getTaskList(curParentGid);
             //通过HashMap找到对应Gid的TaskList
 
             if (preParentList != curParentList) {                                          //?????????????
@@ -786,34 +1289,71 @@ public class GTaskManager {
         }
 
         // clear local modified flag
+        sqlNote.markSynced();
         sqlNote.resetLocalModified();
-        //commit到本地数据库
-        sqlNote.commit(true);
+        //加入本地批量提交
+        mLocalBatch.add(sqlNote, true, null);
+    }
+
+    /*
+     * 本地和远端都修改了同一个便签，以上次同步时的正文为基础按行合并
+     * 两边修改了同一处时保留两份并加上冲突标记，合并结果写入本地，随后作为本地修改上传
+     * 没有基础版本时（升级到第7版之前同步的便签，sync_base是默认的空字符串）无法按行合并，
+     * 整篇都会成为一个冲突块，这时和以前一样使用本地的修改
+     */
+    private void mergeConflict(Task task, SqlNote sqlNote) {
+        mMetrics.onConflict();
+        String base = sqlNote.getSyncBase();
+        if (TextUtils.isEmpty(base)) {
+            Log.w(TAG, "no sync base, keep local version, gid " + task.getGid());
+            return;
+        }
+        String local = sqlNote.getNoteText();
+        String merged = TextMerger.merge(base, local, task.getName(),
+                mContext.getString(R.string.sync_conflict_local),
+                mContext.getString(R.string.sync_conflict_remote));
+        if (!merged.equals(local)) {
+            sqlNote.setNoteText(merged);
+        }
+        if (merged.indexOf(TextMerger.MARKER_SEPARATOR) >= 0) {
+            Log.w(TAG, "sync conflict kept with markers, gid " + task.getGid());
+        }
     }
 
     /**
      * 升级远程meta。  meta---元数据----计算机文件系统管理数据---管理数据的数据。
      *
-     * @param gid     ---GoogleID为String类型
+     * @param node    ---便签对应的远端Task
      * @param sqlNote ---同步前的数据库操作，故使用类SqlNote
      * @throws NetworkFailureException
      */
-    private void updateRemoteMeta(String gid, SqlNote sqlNote) throws NetworkFailureException {
-        if (sqlNote != null && sqlNote.isNoteType()) {
-            MetaData metaData = mMetaHashMap.get(gid);
+    private void updateRemoteMeta(Node node, SqlNote sqlNote) throws NetworkFailureException {
+        if (sqlNote != null && sqlNote.isNoteType() && node instanceof Task) {
+            Task task = (Task) node;
+            String gid = task.getGid();
+            MetaData metaData = task.getMetaData();
             if (metaData != null) {
+                // 远端meta中需要同步的字段都没有变化（例如只有修改时间不同）时不更新
+                String hash = sqlNote.computeSyncHash();
+                if (hash.length() > 0 && hash.equals(metaData.getSyncHash())) {
+                    return;
+                }
                 metaData.setMeta(gid, sqlNote.getContent());
                 GTaskClient.getInstance().addUpdateNode(metaData);
             } else {
                 metaData = new MetaData();
                 metaData.setMeta(gid, sqlNote.getContent());
                 mMetaList.addChildTask(metaData);
-                mMetaHashMap.put(gid, metaData);
+                task.setMetaData(metaData);
                 GTaskClient.getInstance().createTask(metaData);
             }
         }
     }
 
+    private static MetaData getMetaData(Node node) {
+        return node instanceof Task ? ((Task) node).getMetaData() : null;
+    }
+
     /**
      * 刷新本地，给sync的ID对应上最后更改过的对象
      *
@@ -827,8 +1367,8 @@ public class GTaskManager {
 
         // get the latest gtask list
         // 获取最近的（最晚的）gtask list
-        mGTaskHashMap.clear();
-        mGTaskListHashMap.clear();
+        mRemoteNodes.clear();
+        mSession.clearTaskLists();
         mMetaHashMap.clear();
         initGTaskList();
 
@@ -837,17 +1377,18 @@ public class GTaskManager {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
                     "(type<>? AND parent_id<>?)", new String[]{
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");                                                 //query语句：五个参数，NoteColumns.TYPE + " DESC"-----为按类型递减顺序返回查询结果。new String[] {String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)}------为选择参数。"(type<>? AND parent_id<>?)"-------指明返回行过滤器。SqlNote.PROJECTION_NOTE--------应返回的数据列的名字。Notes.CONTENT_NOTE_URI--------contentProvider包含所有数据集所对应的uri
+                    }, NoteColumns.GTASK_ID + " ASC");                                              //query语句：五个参数，NoteColumns.GTASK_ID + " ASC"-----按gtask_id升序返回查询结果，便于和远端节点归并。new String[] {String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)}------为选择参数。"(type<>? AND parent_id<>?)"-------指明返回行过滤器。SqlNote.PROJECTION_NOTE--------应返回的数据列的名字。Notes.CONTENT_NOTE_URI--------contentProvider包含所有数据集所对应的uri
             if (c != null) {
-                while (c.moveToNext()) {
+                mRemoteNodes.startScan();
+                while (!mCancelled && c.moveToNext()) {
                     String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    Node node = mGTaskHashMap.get(gid);
+                    Node node = mRemoteNodes.match(gid);
                     if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        ContentValues values = new ContentValues();                     //在ContentValues中创建键值对。准备通过contentResolver写入数据
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,   //进行批量更改，选择参数为NULL，应该可以用insert替换，参数分别为表名和需要更新的value对象。
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
+                        mLocalBatch.add(ContentProviderOperation.newUpdate(             //加入本地批量提交，分块在一个事务中写入
+                                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
+                                        c.getLong(SqlNote.ID_COLUMN)))
+                                .withValue(NoteColumns.SYNC_ID, node.getLastModified())
+                                .build());
                     } else {
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
@@ -863,6 +1404,7 @@ public class GTaskManager {
                 c = null;
             }
         }
+        mLocalBatch.commit();
     }
 
     /**
@@ -875,9 +1417,11 @@ public class GTaskManager {
     }
 
     /**
-     * 取消同步，置mCancelled为true
+     * 取消同步，置mCancelled为true，并中止正在执行的网络请求
+     * 同步线程在下一次检查时停止，没有提交的本地写操作被丢弃
      */
     public void cancelSync() {
         mCancelled = true;
+        GTaskClient.getInstance().cancel();
     }
 }
\ No newline at end of file
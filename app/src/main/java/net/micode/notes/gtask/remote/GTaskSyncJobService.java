@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+
+/*
+ * Description：执行SyncScheduler安排的后台同步
+ * 和GTaskSyncService一样使用GTaskASyncTask，但不显示通知，也不需要Activity
+ * 系统要求停止时（例如条件不再满足）取消同步，并要求之后重新安排
+ */
+public class GTaskSyncJobService extends JobService {
+    private static final String TAG = GTaskSyncJobService.class.getSimpleName();
+
+    private GTaskASyncTask mSyncTask;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        // 用户手动发起的同步或者另一个任务正在进行，推送同步在它结束后重新安排
+        if (!SyncScheduler.onJobStarted(params.getJobId())) {
+            Log.d(TAG, "another sync in progress, skip job " + params.getJobId());
+            return false;
+        }
+
+        mSyncTask = new GTaskASyncTask(this, new GTaskASyncTask.OnCompleteListener() {
+            public void onComplete() {
+                mSyncTask = null;
+                jobFinished(params, false);
+                SyncScheduler.onJobFinished(GTaskSyncJobService.this);
+            }
+        });
+        mSyncTask.setShowNotification(false);
+        mSyncTask.execute();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        GTaskASyncTask task = mSyncTask;
+        if (task != null) {
+            task.cancelSync();
+        }
+        return true;
+    }
+}
@@ -64,6 +64,7 @@ public class GTaskSyncService extends Service {
                 public void onComplete() {
                     mSyncTask = null;
                     sendBroadcast("");
+                    SyncScheduler.onManualSyncFinished(GTaskSyncService.this);
                     stopSelf();
                 }
             });
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import net.micode.notes.gtask.data.TaskList;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Description：一次同步过程中使用的索引
+ * 包含远端TaskList（按gid和按名字两个索引）以及gid和本地id的双向映射
+ * 在GTaskManager.sync开始时创建，结束时close，不跨同步保留
+ */
+class GTaskSyncSession {
+    private static final String TAG = GTaskSyncSession.class.getSimpleName();
+
+    // 估算内存时每个HashMap条目的开销（Entry对象、Long等），只用于日志
+    private static final int ENTRY_OVERHEAD_BYTES = 48;
+
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private HashMap<String, TaskList> mTaskListsByGid;
+
+    // 文件夹名字到TaskList，名字重复时保留最先加入的
+    private HashMap<String, TaskList> mTaskListsByName;
+
+    private HashMap<String, Long> mGidToNid;
+
+    private HashMap<Long, String> mNidToGid;
+
+    private long mStartTime;
+
+    private int mPeakEntryCount;
+
+    public GTaskSyncSession() {
+        mTaskListsByGid = new HashMap<String, TaskList>();
+        mTaskListsByName = new HashMap<String, TaskList>();
+        mGidToNid = new HashMap<String, Long>();
+        mNidToGid = new HashMap<Long, String>();
+        mStartTime = System.currentTimeMillis();
+        mPeakEntryCount = 0;
+    }
+
+    /*
+     * 加入一个已经有gid的TaskList，同时建立名字索引
+     */
+    public void addTaskList(TaskList tasklist) {
+        mTaskListsByGid.put(tasklist.getGid(), tasklist);
+        String name = tasklist.getName();
+        if (name != null && !mTaskListsByName.containsKey(name)) {
+            mTaskListsByName.put(name, tasklist);
+        }
+        updatePeak();
+    }
+
+    public TaskList getTaskList(String gid) {
+        return mTaskListsByGid.get(gid);
+    }
+
+    public TaskList findTaskListByName(String name) {
+        return mTaskListsByName.get(name);
+    }
+
+    public Collection<TaskList> getTaskLists() {
+        return mTaskListsByGid.values();
+    }
+
+    /*
+     * TaskList改名后更新名字索引，oldName为改名前的名字
+     */
+    public void onTaskListRenamed(TaskList tasklist, String oldName) {
+        if (oldName != null && mTaskListsByName.get(oldName) == tasklist) {
+            mTaskListsByName.remove(oldName);
+        }
+        String name = tasklist.getName();
+        if (name != null && !mTaskListsByName.containsKey(name)) {
+            mTaskListsByName.put(name, tasklist);
+        }
+    }
+
+    /*
+     * 重新拉取远端列表前清空TaskList索引，gid映射保留
+     */
+    public void clearTaskLists() {
+        mTaskListsByGid.clear();
+        mTaskListsByName.clear();
+    }
+
+    public void putMapping(String gid, long nid) {
+        mGidToNid.put(gid, nid);
+        mNidToGid.put(nid, gid);
+        updatePeak();
+    }
+
+    public Long getNid(String gid) {
+        return mGidToNid.get(gid);
+    }
+
+    public String getGid(long nid) {
+        return mNidToGid.get(nid);
+    }
+
+    public int getEntryCount() {
+        return mTaskListsByGid.size() + mTaskListsByName.size() + mGidToNid.size()
+                + mNidToGid.size();
+    }
+
+    /*
+     * 粗略估算索引占用的内存（字节），不包括TaskList对象本身
+     */
+    public long estimateMemoryUsage() {
+        long bytes = (long) getEntryCount() * ENTRY_OVERHEAD_BYTES;
+        for (String gid : mTaskListsByGid.keySet()) {
+            bytes += estimateString(gid);
+        }
+        for (String name : mTaskListsByName.keySet()) {
+            bytes += estimateString(name);
+        }
+        for (Map.Entry<String, Long> entry : mGidToNid.entrySet()) {
+            // 两个方向共用同一个gid字符串
+            bytes += estimateString(entry.getKey());
+        }
+        return bytes;
+    }
+
+    /*
+     * 同步结束时调用，记录统计信息并释放所有索引
+     */
+    public void close() {
+        Log.d(TAG, "sync session closed: " + mTaskListsByGid.size() + " lists, "
+                + mGidToNid.size() + " mappings, peak entries " + mPeakEntryCount
+                + ", ~" + estimateMemoryUsage() + " bytes, "
+                + (System.currentTimeMillis() - mStartTime) + " ms");
+        clearTaskLists();
+        mGidToNid.clear();
+        mNidToGid.clear();
+    }
+
+    private void updatePeak() {
+        int count = getEntryCount();
+        if (count > mPeakEntryCount) {
+            mPeakEntryCount = count;
+        }
+    }
+
+    private static long estimateString(String s) {
+        return s == null ? 0 : STRING_OVERHEAD_BYTES + 2L * s.length();
+    }
+}
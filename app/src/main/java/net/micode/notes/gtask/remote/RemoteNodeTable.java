@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Node;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+
+/*
+ * Description：按gid排序保存的远端节点，用来和按gtask_id排序的本地游标做归并连接
+ * 代替原来的HashMap<String, Node>，每个节点只占数组中的一个引用和一个标记位
+ * 已经和本地匹配过的节点被标记，剩下未标记的就是需要在本地新增的节点
+ */
+class RemoteNodeTable {
+
+    private static final Comparator<Node> GID_COMPARATOR = new Comparator<Node>() {
+        public int compare(Node lhs, Node rhs) {
+            return lhs.getGid().compareTo(rhs.getGid());
+        }
+    };
+
+    private ArrayList<Node> mNodes;
+
+    private BitSet mMatched;
+
+    private boolean mSorted;
+
+    // 归并扫描的位置，本地游标按gtask_id升序时只会向后移动
+    private int mScanPos;
+
+    public RemoteNodeTable() {
+        mNodes = new ArrayList<Node>();
+        mMatched = new BitSet();
+        mSorted = true;
+        mScanPos = 0;
+    }
+
+    public void add(Node node) {
+        mNodes.add(node);
+        mSorted = false;
+    }
+
+    public int size() {
+        return mNodes.size();
+    }
+
+    /*
+     * 开始一次新的归并扫描，每个按gtask_id排序的本地游标开始前调用
+     */
+    public void startScan() {
+        sortIfNeeded();
+        mScanPos = 0;
+    }
+
+    /*
+     * 找到gid对应的未匹配节点并标记为已匹配，没有则返回null
+     * gid不小于上一次的gid时沿扫描位置向后移动，否则退回到二分查找
+     */
+    public Node match(String gid) {
+        int pos = find(gid);
+        if (pos < 0 || mMatched.get(pos)) {
+            return null;
+        }
+        mMatched.set(pos);
+        return mNodes.get(pos);
+    }
+
+    /*
+     * 和match相同，但用二分查找，不移动扫描位置，用于不在归并扫描中的单独查询
+     */
+    public Node take(String gid) {
+        int pos = binarySearch(gid);
+        if (pos < 0 || mMatched.get(pos)) {
+            return null;
+        }
+        mMatched.set(pos);
+        return mNodes.get(pos);
+    }
+
+    /*
+     * 按gid查找节点，不论是否已经匹配，也不标记，用于加载时把meta挂到对应的任务上
+     */
+    public Node get(String gid) {
+        int pos = binarySearch(gid);
+        return pos < 0 ? null : mNodes.get(pos);
+    }
+
+    /*
+     * 按gid顺序返回还没有匹配的节点
+     */
+    public ArrayList<Node> getUnmatched() {
+        sortIfNeeded();
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for (int i = mMatched.nextClearBit(0); i < mNodes.size(); i = mMatched.nextClearBit(i + 1)) {
+            nodes.add(mNodes.get(i));
+        }
+        return nodes;
+    }
+
+    public void clear() {
+        mNodes.clear();
+        mMatched.clear();
+        mSorted = true;
+        mScanPos = 0;
+    }
+
+    private int find(String gid) {
+        if (gid == null || gid.length() == 0) {
+            return -1;
+        }
+        sortIfNeeded();
+
+        if (mScanPos > 0 && mScanPos <= mNodes.size()
+                && gid.compareTo(mNodes.get(mScanPos - 1).getGid()) < 0) {
+            // 本地游标不是升序时退回到二分查找
+            return binarySearch(gid);
+        }
+
+        while (mScanPos < mNodes.size()) {
+            int cmp = mNodes.get(mScanPos).getGid().compareTo(gid);
+            if (cmp > 0) {
+                return -1;
+            }
+            mScanPos++;
+            if (cmp == 0) {
+                return mScanPos - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int binarySearch(String gid) {
+        if (gid == null || gid.length() == 0) {
+            return -1;
+        }
+        sortIfNeeded();
+        int low = 0;
+        int high = mNodes.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = mNodes.get(mid).getGid().compareTo(gid);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void sortIfNeeded() {
+        if (!mSorted) {
+            // 排序会打乱已匹配的标记，只能在匹配开始前发生
+            Collections.sort(mNodes, GID_COMPARATOR);
+            mMatched.clear();
+            mSorted = true;
+            mScanPos = 0;
+        }
+    }
+}
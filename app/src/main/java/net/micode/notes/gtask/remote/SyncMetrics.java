@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Description：一次同步的性能数据，包括各阶段耗时、请求次数、上下行字节数、本地写入行数和冲突数
+ * 同步结束后以一行JSON追加到私有目录的sync_metrics.log，超过MAX_LOG_SIZE时滚动到sync_metrics.log.1
+ * 通过getHistory读取最近的记录，用于分析慢同步
+ */
+public class SyncMetrics {
+    private static final String TAG = SyncMetrics.class.getSimpleName();
+
+    public static final String PHASE_LOGIN = "login";
+
+    public static final String PHASE_INIT_LIST = "init_list";
+
+    public static final String PHASE_FOLDERS = "folders";
+
+    public static final String PHASE_NOTES = "notes";
+
+    public static final String PHASE_REFRESH = "refresh";
+
+    public static final String KEY_START_TIME = "start_time";
+
+    public static final String KEY_TOTAL_TIME = "total_ms";
+
+    public static final String KEY_PHASES = "phases_ms";
+
+    public static final String KEY_REQUESTS = "requests";
+
+    public static final String KEY_BYTES_UP = "bytes_up";
+
+    public static final String KEY_BYTES_DOWN = "bytes_down";
+
+    public static final String KEY_ROWS_WRITTEN = "rows_written";
+
+    public static final String KEY_CONFLICTS = "conflicts";
+
+    public static final String KEY_RESULT = "result";
+
+    private static final String LOG_FILE = "sync_metrics.log";
+
+    private static final String LOG_FILE_OLD = "sync_metrics.log.1";
+
+    // 单个文件的大小上限，一条记录约300字节，两个文件共保存几百次同步
+    private static final long MAX_LOG_SIZE = 64 * 1024;
+
+    private long mStartTime;
+
+    private long mStartElapsed;
+
+    private long mEndElapsed;
+
+    // 阶段名到累计耗时（毫秒），按开始顺序
+    private LinkedHashMap<String, Long> mPhaseTimes;
+
+    private String mCurrentPhase;
+
+    private long mPhaseStart;
+
+    private int mRequests;
+
+    private long mBytesUp;
+
+    private long mBytesDown;
+
+    private int mRowsWritten;
+
+    private int mConflicts;
+
+    private int mResult;
+
+    public SyncMetrics() {
+        mStartTime = System.currentTimeMillis();
+        mStartElapsed = SystemClock.elapsedRealtime();
+        mEndElapsed = 0;
+        mPhaseTimes = new LinkedHashMap<String, Long>();
+        mCurrentPhase = null;
+        mRequests = 0;
+        mBytesUp = 0;
+        mBytesDown = 0;
+        mRowsWritten = 0;
+        mConflicts = 0;
+        mResult = -1;
+    }
+
+    /*
+     * 开始一个阶段，同时结束上一个阶段；同一阶段多次开始时耗时累加
+     */
+    public void beginPhase(String phase) {
+        endPhase();
+        mCurrentPhase = phase;
+        mPhaseStart = SystemClock.elapsedRealtime();
+    }
+
+    public void endPhase() {
+        if (mCurrentPhase == null) {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - mPhaseStart;
+        Long total = mPhaseTimes.get(mCurrentPhase);
+        mPhaseTimes.put(mCurrentPhase, total == null ? elapsed : total + elapsed);
+        mCurrentPhase = null;
+    }
+
+    /*
+     * 发出一个请求，bytesUp为请求体的字节数，未知时为负数
+     */
+    public synchronized void onRequest(long bytesUp) {
+        mRequests++;
+        if (bytesUp > 0) {
+            mBytesUp += bytesUp;
+        }
+    }
+
+    /*
+     * 收到的响应字节数（压缩后的），读取响应时调用
+     */
+    public synchronized void onBytesReceived(long bytes) {
+        mBytesDown += bytes;
+    }
+
+    public void addRowsWritten(int rows) {
+        mRowsWritten += rows;
+    }
+
+    public void onConflict() {
+        mConflicts++;
+    }
+
+    public void setResult(int result) {
+        mResult = result;
+    }
+
+    public synchronized JSONObject toJSON() {
+        JSONObject js = new JSONObject();
+        try {
+            long end = mEndElapsed > 0 ? mEndElapsed : SystemClock.elapsedRealtime();
+            js.put(KEY_START_TIME, mStartTime);
+            js.put(KEY_TOTAL_TIME, end - mStartElapsed);
+            JSONObject phases = new JSONObject();
+            for (Map.Entry<String, Long> entry : mPhaseTimes.entrySet()) {
+                phases.put(entry.getKey(), entry.getValue());
+            }
+            js.put(KEY_PHASES, phases);
+            js.put(KEY_REQUESTS, mRequests);
+            js.put(KEY_BYTES_UP, mBytesUp);
+            js.put(KEY_BYTES_DOWN, mBytesDown);
+            js.put(KEY_ROWS_WRITTEN, mRowsWritten);
+            js.put(KEY_CONFLICTS, mConflicts);
+            js.put(KEY_RESULT, mResult);
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+        }
+        return js;
+    }
+
+    /*
+     * 同步结束时调用，结束当前阶段并把这次的数据写入日志文件
+     */
+    public void finish(Context context) {
+        endPhase();
+        mEndElapsed = SystemClock.elapsedRealtime();
+        String line = toJSON().toString();
+        Log.d(TAG, line);
+
+        synchronized (SyncMetrics.class) {
+            File file = new File(context.getFilesDir(), LOG_FILE);
+            if (file.length() > MAX_LOG_SIZE) {
+                File old = new File(context.getFilesDir(), LOG_FILE_OLD);
+                if (old.exists() && !old.delete()) {
+                    Log.w(TAG, "failed to delete old metrics log");
+                }
+                if (!file.renameTo(old)) {
+                    Log.w(TAG, "failed to roll metrics log");
+                }
+            }
+
+            // 上次写入被中断时文件不以换行结尾，先补上换行，这一条不会和断掉的行连在一起
+            boolean newLine = file.length() > 0 && !endsWithNewLine(file);
+            Writer writer = null;
+            try {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true),
+                        StandardCharsets.UTF_8);
+                if (newLine) {
+                    writer.write('\n');
+                }
+                writer.write(line);
+                writer.write('\n');
+            } catch (IOException e) {
+                Log.e(TAG, "failed to write metrics log: " + e.toString());
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, e.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * 读取最近max次同步的数据，按时间从新到旧排列
+     */
+    public static JSONArray getHistory(Context context, int max) {
+        ArrayList<String> lines = new ArrayList<String>();
+        synchronized (SyncMetrics.class) {
+            readLines(new File(context.getFilesDir(), LOG_FILE_OLD), lines);
+            readLines(new File(context.getFilesDir(), LOG_FILE), lines);
+        }
+
+        JSONArray history = new JSONArray();
+        for (int i = lines.size() - 1; i >= 0 && history.length() < max; i--) {
+            try {
+                history.put(new JSONObject(lines.get(i)));
+            } catch (JSONException e) {
+                // 写入时被中断的行，跳过
+                Log.w(TAG, "skip broken metrics line");
+            }
+        }
+        return history;
+    }
+
+    private static boolean endsWithNewLine(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read metrics log: " + e.toString());
+            return true;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    private static void readLines(File file, ArrayList<String> lines) {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read metrics log: " + e.toString());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+/*
+ * Description：后台同步的调度，基于JobScheduler，不需要Activity
+ * 定时同步：充电且连接不计流量的网络时，每隔一段时间同步一次
+ * 推送同步：本地修改后延迟一段时间再同步，期间的连续修改合并为一次，
+ *          每次修改都把同步往后推，但从第一次修改算起最多等待PUSH_MAX_DELAY
+ */
+public class SyncScheduler {
+    private static final String TAG = SyncScheduler.class.getSimpleName();
+
+    public static final int JOB_ID_PERIODIC = 0x6754;
+
+    public static final int JOB_ID_PUSH = 0x6755;
+
+    private static final long PERIODIC_INTERVAL = 6 * 60 * 60 * 1000L;
+
+    private static final long PERIODIC_FLEX = 60 * 60 * 1000L;
+
+    // 最后一次修改之后等待的时间
+    private static final long PUSH_DELAY = 30 * 1000L;
+
+    // 从第一次修改算起最多等待的时间，持续编辑时也能同步出去
+    private static final long PUSH_MAX_DELAY = 5 * 60 * 1000L;
+
+    // 批量修改时每个操作都会请求，这个时间内的请求直接忽略，避免频繁调用JobScheduler
+    private static final long PUSH_REQUEST_INTERVAL = 2 * 1000L;
+
+    private static final String EXTRA_FIRST_REQUEST_TIME = "first_request_time";
+
+    private static long sLastPushRequestTime = 0;
+
+    // 正在执行的任务id，没有时为0
+    private static int sRunningJobId = 0;
+
+    // 推送同步执行期间又有新的修改，结束后需要再安排一次
+    private static boolean sPushRequestedWhileRunning = false;
+
+    private SyncScheduler() {
+    }
+
+    /*
+     * 安排定时同步，已经安排过时不重复安排，以免重置周期
+     */
+    public static void schedulePeriodic(Context context) {
+        if (TextUtils.isEmpty(NotesPreferenceActivity.getSyncAccountName(context))) {
+            return;
+        }
+        JobScheduler scheduler = getScheduler(context);
+        if (scheduler.getPendingJob(JOB_ID_PERIODIC) != null) {
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID_PERIODIC, getComponent(context))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPeriodic(PERIODIC_INTERVAL, PERIODIC_FLEX)
+                .setPersisted(true)
+                .build();
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "failed to schedule periodic sync");
+        }
+    }
+
+    /*
+     * 本地有修改，请求一次推送同步
+     */
+    public static void requestPush(Context context) {
+        if (TextUtils.isEmpty(NotesPreferenceActivity.getSyncAccountName(context))) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (SyncScheduler.class) {
+            if (sRunningJobId == JOB_ID_PUSH) {
+                // 相同id的任务正在执行时重新安排会停止它，等它结束后再安排
+                sPushRequestedWhileRunning = true;
+                return;
+            }
+            if (now - sLastPushRequestTime < PUSH_REQUEST_INTERVAL) {
+                return;
+            }
+            sLastPushRequestTime = now;
+        }
+
+        JobScheduler scheduler = getScheduler(context);
+        long firstRequestTime = now;
+        JobInfo pending = scheduler.getPendingJob(JOB_ID_PUSH);
+        if (pending != null) {
+            firstRequestTime = pending.getExtras().getLong(EXTRA_FIRST_REQUEST_TIME, now);
+            if (now - firstRequestTime >= PUSH_MAX_DELAY) {
+                // 已经推迟到上限，不再往后推
+                return;
+            }
+        }
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putLong(EXTRA_FIRST_REQUEST_TIME, firstRequestTime);
+        long delay = Math.min(PUSH_DELAY, PUSH_MAX_DELAY - (now - firstRequestTime));
+        JobInfo job = new JobInfo.Builder(JOB_ID_PUSH, getComponent(context))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delay)
+                .setExtras(extras)
+                .build();
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "failed to schedule push sync");
+        }
+    }
+
+    /*
+     * 移除同步账号时取消所有后台同步
+     */
+    public static void cancelAll(Context context) {
+        JobScheduler scheduler = getScheduler(context);
+        scheduler.cancel(JOB_ID_PERIODIC);
+        scheduler.cancel(JOB_ID_PUSH);
+        synchronized (SyncScheduler.class) {
+            sPushRequestedWhileRunning = false;
+        }
+    }
+
+    /*
+     * 同一时间只执行一个同步任务，用户手动发起的同步也算在内，返回false时调用者不应开始同步
+     * 推送同步遇到其他同步正在执行时，等那个同步结束后再安排
+     */
+    static synchronized boolean onJobStarted(int jobId) {
+        if (sRunningJobId != 0 || GTaskSyncService.isSyncing()) {
+            if (jobId == JOB_ID_PUSH) {
+                sPushRequestedWhileRunning = true;
+            }
+            return false;
+        }
+        sRunningJobId = jobId;
+        return true;
+    }
+
+    /*
+     * 任务结束后调用，需要先调用jobFinished，否则重新安排推送同步会停止还在执行的任务
+     */
+    static void onJobFinished(Context context) {
+        boolean pushAgain;
+        synchronized (SyncScheduler.class) {
+            sRunningJobId = 0;
+            pushAgain = takePushRequestLocked();
+        }
+        if (pushAgain) {
+            requestPush(context);
+        }
+    }
+
+    /*
+     * 手动同步结束后调用，期间被跳过的推送同步重新安排
+     * 后台任务正在执行时由它结束后安排
+     */
+    static void onManualSyncFinished(Context context) {
+        boolean pushAgain;
+        synchronized (SyncScheduler.class) {
+            if (sRunningJobId != 0) {
+                return;
+            }
+            pushAgain = takePushRequestLocked();
+        }
+        if (pushAgain) {
+            requestPush(context);
+        }
+    }
+
+    private static boolean takePushRequestLocked() {
+        boolean pushAgain = sPushRequestedWhileRunning;
+        sPushRequestedWhileRunning = false;
+        sLastPushRequestTime = 0;
+        return pushAgain;
+    }
+
+    private static JobScheduler getScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    private static ComponentName getComponent(Context context) {
+        return new ComponentName(context, GTaskSyncJobService.class);
+    }
+}
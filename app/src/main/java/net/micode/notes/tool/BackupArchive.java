@@ -0,0 +1,1065 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.Environment;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.BackupJournalColumns;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.ui.AlarmInitReceiver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Description：备份文件的读写，保存便签表、数据表和图片附件，用于换机时恢复
+ * 文件格式：不压缩的文件头（MAGIC和格式版本），之后是deflate压缩的记录流
+ * 每条记录以一个字节的类型开始：清单（JSON）、删除、便签、数据、附件，最后是结束记录（各类记录数和CRC）
+ * 便签和文件夹在前，数据在后，附件按内容的SHA-1去重，写在第一个引用它的数据之前
+ * 增量备份只包含备份变更记录中上次备份之后变化的便签（连同它的全部数据）和已经删除的便签ID，
+ * 恢复时先恢复完整备份，再按顺序应用同一个备份链上的增量备份
+ * 读写都经过文件通道和固定大小的缓冲区，内存占用和便签数量无关
+ */
+class BackupArchive {
+    private static final String TAG = "BackupArchive";
+
+    // 文件头
+    private static final byte[] MAGIC = {
+            'M', 'N', 'B', 'K'
+    };
+
+    // 当前格式版本，只能恢复不高于这个版本的文件
+    static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+
+    // 记录类型
+    private static final byte RECORD_MANIFEST = 1;
+    private static final byte RECORD_NOTE = 2;
+    private static final byte RECORD_DATA = 3;
+    private static final byte RECORD_ATTACHMENT = 4;
+    private static final byte RECORD_DELETE = 5;
+    private static final byte RECORD_END = 0x7f;
+
+    // 清单中的键
+    static final String MANIFEST_FORMAT_VERSION = "format_version";
+    static final String MANIFEST_CREATED_TIME = "created_time";
+    static final String MANIFEST_TYPE = "type";
+    static final String MANIFEST_BACKUP_ID = "backup_id";
+    static final String MANIFEST_JOURNAL_FROM = "journal_from";
+    static final String MANIFEST_JOURNAL_TO = "journal_to";
+
+    // 备份类型
+    static final String TYPE_FULL = "full";
+    static final String TYPE_INCREMENTAL = "incremental";
+
+    // 单个字符串的长度上限，超过时认为文件已损坏
+    private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+    // 恢复时每个事务插入的行数
+    private static final int RESTORE_BATCH_SIZE = 500;
+
+    // 图片附件所在的目录，和 NoteEditActivity 保存图片的位置一致
+    private static final String IMAGE_DIR = "notes_images";
+
+    // 备份文件中附件路径的前缀，后面是附件名（SHA-1加扩展名），恢复时换成本机的图片目录
+    private static final String ATTACHMENT_REF = "attachment:";
+
+    // 备份的便签和文件夹，系统文件夹不备份；文件夹在前，便签在后
+    private static final String[] NOTE_PROJECTION = {
+            NoteColumns.ID,
+            NoteColumns.PARENT_ID,
+            NoteColumns.ORIGIN_PARENT_ID,
+            NoteColumns.TYPE,
+            NoteColumns.CREATED_DATE,
+            NoteColumns.MODIFIED_DATE,
+            NoteColumns.ALERTED_DATE,
+            NoteColumns.BG_COLOR_ID,
+            NoteColumns.HAS_ATTACHMENT,
+            NoteColumns.WIDGET_ID,
+            NoteColumns.WIDGET_TYPE,
+            NoteColumns.SNIPPET,
+    };
+
+    private static final int NOTE_ID_COLUMN = 0;
+    private static final int NOTE_PARENT_ID_COLUMN = 1;
+    private static final int NOTE_ORIGIN_PARENT_ID_COLUMN = 2;
+    private static final int NOTE_TYPE_COLUMN = 3;
+    private static final int NOTE_CREATED_DATE_COLUMN = 4;
+    private static final int NOTE_MODIFIED_DATE_COLUMN = 5;
+    private static final int NOTE_ALERTED_DATE_COLUMN = 6;
+    private static final int NOTE_BG_COLOR_ID_COLUMN = 7;
+    private static final int NOTE_HAS_ATTACHMENT_COLUMN = 8;
+    private static final int NOTE_WIDGET_ID_COLUMN = 9;
+    private static final int NOTE_WIDGET_TYPE_COLUMN = 10;
+    private static final int NOTE_SNIPPET_COLUMN = 11;
+
+    private static final String NOTE_SELECTION = NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM;
+
+    private static final String NOTE_ORDER = NoteColumns.TYPE + " DESC," + NoteColumns.ID;
+
+    private static final String[] DATA_PROJECTION = {
+            DataColumns.NOTE_ID,
+            DataColumns.MIME_TYPE,
+            DataColumns.CREATED_DATE,
+            DataColumns.MODIFIED_DATE,
+            DataColumns.CONTENT,
+            DataColumns.DATA1,
+            DataColumns.DATA2,
+            DataColumns.DATA3,
+            DataColumns.DATA4,
+            DataColumns.DATA5,
+    };
+
+    private static final int DATA_NOTE_ID_COLUMN = 0;
+    private static final int DATA_MIME_TYPE_COLUMN = 1;
+    private static final int DATA_CREATED_DATE_COLUMN = 2;
+    private static final int DATA_MODIFIED_DATE_COLUMN = 3;
+    private static final int DATA_CONTENT_COLUMN = 4;
+    private static final int DATA_DATA1_COLUMN = 5;
+    private static final int DATA_DATA2_COLUMN = 6;
+    private static final int DATA_DATA3_COLUMN = 7;
+    private static final int DATA_DATA4_COLUMN = 8;
+    private static final int DATA_DATA5_COLUMN = 9;
+
+    // 只备份属于已备份便签的数据
+    private static final String DATA_SELECTION = DataColumns.NOTE_ID + " IN (SELECT "
+            + NoteColumns.ID + " FROM " + NotesDatabaseHelper.TABLE.NOTE + " WHERE " + NOTE_SELECTION + ")";
+
+    private static final String DATA_ORDER = DataColumns.NOTE_ID + "," + DataColumns.ID;
+
+    // 增量备份：备份变更记录中某个位置之后变化过的便签
+    private static final String CHANGED_SELECTION = NoteColumns.ID + " IN (SELECT "
+            + BackupJournalColumns.NOTE_ID + " FROM " + NotesDatabaseHelper.TABLE.BACKUP_JOURNAL
+            + " WHERE " + BackupJournalColumns.ID + ">?)";
+
+    private static final String CHANGED_DATA_SELECTION = DataColumns.NOTE_ID + " IN (SELECT "
+            + NoteColumns.ID + " FROM " + NotesDatabaseHelper.TABLE.NOTE + " WHERE "
+            + NOTE_SELECTION + " AND " + CHANGED_SELECTION + ")";
+
+    // 增量备份：变化之后已经不存在的便签
+    private static final String DELETED_SELECTION = BackupJournalColumns.ID + ">? AND "
+            + BackupJournalColumns.NOTE_ID + " NOT IN (SELECT " + NoteColumns.ID + " FROM "
+            + NotesDatabaseHelper.TABLE.NOTE + ")";
+
+    private final Context mContext;
+
+    private final ContentResolver mResolver;
+
+    // 备份时：图片的原路径到附件名，同一个图片只写一次
+    private HashMap<String, String> mAttachmentNames;
+
+    // 备份时已经写出的附件名，不同路径的相同图片只写一次
+    private HashSet<String> mWrittenAttachments;
+
+    private int mNoteCount;
+
+    private int mDataCount;
+
+    private int mAttachmentCount;
+
+    private int mDeleteCount;
+
+    // 最近一次写出的备份包含到的备份变更记录位置
+    private long mJournalTo;
+
+    BackupArchive(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * 写出备份文件
+     * @param file 目标文件
+     * @param backupId 备份链的ID，增量备份和它所基于的完整备份相同
+     * @param journalFrom 增量备份的起点，即上一次备份的 {@link #getJournalTo()}；小于 0 时写出完整备份
+     * @return BackupUtils 中的状态码
+     */
+    int write(File file, String backupId, long journalFrom) {
+        mAttachmentNames = new HashMap<String, String>();
+        mWrittenAttachments = new HashSet<String>();
+        mNoteCount = 0;
+        mDataCount = 0;
+        mAttachmentCount = 0;
+        mDeleteCount = 0;
+
+        // 先记下变更记录的位置再读取便签，读取期间的变化会再次出现在下一个增量备份中
+        long journalTo = queryMaxJournalId(mResolver);
+        if (journalTo < 0) {
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        }
+        boolean incremental = journalFrom >= 0;
+        JSONObject manifest = new JSONObject();
+        try {
+            manifest.put(MANIFEST_FORMAT_VERSION, FORMAT_VERSION);
+            manifest.put(MANIFEST_CREATED_TIME, System.currentTimeMillis());
+            manifest.put(MANIFEST_TYPE, incremental ? TYPE_INCREMENTAL : TYPE_FULL);
+            manifest.put(MANIFEST_BACKUP_ID, backupId);
+            manifest.put(MANIFEST_JOURNAL_FROM, incremental ? journalFrom : 0);
+            manifest.put(MANIFEST_JOURNAL_TO, journalTo);
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+        }
+        String[] selectionArgs = incremental ? new String[] {
+                String.valueOf(journalFrom)
+        } : null;
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file);
+            FileChannel channel = fos.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(new DeflaterOutputStream(
+                            Channels.newOutputStream(channel), deflater, BackupUtils.BUFFER_SIZE),
+                            BackupUtils.BUFFER_SIZE), crc));
+            try {
+                out.writeByte(RECORD_MANIFEST);
+                writeString(out, manifest.toString());
+                if ((incremental && !writeDeletes(out, selectionArgs))
+                        || !writeNotes(out, selectionArgs) || !writeData(out, selectionArgs)) {
+                    return BackupUtils.STATE_SYSTEM_ERROR;
+                }
+                out.writeByte(RECORD_END);
+                out.writeInt(mDeleteCount);
+                out.writeInt(mNoteCount);
+                out.writeInt(mDataCount);
+                out.writeInt(mAttachmentCount);
+                // CRC 覆盖结束记录之前的所有内容，自身不计入
+                long value = crc.getValue();
+                out.writeLong(value);
+                out.close();
+                fos = null;
+            } finally {
+                deflater.end();
+            }
+            Log.d(TAG, "backup written: " + manifest + ", " + mDeleteCount + " deletes, "
+                    + mNoteCount + " notes, " + mDataCount + " data, " + mAttachmentCount
+                    + " attachments, " + file.length() + " bytes");
+            mJournalTo = journalTo;
+            if (!incremental) {
+                // 完整备份已经包含这些变化，之后的增量备份从 journalTo 开始
+                mResolver.delete(Notes.CONTENT_BACKUP_JOURNAL_URI, BackupJournalColumns.ID
+                        + "<=?", new String[] {
+                        String.valueOf(journalTo)
+                });
+            }
+            return BackupUtils.STATE_SUCCESS;
+        } catch (IOException e) {
+            Log.e(TAG, "write backup failed: " + e.toString());
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        } finally {
+            mAttachmentNames = null;
+            mWrittenAttachments = null;
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * 最近一次成功写出的备份包含到的备份变更记录位置，下一个增量备份从这里开始
+     */
+    long getJournalTo() {
+        return mJournalTo;
+    }
+
+    /**
+     * 写出增量备份中已经删除的便签
+     */
+    private boolean writeDeletes(DataOutputStream out, String[] selectionArgs)
+            throws IOException {
+        Cursor c = mResolver.query(Notes.CONTENT_BACKUP_JOURNAL_URI, new String[] {
+                BackupJournalColumns.NOTE_ID
+        }, DELETED_SELECTION, selectionArgs, null);
+        if (c == null) {
+            Log.e(TAG, "query deleted notes failed");
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                out.writeByte(RECORD_DELETE);
+                out.writeLong(c.getLong(0));
+                mDeleteCount++;
+            }
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 写出便签记录，selectionArgs 不为 null 时只写出变化过的便签
+     */
+    private boolean writeNotes(DataOutputStream out, String[] selectionArgs)
+            throws IOException {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, NOTE_PROJECTION,
+                selectionArgs == null ? NOTE_SELECTION
+                        : NOTE_SELECTION + " AND " + CHANGED_SELECTION,
+                selectionArgs, NOTE_ORDER);
+        if (c == null) {
+            Log.e(TAG, "query notes to backup failed");
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                out.writeByte(RECORD_NOTE);
+                out.writeLong(c.getLong(NOTE_ID_COLUMN));
+                out.writeLong(c.getLong(NOTE_PARENT_ID_COLUMN));
+                out.writeLong(c.getLong(NOTE_ORIGIN_PARENT_ID_COLUMN));
+                out.writeInt(c.getInt(NOTE_TYPE_COLUMN));
+                out.writeLong(c.getLong(NOTE_CREATED_DATE_COLUMN));
+                out.writeLong(c.getLong(NOTE_MODIFIED_DATE_COLUMN));
+                out.writeLong(c.getLong(NOTE_ALERTED_DATE_COLUMN));
+                out.writeInt(c.getInt(NOTE_BG_COLOR_ID_COLUMN));
+                out.writeInt(c.getInt(NOTE_HAS_ATTACHMENT_COLUMN));
+                out.writeInt(c.getInt(NOTE_WIDGET_ID_COLUMN));
+                out.writeInt(c.getInt(NOTE_WIDGET_TYPE_COLUMN));
+                writeString(out, c.getString(NOTE_SNIPPET_COLUMN));
+                mNoteCount++;
+            }
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 写出数据记录，内容中引用的图片先作为附件写出；增量备份只写出变化过的便签的数据
+     */
+    private boolean writeData(DataOutputStream out, String[] selectionArgs)
+            throws IOException {
+        Cursor c = mResolver.query(Notes.CONTENT_DATA_URI, DATA_PROJECTION,
+                selectionArgs == null ? DATA_SELECTION : CHANGED_DATA_SELECTION,
+                selectionArgs, DATA_ORDER);
+        if (c == null) {
+            Log.e(TAG, "query data to backup failed");
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                String content = writeAttachments(out, c.getString(DATA_CONTENT_COLUMN));
+                out.writeByte(RECORD_DATA);
+                out.writeLong(c.getLong(DATA_NOTE_ID_COLUMN));
+                writeString(out, c.getString(DATA_MIME_TYPE_COLUMN));
+                out.writeLong(c.getLong(DATA_CREATED_DATE_COLUMN));
+                out.writeLong(c.getLong(DATA_MODIFIED_DATE_COLUMN));
+                writeString(out, content);
+                writeNullableLong(out, c, DATA_DATA1_COLUMN);
+                writeNullableLong(out, c, DATA_DATA2_COLUMN);
+                writeString(out, c.getString(DATA_DATA3_COLUMN));
+                writeString(out, c.getString(DATA_DATA4_COLUMN));
+                writeString(out, c.getString(DATA_DATA5_COLUMN));
+                mDataCount++;
+            }
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 写出内容中还没有写过的图片，返回把图片路径换成附件名后的内容
+     * 找不到的图片保留原路径
+     */
+    private String writeAttachments(DataOutputStream out, String content) throws IOException {
+        if (content == null || content.indexOf(BackupUtils.LOCAL_IMAGE_START) < 0) {
+            return content;
+        }
+        StringBuilder sb = new StringBuilder(content.length());
+        Matcher matcher = BackupUtils.LOCAL_IMAGE_PATTERN.matcher(content);
+        int last = 0;
+        while (matcher.find()) {
+            String path = matcher.group(1);
+            String name = mAttachmentNames.get(path);
+            if (name == null) {
+                name = writeAttachment(out, path);
+                if (name != null) {
+                    mAttachmentNames.put(path, name);
+                }
+            }
+            if (name != null) {
+                sb.append(content, last, matcher.start(1));
+                sb.append(ATTACHMENT_REF).append(name);
+                last = matcher.end(1);
+            }
+        }
+        sb.append(content, last, content.length());
+        return sb.toString();
+    }
+
+    /**
+     * 写出一个附件记录：附件名、长度和内容；内容相同的附件只写一次
+     * @return 附件名，文件不存在时返回 null
+     */
+    private String writeAttachment(DataOutputStream out, String path) throws IOException {
+        File file = new File(path);
+        if (!file.isFile()) {
+            Log.w(TAG, "attachment not found: " + path);
+            return null;
+        }
+
+        String hash = hashFile(file);
+        String name = hash + getExtension(path);
+        if (!mWrittenAttachments.add(name)) {
+            return name;
+        }
+
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            long length = channel.size();
+            out.writeByte(RECORD_ATTACHMENT);
+            writeString(out, name);
+            out.writeLong(length);
+
+            ByteBuffer buffer = ByteBuffer.allocate(BackupUtils.BUFFER_SIZE);
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    throw new IOException("attachment truncated: " + path);
+                }
+                out.write(buffer.array(), 0, count);
+                remaining -= count;
+            }
+        } finally {
+            fis.close();
+        }
+        mAttachmentCount++;
+        return name;
+    }
+
+    /**
+     * 从备份文件恢复，恢复的便签加在现有便签之后，不覆盖现有内容
+     * 增量备份在完整备份之后按顺序应用，应用前先检查它们是否完整、是否和完整备份连续
+     * 中途失败时删除已经插入的便签
+     * @param file 完整备份文件
+     * @param increments 基于这个完整备份的增量备份文件，按备份时间排列，可以为空
+     * @return BackupUtils 中的状态码
+     */
+    int restore(File file, File[] increments) {
+        if (file == null || !file.isFile()) {
+            return BackupUtils.STATE_BACKUP_FILE_NOT_EXIST;
+        }
+        for (File increment : increments) {
+            if (increment == null || !increment.isFile()) {
+                return BackupUtils.STATE_BACKUP_FILE_NOT_EXIST;
+            }
+        }
+
+        // 增量备份写入时会修改已经恢复的便签，无法只撤销其中一部分，所以先完整读一遍检查
+        JSONObject[] manifests = new JSONObject[increments.length];
+        for (int i = 0; i < increments.length; i++) {
+            Restorer checker = new Restorer(0, null, true);
+            int state = readFile(checker, increments[i], true);
+            if (state != BackupUtils.STATE_SUCCESS) {
+                return state;
+            }
+            manifests[i] = checker.mManifest;
+        }
+
+        long idOffset = BackupUtils.queryMaxNoteId(mResolver);
+        if (idOffset < 0) {
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        }
+        Restorer restorer = new Restorer(idOffset, getImageDir(), false);
+        int state = readFile(restorer, file, false);
+        if (state == BackupUtils.STATE_SUCCESS) {
+            JSONObject previous = restorer.mManifest;
+            for (int i = 0; i < increments.length; i++) {
+                if (!isNextInChain(previous, manifests[i])) {
+                    Log.e(TAG, "backup " + increments[i] + " does not follow " + previous);
+                    state = BackupUtils.STATE_DATA_DESTROIED;
+                    break;
+                }
+                state = readFile(restorer, increments[i], true);
+                if (state != BackupUtils.STATE_SUCCESS) {
+                    break;
+                }
+                previous = manifests[i];
+            }
+        }
+        if (state != BackupUtils.STATE_SUCCESS) {
+            restorer.rollback();
+            return state;
+        }
+
+        // 恢复的便签可能带有提醒，重新注册还没到时间的闹钟
+        mContext.sendBroadcast(new Intent(mContext, AlarmInitReceiver.class));
+        return BackupUtils.STATE_SUCCESS;
+    }
+
+    /**
+     * 读取一个备份文件，不回滚
+     * @param incremental 文件是否应该是增量备份
+     */
+    private int readFile(Restorer restorer, File file, boolean incremental) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            return restorer.read(fis.getChannel(), incremental);
+        } catch (EOFException e) {
+            Log.e(TAG, "backup truncated: " + e.toString());
+            return BackupUtils.STATE_DATA_DESTROIED;
+        } catch (IOException e) {
+            Log.e(TAG, "read backup failed: " + e.toString());
+            return BackupUtils.STATE_DATA_DESTROIED;
+        } catch (JSONException e) {
+            Log.e(TAG, "bad backup manifest: " + e.toString());
+            return BackupUtils.STATE_DATA_DESTROIED;
+        } catch (RemoteException e) {
+            Log.e(TAG, "restore backup failed: " + e.toString());
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "restore backup failed: " + e.toString());
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * 增量备份属于同一个备份链，并且从上一个备份结束的位置开始
+     */
+    private static boolean isNextInChain(JSONObject previous, JSONObject next) {
+        String backupId = previous.optString(MANIFEST_BACKUP_ID, null);
+        return backupId != null && backupId.equals(next.optString(MANIFEST_BACKUP_ID, null))
+                && previous.optLong(MANIFEST_JOURNAL_TO, -1)
+                        == next.optLong(MANIFEST_JOURNAL_FROM, -2);
+    }
+
+    /*
+     * 一次恢复的状态：便签 ID 的偏移和等待提交的写入操作
+     * 检查模式下只读取和校验文件，不写数据库和图片
+     */
+    private class Restorer {
+        private final long mIdOffset;
+
+        private final File mImageDir;
+
+        private final boolean mCheckOnly;
+
+        private final ArrayList<ContentProviderOperation> mOperations;
+
+        // 已经提交的最大便签 ID，回滚时删除 (mIdOffset, mMaxCommittedId] 之间的便签
+        private long mMaxCommittedId;
+
+        private long mMaxPendingId;
+
+        // 当前文件是否是增量备份，增量备份中的便签已经存在时改为更新
+        private boolean mIncremental;
+
+        // 还没有提交的删除操作，判断便签是否存在之前需要先提交
+        private boolean mDeletePending;
+
+        // 当前文件的清单
+        private JSONObject mManifest;
+
+        private int mDeleteCount;
+
+        private int mNoteCount;
+
+        private int mDataCount;
+
+        private int mAttachmentCount;
+
+        Restorer(long idOffset, File imageDir, boolean checkOnly) {
+            mIdOffset = idOffset;
+            mImageDir = imageDir;
+            mCheckOnly = checkOnly;
+            mOperations = new ArrayList<ContentProviderOperation>(RESTORE_BATCH_SIZE);
+            mMaxCommittedId = idOffset;
+            mMaxPendingId = idOffset;
+        }
+
+        int read(FileChannel channel, boolean incremental) throws IOException, JSONException,
+                RemoteException, OperationApplicationException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    Log.e(TAG, "backup header truncated");
+                    return BackupUtils.STATE_DATA_DESTROIED;
+                }
+            }
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            int version = header.getInt();
+            if (!Arrays.equals(magic, MAGIC)) {
+                Log.e(TAG, "not a backup file");
+                return BackupUtils.STATE_DATA_DESTROIED;
+            }
+            if (version > FORMAT_VERSION) {
+                Log.e(TAG, "unsupported backup version " + version);
+                return BackupUtils.STATE_DATA_DESTROIED;
+            }
+
+            mIncremental = incremental;
+            mDeletePending = false;
+            mDeleteCount = 0;
+            mNoteCount = 0;
+            mDataCount = 0;
+            mAttachmentCount = 0;
+
+            Inflater inflater = new Inflater();
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new InflaterInputStream(
+                            Channels.newInputStream(channel), inflater, BackupUtils.BUFFER_SIZE),
+                            BackupUtils.BUFFER_SIZE), crc));
+            try {
+                if (in.readByte() != RECORD_MANIFEST) {
+                    Log.e(TAG, "backup manifest missing");
+                    return BackupUtils.STATE_DATA_DESTROIED;
+                }
+                mManifest = new JSONObject(readString(in));
+                String type = mManifest.optString(MANIFEST_TYPE, TYPE_FULL);
+                if (!type.equals(incremental ? TYPE_INCREMENTAL : TYPE_FULL)) {
+                    Log.e(TAG, "expect " + (incremental ? TYPE_INCREMENTAL : TYPE_FULL)
+                            + " backup but got " + type);
+                    return BackupUtils.STATE_DATA_DESTROIED;
+                }
+                Log.d(TAG, (mCheckOnly ? "check backup " : "restore backup ") + mManifest);
+
+                while (true) {
+                    byte record = in.readByte();
+                    switch (record) {
+                        case RECORD_DELETE:
+                            readDelete(in);
+                            break;
+                        case RECORD_NOTE:
+                            readNote(in);
+                            break;
+                        case RECORD_DATA:
+                            readData(in);
+                            break;
+                        case RECORD_ATTACHMENT:
+                            readAttachment(in);
+                            break;
+                        case RECORD_END:
+                            int deleteCount = in.readInt();
+                            int noteCount = in.readInt();
+                            int dataCount = in.readInt();
+                            int attachmentCount = in.readInt();
+                            long expected = crc.getValue();
+                            long actual = in.readLong();
+                            if (expected != actual || deleteCount != mDeleteCount
+                                    || noteCount != mNoteCount || dataCount != mDataCount
+                                    || attachmentCount != mAttachmentCount) {
+                                Log.e(TAG, "backup checksum or count mismatch");
+                                return BackupUtils.STATE_DATA_DESTROIED;
+                            }
+                            // 压缩流的最后几个字节可能只有结束标记，数据已经读完也要确认流是完整的
+                            if (in.read() >= 0 || !inflater.finished()) {
+                                Log.e(TAG, "backup has no end of stream");
+                                return BackupUtils.STATE_DATA_DESTROIED;
+                            }
+                            flush();
+                            Log.d(TAG, "backup read: " + mDeleteCount + " deletes, "
+                                    + mNoteCount + " notes, " + mDataCount + " data, "
+                                    + mAttachmentCount + " attachments");
+                            return BackupUtils.STATE_SUCCESS;
+                        default:
+                            Log.e(TAG, "unknown backup record " + record);
+                            return BackupUtils.STATE_DATA_DESTROIED;
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private void readDelete(DataInputStream in) throws IOException {
+            long id = mapId(in.readLong());
+            mDeleteCount++;
+            if (mCheckOnly) {
+                return;
+            }
+            // 删除便签时触发器会删除它的数据，删除文件夹时同时删除其中的便签
+            mOperations.add(ContentProviderOperation.newDelete(
+                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id)).build());
+            mDeletePending = true;
+        }
+
+        private void readNote(DataInputStream in) throws IOException, RemoteException,
+                OperationApplicationException {
+            long id = mapId(in.readLong());
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.PARENT_ID, mapId(in.readLong()));
+            values.put(NoteColumns.ORIGIN_PARENT_ID, mapId(in.readLong()));
+            values.put(NoteColumns.TYPE, in.readInt());
+            values.put(NoteColumns.CREATED_DATE, in.readLong());
+            values.put(NoteColumns.MODIFIED_DATE, in.readLong());
+            values.put(NoteColumns.ALERTED_DATE, in.readLong());
+            values.put(NoteColumns.BG_COLOR_ID, in.readInt());
+            values.put(NoteColumns.HAS_ATTACHMENT, in.readInt());
+            // 小部件 ID 只在原来的设备上有效，恢复后便签不再绑定小部件
+            in.readInt();
+            in.readInt();
+            values.put(NoteColumns.WIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+            values.put(NoteColumns.WIDGET_TYPE, Notes.TYPE_WIDGET_INVALIDE);
+            values.put(NoteColumns.SNIPPET, nonNull(readString(in)));
+            // 同步信息属于原来的账号，恢复的便签作为本地新建的便签，下次同步时上传
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            mNoteCount++;
+            if (mCheckOnly) {
+                return;
+            }
+
+            if (mIncremental) {
+                if (mDeletePending) {
+                    flush();
+                    mDeletePending = false;
+                }
+                // 增量备份中的便签带有它的全部数据，先删除旧的数据
+                mOperations.add(ContentProviderOperation.newDelete(Notes.CONTENT_DATA_URI)
+                        .withSelection(DataColumns.NOTE_ID + "=?", new String[] {
+                                String.valueOf(id)
+                        }).build());
+                if (noteExists(id)) {
+                    mOperations.add(ContentProviderOperation.newUpdate(
+                            ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id))
+                            .withValues(values).build());
+                    flushIfFull();
+                    return;
+                }
+            }
+            values.put(NoteColumns.ID, id);
+            mOperations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(values).build());
+            if (id > mMaxPendingId) {
+                mMaxPendingId = id;
+            }
+            flushIfFull();
+        }
+
+        private void readData(DataInputStream in) throws IOException, RemoteException,
+                OperationApplicationException {
+            ContentValues values = new ContentValues();
+            values.put(DataColumns.NOTE_ID, mapId(in.readLong()));
+            values.put(DataColumns.MIME_TYPE, readString(in));
+            values.put(DataColumns.CREATED_DATE, in.readLong());
+            values.put(DataColumns.MODIFIED_DATE, in.readLong());
+            String content = nonNull(readString(in));
+            if (in.readBoolean()) {
+                values.put(DataColumns.DATA1, in.readLong());
+            }
+            if (in.readBoolean()) {
+                values.put(DataColumns.DATA2, in.readLong());
+            }
+            values.put(DataColumns.DATA3, nonNull(readString(in)));
+            values.put(DataColumns.DATA4, nonNull(readString(in)));
+            values.put(DataColumns.DATA5, nonNull(readString(in)));
+            mDataCount++;
+            if (mCheckOnly) {
+                return;
+            }
+            values.put(DataColumns.CONTENT, resolveAttachments(content));
+            mOperations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(values).build());
+            flushIfFull();
+        }
+
+        /**
+         * 把附件写到图片目录，同名文件已经存在时内容相同，直接跳过
+         */
+        private void readAttachment(DataInputStream in) throws IOException {
+            String name = readString(in);
+            long length = in.readLong();
+            if (name == null || name.indexOf('/') >= 0 || length < 0) {
+                throw new IOException("bad attachment record");
+            }
+            OutputStream out = null;
+            File target = null;
+            File temp = null;
+            if (!mCheckOnly) {
+                target = new File(mImageDir, name);
+                if (!target.exists() || target.length() != length) {
+                    temp = new File(mImageDir, name + ".tmp");
+                    out = new FileOutputStream(temp);
+                }
+            }
+            try {
+                byte[] buffer = new byte[(int) Math.min(BackupUtils.BUFFER_SIZE,
+                        Math.max(length, 1))];
+                long remaining = length;
+                while (remaining > 0) {
+                    int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (count < 0) {
+                        throw new EOFException("attachment truncated");
+                    }
+                    if (out != null) {
+                        out.write(buffer, 0, count);
+                    }
+                    remaining -= count;
+                }
+                if (out != null) {
+                    out.close();
+                    out = null;
+                    if (!temp.renameTo(target)) {
+                        throw new IOException("failed to save attachment " + name);
+                    }
+                }
+            } finally {
+                if (out != null) {
+                    out.close();
+                    if (!temp.delete()) {
+                        Log.w(TAG, "failed to delete " + temp);
+                    }
+                }
+            }
+            mAttachmentCount++;
+        }
+
+        /**
+         * 附件名换成本机图片目录中的路径
+         */
+        private String resolveAttachments(String content) {
+            if (content.indexOf(BackupUtils.LOCAL_IMAGE_START + ATTACHMENT_REF) < 0) {
+                return content;
+            }
+            return content.replace(BackupUtils.LOCAL_IMAGE_START + ATTACHMENT_REF,
+                    BackupUtils.LOCAL_IMAGE_START + mImageDir.getAbsolutePath() + File.separator);
+        }
+
+        /**
+         * 系统文件夹的 ID 不变，其他 ID 加上偏移
+         */
+        private long mapId(long id) {
+            return id > 0 ? id + mIdOffset : id;
+        }
+
+        private boolean noteExists(long id) {
+            Cursor c = mResolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id),
+                    new String[] {
+                            NoteColumns.ID
+                    }, null, null, null);
+            if (c == null) {
+                return false;
+            }
+            try {
+                return c.moveToFirst();
+            } finally {
+                c.close();
+            }
+        }
+
+        private void flushIfFull() throws RemoteException, OperationApplicationException {
+            if (mOperations.size() >= RESTORE_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * 在一个事务中提交等待的写入操作
+         */
+        private void flush() throws RemoteException, OperationApplicationException {
+            if (mOperations.isEmpty()) {
+                return;
+            }
+            mResolver.applyBatch(Notes.AUTHORITY, mOperations);
+            mOperations.clear();
+            mMaxCommittedId = mMaxPendingId;
+        }
+
+        /**
+         * 删除这次已经插入的便签，它们的数据由触发器删除
+         */
+        void rollback() {
+            mOperations.clear();
+            if (mMaxCommittedId <= mIdOffset) {
+                return;
+            }
+            int count = mResolver.delete(Notes.CONTENT_NOTE_URI, NoteColumns.ID + ">? AND "
+                    + NoteColumns.ID + "<=?", new String[] {
+                    String.valueOf(mIdOffset), String.valueOf(mMaxCommittedId)
+            });
+            Log.w(TAG, "restore rolled back, " + count + " notes deleted");
+        }
+    }
+
+    /**
+     * 当前备份变更记录的位置
+     * @param resolver 内容解析器
+     * @return 最大的记录 ID，没有记录时为 0，查询失败返回 -1
+     */
+    static long queryMaxJournalId(ContentResolver resolver) {
+        Cursor c = resolver.query(Notes.CONTENT_BACKUP_JOURNAL_URI, new String[] {
+                "MAX(" + BackupJournalColumns.ID + ")"
+        }, null, null, null);
+        if (c == null) {
+            Log.e(TAG, "query backup journal failed");
+            return -1;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private File getImageDir() {
+        File dir = new File(mContext.getExternalFilesDir(Environment.DIRECTORY_PICTURES),
+                IMAGE_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Directory not created");
+        }
+        return dir;
+    }
+
+    private static String hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BackupUtils.BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            fis.close();
+        }
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String getExtension(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf(File.separatorChar) || path.length() - dot > 8) {
+            return "";
+        }
+        return path.substring(dot);
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static void writeNullableLong(DataOutputStream out, Cursor c, int column)
+            throws IOException {
+        if (c.isNull(column)) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeLong(c.getLong(column));
+        }
+    }
+
+    /*
+     * 字符串写成长度加 UTF-8 字节，null 的长度为 -1；不用 writeUTF，它限制在 64KB 以内
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
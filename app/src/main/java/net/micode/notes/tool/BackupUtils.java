@@ -16,24 +16,38 @@
 
 package net.micode.notes.tool;
 
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.os.Environment;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
+import android.text.format.DateUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.BackupJournalColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.regex.Pattern;
 
 // BackupUtils 类用于将笔记数据备份为文本文件，提供了单例模式和状态码来表示备份操作的结果
 public class BackupUtils {
@@ -41,6 +55,8 @@ public class BackupUtils {
     private static final String TAG = "BackupUtils";
     // 单例实例
     private static BackupUtils sInstance;
+    // 上下文对象
+    private Context mContext;
 
     /**
      * 获取 BackupUtils 的单例实例
@@ -67,9 +83,35 @@ public class BackupUtils {
     public static final int STATE_SYSTEM_ERROR = 3;
     // 备份或恢复成功
     public static final int STATE_SUCCESS = 4;
+    // 操作被用户取消
+    public static final int STATE_CANCELLED = 5;
+
+    // exportToDocuments 的导出格式
+    public static final int EXPORT_FORMAT_MARKDOWN = 0;
+    public static final int EXPORT_FORMAT_HTML = 1;
 
     // 文本导出工具类实例
     private TextExport mTextExport;
+    // 完整备份的读写
+    private BackupArchive mBackupArchive;
+    // 导出文本的导入
+    private TextImport mTextImport;
+    // Markdown 和 HTML 导出
+    private DocumentExport mDocumentExport;
+    // 最近一次导出的 Markdown 或 HTML 压缩包
+    private File mDocumentFile;
+    // 最近一次写出的备份文件
+    private File mBackupFile;
+
+    // 保存当前备份链的私有 SharedPreferences
+    private static final String PREFERENCE_NAME = "backup";
+    // 当前备份链的 ID，即最近一次完整备份的 ID
+    private static final String PREF_BACKUP_ID = "backup_id";
+    // 备份链中最后一个备份包含到的备份变更记录位置
+    private static final String PREF_JOURNAL_TO = "journal_to";
+    // 最后一个增量备份的文件和它的起点，同一天再次增量备份时覆盖这个文件
+    private static final String PREF_LAST_INCREMENT_FILE = "last_increment_file";
+    private static final String PREF_LAST_INCREMENT_FROM = "last_increment_from";
 
     /**
      * 私有构造函数，初始化 TextExport 实例
@@ -77,6 +119,10 @@ public class BackupUtils {
      */
     private BackupUtils(Context context) {
         mTextExport = new TextExport(context);
+        mBackupArchive = new BackupArchive(context);
+        mTextImport = new TextImport(context);
+        mDocumentExport = new DocumentExport(context);
+        mContext = context;
     }
 
     /**
@@ -87,12 +133,26 @@ public class BackupUtils {
         return Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
     }
 
+    /**
+     * 导出进度回调，在导出的线程中调用
+     */
+    public interface ExportProgressListener {
+        /**
+         * @param exportedNotes 已导出的便签数
+         * @param totalNotes 要导出的便签总数
+         * @param writtenBytes 已写入文件的字节数
+         */
+        void onProgress(int exportedNotes, int totalNotes, long writtenBytes);
+    }
+
     /**
      * 导出笔记数据为文本文件
+     * @param listener 进度回调，可以为 null
+     * @param signal 取消信号，可以为 null，取消时删除导出了一半的文件并返回 STATE_CANCELLED
      * @return 导出操作的状态码
      */
-    public int exportToText() {
-        return mTextExport.exportToText();
+    public int exportToText(ExportProgressListener listener, CancellationSignal signal) {
+        return mTextExport.exportToText(listener, signal);
     }
 
     /**
@@ -111,41 +171,270 @@ public class BackupUtils {
         return mTextExport.mFileDirectory;
     }
 
+    /**
+     * 把便签导出为每个便签一个文件的 Markdown 或 HTML，连同图片打包成 zip
+     * @param format EXPORT_FORMAT_MARKDOWN 或 EXPORT_FORMAT_HTML
+     * @param listener 进度回调，可以为 null
+     * @param signal 取消信号，可以为 null，取消时删除导出了一半的文件并返回 STATE_CANCELLED
+     * @return 导出操作的状态码
+     */
+    public synchronized int exportToDocuments(int format, ExportProgressListener listener,
+            CancellationSignal signal) {
+        mDocumentFile = null;
+        if (!externalStorageAvailable()) {
+            Log.d(TAG, "Media was not mounted");
+            return STATE_SD_CARD_UNMOUONTED;
+        }
+
+        File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
+                format == EXPORT_FORMAT_HTML ? R.string.file_name_html_zip_format
+                        : R.string.file_name_markdown_zip_format);
+        if (file == null) {
+            Log.e(TAG, "create document export file failed");
+            return STATE_SYSTEM_ERROR;
+        }
+        int state = mDocumentExport.write(file, format == EXPORT_FORMAT_HTML
+                ? DocumentExport.FORMAT_HTML : DocumentExport.FORMAT_MARKDOWN, listener, signal);
+        if (state != STATE_SUCCESS) {
+            if (!file.delete()) {
+                Log.w(TAG, "failed to delete broken document export " + file);
+            }
+            return state;
+        }
+        mDocumentFile = file;
+        return STATE_SUCCESS;
+    }
+
+    /**
+     * 获取最近一次导出的 zip 文件
+     * @return zip 文件，最近一次导出失败时返回 null
+     */
+    public File getExportedDocumentFile() {
+        return mDocumentFile;
+    }
+
+    /**
+     * 把 exportToText 导出的文本文件导入为便签，同名文件夹合并到已有的文件夹
+     * @param file 导出的文本文件
+     * @return 导入操作的状态码
+     */
+    public synchronized int importFromText(File file) {
+        return mTextImport.importFromText(file);
+    }
+
+    /**
+     * 获取最近一次导入的便签数量
+     * @return 便签数量
+     */
+    public int getImportedNoteCount() {
+        return mTextImport.getImportedNoteCount();
+    }
+
+    /**
+     * 把全部便签、文件夹和图片写入完整备份文件，用于在其他设备上恢复
+     * 完整备份开始一个新的备份链，之后的增量备份都基于它
+     * @return 备份操作的状态码
+     */
+    public synchronized int exportToBackup() {
+        if (!externalStorageAvailable()) {
+            Log.d(TAG, "Media was not mounted");
+            return STATE_SD_CARD_UNMOUONTED;
+        }
+
+        File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
+                R.string.file_name_backup_format);
+        if (file == null) {
+            Log.e(TAG, "create backup file failed");
+            return STATE_SYSTEM_ERROR;
+        }
+        String backupId = UUID.randomUUID().toString();
+        int state = mBackupArchive.write(file, backupId, -1);
+        if (state != STATE_SUCCESS) {
+            deleteBrokenBackup(file);
+            return state;
+        }
+        getBackupPreferences().edit()
+                .putString(PREF_BACKUP_ID, backupId)
+                .putLong(PREF_JOURNAL_TO, mBackupArchive.getJournalTo())
+                .remove(PREF_LAST_INCREMENT_FILE)
+                .remove(PREF_LAST_INCREMENT_FROM)
+                .commit();
+        mBackupFile = file;
+        return STATE_SUCCESS;
+    }
+
+    /**
+     * 写出增量备份，只包含上一次备份之后新建、修改或删除的便签
+     * 还没有完整备份时写出完整备份
+     * @return 备份操作的状态码
+     */
+    public synchronized int exportIncrementalBackup() {
+        SharedPreferences preferences = getBackupPreferences();
+        String backupId = preferences.getString(PREF_BACKUP_ID, null);
+        if (backupId == null) {
+            return exportToBackup();
+        }
+        if (!externalStorageAvailable()) {
+            Log.d(TAG, "Media was not mounted");
+            return STATE_SD_CARD_UNMOUONTED;
+        }
+
+        File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
+                R.string.file_name_incremental_backup_format);
+        if (file == null) {
+            Log.e(TAG, "create backup file failed");
+            return STATE_SYSTEM_ERROR;
+        }
+        // 同一天的增量备份写入同一个文件，覆盖上一个时从上一个的起点开始，备份链保持连续
+        long journalFrom = preferences.getLong(PREF_JOURNAL_TO, 0);
+        boolean overwrite = file.getAbsolutePath().equals(
+                preferences.getString(PREF_LAST_INCREMENT_FILE, null));
+        if (overwrite) {
+            journalFrom = preferences.getLong(PREF_LAST_INCREMENT_FROM, journalFrom);
+        }
+        int state = mBackupArchive.write(file, backupId, journalFrom);
+        if (state != STATE_SUCCESS) {
+            deleteBrokenBackup(file);
+            if (overwrite) {
+                // 被覆盖的增量备份已经没有了，下一次从它的起点开始
+                preferences.edit()
+                        .putLong(PREF_JOURNAL_TO, journalFrom)
+                        .remove(PREF_LAST_INCREMENT_FILE)
+                        .remove(PREF_LAST_INCREMENT_FROM)
+                        .commit();
+            }
+            return state;
+        }
+        preferences.edit()
+                .putLong(PREF_JOURNAL_TO, mBackupArchive.getJournalTo())
+                .putString(PREF_LAST_INCREMENT_FILE, file.getAbsolutePath())
+                .putLong(PREF_LAST_INCREMENT_FROM, journalFrom)
+                .commit();
+        // 之后的增量备份最早从 journalFrom 开始，之前的记录不再需要
+        mContext.getContentResolver().delete(Notes.CONTENT_BACKUP_JOURNAL_URI,
+                BackupJournalColumns.ID + "<=?", new String[] {
+                        String.valueOf(journalFrom)
+                });
+        mBackupFile = file;
+        return STATE_SUCCESS;
+    }
+
+    /**
+     * 从备份文件恢复，恢复的便签加在现有便签之后
+     * @param file 完整备份文件
+     * @param increments 基于这个完整备份的增量备份文件，按备份时间排列
+     * @return 恢复操作的状态码
+     */
+    public synchronized int restoreFromBackup(File file, File... increments) {
+        return mBackupArchive.restore(file, increments);
+    }
+
+    /**
+     * 删除写到一半的备份文件，它无法恢复
+     * @param file 备份文件
+     */
+    private void deleteBrokenBackup(File file) {
+        if (!file.delete()) {
+            Log.w(TAG, "failed to delete broken backup " + file);
+        }
+        mBackupFile = null;
+    }
+
+    /**
+     * 当前备份链中之后的增量备份最早从哪个备份变更记录位置开始读取，这个位置及之前的记录都不再需要
+     * @param context 上下文对象
+     * @return 记录位置，没有备份链时返回 -1
+     */
+    public static long getJournalFloor(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        if (preferences.getString(PREF_BACKUP_ID, null) == null) {
+            return -1;
+        }
+        long floor = preferences.getLong(PREF_JOURNAL_TO, 0);
+        // 同一天再次增量备份时从上一个增量备份的起点开始
+        return Math.min(floor, preferences.getLong(PREF_LAST_INCREMENT_FROM, floor));
+    }
+
+    /**
+     * 结束当前备份链，下一次备份是完整备份
+     * @param context 上下文对象
+     */
+    public static void endBackupChain(Context context) {
+        context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE).edit()
+                .remove(PREF_BACKUP_ID)
+                .remove(PREF_JOURNAL_TO)
+                .remove(PREF_LAST_INCREMENT_FILE)
+                .remove(PREF_LAST_INCREMENT_FROM)
+                .commit();
+    }
+
+    private SharedPreferences getBackupPreferences() {
+        return mContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 获取最近一次写出的备份文件
+     * @return 备份文件，没有成功备份过时返回 null
+     */
+    public File getBackupFile() {
+        return mBackupFile;
+    }
+
     // 内部类，用于将笔记数据导出为文本文件
+    // 通过一次按文件夹、便签、数据排序的联合查询读出全部内容，经缓冲的 UTF-8 写入器写出
     private static class TextExport {
-        // 查询笔记信息时使用的投影列
-        private static final String[] NOTE_PROJECTION = {
-                NoteColumns.ID,
-                NoteColumns.MODIFIED_DATE,
-                NoteColumns.SNIPPET,
-                NoteColumns.TYPE
-        };
-
-        // NOTE_PROJECTION 数组中 ID 列的索引
-        private static final int NOTE_COLUMN_ID = 0;
-        // NOTE_PROJECTION 数组中修改日期列的索引
-        private static final int NOTE_COLUMN_MODIFIED_DATE = 1;
-        // NOTE_PROJECTION 数组中摘要列的索引
-        private static final int NOTE_COLUMN_SNIPPET = 2;
-
-        // 查询笔记数据时使用的投影列
-        private static final String[] DATA_PROJECTION = {
-                DataColumns.CONTENT,
-                DataColumns.MIME_TYPE,
-                DataColumns.DATA1,
-                DataColumns.DATA2,
-                DataColumns.DATA3,
-                DataColumns.DATA4,
+        // 联合查询中便签表和数据表列的前缀
+        private static final String NOTE = NotesDatabaseHelper.TABLE.NOTE + ".";
+        private static final String DATA = NotesDatabaseHelper.TABLE.DATA + ".";
+
+        // 联合查询的投影列
+        private static final String[] EXPORT_PROJECTION = {
+                NOTE + NoteColumns.ID,
+                NOTE + NoteColumns.TYPE,
+                NOTE + NoteColumns.MODIFIED_DATE,
+                NOTE + NoteColumns.SNIPPET,
+                DATA + DataColumns.MIME_TYPE,
+                DATA + DataColumns.CONTENT,
+                DATA + DataColumns.DATA1,
+                DATA + DataColumns.DATA3,
+                NOTE + NoteColumns.PARENT_ID,
         };
 
-        // DATA_PROJECTION 数组中内容列的索引
-        private static final int DATA_COLUMN_CONTENT = 0;
-        // DATA_PROJECTION 数组中 MIME 类型列的索引
-        private static final int DATA_COLUMN_MIME_TYPE = 1;
-        // DATA_PROJECTION 数组中通话日期列的索引
-        private static final int DATA_COLUMN_CALL_DATE = 2;
-        // DATA_PROJECTION 数组中电话号码列的索引
-        private static final int DATA_COLUMN_PHONE_NUMBER = 4;
+        // EXPORT_PROJECTION 数组中便签 ID 列的索引
+        private static final int COLUMN_NOTE_ID = 0;
+        // EXPORT_PROJECTION 数组中便签类型列的索引
+        private static final int COLUMN_NOTE_TYPE = 1;
+        // EXPORT_PROJECTION 数组中修改日期列的索引
+        private static final int COLUMN_MODIFIED_DATE = 2;
+        // EXPORT_PROJECTION 数组中摘要（文件夹名称）列的索引
+        private static final int COLUMN_SNIPPET = 3;
+        // EXPORT_PROJECTION 数组中 MIME 类型列的索引，文件夹和没有数据的便签为 NULL
+        private static final int COLUMN_MIME_TYPE = 4;
+        // EXPORT_PROJECTION 数组中内容列的索引
+        private static final int COLUMN_CONTENT = 5;
+        // EXPORT_PROJECTION 数组中通话日期列的索引
+        private static final int COLUMN_CALL_DATE = 6;
+        // EXPORT_PROJECTION 数组中电话号码列的索引
+        private static final int COLUMN_PHONE_NUMBER = 7;
+        // EXPORT_PROJECTION 数组中父文件夹 ID 列的索引
+        private static final int COLUMN_PARENT_ID = 8;
+
+        // 导出的行：导出的文件夹本身和导出的便签
+        private static final String EXPORT_SELECTION = "(" + NOTE + NoteColumns.TYPE + "="
+                + Notes.TYPE_FOLDER + " AND " + NOTE + NoteColumns.PARENT_ID + "<>"
+                + Notes.ID_TRASH_FOLER + ") OR " + NOTE + NoteColumns.ID + "="
+                + Notes.ID_CALL_RECORD_FOLDER + " OR (" + EXPORTED_NOTE_SELECTION + ")";
+
+        // 便签所属的文件夹，文件夹属于自己
+        private static final String FOLDER_KEY = "(CASE WHEN " + NOTE + NoteColumns.TYPE + "="
+                + Notes.TYPE_NOTE + " THEN " + NOTE + NoteColumns.PARENT_ID + " ELSE " + NOTE
+                + NoteColumns.ID + " END)";
+
+        // 按文件夹分组，根文件夹下的便签最后；组内文件夹在前，便签和数据按 ID 排列
+        private static final String EXPORT_ORDER = FOLDER_KEY + "=" + Notes.ID_ROOT_FOLDER + ","
+                + FOLDER_KEY + "," + NOTE + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + ","
+                + NOTE + NoteColumns.ID + "," + DATA + DataColumns.ID;
 
         // 导出文本的格式数组
         private final String[] TEXT_FORMAT;
@@ -163,6 +452,9 @@ public class BackupUtils {
         // 导出的文本文件目录
         private String mFileDirectory;
 
+        // 本次导出使用的日期格式
+        private MinuteDateFormatter mDateFormatter;
+
         /**
          * 构造函数，初始化上下文、文件名和文件目录，并获取导出文本的格式数组
          * @param context 上下文对象
@@ -175,202 +467,386 @@ public class BackupUtils {
         }
 
         /**
-         * 根据索引获取导出文本的格式字符串
+         * 按格式写出一行
+         * @param writer 写入器
          * @param id 格式数组的索引
-         * @return 格式字符串
+         * @param value 格式中 %s 的值
          */
-        private String getFormat(int id) {
-            return TEXT_FORMAT[id];
+        private void writeLine(Writer writer, int id, String value) throws IOException {
+            writeFormattedLine(writer, TEXT_FORMAT[id], value);
         }
 
         /**
-         * 将指定文件夹下的笔记导出为文本
-         * @param folderId 文件夹 ID
-         * @param ps 打印流，用于将数据写入文件
+         * 导出一个数据行
+         * @param c 联合查询的游标
+         * @param writer 写入器
          */
-        private void exportFolderToText(String folderId, PrintStream ps) {
-            // 查询属于该文件夹的笔记
-            Cursor notesCursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION, NoteColumns.PARENT_ID + "=?", new String[]{
-                            folderId
-                    }, null);
-
-            if (notesCursor != null) {
-                if (notesCursor.moveToFirst()) {
-                    do {
-                        // 打印笔记的最后修改日期
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                notesCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // 查询属于该笔记的数据
-                        String noteId = notesCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (notesCursor.moveToNext());
+        private void exportDataToText(Cursor c, Writer writer) throws IOException {
+            // 获取数据的 MIME 类型
+            String mimeType = c.getString(COLUMN_MIME_TYPE);
+            if (DataConstants.CALL_NOTE.equals(mimeType)) {
+                // 若为通话笔记类型
+                // 打印电话号码
+                String phoneNumber = c.getString(COLUMN_PHONE_NUMBER);
+                long callDate = c.getLong(COLUMN_CALL_DATE);
+                String location = c.getString(COLUMN_CONTENT);
+
+                if (!TextUtils.isEmpty(phoneNumber)) {
+                    writeLine(writer, FORMAT_NOTE_CONTENT, phoneNumber);
                 }
-                // 关闭游标，释放资源
-                notesCursor.close();
-            }
-        }
-
-        /**
-         * 将指定 ID 的笔记导出为文本
-         * @param noteId 笔记 ID
-         * @param ps 打印流，用于将数据写入文件
-         */
-        private void exportNoteToText(String noteId, PrintStream ps) {
-            // 查询属于该笔记的数据
-            Cursor dataCursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
-                    DATA_PROJECTION, DataColumns.NOTE_ID + "=?", new String[]{
-                            noteId
-                    }, null);
-
-            if (dataCursor != null) {
-                if (dataCursor.moveToFirst()) {
-                    do {
-                        // 获取数据的 MIME 类型
-                        String mimeType = dataCursor.getString(DATA_COLUMN_MIME_TYPE);
-                        if (DataConstants.CALL_NOTE.equals(mimeType)) {
-                            // 若为通话笔记类型
-                            // 打印电话号码
-                            String phoneNumber = dataCursor.getString(DATA_COLUMN_PHONE_NUMBER);
-                            long callDate = dataCursor.getLong(DATA_COLUMN_CALL_DATE);
-                            String location = dataCursor.getString(DATA_COLUMN_CONTENT);
-
-                            if (!TextUtils.isEmpty(phoneNumber)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        phoneNumber));
-                            }
-                            // 打印通话日期
-                            ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), DateFormat
-                                    .format(mContext.getString(R.string.format_datetime_mdhm),
-                                            callDate)));
-                            // 打印通话附件位置
-                            if (!TextUtils.isEmpty(location)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        location));
-                            }
-                        } else if (DataConstants.NOTE.equals(mimeType)) {
-                            // 若为普通笔记类型
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
-                            if (!TextUtils.isEmpty(content)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        content));
-                            }
-                        }
-                    } while (dataCursor.moveToNext());
+                // 打印通话日期
+                writeLine(writer, FORMAT_NOTE_CONTENT, mDateFormatter.format(callDate));
+                // 打印通话附件位置
+                if (!TextUtils.isEmpty(location)) {
+                    writeLine(writer, FORMAT_NOTE_CONTENT, location);
+                }
+            } else if (DataConstants.NOTE.equals(mimeType)) {
+                // 若为普通笔记类型
+                String content = c.getString(COLUMN_CONTENT);
+                if (!TextUtils.isEmpty(content)) {
+                    writeLine(writer, FORMAT_NOTE_CONTENT, content);
                 }
-                // 关闭游标，释放资源
-                dataCursor.close();
-            }
-            // 在笔记之间打印换行符
-            try {
-                ps.write(new byte[]{
-                        Character.LINE_SEPARATOR, Character.LETTER_NUMBER
-                });
-            } catch (IOException e) {
-                Log.e(TAG, e.toString());
             }
         }
 
         /**
-         * 将笔记数据导出为用户可读的文本文件
+         * 将笔记数据导出为用户可读的文本文件，整个导出读同一个数据库快照
+         * 系统不支持只读事务时，导出后检查备份变更记录，期间有修改则重新导出，
+         * 多次都被修改时最后一次在阻塞写入的事务中导出
+         * @param listener 进度回调，可以为 null
+         * @param signal 取消信号，可以为 null
          * @return 导出操作的状态码
          */
-        public int exportToText() {
+        public int exportToText(final ExportProgressListener listener,
+                final CancellationSignal signal) {
             if (!externalStorageAvailable()) {
                 // 若外部存储不可用，记录日志并返回相应状态码
                 Log.d(TAG, "Media was not mounted");
                 return STATE_SD_CARD_UNMOUONTED;
             }
 
-            PrintStream ps = getExportToTextPrintStream();
-            if (ps == null) {
-                // 若获取打印流失败，记录日志并返回相应状态码
-                Log.e(TAG, "get print stream error");
+            mDateFormatter = new MinuteDateFormatter(
+                    mContext.getString(R.string.format_datetime_mdhm));
+            return exportInSnapshot(mContext, new SnapshotExport() {
+                @Override
+                public int export() {
+                    return exportSnapshot(listener, signal);
+                }
+            });
+        }
+
+        /**
+         * 在当前快照中查询并写出全部文件夹和便签，被取消时删除写了一半的文件
+         * @param listener 进度回调，可以为 null
+         * @param signal 取消信号，可以为 null
+         * @return 导出操作的状态码
+         */
+        private int exportSnapshot(ExportProgressListener listener, CancellationSignal signal) {
+            File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
+                    R.string.file_name_txt_format);
+            if (file == null) {
+                // 若生成文件失败，记录日志并返回相应状态码
+                Log.e(TAG, "create file to exported failed");
                 return STATE_SYSTEM_ERROR;
             }
-            // 首先导出文件夹及其包含的笔记
-            Cursor folderCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
-                    "(" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND "
-                            + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ") OR "
-                            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER, null, null);
-
-            if (folderCursor != null) {
-                if (folderCursor.moveToFirst()) {
-                    do {
-                        // 打印文件夹名称
-                        String folderName = "";
-                        if (folderCursor.getLong(NOTE_COLUMN_ID) == Notes.ID_CALL_RECORD_FOLDER) {
-                            folderName = mContext.getString(R.string.call_record_folder_name);
-                        } else {
-                            folderName = folderCursor.getString(NOTE_COLUMN_SNIPPET);
+            mFileName = file.getName();
+            mFileDirectory = mContext.getString(R.string.file_path);
+
+            CountingOutputStream out = null;
+            Writer writer = null;
+            Cursor c = null;
+            boolean cancelled = false;
+            try {
+                out = new CountingOutputStream(new FileOutputStream(file));
+                writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                        BUFFER_SIZE);
+
+                int totalNotes = queryExportedNoteCount(signal);
+                c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_DATA_URI,
+                        EXPORT_PROJECTION, EXPORT_SELECTION, null, EXPORT_ORDER, signal);
+                if (totalNotes < 0 || c == null) {
+                    Log.e(TAG, "query notes to export failed");
+                    return STATE_SYSTEM_ERROR;
+                }
+
+                // 游标每一行是一个数据行，同一个便签的行相邻；文件夹和没有数据的便签只有一行
+                long currentId = 0;
+                boolean inNote = false;
+                boolean first = true;
+                boolean inRoot = false;
+                int notes = 0;
+                long lastProgressTime = 0;
+                while (c.moveToNext()) {
+                    long id = c.getLong(COLUMN_NOTE_ID);
+                    if (first || id != currentId) {
+                        if (inNote) {
+                            writeNoteSeparator(writer);
+                            notes++;
                         }
-                        if (!TextUtils.isEmpty(folderName)) {
-                            ps.println(String.format(getFormat(FORMAT_FOLDER_NAME), folderName));
+                        if (signal != null) {
+                            signal.throwIfCanceled();
                         }
-                        String folderId = folderCursor.getString(NOTE_COLUMN_ID);
-                        exportFolderToText(folderId, ps);
-                    } while (folderCursor.moveToNext());
+                        if (listener != null) {
+                            long now = SystemClock.uptimeMillis();
+                            if (now - lastProgressTime >= PROGRESS_INTERVAL) {
+                                lastProgressTime = now;
+                                listener.onProgress(notes, totalNotes, out.getCount());
+                            }
+                        }
+                        first = false;
+                        currentId = id;
+                        inNote = c.getInt(COLUMN_NOTE_TYPE) == Notes.TYPE_NOTE;
+                        if (inNote) {
+                            if (!inRoot && c.getLong(COLUMN_PARENT_ID) == Notes.ID_ROOT_FOLDER) {
+                                // 根文件夹下的便签排在最后，写一个空的文件夹名称，导入时不会归到上一个文件夹
+                                writeLine(writer, FORMAT_FOLDER_NAME, "");
+                                inRoot = true;
+                            }
+                            // 打印笔记的最后修改日期
+                            writeLine(writer, FORMAT_NOTE_DATE,
+                                    mDateFormatter.format(c.getLong(COLUMN_MODIFIED_DATE)));
+                        } else {
+                            // 打印文件夹名称
+                            String folderName;
+                            if (id == Notes.ID_CALL_RECORD_FOLDER) {
+                                folderName = mContext.getString(R.string.call_record_folder_name);
+                            } else {
+                                folderName = c.getString(COLUMN_SNIPPET);
+                            }
+                            if (!TextUtils.isEmpty(folderName)) {
+                                writeLine(writer, FORMAT_FOLDER_NAME, folderName);
+                            }
+                        }
+                    }
+                    if (inNote && !c.isNull(COLUMN_MIME_TYPE)) {
+                        exportDataToText(c, writer);
+                    }
                 }
-                // 关闭游标，释放资源
-                folderCursor.close();
-            }
-
-            // 导出根文件夹下的笔记
-            Cursor noteCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
-                    NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID
-                            + "=0", null, null);
-
-            if (noteCursor != null) {
-                if (noteCursor.moveToFirst()) {
-                    do {
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                noteCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // 查询属于该笔记的数据
-                        String noteId = noteCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (noteCursor.moveToNext());
+                if (inNote) {
+                    writeNoteSeparator(writer);
+                    notes++;
+                }
+                writer.flush();
+                if (listener != null) {
+                    listener.onProgress(notes, totalNotes, out.getCount());
+                }
+            } catch (OperationCanceledException e) {
+                Log.d(TAG, "export cancelled");
+                cancelled = true;
+                return STATE_CANCELLED;
+            } catch (IOException e) {
+                Log.e(TAG, "write exported text failed: " + e.toString());
+                return STATE_SYSTEM_ERROR;
+            } finally {
+                // 关闭游标和写入器，释放资源
+                if (c != null) {
+                    c.close();
+                }
+                try {
+                    if (writer != null) {
+                        writer.close();
+                    } else if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+                if (cancelled && !file.delete()) {
+                    Log.w(TAG, "failed to delete cancelled export " + file);
                 }
-                // 关闭游标，释放资源
-                noteCursor.close();
             }
-            // 关闭打印流
-            ps.close();
 
             return STATE_SUCCESS;
         }
 
         /**
-         * 获取指向导出文本文件的打印流
-         * @return 打印流对象，若获取失败返回 null
+         * 查询要导出的便签数量，用于计算进度
+         * @param signal 取消信号，可以为 null
+         * @return 便签数量，查询失败返回 -1
          */
-        private PrintStream getExportToTextPrintStream() {
-            File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
-                    R.string.file_name_txt_format);
-            if (file == null) {
-                // 若生成文件失败，记录日志并返回 null
-                Log.e(TAG, "create file to exported failed");
-                return null;
+        private int queryExportedNoteCount(CancellationSignal signal) {
+            Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, new String[] {
+                    "COUNT(*)"
+            }, EXPORTED_NOTE_SELECTION, null, null, signal);
+            if (c == null) {
+                return -1;
             }
-            mFileName = file.getName();
-            mFileDirectory = mContext.getString(R.string.file_path);
-            PrintStream ps = null;
             try {
-                FileOutputStream fos = new FileOutputStream(file);
-                ps = new PrintStream(fos);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return null;
-            } catch (NullPointerException e) {
-                e.printStackTrace();
-                return null;
+                return c.moveToFirst() ? c.getInt(0) : 0;
+            } finally {
+                c.close();
             }
-            return ps;
+        }
+
+        /**
+         * 在笔记之间写入换行符
+         * @param writer 写入器
+         */
+        private void writeNoteSeparator(Writer writer) throws IOException {
+            writer.write(Character.LINE_SEPARATOR);
+            writer.write(Character.LETTER_NUMBER);
+        }
+    }
+
+    // 导出、导入和备份读写文件时流缓冲区的大小
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // 导出时两次进度回调的最小间隔（毫秒）
+    static final long PROGRESS_INTERVAL = 200;
+
+    // 便签内容中图片的写法，和 NoteEditActivity 一致
+    static final Pattern LOCAL_IMAGE_PATTERN = Pattern.compile("\\[local](.*?)\\[/local]");
+    static final String LOCAL_IMAGE_START = "[local]";
+
+    // 导出的文件夹：未删除的普通文件夹和通话记录文件夹
+    static final String EXPORTED_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "="
+            + Notes.TYPE_FOLDER + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+            + ") OR " + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER;
+
+    // 导出的便签：这些文件夹中的便签以及根文件夹下的便签，列名带表名，也可以用于联合查询
+    static final String EXPORTED_NOTE_SELECTION = NotesDatabaseHelper.TABLE.NOTE + "."
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND (" + NotesDatabaseHelper.TABLE.NOTE
+            + "." + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER + " OR "
+            + NotesDatabaseHelper.TABLE.NOTE + "." + NoteColumns.PARENT_ID + " IN (SELECT "
+            + NoteColumns.ID + " FROM " + NotesDatabaseHelper.TABLE.NOTE + " WHERE "
+            + EXPORTED_FOLDER_SELECTION + "))";
+
+    // 系统不支持只读事务时，不阻塞写入的导出最多重试的次数
+    private static final int SNAPSHOT_RETRY_COUNT = 2;
+
+    /**
+     * 在一个数据库读快照中完成的导出，重试时会再次调用，每次都要从头写出
+     */
+    interface SnapshotExport {
+        /**
+         * @return 导出操作的状态码
+         */
+        int export();
+    }
+
+    /**
+     * 在读快照中导出，保证导出的内容来自同一个数据库版本
+     * 系统不支持不阻塞写入的只读事务时，先不开始事务，比较导出前后的备份变更记录，
+     * 导出期间便签被修改时重试，多次都被修改时最后一次在阻塞写入的事务中导出
+     * @param context 上下文对象
+     * @param export 导出操作
+     * @return 导出操作的状态码
+     */
+    static int exportInSnapshot(Context context, SnapshotExport export) {
+        ContentResolver resolver = context.getContentResolver();
+        for (int attempt = 0; ; attempt++) {
+            boolean snapshot = NotesDatabaseHelper.beginReadSnapshot(context,
+                    attempt >= SNAPSHOT_RETRY_COUNT);
+            long journalBefore = 0;
+            int state;
+            try {
+                if (!snapshot) {
+                    journalBefore = BackupArchive.queryMaxJournalId(resolver);
+                }
+                state = export.export();
+            } finally {
+                if (snapshot) {
+                    NotesDatabaseHelper.endReadSnapshot(context);
+                }
+            }
+            if (state != STATE_SUCCESS || snapshot
+                    || BackupArchive.queryMaxJournalId(resolver) == journalBefore) {
+                return state;
+            }
+            Log.w(TAG, "notes changed during export, retry " + (attempt + 1));
+        }
+    }
+
+    /**
+     * 当前最大的便签 ID，恢复或导入的便签 ID 都大于它，失败时按它删除新插入的便签
+     * @param resolver 内容解析器
+     * @return 最大 ID，没有便签时为 0，查询失败返回 -1
+     */
+    static long queryMaxNoteId(ContentResolver resolver) {
+        Cursor c = resolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                "MAX(" + NoteColumns.ID + ")"
+        }, null, null, null);
+        if (c == null) {
+            Log.e(TAG, "query max note id failed");
+            return -1;
+        }
+        try {
+            return c.moveToFirst() ? Math.max(c.getLong(0), 0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 按格式写出一行，格式只有一个 %s 时直接拼接，不调用 String.format
+     * @param writer 写入器
+     * @param format 导出文本的格式
+     * @param value 格式中 %s 的值
+     */
+    static void writeFormattedLine(Writer writer, String format, String value)
+            throws IOException {
+        int index = format.indexOf("%s");
+        if (index >= 0 && format.indexOf('%', index + 2) < 0 && format.indexOf('%') == index) {
+            writer.write(format, 0, index);
+            writer.write(String.valueOf(value));
+            writer.write(format, index + 2, format.length() - index - 2);
+        } else {
+            writer.write(String.format(format, value));
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * 精确到分钟的日期格式化，同一分钟的时间只格式化一次
+     * 导出时便签按文件夹和 ID 排列，相邻便签的修改时间经常在同一分钟
+     * 使用 android.text.format.DateFormat，和原来的导出一样把零点写成 00 而不是 SimpleDateFormat 的 24
+     */
+    static class MinuteDateFormatter {
+        private final String mPattern;
+
+        private long mLastMinute;
+
+        private String mLastDate;
+
+        MinuteDateFormatter(String pattern) {
+            mPattern = pattern;
+        }
+
+        String format(long time) {
+            // 1970 年之前的时间是负数，按向下取整的分钟比较
+            long minute = Math.floorDiv(time, DateUtils.MINUTE_IN_MILLIS);
+            if (mLastDate == null || minute != mLastMinute) {
+                mLastMinute = minute;
+                mLastDate = DateFormat.format(mPattern, time).toString();
+            }
+            return mLastDate;
+        }
+    }
+
+    /**
+     * 统计写出字节数的输出流，用于报告导出进度
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
         }
     }
 
@@ -393,8 +869,9 @@ public class BackupUtils {
         File file = new File(sb.toString());
 
         try {
+            // 第一次导出时 MIUI 目录也可能不存在
             if (!filedir.exists()) {
-                filedir.mkdir();
+                filedir.mkdirs();
             }
             if (!file.exists()) {
                 file.createNewFile();
@@ -23,21 +23,26 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 
 // DataUtils 类提供了一系列用于操作笔记数据的工具方法，包括批量删除、移动笔记、查询文件夹数量等
 public class DataUtils {
     // 日志标签，用于在日志中标识该类的相关信息
     public static final String TAG = "DataUtils";
+    // 一次 IN (...) 查询最多带的 ID 数量，低于 SQLite 默认 999 个参数的上限
+    private static final int MAX_IDS_PER_QUERY = 500;
 
     /**
      * 批量删除笔记的方法
@@ -223,9 +228,9 @@ public class DataUtils {
      * @return 笔记存在返回 true，不存在返回 false
      */
     public static boolean existInNoteDatabase(ContentResolver resolver, long noteId) {
-        // 查询指定 ID 的笔记
+        // 查询指定 ID 的笔记，只取 ID 列
         Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),
-                null, null, null, null);
+                new String[]{NoteColumns.ID}, null, null, null);
 
         boolean exist = false;
         if (cursor != null) {
@@ -246,9 +251,9 @@ public class DataUtils {
      * @return 数据存在返回 true，不存在返回 false
      */
     public static boolean existInDataDatabase(ContentResolver resolver, long dataId) {
-        // 查询指定 ID 的数据
+        // 查询指定 ID 的数据，只取 ID 列
         Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId),
-                null, null, null, null);
+                new String[]{DataColumns.ID}, null, null, null);
 
         boolean exist = false;
         if (cursor != null) {
@@ -262,6 +267,69 @@ public class DataUtils {
         return exist;
     }
 
+    /**
+     * 批量检查笔记是否存在于笔记数据库中的方法
+     * @param resolver ContentResolver 对象，用于与内容提供者进行交互
+     * @param noteIds 要检查的笔记 ID 的集合
+     * @return 其中已经存在的笔记 ID 的集合
+     */
+    public static HashSet<Long> getExistingNoteIds(ContentResolver resolver, Collection<Long> noteIds) {
+        return getExistingIds(resolver, Notes.CONTENT_NOTE_URI, NoteColumns.ID, noteIds);
+    }
+
+    /**
+     * 批量检查数据是否存在于数据数据库中的方法
+     * @param resolver ContentResolver 对象，用于与内容提供者进行交互
+     * @param dataIds 要检查的数据 ID 的集合
+     * @return 其中已经存在的数据 ID 的集合
+     */
+    public static HashSet<Long> getExistingDataIds(ContentResolver resolver, Collection<Long> dataIds) {
+        return getExistingIds(resolver, Notes.CONTENT_DATA_URI, DataColumns.ID, dataIds);
+    }
+
+    /**
+     * 分块用 IN (...) 查询已经存在的 ID，每块一次查询，只取 ID 列
+     * @param resolver ContentResolver 对象，用于与内容提供者进行交互
+     * @param uri 要查询的表的 URI
+     * @param idColumn ID 列名
+     * @param ids 要检查的 ID 的集合
+     * @return 其中已经存在的 ID 的集合
+     */
+    private static HashSet<Long> getExistingIds(ContentResolver resolver, Uri uri, String idColumn,
+                                                Collection<Long> ids) {
+        HashSet<Long> exist = new HashSet<Long>();
+        if (ids == null || ids.isEmpty()) {
+            return exist;
+        }
+
+        ArrayList<Long> idList = new ArrayList<Long>(ids);
+        for (int start = 0; start < idList.size(); start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(idList.size(), start + MAX_IDS_PER_QUERY);
+            // 拼接 "_id IN (?,?,...)" 形式的查询条件
+            StringBuilder selection = new StringBuilder(idColumn).append(" IN (");
+            String[] selectionArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionArgs[i - start] = String.valueOf(idList.get(i));
+            }
+            selection.append(')');
+
+            Cursor cursor = resolver.query(uri, new String[]{idColumn}, selection.toString(),
+                    selectionArgs, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        exist.add(cursor.getLong(0));
+                    }
+                } finally {
+                    // 关闭游标，释放资源
+                    cursor.close();
+                }
+            }
+        }
+        return exist;
+    }
+
     /**
      * 检查可见文件夹名称是否已存在的方法
      * @param resolver ContentResolver 对象，用于与内容提供者进行交互
@@ -0,0 +1,517 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.data.NotesDatabaseHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Description：把便签导出为Markdown或HTML文件，打包成一个zip，便于导入其他笔记软件
+ * 每个文件夹一个目录，根文件夹下的便签在zip的根目录，每个便签一个文件，文件名取自便签的第一行
+ * 便签中的图片放在zip根目录的images目录下，[local]路径换成相对于便签文件的路径
+ * 一边查询一边写入zip流，内存中只有当前这个便签，图片直接从文件复制到zip流
+ */
+class DocumentExport {
+    private static final String TAG = "DocumentExport";
+
+    static final int FORMAT_MARKDOWN = 0;
+    static final int FORMAT_HTML = 1;
+
+    // 查询的列，便签连同它的数据行，同一个便签的行相邻
+    private static final String NOTE = NotesDatabaseHelper.TABLE.NOTE + ".";
+    private static final String DATA = NotesDatabaseHelper.TABLE.DATA + ".";
+
+    private static final String[] EXPORT_PROJECTION = {
+            NOTE + NoteColumns.ID,
+            NOTE + NoteColumns.PARENT_ID,
+            NOTE + NoteColumns.MODIFIED_DATE,
+            DATA + DataColumns.MIME_TYPE,
+            DATA + DataColumns.CONTENT,
+            DATA + DataColumns.DATA1,
+            DATA + DataColumns.DATA3,
+    };
+
+    private static final int COLUMN_NOTE_ID = 0;
+    private static final int COLUMN_PARENT_ID = 1;
+    private static final int COLUMN_MODIFIED_DATE = 2;
+    private static final int COLUMN_MIME_TYPE = 3;
+    private static final int COLUMN_CONTENT = 4;
+    // 文本便签的清单模式，通话便签的通话时间
+    private static final int COLUMN_DATA1 = 5;
+    // 通话便签的电话号码
+    private static final int COLUMN_DATA3 = 6;
+
+    private static final String[] FOLDER_PROJECTION = {
+            NoteColumns.ID,
+            NoteColumns.SNIPPET,
+    };
+
+    // 同一个文件夹的便签相邻，写完一个目录再写下一个
+    private static final String NOTE_ORDER = NOTE + NoteColumns.PARENT_ID + "," + NOTE
+            + NoteColumns.ID + "," + DATA + DataColumns.ID;
+
+    // 文件名中不允许的字符
+    private static final Pattern ILLEGAL_NAME_PATTERN = Pattern.compile("[\\\\/:*?\"<>|\\x00-\\x1f]");
+
+    // 由便签第一行生成的文件名的最大长度
+    private static final int MAX_NAME_LENGTH = 40;
+
+    private static final String IMAGE_DIR = "images/";
+
+    // 清单模式中已完成和未完成的标记，和 NoteEditActivity 一致
+    private static final String TAG_CHECKED = String.valueOf('\u221A');
+    private static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+
+    private final Context mContext;
+
+    private final ContentResolver mResolver;
+
+    private int mFormat;
+
+    // 文件夹ID到zip中的目录名
+    private HashMap<Long, String> mFolderDirs;
+
+    // 图片路径到zip中的图片名，同一个图片只写一次
+    private HashMap<String, String> mImageNames;
+
+    // 已经使用的图片名，不同目录下的同名图片改名
+    private HashSet<String> mUsedImageNames;
+
+    // 当前便签中第一次出现、还没有写入zip的图片
+    private HashMap<String, File> mPendingImages;
+
+    // 当前目录中已经使用的文件名，换目录时清空
+    private HashSet<String> mUsedNoteNames;
+
+    private BackupUtils.MinuteDateFormatter mDateFormatter;
+
+    private SimpleDateFormat mFileDateFormat;
+
+    private byte[] mBuffer;
+
+    private int mNoteCount;
+
+    DocumentExport(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * 把全部便签写入zip文件，在同一个数据库快照中查询
+     * @param file 目标文件
+     * @param format FORMAT_MARKDOWN 或 FORMAT_HTML
+     * @param listener 进度回调，可以为 null
+     * @param signal 取消信号，可以为 null
+     * @return BackupUtils 中的状态码
+     */
+    int write(final File file, int format, final BackupUtils.ExportProgressListener listener,
+            final CancellationSignal signal) {
+        mFormat = format;
+        mDateFormatter = new BackupUtils.MinuteDateFormatter(
+                mContext.getString(R.string.format_datetime_mdhm));
+        mFileDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+        mBuffer = new byte[BackupUtils.BUFFER_SIZE];
+        try {
+            return BackupUtils.exportInSnapshot(mContext, new BackupUtils.SnapshotExport() {
+                @Override
+                public int export() {
+                    return writeSnapshot(file, listener, signal);
+                }
+            });
+        } finally {
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * 在读快照中从头写出zip文件，重试时覆盖上一次写出的内容
+     */
+    private int writeSnapshot(File file, BackupUtils.ExportProgressListener listener,
+            CancellationSignal signal) {
+        mFolderDirs = new HashMap<Long, String>();
+        mImageNames = new HashMap<String, String>();
+        mUsedImageNames = new HashSet<String>();
+        mPendingImages = new HashMap<String, File>();
+        mUsedNoteNames = new HashSet<String>();
+        mNoteCount = 0;
+
+        ZipOutputStream zip = null;
+        try {
+            BackupUtils.CountingOutputStream out = new BackupUtils.CountingOutputStream(
+                    new FileOutputStream(file));
+            zip = new ZipOutputStream(new BufferedOutputStream(out, BackupUtils.BUFFER_SIZE));
+            if (!loadFolders(signal)) {
+                return BackupUtils.STATE_SYSTEM_ERROR;
+            }
+            int totalNotes = queryNoteCount(signal);
+            if (totalNotes < 0) {
+                return BackupUtils.STATE_SYSTEM_ERROR;
+            }
+            int state = writeNotes(zip, out, totalNotes, listener, signal);
+            if (state != BackupUtils.STATE_SUCCESS) {
+                return state;
+            }
+            zip.finish();
+            zip.flush();
+            if (listener != null) {
+                listener.onProgress(mNoteCount, totalNotes, out.getCount());
+            }
+            Log.d(TAG, "exported " + mNoteCount + " notes and " + mImageNames.size() + " images");
+            return BackupUtils.STATE_SUCCESS;
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "document export cancelled");
+            return BackupUtils.STATE_CANCELLED;
+        } catch (IOException e) {
+            Log.e(TAG, "write document export failed: " + e.toString());
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * 查询导出的文件夹，为每个文件夹分配一个不重复的目录名
+     */
+    private boolean loadFolders(CancellationSignal signal) {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, FOLDER_PROJECTION,
+                BackupUtils.EXPORTED_FOLDER_SELECTION,
+                null, NoteColumns.ID, signal);
+        if (c == null) {
+            Log.e(TAG, "query folders to export failed");
+            return false;
+        }
+        HashSet<String> used = new HashSet<String>();
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                String name = id == Notes.ID_CALL_RECORD_FOLDER
+                        ? mContext.getString(R.string.call_record_folder_name) : c.getString(1);
+                name = uniqueName(used, toFileName(name, "folder_" + id), "");
+                mFolderDirs.put(id, name + "/");
+            }
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+
+    private int queryNoteCount(CancellationSignal signal) {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                "COUNT(*)"
+        }, BackupUtils.EXPORTED_NOTE_SELECTION, null, null, signal);
+        if (c == null) {
+            Log.e(TAG, "count notes to export failed");
+            return -1;
+        }
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private int writeNotes(ZipOutputStream zip, BackupUtils.CountingOutputStream out,
+            int totalNotes, BackupUtils.ExportProgressListener listener, CancellationSignal signal)
+            throws IOException {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_DATA_URI, EXPORT_PROJECTION,
+                BackupUtils.EXPORTED_NOTE_SELECTION,
+                null, NOTE_ORDER, signal);
+        if (c == null) {
+            Log.e(TAG, "query notes to export failed");
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        }
+        try {
+            StringBuilder body = new StringBuilder();
+            // 便签第一段文字，用作文件名和HTML标题
+            String[] title = new String[1];
+            long noteId = 0;
+            long parentId = 0;
+            long modified = 0;
+            long currentParent = Long.MIN_VALUE;
+            boolean inNote = false;
+            long lastProgressTime = 0;
+            while (c.moveToNext()) {
+                long id = c.getLong(COLUMN_NOTE_ID);
+                if (!inNote || id != noteId) {
+                    if (inNote) {
+                        writeNote(zip, parentId, modified, title[0], body);
+                    }
+                    if (signal != null) {
+                        signal.throwIfCanceled();
+                    }
+                    if (listener != null) {
+                        long now = SystemClock.uptimeMillis();
+                        if (now - lastProgressTime >= BackupUtils.PROGRESS_INTERVAL) {
+                            lastProgressTime = now;
+                            listener.onProgress(mNoteCount, totalNotes, out.getCount());
+                        }
+                    }
+                    inNote = true;
+                    noteId = id;
+                    parentId = c.getLong(COLUMN_PARENT_ID);
+                    modified = c.getLong(COLUMN_MODIFIED_DATE);
+                    if (parentId != currentParent) {
+                        currentParent = parentId;
+                        mUsedNoteNames.clear();
+                    }
+                    body.setLength(0);
+                    title[0] = null;
+                }
+                appendData(c, parentId, body, title);
+            }
+            if (inNote) {
+                writeNote(zip, parentId, modified, title[0], body);
+            }
+        } finally {
+            c.close();
+        }
+        return BackupUtils.STATE_SUCCESS;
+    }
+
+    /**
+     * 把一个数据行转换成Markdown或HTML，追加到便签正文
+     */
+    private void appendData(Cursor c, long parentId, StringBuilder body, String[] title) {
+        String mimeType = c.getString(COLUMN_MIME_TYPE);
+        if (DataConstants.NOTE.equals(mimeType)) {
+            String content = c.getString(COLUMN_CONTENT);
+            if (TextUtils.isEmpty(content)) {
+                return;
+            }
+            boolean checkList = c.getInt(COLUMN_DATA1) == TextNote.MODE_CHECK_LIST;
+            for (String line : content.split("\n", -1)) {
+                appendLine(body, line, checkList, parentId, title);
+            }
+        } else if (DataConstants.CALL_NOTE.equals(mimeType)) {
+            String phoneNumber = c.getString(COLUMN_DATA3);
+            if (!TextUtils.isEmpty(phoneNumber)) {
+                appendLine(body, phoneNumber, false, parentId, title);
+            }
+            appendLine(body, mDateFormatter.format(c.getLong(COLUMN_DATA1)), false,
+                    parentId, title);
+            String location = c.getString(COLUMN_CONTENT);
+            if (!TextUtils.isEmpty(location)) {
+                appendLine(body, location, false, parentId, title);
+            }
+        }
+    }
+
+    private void appendLine(StringBuilder body, String line, boolean checkList, long parentId,
+            String[] title) {
+        boolean html = mFormat == FORMAT_HTML;
+        String text = line;
+        if (checkList) {
+            // 清单模式下每行以√或□开头，换成任务列表
+            if (text.startsWith(TAG_CHECKED)) {
+                text = text.substring(TAG_CHECKED.length()).trim();
+                body.append(html ? "<input type=\"checkbox\" checked disabled> " : "- [x] ");
+            } else if (text.startsWith(TAG_UNCHECKED)) {
+                text = text.substring(TAG_UNCHECKED.length()).trim();
+                body.append(html ? "<input type=\"checkbox\" disabled> " : "- [ ] ");
+            }
+        }
+
+        Matcher matcher = BackupUtils.LOCAL_IMAGE_PATTERN.matcher(text);
+        int start = 0;
+        while (matcher.find()) {
+            appendText(body, text.substring(start, matcher.start()), title);
+            String image = addImage(matcher.group(1));
+            if (image == null) {
+                // 图片文件已经不存在，保留原来的写法
+                appendText(body, matcher.group(), title);
+            } else {
+                String path = (parentId == Notes.ID_ROOT_FOLDER ? "" : "../") + IMAGE_DIR + image;
+                if (html) {
+                    body.append("<img src=\"").append(TextUtils.htmlEncode(path)).append("\">");
+                } else {
+                    body.append("![](").append(path.replace(" ", "%20")).append(')');
+                }
+            }
+            start = matcher.end();
+        }
+        appendText(body, text.substring(start), title);
+        // Markdown中单个换行会被合并，行尾两个空格表示换行
+        body.append(html ? "<br>\n" : "  \n");
+    }
+
+    private void appendText(StringBuilder body, String text, String[] title) {
+        if (text.length() == 0) {
+            return;
+        }
+        if (title[0] == null && text.trim().length() > 0) {
+            title[0] = text.trim();
+        }
+        body.append(mFormat == FORMAT_HTML ? TextUtils.htmlEncode(text) : text);
+    }
+
+    /**
+     * 为便签中的图片分配zip中的名字，第一次遇到时记下，写完便签后再复制图片
+     * @param path 图片的绝对路径
+     * @return zip中的图片名，文件不存在时返回 null
+     */
+    private String addImage(String path) {
+        String name = mImageNames.get(path);
+        if (name != null) {
+            return name;
+        }
+        File image = new File(path);
+        if (!image.isFile()) {
+            Log.w(TAG, "image of note not found: " + path);
+            return null;
+        }
+        String fileName = image.getName();
+        int dot = fileName.lastIndexOf('.');
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        String base = toFileName(dot > 0 ? fileName.substring(0, dot) : fileName, "image");
+        name = uniqueName(mUsedImageNames, base, extension) + extension;
+        mImageNames.put(path, name);
+        mPendingImages.put(name, image);
+        return name;
+    }
+
+    private void writeNote(ZipOutputStream zip, long parentId, long modified, String title,
+            StringBuilder body) throws IOException {
+        String dir = mFolderDirs.get(parentId);
+        if (dir == null) {
+            // 根文件夹下的便签
+            dir = "";
+        }
+        String extension = mFormat == FORMAT_HTML ? ".html" : ".md";
+        String fallback = mFileDateFormat.format(new Date(modified));
+        String name = uniqueName(mUsedNoteNames, toFileName(title, fallback), extension);
+
+        String document;
+        if (mFormat == FORMAT_HTML) {
+            document = "<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>"
+                    + TextUtils.htmlEncode(title == null ? fallback : title)
+                    + "</title>\n</head>\n<body>\n" + body + "</body>\n</html>\n";
+        } else {
+            document = body.toString();
+        }
+
+        zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+        ZipEntry entry = new ZipEntry(dir + name + extension);
+        entry.setTime(modified);
+        zip.putNextEntry(entry);
+        zip.write(document.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+        mNoteCount++;
+
+        if (!mPendingImages.isEmpty()) {
+            // 图片已经压缩过，不再压缩
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            for (Map.Entry<String, File> image : mPendingImages.entrySet()) {
+                writeImage(zip, image.getKey(), image.getValue());
+            }
+            mPendingImages.clear();
+        }
+    }
+
+    private void writeImage(ZipOutputStream zip, String name, File file) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ZipEntry entry = new ZipEntry(IMAGE_DIR + name);
+            entry.setTime(file.lastModified());
+            zip.putNextEntry(entry);
+            int count;
+            while ((count = in.read(mBuffer)) > 0) {
+                zip.write(mBuffer, 0, count);
+            }
+            zip.closeEntry();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * 把便签的第一行或文件夹名转换成合法的文件名
+     * @param text 原始文字，可以为 null
+     * @param fallback 没有可用文字时使用的名字
+     */
+    private static String toFileName(String text, String fallback) {
+        if (text == null) {
+            return fallback;
+        }
+        String name = ILLEGAL_NAME_PATTERN.matcher(text).replaceAll("_").trim();
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(0, MAX_NAME_LENGTH).trim();
+        }
+        // 以点开头的文件在很多系统中是隐藏文件
+        while (name.startsWith(".")) {
+            name = name.substring(1);
+        }
+        return name.length() == 0 ? fallback : name;
+    }
+
+    /**
+     * 同一目录中重名时在名字后加序号，大小写不同也视为重名
+     * @return 不含扩展名的名字
+     */
+    private static String uniqueName(HashSet<String> used, String name, String extension) {
+        String result = name;
+        for (int i = 2; !used.add((result + extension).toLowerCase(Locale.ROOT)); i++) {
+            result = name + " (" + i + ")";
+        }
+        return result;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Description：全应用共用的后台任务执行器，代替AsyncTask和直接创建的Thread
+ * 按工作类型分为数据库、磁盘（文件、图片）和网络三个线程池，线程数固定，
+ * 同一个池中界面等待的任务优先于同步等后台任务执行，同优先级按提交顺序执行
+ * 提交任务时可以指定owner（通常是Activity），owner销毁时调用cancelAll取消它的任务，
+ * 已经开始的任务会执行完，但不再回调onPostExecute；界面销毁后也必须完成的写入不要指定owner
+ * doInBackground抛出的RuntimeException不会让任务没有结果，在主线程回调onFailed
+ */
+public class TaskExecutor {
+    private static final String TAG = TaskExecutor.class.getSimpleName();
+
+    // 数据库读写
+    public static final int POOL_DB = 0;
+
+    // 文件和图片读写，例如导出
+    public static final int POOL_DISK = 1;
+
+    // 网络请求，例如GTask同步
+    public static final int POOL_NETWORK = 2;
+
+    // 用户正在等待结果的任务
+    public static final int PRIORITY_USER = 0;
+
+    // 后台任务，例如同步
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    private static final int[] POOL_SIZES = {
+            2, 2, 1
+    };
+
+    private static final String[] POOL_NAMES = {
+            "db", "disk", "network"
+    };
+
+    // 排队的任务超过这个数量时打印警告，说明提交太快或者有任务执行太久
+    private static final int QUEUE_WARN_DEPTH = 32;
+
+    private static TaskExecutor sInstance;
+
+    private final ThreadPoolExecutor[] mPools;
+
+    // 还没有结束的任务，用于按owner取消
+    private final HashSet<BackgroundTask<?>> mTasks;
+
+    // 每个池排队的最大深度，用于观察负载
+    private final int[] mMaxQueueDepth;
+
+    private final AtomicLong mSequence;
+
+    private final Handler mMainHandler;
+
+    private TaskExecutor() {
+        mPools = new ThreadPoolExecutor[POOL_SIZES.length];
+        for (int i = 0; i < mPools.length; i++) {
+            mPools[i] = new ThreadPoolExecutor(POOL_SIZES[i], POOL_SIZES[i], 30, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new PoolThreadFactory(POOL_NAMES[i]));
+            mPools[i].allowCoreThreadTimeOut(true);
+        }
+        mTasks = new HashSet<BackgroundTask<?>>();
+        mMaxQueueDepth = new int[POOL_SIZES.length];
+        mSequence = new AtomicLong();
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public static synchronized TaskExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new TaskExecutor();
+        }
+        return sInstance;
+    }
+
+    /*
+     * 提交任务，owner可以为null，表示任务不随界面取消
+     */
+    public void execute(int pool, int priority, Object owner, BackgroundTask<?> task) {
+        task.mExecutor = this;
+        task.mPool = pool;
+        task.mPriority = priority;
+        task.mOwner = owner;
+        task.mSequence = mSequence.getAndIncrement();
+        synchronized (mTasks) {
+            mTasks.add(task);
+        }
+
+        ThreadPoolExecutor executor = mPools[pool];
+        executor.execute(task);
+
+        int depth = executor.getQueue().size();
+        synchronized (mMaxQueueDepth) {
+            if (depth > mMaxQueueDepth[pool]) {
+                mMaxQueueDepth[pool] = depth;
+            }
+        }
+        if (depth >= QUEUE_WARN_DEPTH) {
+            Log.w(TAG, POOL_NAMES[pool] + " pool queue depth " + depth);
+        }
+    }
+
+    /*
+     * 取消owner提交的所有任务，在Activity的onDestroy中调用
+     */
+    public void cancelAll(Object owner) {
+        ArrayList<BackgroundTask<?>> tasks = new ArrayList<BackgroundTask<?>>();
+        synchronized (mTasks) {
+            for (BackgroundTask<?> task : mTasks) {
+                if (task.mOwner == owner) {
+                    tasks.add(task);
+                }
+            }
+        }
+        for (BackgroundTask<?> task : tasks) {
+            task.cancel();
+        }
+    }
+
+    public int getQueueDepth(int pool) {
+        return mPools[pool].getQueue().size();
+    }
+
+    public int getMaxQueueDepth(int pool) {
+        synchronized (mMaxQueueDepth) {
+            return mMaxQueueDepth[pool];
+        }
+    }
+
+    public int getActiveCount(int pool) {
+        return mPools[pool].getActiveCount();
+    }
+
+    public long getCompletedTaskCount(int pool) {
+        return mPools[pool].getCompletedTaskCount();
+    }
+
+    private void onTaskDone(BackgroundTask<?> task) {
+        synchronized (mTasks) {
+            mTasks.remove(task);
+        }
+    }
+
+    /*
+     * 返回true表示任务还在排队，已经移出，之后不会再执行
+     */
+    private boolean removeFromQueue(BackgroundTask<?> task) {
+        if (mPools[task.mPool].remove(task)) {
+            onTaskDone(task);
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * 后台任务，doInBackground在线程池中执行，onPostExecute和onCancelled在主线程中执行
+     */
+    public static abstract class BackgroundTask<Result> implements Runnable,
+            Comparable<BackgroundTask<?>> {
+        private TaskExecutor mExecutor;
+
+        private int mPool;
+
+        private int mPriority;
+
+        private long mSequence;
+
+        private Object mOwner;
+
+        private volatile boolean mCancelled;
+
+        protected abstract Result doInBackground();
+
+        protected void onPostExecute(Result result) {
+        }
+
+        protected void onCancelled() {
+        }
+
+        /*
+         * doInBackground抛出异常时在主线程回调，代替onPostExecute；显示了进度等界面的任务需要在这里收起
+         */
+        protected void onFailed(RuntimeException e) {
+        }
+
+        /*
+         * 取消任务：还在排队时直接移出队列；已经开始时由doInBackground自己检查isCancelled
+         * 两种情况都会在主线程回调一次onCancelled
+         * 可以在任意线程调用
+         */
+        public void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            TaskExecutor executor = mExecutor;
+            if (executor != null && executor.removeFromQueue(this)) {
+                // 不会再执行run，在这里回调
+                runOnMainThread(new Runnable() {
+                    public void run() {
+                        onCancelled();
+                    }
+                });
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /*
+         * 在主线程中执行，例如更新进度
+         */
+        protected final void runOnMainThread(Runnable runnable) {
+            mExecutor.mMainHandler.post(runnable);
+        }
+
+        public final void run() {
+            Result background = null;
+            RuntimeException error = null;
+            try {
+                // 出队之后才取消的任务不再执行，但仍然回调onCancelled
+                if (!mCancelled) {
+                    background = doInBackground();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "background task failed", e);
+                error = e;
+            } finally {
+                mExecutor.onTaskDone(this);
+            }
+            final Result result = background;
+            final RuntimeException failure = error;
+            runOnMainThread(new Runnable() {
+                public void run() {
+                    if (mCancelled) {
+                        onCancelled();
+                    } else if (failure != null) {
+                        onFailed(failure);
+                    } else {
+                        onPostExecute(result);
+                    }
+                }
+            });
+        }
+
+        public int compareTo(BackgroundTask<?> another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final String mName;
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        PoolThreadFactory(String name) {
+            mName = name;
+        }
+
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "notes-" + mName + "-" + mCount.getAndIncrement());
+        }
+    }
+}
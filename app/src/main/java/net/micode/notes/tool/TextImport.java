@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+/*
+ * Description：把 BackupUtils.exportToText 导出的文本文件导入回数据库
+ * 逐行读取文件，按 R.array.format_for_exported_note 识别文件夹名称、便签日期和便签内容：
+ * 便签之外带文件夹格式的行是文件夹，带日期格式并且能解析为日期的行开始一个便签，
+ * 便签内带内容格式的行是新的一段内容，其他行是上一行内容的续行，单独的 "\r" 行结束便签
+ * 同名文件夹合并到已有的文件夹；空的文件夹名称表示之后的便签属于根文件夹，
+ * 没有这一行的旧文件中根文件夹下的便签会导入到最后一个文件夹中
+ * 一个便签的所有内容合并为一个文本便签，通话便签的号码和时间也作为文本导入
+ * 插入分批经过 ContentProvider 提交，每批一个事务，内存占用和文件大小无关
+ */
+class TextImport {
+    private static final String TAG = "TextImport";
+
+    // 格式数组中的索引，和 BackupUtils.TextExport 一致
+    private static final int FORMAT_FOLDER_NAME = 0;
+    private static final int FORMAT_NOTE_DATE = 1;
+    private static final int FORMAT_NOTE_CONTENT = 2;
+
+    // 导出时写在两个便签之间的分隔行
+    private static final String NOTE_SEPARATOR = "\r";
+
+    // 解析日期时在前面加上的闰年
+    private static final String PARSE_YEAR_PATTERN = "yyyy ";
+    private static final String PARSE_YEAR_PREFIX = "2000 ";
+
+    // 往前找 2 月 29 日所在闰年的最多年数
+    private static final int MAX_YEARS_BACK = 8;
+
+    // 每个事务插入的操作数，一个便签和它的数据总在同一批中
+    private static final int BATCH_SIZE = 500;
+
+    private static final String[] FOLDER_PROJECTION = {
+            NoteColumns.ID,
+            NoteColumns.SNIPPET
+    };
+
+    private static final String FOLDER_SELECTION = NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER
+            + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER;
+
+    private final Context mContext;
+
+    private final ContentResolver mResolver;
+
+    private final String[] mTextFormat;
+
+    // 文件夹名称到ID，包括已有的和导入时新建的
+    private HashMap<String, Long> mFolders;
+
+    private SimpleDateFormat mDateFormat;
+
+    // 导出的日期没有年份，取不晚于这个时间的最近一年
+    private long mReferenceTime;
+
+    private int mReferenceYear;
+
+    // 解析日期时复用
+    private Calendar mCalendar;
+
+    private final ArrayList<ContentProviderOperation> mOperations;
+
+    // 导入前最大的便签ID，失败时删除之后插入的便签和文件夹
+    private long mBaseId;
+
+    private long mCurrentFolderId;
+
+    private boolean mInNote;
+
+    private long mNoteDate;
+
+    private final StringBuilder mContent;
+
+    // 按行读取的缓冲区，只以 '\n' 分行，保留 "\r" 以识别便签分隔行
+    private final char[] mReadBuffer;
+
+    private int mReadPosition;
+
+    private int mReadLimit;
+
+    private final StringBuilder mLine;
+
+    private int mLineCount;
+
+    private int mFolderCount;
+
+    private int mNoteCount;
+
+    TextImport(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mTextFormat = context.getResources().getStringArray(R.array.format_for_exported_note);
+        mOperations = new ArrayList<ContentProviderOperation>(BATCH_SIZE);
+        mContent = new StringBuilder();
+        mReadBuffer = new char[BackupUtils.BUFFER_SIZE];
+        mLine = new StringBuilder();
+    }
+
+    /**
+     * 导入一个导出的文本文件
+     * @param file 文本文件
+     * @return BackupUtils 中的状态码
+     */
+    int importFromText(File file) {
+        if (file == null || !file.isFile()) {
+            return BackupUtils.STATE_BACKUP_FILE_NOT_EXIST;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        mDateFormat = new SimpleDateFormat(PARSE_YEAR_PATTERN
+                + mContext.getString(R.string.format_datetime_mdhm), Locale.getDefault());
+        mReferenceTime = file.lastModified() > 0 ? file.lastModified()
+                : System.currentTimeMillis();
+        mCalendar = Calendar.getInstance();
+        mCalendar.setTimeInMillis(mReferenceTime);
+        mReferenceYear = mCalendar.get(Calendar.YEAR);
+        mOperations.clear();
+        mCurrentFolderId = Notes.ID_ROOT_FOLDER;
+        mInNote = false;
+        mContent.setLength(0);
+        mLineCount = 0;
+        mFolderCount = 0;
+        mNoteCount = 0;
+        mBaseId = BackupUtils.queryMaxNoteId(mResolver);
+        if (mBaseId < 0 || !loadFolders()) {
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        }
+
+        Reader reader = null;
+        mReadPosition = 0;
+        mReadLimit = 0;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+            String line;
+            while ((line = readLine(reader)) != null) {
+                mLineCount++;
+                parseLine(line);
+            }
+            endNote();
+            flush();
+        } catch (IOException e) {
+            Log.e(TAG, "read text failed: " + e.toString());
+            rollback();
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        } catch (RemoteException e) {
+            Log.e(TAG, "import text failed: " + e.toString());
+            rollback();
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "import text failed: " + e.toString());
+            rollback();
+            return BackupUtils.STATE_SYSTEM_ERROR;
+        } finally {
+            mFolders = null;
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - start, 1);
+        Log.d(TAG, "imported " + mNoteCount + " notes, " + mFolderCount + " new folders from "
+                + mLineCount + " lines in " + elapsed + "ms (" + mLineCount * 1000L / elapsed
+                + " lines/s)");
+        return BackupUtils.STATE_SUCCESS;
+    }
+
+    int getImportedNoteCount() {
+        return mNoteCount;
+    }
+
+    /**
+     * 读取一行，不包括 '\n'；BufferedReader.readLine 会把单独的 '\r' 也当作行尾
+     * @return 一行内容，文件结束时返回 null
+     */
+    private String readLine(Reader reader) throws IOException {
+        mLine.setLength(0);
+        while (true) {
+            if (mReadPosition >= mReadLimit) {
+                mReadLimit = reader.read(mReadBuffer, 0, mReadBuffer.length);
+                mReadPosition = 0;
+                if (mReadLimit <= 0) {
+                    mReadLimit = 0;
+                    return mLine.length() > 0 ? mLine.toString() : null;
+                }
+            }
+            int start = mReadPosition;
+            while (mReadPosition < mReadLimit && mReadBuffer[mReadPosition] != '\n') {
+                mReadPosition++;
+            }
+            mLine.append(mReadBuffer, start, mReadPosition - start);
+            if (mReadPosition < mReadLimit) {
+                // 跳过 '\n'
+                mReadPosition++;
+                return mLine.toString();
+            }
+        }
+    }
+
+    private void parseLine(String line) throws RemoteException, OperationApplicationException {
+        if (NOTE_SEPARATOR.equals(line)) {
+            endNote();
+            return;
+        }
+        if (line.endsWith("\r")) {
+            // 换行被转换为 "\r\n" 的文件
+            line = line.substring(0, line.length() - 1);
+            if (NOTE_SEPARATOR.equals(line)) {
+                endNote();
+                return;
+            }
+        }
+
+        if (mInNote) {
+            String content = match(line, FORMAT_NOTE_CONTENT);
+            if (content != null) {
+                if (mContent.length() > 0) {
+                    mContent.append('\n');
+                }
+                mContent.append(content);
+            } else {
+                // 多行内容的续行
+                mContent.append('\n').append(line);
+            }
+            return;
+        }
+
+        // 便签之外：日期格式的行开始一个便签，否则是文件夹名称
+        String date = match(line, FORMAT_NOTE_DATE);
+        if (date != null) {
+            long time = parseDate(date);
+            if (time > 0) {
+                mInNote = true;
+                mNoteDate = time;
+                mContent.setLength(0);
+                return;
+            }
+        }
+        String folderName = match(line, FORMAT_FOLDER_NAME);
+        if (folderName != null) {
+            mCurrentFolderId = folderName.length() > 0 ? getFolderId(folderName)
+                    : Notes.ID_ROOT_FOLDER;
+        } else if (line.length() > 0) {
+            Log.w(TAG, "skip unknown line " + mLineCount);
+        }
+    }
+
+    /**
+     * 结束当前便签，加入待提交的操作；数据通过反向引用得到便签的ID
+     */
+    private void endNote() throws RemoteException, OperationApplicationException {
+        if (!mInNote) {
+            return;
+        }
+        mInNote = false;
+
+        int noteIndex = mOperations.size();
+        mOperations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                .withValue(NoteColumns.PARENT_ID, mCurrentFolderId)
+                .withValue(NoteColumns.TYPE, Notes.TYPE_NOTE)
+                .withValue(NoteColumns.CREATED_DATE, mNoteDate)
+                .withValue(NoteColumns.MODIFIED_DATE, mNoteDate)
+                .withValue(NoteColumns.LOCAL_MODIFIED, 1)
+                .build());
+        mOperations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                .withValueBackReference(DataColumns.NOTE_ID, noteIndex)
+                .withValue(DataColumns.MIME_TYPE, DataConstants.NOTE)
+                .withValue(DataColumns.CONTENT, mContent.toString())
+                .build());
+        mContent.setLength(0);
+        mNoteCount++;
+
+        if (mOperations.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * 在一个事务中提交等待的插入操作
+     */
+    private void flush() throws RemoteException, OperationApplicationException {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        mResolver.applyBatch(Notes.AUTHORITY, mOperations);
+        mOperations.clear();
+    }
+
+    /**
+     * 删除这次导入的便签和新建的文件夹
+     */
+    private void rollback() {
+        mOperations.clear();
+        int count = mResolver.delete(Notes.CONTENT_NOTE_URI, NoteColumns.ID + ">?",
+                new String[] {
+                        String.valueOf(mBaseId)
+                });
+        Log.w(TAG, "import rolled back, " + count + " notes deleted");
+    }
+
+    /**
+     * 去掉格式的前缀和后缀，格式不匹配时返回 null
+     */
+    private String match(String line, int formatId) {
+        String format = mTextFormat[formatId];
+        int index = format.indexOf("%s");
+        if (index < 0) {
+            return null;
+        }
+        int suffixLength = format.length() - index - 2;
+        if (line.length() < format.length() - 2
+                || !line.regionMatches(0, format, 0, index)
+                || !line.regionMatches(line.length() - suffixLength, format, index + 2,
+                        suffixLength)) {
+            return null;
+        }
+        return line.substring(index, line.length() - suffixLength);
+    }
+
+    /**
+     * 解析导出的日期，年份取不晚于参考时间的最近一年，2 月 29 日取最近的闰年
+     * @return 毫秒时间，不是日期时返回 0
+     */
+    private long parseDate(String value) {
+        // 没有年份时按 1970 年解析会把 2 月 29 日变成 3 月 1 日，先加上一个闰年
+        String dated = PARSE_YEAR_PREFIX + value;
+        ParsePosition position = new ParsePosition(0);
+        Date date = mDateFormat.parse(dated, position);
+        if (date == null || position.getIndex() != dated.length()) {
+            return 0;
+        }
+        mCalendar.setTime(date);
+        int month = mCalendar.get(Calendar.MONTH);
+        int day = mCalendar.get(Calendar.DAY_OF_MONTH);
+        int hour = mCalendar.get(Calendar.HOUR_OF_DAY);
+        int minute = mCalendar.get(Calendar.MINUTE);
+        for (int year = mReferenceYear; year > mReferenceYear - MAX_YEARS_BACK; year--) {
+            mCalendar.clear();
+            mCalendar.set(year, month, day, hour, minute);
+            if (mCalendar.get(Calendar.DAY_OF_MONTH) == day
+                    && mCalendar.getTimeInMillis() <= mReferenceTime) {
+                return mCalendar.getTimeInMillis();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 按名称找到文件夹，没有时新建
+     */
+    private long getFolderId(String name) {
+        if (name.equals(mContext.getString(R.string.call_record_folder_name))) {
+            return Notes.ID_CALL_RECORD_FOLDER;
+        }
+        Long id = mFolders.get(name);
+        if (id != null) {
+            return id;
+        }
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.SNIPPET, name);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        Uri uri = mResolver.insert(Notes.CONTENT_NOTE_URI, values);
+        long folderId = uri != null ? ContentUris.parseId(uri) : -1;
+        if (folderId <= 0) {
+            Log.e(TAG, "create folder " + name + " failed");
+            return Notes.ID_ROOT_FOLDER;
+        }
+        mFolders.put(name, folderId);
+        mFolderCount++;
+        return folderId;
+    }
+
+    private boolean loadFolders() {
+        mFolders = new HashMap<String, Long>();
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, FOLDER_PROJECTION, FOLDER_SELECTION,
+                null, null);
+        if (c == null) {
+            Log.e(TAG, "query folders failed");
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                mFolders.put(c.getString(1), c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+}
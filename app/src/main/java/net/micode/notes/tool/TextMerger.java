@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Description：按行的三方合并，用于同步冲突时合并本地和远端对同一便签的修改
+ * base为上一次同步时的内容，只有一方修改的部分直接采用，两方都修改且不同的部分用冲突标记保留两份
+ * 清单模式的每一项也是一行，所以勾选或修改不同的项可以直接合并
+ */
+public class TextMerger {
+
+    public static final String MARKER_LOCAL = "<<<<<<< ";
+
+    public static final String MARKER_SEPARATOR = "=======";
+
+    public static final String MARKER_REMOTE = ">>>>>>> ";
+
+    // 差异超过这个行数时不再继续求最长公共子序列，中间部分整体作为一块处理
+    // 保证大便签的合并时间和内存有上限，编辑距离较小时接近线性时间
+    private static final int MAX_EDIT_DISTANCE = 1000;
+
+    private TextMerger() {
+    }
+
+    /*
+     * 合并本地和远端的文本，localLabel和remoteLabel为冲突标记后面显示的名字
+     */
+    public static String merge(String base, String local, String remote, String localLabel,
+            String remoteLabel) {
+        base = base == null ? "" : base;
+        local = local == null ? "" : local;
+        remote = remote == null ? "" : remote;
+        if (local.equals(remote) || remote.equals(base)) {
+            return local;
+        }
+        if (local.equals(base)) {
+            return remote;
+        }
+
+        // 每一行转换为整数编号，比较时不再比较字符串
+        HashMap<String, Integer> lineIds = new HashMap<String, Integer>();
+        String[] baseLines = base.split("\n", -1);
+        String[] localLines = local.split("\n", -1);
+        String[] remoteLines = remote.split("\n", -1);
+        int[] o = toIds(baseLines, lineIds);
+        int[] a = toIds(localLines, lineIds);
+        int[] b = toIds(remoteLines, lineIds);
+
+        int[] matchA = match(o, a);
+        int[] matchB = match(o, b);
+
+        ArrayList<String> result = new ArrayList<String>(Math.max(a.length, b.length));
+        int lo = 0;
+        int la = 0;
+        int lb = 0;
+        while (true) {
+            // 下一个在三方都对应的base行是稳定行，它之前是一块不稳定的区域
+            int next = lo;
+            while (next < o.length && (matchA[next] < 0 || matchB[next] < 0)) {
+                next++;
+            }
+            int endA = next < o.length ? matchA[next] : a.length;
+            int endB = next < o.length ? matchB[next] : b.length;
+            mergeChunk(baseLines, lo, next, localLines, la, endA, remoteLines, lb, endB,
+                    localLabel, remoteLabel, result);
+            if (next >= o.length) {
+                break;
+            }
+            result.add(baseLines[next]);
+            lo = next + 1;
+            la = endA + 1;
+            lb = endB + 1;
+        }
+
+        StringBuilder sb = new StringBuilder(local.length() + remote.length());
+        for (int i = 0; i < result.size(); i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(result.get(i));
+        }
+        return sb.toString();
+    }
+
+    private static void mergeChunk(String[] o, int oStart, int oEnd, String[] a, int aStart,
+            int aEnd, String[] b, int bStart, int bEnd, String localLabel, String remoteLabel,
+            ArrayList<String> result) {
+        if (oStart == oEnd && aStart == aEnd && bStart == bEnd) {
+            return;
+        }
+        boolean aChanged = !rangeEquals(o, oStart, oEnd, a, aStart, aEnd);
+        boolean bChanged = !rangeEquals(o, oStart, oEnd, b, bStart, bEnd);
+        if (!aChanged) {
+            // 只有远端修改（或都没有修改）
+            addRange(result, b, bStart, bEnd);
+        } else if (!bChanged || rangeEquals(a, aStart, aEnd, b, bStart, bEnd)) {
+            // 只有本地修改，或两边改成了相同的内容
+            addRange(result, a, aStart, aEnd);
+        } else {
+            result.add(MARKER_LOCAL + localLabel);
+            addRange(result, a, aStart, aEnd);
+            result.add(MARKER_SEPARATOR);
+            addRange(result, b, bStart, bEnd);
+            result.add(MARKER_REMOTE + remoteLabel);
+        }
+    }
+
+    private static boolean rangeEquals(String[] x, int xStart, int xEnd, String[] y, int yStart,
+            int yEnd) {
+        if (xEnd - xStart != yEnd - yStart) {
+            return false;
+        }
+        for (int i = 0; i < xEnd - xStart; i++) {
+            if (!x[xStart + i].equals(y[yStart + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addRange(ArrayList<String> result, String[] lines, int start, int end) {
+        for (int i = start; i < end; i++) {
+            result.add(lines[i]);
+        }
+    }
+
+    private static int[] toIds(String[] lines, HashMap<String, Integer> lineIds) {
+        int[] ids = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            Integer id = lineIds.get(lines[i]);
+            if (id == null) {
+                id = lineIds.size();
+                lineIds.put(lines[i], id);
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /*
+     * 求base和另一方的最长公共子序列，返回base每一行对应的行号，没有对应时为-1
+     * 先去掉相同的开头和结尾，中间部分用Myers算法，时间为O((N+M)D)，D为不同的行数
+     */
+    private static int[] match(int[] o, int[] x) {
+        int[] result = new int[o.length];
+        Arrays.fill(result, -1);
+
+        int start = 0;
+        while (start < o.length && start < x.length && o[start] == x[start]) {
+            result[start] = start;
+            start++;
+        }
+        int endO = o.length;
+        int endX = x.length;
+        while (endO > start && endX > start && o[endO - 1] == x[endX - 1]) {
+            endO--;
+            endX--;
+            result[endO] = endX;
+        }
+
+        myers(o, start, endO, x, start, endX, result);
+        return result;
+    }
+
+    private static void myers(int[] o, int oStart, int oEnd, int[] x, int xStart, int xEnd,
+            int[] result) {
+        int n = oEnd - oStart;
+        int m = xEnd - xStart;
+        if (n == 0 || m == 0) {
+            return;
+        }
+
+        int max = Math.min(n + m, MAX_EDIT_DISTANCE);
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        // trace.get(d)保存第d步开始前k在[-d-1, d+1]范围内的v，用于回溯
+        ArrayList<int[]> trace = new ArrayList<int[]>();
+        int found = -1;
+        for (int d = 0; d <= max && found < 0; d++) {
+            int[] snapshot = new int[2 * d + 3];
+            System.arraycopy(v, offset - d - 1, snapshot, 0, 2 * d + 3);
+            trace.add(snapshot);
+
+            for (int k = -d; k <= d; k += 2) {
+                int px;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    px = v[offset + k + 1];
+                } else {
+                    px = v[offset + k - 1] + 1;
+                }
+                int py = px - k;
+                while (px < n && py < m && o[oStart + px] == x[xStart + py]) {
+                    px++;
+                    py++;
+                }
+                v[offset + k] = px;
+                if (px >= n && py >= m) {
+                    found = d;
+                    break;
+                }
+            }
+        }
+        if (found < 0) {
+            // 差异太大，中间部分不做对应
+            return;
+        }
+
+        int px = n;
+        int py = m;
+        for (int d = found; d > 0; d--) {
+            int[] prev = trace.get(d);
+            int k = px - py;
+            int prevK;
+            if (k == -d || (k != d && prev[k - 1 + d + 1] < prev[k + 1 + d + 1])) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            int prevX = prev[prevK + d + 1];
+            int prevY = prevX - prevK;
+            while (px > prevX && py > prevY) {
+                px--;
+                py--;
+                result[oStart + px] = xStart + py;
+            }
+            px = prevX;
+            py = prevY;
+        }
+        while (px > 0 && py > 0) {
+            px--;
+            py--;
+            result[oStart + px] = xStart + py;
+        }
+    }
+}
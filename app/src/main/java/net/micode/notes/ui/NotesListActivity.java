@@ -19,6 +19,7 @@ package net.micode.notes.ui;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.appwidget.AppWidgetManager;
 import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
@@ -28,12 +29,13 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.ActionMode;
 import android.view.ContextMenu;
@@ -65,11 +67,14 @@ import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.remote.GTaskSyncService;
+import net.micode.notes.gtask.remote.SyncScheduler;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.tool.BackupUtils;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser;
+import net.micode.notes.tool.TaskExecutor;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
+import net.micode.notes.widget.NoteListWidgetProvider;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
 
@@ -91,6 +96,11 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     private static final int MENU_FOLDER_VIEW = 1;
     // 文件夹重命名菜单项的ID
     private static final int MENU_FOLDER_CHANGE_NAME = 2;
+    // 文件夹添加到桌面菜单项的ID
+    private static final int MENU_FOLDER_ADD_TO_HOME = 3;
+
+    // exportNotes 导出文本，其他值为 BackupUtils 中的 Markdown 或 HTML 格式
+    private static final int EXPORT_TEXT = -1;
     // 存储应用介绍是否已添加的偏好设置键
     private static final String PREFERENCE_ADD_INTRODUCTION = "net.micode.notes.introduction";
     //共享参数,用于保存用户喜好的背景图片
@@ -165,6 +175,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
         // 首次使用应用时插入介绍笔记
         setAppInfoFromRawRes();
+
+        // 设置了同步账号时确保定时同步已经安排（升级后第一次启动）
+        SyncScheduler.schedulePeriodic(this);
     }
 
     // 处理活动结果的方法
@@ -231,6 +244,13 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         startAsyncNotesListQuery();
     }
 
+    // 活动销毁时取消还没有完成的后台任务，避免回调已经销毁的界面
+    @Override
+    protected void onDestroy() {
+        TaskExecutor.getInstance().cancelAll(this);
+        super.onDestroy();
+    }
+
     // 初始化资源的方法
     private void initResources() {
         config = getSharedPreferences("config",Context.MODE_PRIVATE);
@@ -714,6 +734,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 menu.add(0, MENU_FOLDER_VIEW, 0, R.string.menu_folder_view);
                 menu.add(0, MENU_FOLDER_DELETE, 0, R.string.menu_folder_delete);
                 menu.add(0, MENU_FOLDER_CHANGE_NAME, 0, R.string.menu_folder_change_name);
+                menu.add(0, MENU_FOLDER_ADD_TO_HOME, 0, R.string.menu_folder_add_to_home);
             }
         }
     };
@@ -755,6 +776,12 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             case MENU_FOLDER_CHANGE_NAME:
                 showCreateOrModifyFolderDialog(false);
                 break;
+            case MENU_FOLDER_ADD_TO_HOME:
+                if (!NoteListWidgetProvider.requestPinFolder(this, mFocusNoteDataItem.getId())) {
+                    Toast.makeText(this, R.string.error_pin_widget_unsupported,
+                            Toast.LENGTH_SHORT).show();
+                }
+                break;
             default:
                 break;
         }
@@ -790,7 +817,15 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 break;
             }
             case R.id.menu_export_text: {
-                exportNoteToText();
+                exportNotes(EXPORT_TEXT);
+                break;
+            }
+            case R.id.menu_export_markdown: {
+                exportNotes(BackupUtils.EXPORT_FORMAT_MARKDOWN);
+                break;
+            }
+            case R.id.menu_export_html: {
+                exportNotes(BackupUtils.EXPORT_FORMAT_HTML);
                 break;
             }
             case R.id.menu_sync: {
@@ -829,17 +864,58 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         return true;
     }
 
-    // 将笔记导出为文本文件的方法
-    private void exportNoteToText() {
+    // 将笔记导出为文本文件或 Markdown、HTML 压缩包的方法，导出期间显示便签数和字节数进度，可以取消
+    private void exportNotes(final int format) {
         final BackupUtils backup = BackupUtils.getInstance(NotesListActivity.this);
-        new AsyncTask<Void, Void, Integer>() {
+        final CancellationSignal signal = new CancellationSignal();
+        final ProgressDialog dialog = new ProgressDialog(this);
+        final TaskExecutor.BackgroundTask<Integer> task = new TaskExecutor.BackgroundTask<Integer>() {
             @Override
-            protected Integer doInBackground(Void... unused) {
-                return backup.exportToText();
+            protected Integer doInBackground() {
+                BackupUtils.ExportProgressListener listener = new BackupUtils.ExportProgressListener() {
+                    public void onProgress(final int exportedNotes, final int totalNotes,
+                            final long writtenBytes) {
+                        runOnMainThread(new Runnable() {
+                            public void run() {
+                                dialog.setMax(totalNotes);
+                                dialog.setProgress(exportedNotes);
+                                dialog.setMessage(getString(R.string.format_export_progress,
+                                        exportedNotes, totalNotes, Formatter.formatShortFileSize(
+                                                NotesListActivity.this, writtenBytes)));
+                            }
+                        });
+                    }
+                };
+                if (format == EXPORT_TEXT) {
+                    return backup.exportToText(listener, signal);
+                }
+                return backup.exportToDocuments(format, listener, signal);
+            }
+
+            @Override
+            public void cancel() {
+                super.cancel();
+                signal.cancel();
+            }
+
+            @Override
+            protected void onCancelled() {
+                if (!isDestroyed()) {
+                    dialog.dismiss();
+                    Toast.makeText(NotesListActivity.this, R.string.export_cancelled,
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+
+            @Override
+            protected void onFailed(RuntimeException e) {
+                // 进度对话框不能取消，导出出错时和写入失败一样收起并提示
+                onPostExecute(BackupUtils.STATE_SYSTEM_ERROR);
             }
 
             @Override
             protected void onPostExecute(Integer result) {
+                dialog.dismiss();
                 if (result == BackupUtils.STATE_SD_CARD_UNMOUONTED) {
                     AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
                     builder.setTitle(NotesListActivity.this
@@ -852,9 +928,16 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
                     builder.setTitle(NotesListActivity.this
                             .getString(R.string.success_sdcard_export));
-                    builder.setMessage(NotesListActivity.this.getString(
-                            R.string.format_exported_file_location, backup
-                                    .getExportedTextFileName(), backup.getExportedTextFileDir()));
+                    if (format == EXPORT_TEXT) {
+                        builder.setMessage(NotesListActivity.this.getString(
+                                R.string.format_exported_file_location, backup
+                                        .getExportedTextFileName(), backup.getExportedTextFileDir()));
+                    } else {
+                        builder.setMessage(NotesListActivity.this.getString(
+                                R.string.format_exported_zip_location, backup
+                                        .getExportedDocumentFile().getName(),
+                                getString(R.string.file_path)));
+                    }
                     builder.setPositiveButton(android.R.string.ok, null);
                     builder.show();
                 } else if (result == BackupUtils.STATE_SYSTEM_ERROR) {
@@ -868,7 +951,22 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 }
             }
 
-        }.execute();
+        };
+
+        dialog.setTitle(R.string.title_exporting);
+        dialog.setMessage(getString(R.string.export_preparing));
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setProgressNumberFormat(null);
+        dialog.setCancelable(false);
+        dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface d, int which) {
+                        task.cancel();
+                    }
+                });
+        dialog.show();
+        TaskExecutor.getInstance().execute(TaskExecutor.POOL_DISK, TaskExecutor.PRIORITY_USER, this,
+                task);
     }
 
     // 判断是否处于同步模式的方法
@@ -961,13 +1059,13 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         }
         return false;
     }
-    // 批量删除选中笔记的方法
+    // 批量删除选中笔记的方法：用户已经确认删除，不指定owner，界面销毁后删除仍然完成，只是不再更新界面
     private void batchDelete() {
-        new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
-            protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
-                HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
-                HashSet<Long> noteIds = mNotesListAdapter.getSelectedItemIds();
-
+        final HashSet<AppWidgetAttribute> selectedWidgets = mNotesListAdapter.getSelectedWidget();
+        final HashSet<Long> noteIds = mNotesListAdapter.getSelectedItemIds();
+        TaskExecutor.getInstance().execute(TaskExecutor.POOL_DB, TaskExecutor.PRIORITY_USER, null,
+                new TaskExecutor.BackgroundTask<HashSet<AppWidgetAttribute>>() {
+            protected HashSet<AppWidgetAttribute> doInBackground() {
                 // 删除图片
                 for (Long noteId : noteIds) {
                     String noteContent = getNoteContent(noteId);
@@ -977,24 +1075,33 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 }
                 if (!isSyncMode()) {
                     // if not synced, delete notes directly
-                    if (DataUtils.batchDeleteNotes(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds())) {
+                    if (DataUtils.batchDeleteNotes(mContentResolver, noteIds)) {
                     } else {
                         Log.e(TAG, "Delete notes error, should not happens");
                     }
                 } else {
                     // in sync mode, we'll move the deleted note into the trash
                     // folder
-                    if (!DataUtils.batchMoveToFolder(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds(), Notes.ID_TRASH_FOLER)) {
+                    if (!DataUtils.batchMoveToFolder(mContentResolver, noteIds,
+                            Notes.ID_TRASH_FOLER)) {
                         Log.e(TAG, "Move notes to trash folder error, should not happens");
                     }
                 }
-                return widgets;
+                return selectedWidgets;
+            }
+
+            @Override
+            protected void onFailed(RuntimeException e) {
+                if (!isDestroyed()) {
+                    mModeCallBack.finishActionMode();
+                }
             }
 
             @Override
             protected void onPostExecute(HashSet<AppWidgetAttribute> widgets) {
+                if (isDestroyed()) {
+                    return;
+                }
                 if (widgets != null) {
                     for (AppWidgetAttribute widget : widgets) {
                         if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
@@ -1005,7 +1112,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 }
                 mModeCallBack.finishActionMode();
             }
-        }.execute();
+        });
     }
     private String getNoteContent(long noteId) {
         Cursor cursor = null;
@@ -21,6 +21,7 @@ import android.accounts.AccountManager;
 import android.app.ActionBar;
 import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -45,7 +46,11 @@ import android.widget.Toast;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.remote.GTaskClient;
+import net.micode.notes.gtask.remote.GTaskManager;
 import net.micode.notes.gtask.remote.GTaskSyncService;
+import net.micode.notes.gtask.remote.SyncScheduler;
+import net.micode.notes.tool.TaskExecutor;
 
 // 该类继承自PreferenceActivity，用于处理笔记应用的设置相关功能
 public class NotesPreferenceActivity extends PreferenceActivity {
@@ -355,15 +360,15 @@ public class NotesPreferenceActivity extends PreferenceActivity {
             // 清空上次同步时间
             setLastSyncTime(this, 0);
 
+            // 旧账号的登录会话不再使用
+            GTaskClient.getInstance().logout(this);
+
+            // 按新账号重新安排后台同步
+            SyncScheduler.cancelAll(this);
+            SyncScheduler.schedulePeriodic(this);
+
             // 清理本地与GTask相关的信息
-            new Thread(new Runnable() {
-                public void run() {
-                    ContentValues values = new ContentValues();
-                    values.put(NoteColumns.GTASK_ID, "");
-                    values.put(NoteColumns.SYNC_ID, 0);
-                    getContentResolver().update(Notes.CONTENT_NOTE_URI, values, null, null);
-                }
-            }).start();
+            clearLocalGTaskInfo();
 
             // 提示用户设置同步账户成功
             Toast.makeText(NotesPreferenceActivity.this,
@@ -387,15 +392,29 @@ public class NotesPreferenceActivity extends PreferenceActivity {
         }
         editor.commit();
 
+        // 取消后台同步，清除保存的登录会话
+        SyncScheduler.cancelAll(this);
+        GTaskClient.getInstance().logout(this);
+
         // 清理本地与GTask相关的信息
-        new Thread(new Runnable() {
-            public void run() {
+        clearLocalGTaskInfo();
+    }
+
+    // 在后台清除便签的gtask_id和sync_id，不随界面取消，需要在下一次同步之前完成
+    private void clearLocalGTaskInfo() {
+        GTaskManager.clearUnconfirmedCreates(this);
+        final ContentResolver resolver = getContentResolver();
+        TaskExecutor.getInstance().execute(TaskExecutor.POOL_DB, TaskExecutor.PRIORITY_USER, null,
+                new TaskExecutor.BackgroundTask<Void>() {
+            @Override
+            protected Void doInBackground() {
                 ContentValues values = new ContentValues();
                 values.put(NoteColumns.GTASK_ID, "");
                 values.put(NoteColumns.SYNC_ID, 0);
-                getContentResolver().update(Notes.CONTENT_NOTE_URI, values, null, null);
+                resolver.update(Notes.CONTENT_NOTE_URI, values, null, null);
+                return null;
             }
-        }).start();
+        });
     }
 
     // 获取当前设置的同步账户名称
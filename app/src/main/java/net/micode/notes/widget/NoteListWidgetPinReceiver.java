@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.tool.DataUtils;
+
+/*
+ * Description：列表小部件固定到桌面成功后的回调，附带文件夹ID和系统分配的小部件ID
+ * 只由 requestPinFolder 的 PendingIntent 发送，没有导出；仍然只接受根文件夹和不在回收站中的用户文件夹
+ */
+public class NoteListWidgetPinReceiver extends BroadcastReceiver {
+    private static final String TAG = "NoteListWidgetPinReceiver";
+
+    static final String ACTION_PIN_FOLDER = "net.micode.notes.widget.PIN_FOLDER";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_PIN_FOLDER.equals(intent.getAction())) {
+            return;
+        }
+        int widgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID,
+                AppWidgetManager.INVALID_APPWIDGET_ID);
+        if (widgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+            return;
+        }
+        long folderId = intent.getLongExtra(Notes.INTENT_EXTRA_FOLDER_ID, Notes.ID_ROOT_FOLDER);
+        if (!isUserFolder(context, folderId)) {
+            Log.e(TAG, "Can not pin folder " + folderId);
+            return;
+        }
+        NoteListWidgetProvider.setFolderId(context, widgetId, folderId);
+    }
+
+    private static boolean isUserFolder(Context context, long folderId) {
+        if (folderId == Notes.ID_ROOT_FOLDER) {
+            return true;
+        }
+        if (folderId < 0) {
+            // 回收站、通话记录等系统文件夹的ID都是负数
+            return false;
+        }
+        return DataUtils.visibleInNoteDatabase(context.getContentResolver(), folderId,
+                Notes.TYPE_FOLDER);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.widget.RemoteViews;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.ui.NoteEditActivity;
+import net.micode.notes.ui.NotesListActivity;
+
+/*
+ * Description：显示一个文件夹中便签列表的小部件，可以滚动
+ * 列表由 NoteListWidgetService 分页读取，便签变化时 WidgetUpdateCoordinator 调用 notifyDataChanged，
+ * 桌面只重新读取可见的几行，不重新推送整个小部件
+ * 从小部件选择器添加时显示根文件夹，从文件夹的长按菜单添加时显示那个文件夹
+ */
+public class NoteListWidgetProvider extends AppWidgetProvider {
+    // 保存每个小部件显示的文件夹
+    private static final String PREFERENCE_NAME = "note_list_widget";
+    private static final String PREF_FOLDER_PREFIX = "folder_";
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        for (int widgetId : appWidgetIds) {
+            long folderId = getFolderId(context, widgetId);
+            RemoteViews rv = new RemoteViews(context.getPackageName(), R.layout.widget_note_list);
+
+            Intent serviceIntent = new Intent(context, NoteListWidgetService.class);
+            serviceIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, widgetId);
+            serviceIntent.putExtra(Notes.INTENT_EXTRA_FOLDER_ID, folderId);
+            // extra不参与Intent比较，用data区分不同小部件的列表
+            serviceIntent.setData(Uri.parse(serviceIntent.toUri(Intent.URI_INTENT_SCHEME)));
+            rv.setRemoteAdapter(R.id.widget_list, serviceIntent);
+            rv.setEmptyView(R.id.widget_list, R.id.widget_empty);
+            rv.setTextViewText(R.id.widget_title,
+                    NoteListWidgetService.getFolderName(context, folderId));
+
+            // 点击标题打开便签列表
+            PendingIntent listIntent = PendingIntent.getActivity(context, widgetId,
+                    new Intent(context, NotesListActivity.class),
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+            rv.setOnClickPendingIntent(R.id.widget_title, listIntent);
+
+            // 点击一行打开那个便签，便签ID由每一行的fill-in Intent填入
+            Intent editIntent = new Intent(context, NoteEditActivity.class);
+            editIntent.setAction(Intent.ACTION_VIEW);
+            editIntent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+            PendingIntent template = PendingIntent.getActivity(context, widgetId, editIntent,
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
+            rv.setPendingIntentTemplate(R.id.widget_list, template);
+
+            appWidgetManager.updateAppWidget(widgetId, rv);
+        }
+    }
+
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        for (int widgetId : appWidgetIds) {
+            editor.remove(PREF_FOLDER_PREFIX + widgetId);
+        }
+        editor.commit();
+    }
+
+    /**
+     * 通知所有列表小部件重新读取数据，桌面会调用 RemoteViewsFactory.onDataSetChanged
+     */
+    public static void notifyDataChanged(Context context) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        int[] widgetIds = manager.getAppWidgetIds(
+                new ComponentName(context, NoteListWidgetProvider.class));
+        if (widgetIds.length > 0) {
+            manager.notifyAppWidgetViewDataChanged(widgetIds, R.id.widget_list);
+        }
+    }
+
+    /**
+     * 请求把显示某个文件夹的列表小部件固定到桌面，用户在桌面确认后回调 NoteListWidgetPinReceiver
+     * 这个接收者是导出的，回调不发给它，以免其他应用伪造回调改变小部件显示的文件夹
+     * @return 桌面不支持固定小部件时返回 false
+     */
+    public static boolean requestPinFolder(Context context, long folderId) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        if (!manager.isRequestPinAppWidgetSupported()) {
+            return false;
+        }
+        Intent callback = new Intent(context, NoteListWidgetPinReceiver.class);
+        callback.setAction(NoteListWidgetPinReceiver.ACTION_PIN_FOLDER);
+        callback.putExtra(Notes.INTENT_EXTRA_FOLDER_ID, folderId);
+        // 系统要往回调中填入小部件ID，必须是可修改的
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, (int) folderId, callback,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
+        return manager.requestPinAppWidget(new ComponentName(context, NoteListWidgetProvider.class),
+                new Bundle(), pendingIntent);
+    }
+
+    static long getFolderId(Context context, int widgetId) {
+        return getPreferences(context).getLong(PREF_FOLDER_PREFIX + widgetId,
+                Notes.ID_ROOT_FOLDER);
+    }
+
+    /**
+     * 记下小部件显示的文件夹，并立即推送一次整个小部件
+     */
+    static void setFolderId(Context context, int widgetId, long folderId) {
+        getPreferences(context).edit().putLong(PREF_FOLDER_PREFIX + widgetId, folderId).commit();
+        new NoteListWidgetProvider().onUpdate(context, AppWidgetManager.getInstance(context),
+                new int[] {
+                        widgetId
+                });
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Binder;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.widget.RemoteViews;
+import android.widget.RemoteViewsService;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.ResourceParser.NoteItemBgResources;
+import net.micode.notes.ui.NoteEditActivity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/*
+ * Description：为 NoteListWidgetProvider 的列表提供每一行的 RemoteViews
+ * 便签按页读取，每页 PAGE_SIZE 行，只缓存最近用到的 MAX_CACHED_PAGES 页，
+ * 数千条便签时也只查询和保存可见位置附近的行
+ */
+public class NoteListWidgetService extends RemoteViewsService {
+    private static final String TAG = "NoteListWidgetService";
+
+    @Override
+    public RemoteViewsFactory onGetViewFactory(Intent intent) {
+        return new NoteListFactory(getApplicationContext(),
+                intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID,
+                        AppWidgetManager.INVALID_APPWIDGET_ID),
+                intent.getLongExtra(Notes.INTENT_EXTRA_FOLDER_ID, Notes.ID_ROOT_FOLDER));
+    }
+
+    /**
+     * 列表标题，根文件夹显示应用名称
+     */
+    static String getFolderName(Context context, long folderId) {
+        if (folderId == Notes.ID_ROOT_FOLDER) {
+            return context.getString(R.string.app_name);
+        }
+        if (folderId == Notes.ID_CALL_RECORD_FOLDER) {
+            return context.getString(R.string.call_record_folder_name);
+        }
+        Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.SNIPPET
+        }, NoteColumns.ID + "=?", new String[] {
+                String.valueOf(folderId)
+        }, null);
+        if (c == null) {
+            return "";
+        }
+        try {
+            return c.moveToFirst() ? c.getString(0) : "";
+        } finally {
+            c.close();
+        }
+    }
+
+    static class NoteListFactory implements RemoteViewsFactory {
+        // 每次查询的行数
+        private static final int PAGE_SIZE = 50;
+
+        // 缓存的页数，超过时丢弃最久没有用到的页
+        private static final int MAX_CACHED_PAGES = 4;
+
+        private static final String[] PROJECTION = {
+                NoteColumns.ID,
+                NoteColumns.BG_COLOR_ID,
+                NoteColumns.MODIFIED_DATE,
+                NoteColumns.SNIPPET,
+        };
+
+        private static final int ID_COLUMN = 0;
+        private static final int BG_COLOR_ID_COLUMN = 1;
+        private static final int MODIFIED_DATE_COLUMN = 2;
+        private static final int SNIPPET_COLUMN = 3;
+
+        private static final String SELECTION = NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND "
+                + NoteColumns.PARENT_ID + "=?";
+
+        // 和便签列表一样按修改时间排列，ID 保证顺序确定
+        private static final String ORDER = NoteColumns.MODIFIED_DATE + " DESC,"
+                + NoteColumns.ID + " DESC";
+
+        // 摘要中的图片路径不显示
+        private static final Pattern LOCAL_IMAGE_PATTERN = Pattern.compile("\\[local](.*?)\\[/local]");
+
+        private final Context mContext;
+
+        private final int mWidgetId;
+
+        private final long mFolderId;
+
+        // 文件夹中的便签数，每次数据变化时重新查询
+        private int mCount;
+
+        // 上次显示的标题，文件夹改名后更新
+        private String mFolderName;
+
+        // 页号到这一页的行，按访问顺序排列
+        private final LinkedHashMap<Integer, Row[]> mPages;
+
+        NoteListFactory(Context context, int widgetId, long folderId) {
+            mContext = context;
+            mWidgetId = widgetId;
+            mFolderId = folderId;
+            mPages = new LinkedHashMap<Integer, Row[]>(MAX_CACHED_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Row[]> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+        }
+
+        public void onCreate() {
+        }
+
+        /**
+         * 数据变化后由桌面调用，丢弃缓存的页，只重新查询数量，行在显示时再按页读取
+         */
+        public void onDataSetChanged() {
+            // 在桌面的Binder调用中执行，以本应用的身份访问数据
+            long token = Binder.clearCallingIdentity();
+            try {
+                synchronized (mPages) {
+                    mPages.clear();
+                }
+                mCount = queryCount();
+
+                String folderName = getFolderName(mContext, mFolderId);
+                if (mFolderName != null && !TextUtils.equals(folderName, mFolderName)) {
+                    RemoteViews rv = new RemoteViews(mContext.getPackageName(),
+                            R.layout.widget_note_list);
+                    rv.setTextViewText(R.id.widget_title, folderName);
+                    AppWidgetManager.getInstance(mContext).partiallyUpdateAppWidget(mWidgetId, rv);
+                }
+                mFolderName = folderName;
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+
+        public void onDestroy() {
+            synchronized (mPages) {
+                mPages.clear();
+            }
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public RemoteViews getViewAt(int position) {
+            Row row = getRow(position);
+            if (row == null) {
+                // 数据已经变化，等待下一次 onDataSetChanged
+                return null;
+            }
+            RemoteViews rv = new RemoteViews(mContext.getPackageName(),
+                    R.layout.widget_note_list_item);
+            rv.setInt(R.id.widget_item, "setBackgroundResource",
+                    NoteItemBgResources.getNoteBgSingleRes(row.bgColorId));
+            rv.setTextViewText(R.id.widget_item_title, row.title);
+            rv.setTextViewText(R.id.widget_item_time,
+                    DateUtils.getRelativeTimeSpanString(row.modifiedDate));
+
+            Intent fillIn = new Intent();
+            fillIn.putExtra(Intent.EXTRA_UID, row.id);
+            rv.setOnClickFillInIntent(R.id.widget_item, fillIn);
+            return rv;
+        }
+
+        public RemoteViews getLoadingView() {
+            return null;
+        }
+
+        public int getViewTypeCount() {
+            return 1;
+        }
+
+        public long getItemId(int position) {
+            Row row = getRow(position);
+            return row == null ? -position - 1 : row.id;
+        }
+
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        private Row getRow(int position) {
+            if (position < 0 || position >= mCount) {
+                return null;
+            }
+            int page = position / PAGE_SIZE;
+            Row[] rows;
+            synchronized (mPages) {
+                rows = mPages.get(page);
+            }
+            if (rows == null) {
+                long token = Binder.clearCallingIdentity();
+                try {
+                    rows = queryPage(page);
+                } finally {
+                    Binder.restoreCallingIdentity(token);
+                }
+                if (rows == null) {
+                    return null;
+                }
+                synchronized (mPages) {
+                    mPages.put(page, rows);
+                }
+            }
+            int index = position % PAGE_SIZE;
+            return index < rows.length ? rows[index] : null;
+        }
+
+        private int queryCount() {
+            Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, new String[] {
+                    "COUNT(*)"
+            }, SELECTION, new String[] {
+                    String.valueOf(mFolderId)
+            }, null);
+            if (c == null) {
+                Log.e(TAG, "count notes of folder " + mFolderId + " failed");
+                return 0;
+            }
+            try {
+                return c.moveToFirst() ? c.getInt(0) : 0;
+            } finally {
+                c.close();
+            }
+        }
+
+        private Row[] queryPage(int page) {
+            Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, PROJECTION,
+                    SELECTION, new String[] {
+                            String.valueOf(mFolderId)
+                    }, ORDER + " LIMIT " + PAGE_SIZE + " OFFSET " + (page * PAGE_SIZE));
+            if (c == null) {
+                Log.e(TAG, "query page " + page + " of folder " + mFolderId + " failed");
+                return null;
+            }
+            try {
+                Row[] rows = new Row[c.getCount()];
+                for (int i = 0; c.moveToNext(); i++) {
+                    Row row = new Row();
+                    row.id = c.getLong(ID_COLUMN);
+                    row.bgColorId = c.getInt(BG_COLOR_ID_COLUMN);
+                    row.modifiedDate = c.getLong(MODIFIED_DATE_COLUMN);
+                    row.title = formatTitle(c.getString(SNIPPET_COLUMN));
+                    rows[i] = row;
+                }
+                return rows;
+            } finally {
+                c.close();
+            }
+        }
+
+        static String formatTitle(String snippet) {
+            if (snippet == null) {
+                return "";
+            }
+            snippet = LOCAL_IMAGE_PATTERN.matcher(snippet).replaceAll("");
+            snippet = snippet.replace(NoteEditActivity.TAG_CHECKED, "").replace(
+                    NoteEditActivity.TAG_UNCHECKED, "");
+            return DataUtils.getFormattedSnippet(snippet);
+        }
+    }
+
+    // 列表中的一行
+    private static class Row {
+        long id;
+        int bgColorId;
+        long modifiedDate;
+        String title;
+    }
+}
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.widget.RemoteViews;
 
 import net.micode.notes.R;
@@ -32,24 +33,40 @@ import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NoteEditActivity;
 import net.micode.notes.ui.NotesListActivity;
 
+import java.util.Arrays;
+
 public abstract class NoteWidgetProvider extends AppWidgetProvider {
     public static final String [] PROJECTION = new String [] {
         NoteColumns.ID,
         NoteColumns.BG_COLOR_ID,
-        NoteColumns.SNIPPET
+        NoteColumns.SNIPPET,
+        NoteColumns.WIDGET_ID
     };
 
     public static final int COLUMN_ID           = 0;
     public static final int COLUMN_BG_COLOR_ID  = 1;
     public static final int COLUMN_SNIPPET      = 2;
+    public static final int COLUMN_WIDGET_ID    = 3;
 
     private static final String TAG = "NoteWidgetProvider";
 
+    // 一次查询的小部件数，不超过 SQLite 的参数个数上限
+    private static final int QUERY_BATCH_SIZE = 500;
+
+    private static final int NO_ROW = -1;
+    private static final int DUPLICATE_ROW = -2;
+
+    // 每个小部件上次推送内容的哈希，内容没有变化时不再推送；进程重启后为空，全部重新推送
+    private static final SparseIntArray sPushedStates = new SparseIntArray();
+
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
         ContentValues values = new ContentValues();
         values.put(NoteColumns.WIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
         for (int i = 0; i < appWidgetIds.length; i++) {
+            synchronized (sPushedStates) {
+                sPushedStates.delete(appWidgetIds[i]);
+            }
             context.getContentResolver().update(Notes.CONTENT_NOTE_URI,
                     values,
                     NoteColumns.WIDGET_ID + "=?",
@@ -57,12 +74,21 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
         }
     }
 
-    private Cursor getNoteWidgetInfo(Context context, int widgetId) {
-        return context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                PROJECTION,
-                NoteColumns.WIDGET_ID + "=? AND " + NoteColumns.PARENT_ID + "<>?",
-                new String[] { String.valueOf(widgetId), String.valueOf(Notes.ID_TRASH_FOLER) },
-                null);
+    /**
+     * 一次查询多个小部件对应的便签，widget_id 列有索引
+     */
+    private Cursor getNoteWidgetInfo(Context context, int[] widgetIds, int start, int end) {
+        StringBuilder selection = new StringBuilder();
+        String[] selectionArgs = new String[end - start + 1];
+        selection.append(NoteColumns.WIDGET_ID).append(" IN (");
+        for (int i = start; i < end; i++) {
+            selection.append(i == start ? "?" : ",?");
+            selectionArgs[i - start] = String.valueOf(widgetIds[i]);
+        }
+        selection.append(") AND ").append(NoteColumns.PARENT_ID).append("<>?");
+        selectionArgs[end - start] = String.valueOf(Notes.ID_TRASH_FOLER);
+        return context.getContentResolver().query(Notes.CONTENT_NOTE_URI, PROJECTION,
+                selection.toString(), selectionArgs, null);
     }
 
     protected void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
@@ -71,57 +97,94 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
 
     private void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds,
             boolean privacyMode) {
-        for (int i = 0; i < appWidgetIds.length; i++) {
-            if (appWidgetIds[i] != AppWidgetManager.INVALID_APPWIDGET_ID) {
-                int bgId = ResourceParser.getDefaultBgId(context);
-                String snippet = "";
-                Intent intent = new Intent(context, NoteEditActivity.class);
-                intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-                intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, appWidgetIds[i]);
-                intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType());
-
-                Cursor c = getNoteWidgetInfo(context, appWidgetIds[i]);
-                if (c != null && c.moveToFirst()) {
-                    if (c.getCount() > 1) {
-                        Log.e(TAG, "Multiple message with same widget id:" + appWidgetIds[i]);
-                        c.close();
-                        return;
+        for (int start = 0; start < appWidgetIds.length; start += QUERY_BATCH_SIZE) {
+            int end = Math.min(start + QUERY_BATCH_SIZE, appWidgetIds.length);
+            // 小部件ID到便签所在的行，一个小部件对应多个便签时记为 DUPLICATE_ROW
+            SparseIntArray rows = new SparseIntArray();
+            Cursor c = getNoteWidgetInfo(context, appWidgetIds, start, end);
+            try {
+                while (c != null && c.moveToNext()) {
+                    int widgetId = c.getInt(COLUMN_WIDGET_ID);
+                    rows.put(widgetId, rows.indexOfKey(widgetId) >= 0 ? DUPLICATE_ROW
+                            : c.getPosition());
+                }
+                for (int i = start; i < end; i++) {
+                    int widgetId = appWidgetIds[i];
+                    if (widgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+                        continue;
+                    }
+                    int row = rows.get(widgetId, NO_ROW);
+                    if (row == DUPLICATE_ROW) {
+                        // 只跳过这个小部件，其余的照常更新
+                        Log.e(TAG, "Multiple message with same widget id:" + widgetId);
+                        continue;
                     }
-                    snippet = c.getString(COLUMN_SNIPPET);
-                    bgId = c.getInt(COLUMN_BG_COLOR_ID);
-                    intent.putExtra(Intent.EXTRA_UID, c.getLong(COLUMN_ID));
-                    intent.setAction(Intent.ACTION_VIEW);
-                } else {
-                    snippet = context.getResources().getString(R.string.widget_havenot_content);
-                    intent.setAction(Intent.ACTION_INSERT_OR_EDIT);
+                    updateWidget(context, appWidgetManager, widgetId,
+                            row == NO_ROW || !c.moveToPosition(row) ? null : c, privacyMode);
                 }
-
+            } finally {
                 if (c != null) {
                     c.close();
                 }
+            }
+        }
+    }
 
-                RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
-                rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(bgId));
-                intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, bgId);
-                /**
-                 * Generate the pending intent to start host for the widget
-                 */
-                PendingIntent pendingIntent = null;
-                if (privacyMode) {
-                    rv.setTextViewText(R.id.widget_text,
-                            context.getString(R.string.widget_under_visit_mode));
-                    pendingIntent = PendingIntent.getActivity(context, appWidgetIds[i], new Intent(
-                            context, NotesListActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
-                } else {
-                    rv.setTextViewText(R.id.widget_text, snippet);
-                    pendingIntent = PendingIntent.getActivity(context, appWidgetIds[i], intent,
-                            PendingIntent.FLAG_UPDATE_CURRENT);
-                }
+    /**
+     * 更新一个小部件，和上次推送的内容相同时不调用 updateAppWidget
+     * @param c 指向小部件对应便签的游标，没有对应便签时为 null
+     */
+    private void updateWidget(Context context, AppWidgetManager appWidgetManager, int widgetId,
+            Cursor c, boolean privacyMode) {
+        int bgId = ResourceParser.getDefaultBgId(context);
+        String snippet = "";
+        long noteId = 0;
+        Intent intent = new Intent(context, NoteEditActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, widgetId);
+        intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType());
+
+        if (c != null) {
+            snippet = c.getString(COLUMN_SNIPPET);
+            bgId = c.getInt(COLUMN_BG_COLOR_ID);
+            noteId = c.getLong(COLUMN_ID);
+            intent.putExtra(Intent.EXTRA_UID, noteId);
+            intent.setAction(Intent.ACTION_VIEW);
+        } else {
+            snippet = context.getResources().getString(R.string.widget_havenot_content);
+            intent.setAction(Intent.ACTION_INSERT_OR_EDIT);
+        }
 
-                rv.setOnClickPendingIntent(R.id.widget_text, pendingIntent);
-                appWidgetManager.updateAppWidget(appWidgetIds[i], rv);
+        String text = privacyMode ? context.getString(R.string.widget_under_visit_mode) : snippet;
+        int state = Arrays.hashCode(new Object[] {
+                getLayoutId(), bgId, noteId, text, privacyMode
+        });
+        synchronized (sPushedStates) {
+            int index = sPushedStates.indexOfKey(widgetId);
+            if (index >= 0 && sPushedStates.valueAt(index) == state) {
+                return;
             }
+            sPushedStates.put(widgetId, state);
+        }
+
+        RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
+        rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(bgId));
+        intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, bgId);
+        /**
+         * Generate the pending intent to start host for the widget
+         */
+        PendingIntent pendingIntent = null;
+        rv.setTextViewText(R.id.widget_text, text);
+        if (privacyMode) {
+            pendingIntent = PendingIntent.getActivity(context, widgetId, new Intent(
+                    context, NotesListActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        } else {
+            pendingIntent = PendingIntent.getActivity(context, widgetId, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
         }
+
+        rv.setOnClickPendingIntent(R.id.widget_text, pendingIntent);
+        appWidgetManager.updateAppWidget(widgetId, rv);
     }
 
     protected abstract int getBgResourceId(int bgId);
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.BackupJournalColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.tool.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Description：监听便签的变化，只更新受影响的小部件，同步、批量移动等不经过编辑界面的修改也能反映到桌面
+ * 变化的便签来自备份变更记录（便签或它的数据中备份的列变化时写入），通过便签的widget_id列找到对应的小部件
+ * 连续的变化在DEBOUNCE_DELAY内合并为一次更新，持续变化时最多等待MAX_DELAY
+ * 有便签被彻底删除（无法再找到它的小部件）或者变更记录被清理时，更新全部小部件，
+ * NoteWidgetProvider会跳过内容没有变化的小部件
+ */
+public class WidgetUpdateCoordinator {
+    private static final String TAG = "WidgetUpdateCoordinator";
+
+    // 最后一次变化之后等待的时间
+    private static final long DEBOUNCE_DELAY = 500;
+
+    // 第一次变化之后最多等待的时间
+    private static final long MAX_DELAY = 2000;
+
+    private static final String[] WIDGET_PROJECTION = {
+            NoteColumns.WIDGET_ID,
+            NoteColumns.WIDGET_TYPE,
+    };
+
+    private static final int WIDGET_ID_COLUMN = 0;
+    private static final int WIDGET_TYPE_COLUMN = 1;
+
+    // 变更记录中某个范围内变化过、并且放在桌面上的便签
+    private static final String CHANGED_WIDGET_SELECTION = NoteColumns.WIDGET_ID + "<>"
+            + AppWidgetManager.INVALID_APPWIDGET_ID + " AND " + NoteColumns.ID + " IN (SELECT "
+            + BackupJournalColumns.NOTE_ID + " FROM " + NotesDatabaseHelper.TABLE.BACKUP_JOURNAL
+            + " WHERE " + BackupJournalColumns.ID + ">? AND " + BackupJournalColumns.ID + "<=?)";
+
+    // 变更记录中某个范围内已经被删除的便签
+    private static final String DELETED_SELECTION = BackupJournalColumns.ID + ">? AND "
+            + BackupJournalColumns.ID + "<=? AND " + BackupJournalColumns.NOTE_ID
+            + " NOT IN (SELECT " + NoteColumns.ID + " FROM " + NotesDatabaseHelper.TABLE.NOTE + ")";
+
+    private static WidgetUpdateCoordinator sInstance;
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    private final ContentObserver mObserver;
+
+    // 后台的更新可能同时有两个在数据库线程池中，用这个锁依次执行；主线程不等待这个锁
+    private final Object mUpdateLock = new Object();
+
+    private boolean mStarted;
+
+    // 等待合并的第一次变化的时间，没有等待中的变化时为 0，只在主线程访问
+    private long mFirstChangeTime;
+
+    // 下一次更新是否更新全部小部件，主线程设置，后台的更新读取并清除
+    private final AtomicBoolean mFullRefresh = new AtomicBoolean();
+
+    // 已经处理到的变更记录位置，还没有读取时为 -1，只在持有 mUpdateLock 时访问
+    private long mLastJournalId;
+
+    private WidgetUpdateCoordinator(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onNotesChanged(uri);
+            }
+        };
+        mLastJournalId = -1;
+    }
+
+    public static synchronized WidgetUpdateCoordinator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetUpdateCoordinator(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 开始监听，由 NotesProvider 在进程启动时调用，多次调用只注册一次
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(Notes.CONTENT_NOTE_URI, true, mObserver);
+        resolver.registerContentObserver(Notes.CONTENT_DATA_URI, true, mObserver);
+        resolver.registerContentObserver(Notes.CONTENT_BACKUP_JOURNAL_URI, false, mObserver);
+        // 记下当前的位置，之前的变化在小部件上已经是最新的
+        submitUpdate();
+    }
+
+    private void onNotesChanged(Uri uri) {
+        if (Notes.CONTENT_BACKUP_JOURNAL_URI.equals(uri)) {
+            // 备份和打开数据库时的清理会删除变更记录，还没处理的记录可能已经被删除
+            mFullRefresh.set(true);
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (mFirstChangeTime == 0) {
+            mFirstChangeTime = now;
+        }
+        mHandler.removeCallbacks(mUpdateRunnable);
+        long delay = Math.min(DEBOUNCE_DELAY, mFirstChangeTime + MAX_DELAY - now);
+        mHandler.postDelayed(mUpdateRunnable, Math.max(delay, 0));
+    }
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        public void run() {
+            mFirstChangeTime = 0;
+            submitUpdate();
+        }
+    };
+
+    private void submitUpdate() {
+        TaskExecutor.getInstance().execute(TaskExecutor.POOL_DB,
+                TaskExecutor.PRIORITY_BACKGROUND, null, new TaskExecutor.BackgroundTask<Void>() {
+                    @Override
+                    protected Void doInBackground() {
+                        updateChangedWidgets();
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * 读取上次之后的变更记录，通知受影响的小部件更新
+     */
+    private void updateChangedWidgets() {
+        synchronized (mUpdateLock) {
+            updateChangedWidgetsLocked();
+        }
+    }
+
+    private void updateChangedWidgetsLocked() {
+        boolean fullRefresh = mFullRefresh.getAndSet(false);
+        long journalId = queryMaxJournalId();
+        if (journalId < 0) {
+            return;
+        }
+        if (mLastJournalId < 0) {
+            mLastJournalId = journalId;
+            if (!fullRefresh) {
+                return;
+            }
+        }
+        if (journalId < mLastJournalId) {
+            // 变更记录被清空过
+            fullRefresh = true;
+        }
+        String[] range = new String[] {
+                String.valueOf(mLastJournalId), String.valueOf(journalId)
+        };
+        if (!fullRefresh && journalId > mLastJournalId && hasDeletedNotes(range)) {
+            fullRefresh = true;
+        }
+
+        if (fullRefresh) {
+            updateAllWidgets();
+        } else if (journalId > mLastJournalId) {
+            updateWidgets(range);
+        }
+        if (fullRefresh || journalId != mLastJournalId) {
+            // 列表小部件显示整个文件夹，任何变化都可能影响它，桌面只重新读取可见的行
+            NoteListWidgetProvider.notifyDataChanged(mContext);
+        }
+        mLastJournalId = journalId;
+    }
+
+    private void updateWidgets(String[] range) {
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, WIDGET_PROJECTION,
+                CHANGED_WIDGET_SELECTION, range, null);
+        if (c == null) {
+            Log.e(TAG, "query changed widgets failed");
+            return;
+        }
+        ArrayList<Integer> widgets2x = new ArrayList<Integer>();
+        ArrayList<Integer> widgets4x = new ArrayList<Integer>();
+        try {
+            while (c.moveToNext()) {
+                int widgetType = c.getInt(WIDGET_TYPE_COLUMN);
+                if (widgetType == Notes.TYPE_WIDGET_2X) {
+                    widgets2x.add(c.getInt(WIDGET_ID_COLUMN));
+                } else if (widgetType == Notes.TYPE_WIDGET_4X) {
+                    widgets4x.add(c.getInt(WIDGET_ID_COLUMN));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        sendUpdate(NoteWidgetProvider_2x.class, toArray(widgets2x));
+        sendUpdate(NoteWidgetProvider_4x.class, toArray(widgets4x));
+    }
+
+    private void updateAllWidgets() {
+        AppWidgetManager manager = AppWidgetManager.getInstance(mContext);
+        sendUpdate(NoteWidgetProvider_2x.class, manager.getAppWidgetIds(
+                new ComponentName(mContext, NoteWidgetProvider_2x.class)));
+        sendUpdate(NoteWidgetProvider_4x.class, manager.getAppWidgetIds(
+                new ComponentName(mContext, NoteWidgetProvider_4x.class)));
+    }
+
+    private void sendUpdate(Class<?> provider, int[] widgetIds) {
+        if (widgetIds == null || widgetIds.length == 0) {
+            return;
+        }
+        Log.d(TAG, "update " + widgetIds.length + " widgets of " + provider.getSimpleName());
+        Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
+        intent.setClass(mContext, provider);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, widgetIds);
+        mContext.sendBroadcast(intent);
+    }
+
+    private boolean hasDeletedNotes(String[] range) {
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_BACKUP_JOURNAL_URI,
+                new String[] {
+                        BackupJournalColumns.ID
+                }, DELETED_SELECTION, range, null);
+        if (c == null) {
+            // 无法判断时按有删除处理
+            return true;
+        }
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private long queryMaxJournalId() {
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_BACKUP_JOURNAL_URI,
+                new String[] {
+                        "MAX(" + BackupJournalColumns.ID + ")"
+                }, null, null, null);
+        if (c == null) {
+            Log.e(TAG, "query backup journal failed");
+            return -1;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.BackupJournalColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.tool.BackupUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * 备份变更记录只记录备份的列的变化，打开数据库时按备份链的位置清理，不依赖于备份
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BackupJournalTest {
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = TestNotes.setUp();
+    }
+
+    /*
+     * 和BackupUtils保存的备份链相同：完整备份之后，下一个增量备份从journalTo开始
+     */
+    private void startBackupChain(long journalTo) {
+        mContext.getSharedPreferences("backup", Context.MODE_PRIVATE).edit()
+                .putString("backup_id", "chain")
+                .putLong("journal_to", journalTo)
+                .commit();
+    }
+
+    /*
+     * 关闭数据库，下一次查询时重新打开，和进程重新启动一样
+     */
+    private void reopenDatabase() {
+        NotesDatabaseHelper.getInstance(mContext).close();
+    }
+
+    private long maxJournalId() {
+        Cursor c = mResolver.query(Notes.CONTENT_BACKUP_JOURNAL_URI, new String[] {
+                "MAX(" + BackupJournalColumns.ID + ")"
+        }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private HashSet<Long> journalNoteIds() {
+        HashSet<Long> ids = new HashSet<Long>();
+        Cursor c = mResolver.query(Notes.CONTENT_BACKUP_JOURNAL_URI, new String[] {
+                BackupJournalColumns.NOTE_ID
+        }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private void deleteNote(long noteId) {
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null, null);
+    }
+
+    @Test
+    public void syncBookkeepingIsNotJournaled() {
+        long noteId = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "note");
+        long journalId = maxJournalId();
+        assertTrue(journalId > 0);
+
+        // 同步回写gtask_id、清除修改标记，NotesProvider同时把版本号加一
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.GTASK_ID, "gid");
+        values.put(NoteColumns.SYNC_ID, 100);
+        values.put(NoteColumns.LOCAL_MODIFIED, 0);
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+        assertEquals(journalId, maxJournalId());
+
+        TestNotes.updateNote(mResolver, noteId, "edited");
+        assertTrue(maxJournalId() > journalId);
+        assertEquals(1, journalNoteIds().size());
+    }
+
+    @Test
+    public void deletedNotesArePrunedOnOpenWithoutBackupChain() {
+        long deleted1 = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "deleted 1");
+        long deleted2 = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "deleted 2");
+        long kept = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "kept");
+        deleteNote(deleted1);
+        deleteNote(deleted2);
+        assertEquals(3, journalNoteIds().size());
+
+        reopenDatabase();
+        HashSet<Long> ids = journalNoteIds();
+        assertEquals(1, ids.size());
+        assertTrue(ids.contains(kept));
+    }
+
+    @Test
+    public void rowsBeforeBackupChainFloorArePrunedOnOpen() {
+        long deleted = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "deleted");
+        long backedUp = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "backed up");
+        startBackupChain(maxJournalId());
+        long added = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "added");
+        deleteNote(deleted);
+
+        // 下一个增量备份需要起点之后新建的便签和删除记录，起点之前的记录不再需要
+        reopenDatabase();
+        HashSet<Long> ids = journalNoteIds();
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains(added));
+        assertTrue(ids.contains(deleted));
+        assertFalse(ids.contains(backedUp));
+        assertTrue(BackupUtils.getJournalFloor(mContext) >= 0);
+    }
+
+    @Test
+    public void stalledBackupChainEndsAfterTooManyDeletes() {
+        long kept = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "kept");
+        startBackupChain(0);
+        // 备份链之后一直没有备份，删除的便签越来越多
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(mContext).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i <= NotesDatabaseHelper.MAX_JOURNAL_DELETES; i++) {
+                ContentValues values = new ContentValues();
+                values.put(BackupJournalColumns.NOTE_ID, 100000 + i);
+                db.insert(NotesDatabaseHelper.TABLE.BACKUP_JOURNAL, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        reopenDatabase();
+        HashSet<Long> ids = journalNoteIds();
+        assertEquals(1, ids.size());
+        assertTrue(ids.contains(kept));
+        // 下一次备份是完整备份
+        assertEquals(-1, BackupUtils.getJournalFloor(mContext));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Description：测试用的便签数据库，通过真实的NotesProvider读写
+ */
+public class TestNotes {
+    private TestNotes() {
+    }
+
+    /*
+     * 注册NotesProvider并返回一个空的数据库（只有系统文件夹）
+     * Robolectric每个测试都使用新的数据库文件，缓存的helper需要重新创建；
+     * 在同一个测试中再次调用时删除已有的数据库，相当于换了一台设备
+     */
+    public static ContentResolver setUp() {
+        try {
+            Field instance = NotesDatabaseHelper.class.getDeclaredField("mInstance");
+            instance.setAccessible(true);
+            NotesDatabaseHelper helper = (NotesDatabaseHelper) instance.get(null);
+            if (helper != null) {
+                helper.close();
+                RuntimeEnvironment.getApplication().deleteDatabase(helper.getDatabaseName());
+            }
+            instance.set(null, null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        return RuntimeEnvironment.getApplication().getContentResolver();
+    }
+
+    public static long insertFolder(ContentResolver resolver, String name) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.SNIPPET, name);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        return ContentUris.parseId(resolver.insert(Notes.CONTENT_NOTE_URI, values));
+    }
+
+    public static long insertNote(ContentResolver resolver, long folderId, String content) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.PARENT_ID, folderId);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        long noteId = ContentUris.parseId(resolver.insert(Notes.CONTENT_NOTE_URI, values));
+
+        values = new ContentValues();
+        values.put(DataColumns.NOTE_ID, noteId);
+        values.put(DataColumns.MIME_TYPE, Notes.DataConstants.NOTE);
+        values.put(DataColumns.CONTENT, content);
+        resolver.insert(Notes.CONTENT_DATA_URI, values);
+        return noteId;
+    }
+
+    /*
+     * 修改便签正文，和编辑界面保存时一样标记本地修改
+     */
+    public static void updateNote(ContentResolver resolver, long noteId, String content) {
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.CONTENT, content);
+        resolver.update(Notes.CONTENT_DATA_URI, values, DataColumns.NOTE_ID + "=? AND "
+                + DataColumns.MIME_TYPE + "=?", new String[] {
+                String.valueOf(noteId), Notes.DataConstants.NOTE
+        });
+        values = new ContentValues();
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        values.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+        resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+    }
+
+    public static void moveToTrash(ContentResolver resolver, long noteId) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_TRASH_FOLER);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+    }
+
+    public static int count(ContentResolver resolver, android.net.Uri uri, String selection,
+            String[] args) {
+        Cursor c = resolver.query(uri, new String[] {
+                "COUNT(*)"
+        }, selection, args, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * 按id顺序返回便签的正文
+     */
+    public static List<String> noteContents(ContentResolver resolver) {
+        ArrayList<String> contents = new ArrayList<String>();
+        Cursor c = resolver.query(Notes.CONTENT_DATA_URI, new String[] {
+                DataColumns.CONTENT
+        }, DataColumns.MIME_TYPE + "=?", new String[] {
+                Notes.DataConstants.NOTE
+        }, DataColumns.NOTE_ID + " ASC");
+        try {
+            while (c.moveToNext()) {
+                contents.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * 小部件按 widget_id 查找便签时使用索引，不扫描整个便签表
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WidgetIndexTest {
+    private static String queryPlan(SQLiteDatabase db, String sql) {
+        StringBuilder plan = new StringBuilder();
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return plan.toString();
+    }
+
+    @Test
+    public void widgetLookupsUseWidgetIdIndex() {
+        TestNotes.setUp();
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(RuntimeEnvironment.getApplication())
+                .getReadableDatabase();
+
+        // NoteWidgetProvider 一次查询多个小部件
+        String plan = queryPlan(db, "SELECT " + NoteColumns.ID + " FROM "
+                + NotesDatabaseHelper.TABLE.NOTE + " WHERE " + NoteColumns.WIDGET_ID
+                + " IN (1,2,3) AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER);
+        assertTrue(plan, plan.contains("widget_id_index"));
+
+        // 删除小部件时按单个小部件清除 widget_id
+        plan = queryPlan(db, "SELECT " + NoteColumns.ID + " FROM "
+                + NotesDatabaseHelper.TABLE.NOTE + " WHERE " + NoteColumns.WIDGET_ID + "=1");
+        assertTrue(plan, plan.contains("widget_id_index"));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * TaskList的位置索引、gid索引和prior sibling在增删移动后与子任务顺序一致
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskListTest {
+    private static final int BENCHMARK_SIZE = 10000;
+
+    private static Task newTask(String name, String gid) {
+        Task task = new Task();
+        task.setName(name);
+        task.setGid(gid);
+        return task;
+    }
+
+    private static void assertIndexed(TaskList list, List<Task> expected) {
+        List<Task> children = list.getChildTaskList();
+        assertEquals(expected.size(), children.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Task task = expected.get(i);
+            assertSame(task, children.get(i));
+            assertSame(task, list.getChildTaskByIndex(i));
+            assertEquals(i, list.getChildTaskIndex(task));
+            assertSame(list, task.getParent());
+            assertSame(i == 0 ? null : expected.get(i - 1), task.getPriorSibling());
+            if (task.getGid() != null) {
+                assertSame(task, list.findChildTaskByGid(task.getGid()));
+            }
+        }
+    }
+
+    private static void assertNotIndexed(TaskList list, Task task) {
+        assertEquals(-1, list.getChildTaskIndex(task));
+        assertNull(task.getParent());
+        assertNull(task.getPriorSibling());
+        if (task.getGid() != null) {
+            assertNull(list.findChildTaskByGid(task.getGid()));
+        }
+    }
+
+    @Test
+    public void addAppendsAndLinksPriorSibling() {
+        TaskList list = new TaskList();
+        ArrayList<Task> expected = new ArrayList<Task>();
+        for (int i = 0; i < 5; i++) {
+            Task task = newTask("t" + i, "g" + i);
+            assertTrue(list.addChildTask(task));
+            expected.add(task);
+        }
+        assertFalse(list.addChildTask(expected.get(2)));
+        assertIndexed(list, expected);
+    }
+
+    @Test
+    public void insertRemoveAndMoveKeepIndexes() {
+        TaskList list = new TaskList();
+        ArrayList<Task> expected = new ArrayList<Task>();
+        for (int i = 0; i < 5; i++) {
+            Task task = newTask("t" + i, "g" + i);
+            list.addChildTask(task);
+            expected.add(task);
+        }
+
+        Task first = newTask("first", "gf");
+        assertTrue(list.addChildTask(first, 0));
+        expected.add(0, first);
+        assertIndexed(list, expected);
+
+        Task middle = newTask("middle", "gm");
+        assertTrue(list.addChildTask(middle, 3));
+        expected.add(3, middle);
+        assertIndexed(list, expected);
+
+        Task removed = expected.remove(1);
+        assertTrue(list.removeChildTask(removed));
+        assertNotIndexed(list, removed);
+        assertIndexed(list, expected);
+        assertFalse(list.removeChildTask(removed));
+
+        Task moved = expected.remove(0);
+        assertTrue(list.moveChildTask(moved, 4));
+        expected.add(4, moved);
+        assertIndexed(list, expected);
+
+        assertFalse(list.moveChildTask(removed, 0));
+        assertFalse(list.moveChildTask(moved, expected.size()));
+        assertIndexed(list, expected);
+    }
+
+    @Test
+    public void gidAssignedAfterAddIsIndexed() {
+        TaskList list = new TaskList();
+        Task task = newTask("pending", null);
+        list.addChildTask(task);
+        assertNull(list.findChildTaskByGid("new"));
+
+        // 批量新建的任务在提交后才得到gid
+        task.setGid("new");
+        assertSame(task, list.findChildTaskByGid("new"));
+
+        task.setGid("changed");
+        assertNull(list.findChildTaskByGid("new"));
+        assertSame(task, list.findChildTaskByGid("changed"));
+
+        list.removeChildTask(task);
+        task.setGid("after remove");
+        assertNull(list.findChildTaskByGid("changed"));
+        assertNull(list.findChildTaskByGid("after remove"));
+    }
+
+    @Test
+    public void randomOperationsMatchReferenceList() {
+        Random random = new Random(29);
+        TaskList list = new TaskList();
+        ArrayList<Task> expected = new ArrayList<Task>();
+        ArrayList<Task> detached = new ArrayList<Task>();
+        int next = 0;
+        for (int step = 0; step < 3000; step++) {
+            int op = random.nextInt(5);
+            if (op == 0 || expected.isEmpty()) {
+                Task task = newTask("t" + next, random.nextBoolean() ? "g" + next : null);
+                next++;
+                list.addChildTask(task);
+                expected.add(task);
+            } else if (op == 1) {
+                Task task = newTask("t" + next, "g" + next);
+                next++;
+                int index = random.nextInt(expected.size() + 1);
+                list.addChildTask(task, index);
+                expected.add(index, task);
+            } else if (op == 2) {
+                Task task = expected.remove(random.nextInt(expected.size()));
+                assertTrue(list.removeChildTask(task));
+                detached.add(task);
+            } else if (op == 3) {
+                Task task = expected.remove(random.nextInt(expected.size()));
+                int index = random.nextInt(expected.size() + 1);
+                expected.add(index, task);
+                assertTrue(list.moveChildTask(task, index));
+            } else {
+                Task task = expected.get(random.nextInt(expected.size()));
+                task.setGid("r" + step);
+            }
+            assertIndexed(list, expected);
+        }
+        for (Task task : detached) {
+            assertNotIndexed(list, task);
+        }
+    }
+
+    @Test
+    public void buildsLargeListInLinearTime() {
+        // 10k个任务的列表：依次添加并按gid和位置查找每一个
+        long start = System.nanoTime();
+        TaskList list = new TaskList();
+        Task[] tasks = new Task[BENCHMARK_SIZE];
+        for (int i = 0; i < BENCHMARK_SIZE; i++) {
+            tasks[i] = newTask("t" + i, "g" + i);
+            list.addChildTask(tasks[i]);
+        }
+        for (int i = 0; i < BENCHMARK_SIZE; i++) {
+            assertSame(tasks[i], list.findChildTaskByGid("g" + i));
+            assertEquals(i, list.getChildTaskIndex(tasks[i]));
+        }
+        long indexedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("indexed build took " + indexedMs + "ms", indexedMs < 1000);
+    }
+}
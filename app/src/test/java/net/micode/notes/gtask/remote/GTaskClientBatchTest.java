@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 缓存的action_list按100个动作和32KB分批提交；prior sibling在同一批中新建时，得到gid后再移动到它之后
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GTaskClientBatchTest {
+    private GTaskStubServer mServer;
+
+    private GTaskClient mClient;
+
+    private TaskList mList;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new GTaskStubServer();
+        mClient = mServer.connect(RuntimeEnvironment.getApplication());
+        mList = new TaskList();
+        mList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX + "batch");
+        mList.setGid(mServer.addList(mList.getName()).id);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.resetUpdateArray();
+        mServer.stop();
+    }
+
+    @Test
+    public void flushesEveryHundredActions() throws Exception {
+        List<Task> tasks = createTasks(250, "");
+
+        List<JSONArray> posts = mServer.getPostedActionLists();
+        assertEquals(100, posts.get(0).length());
+        int creates = 0;
+        for (JSONArray post : posts) {
+            assertTrue(post.length() <= 100);
+            creates += countActions(post, GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE);
+        }
+        assertEquals(250, creates);
+        assertServerOrder(tasks);
+    }
+
+    @Test
+    public void flushesBeforeByteLimit() throws Exception {
+        StringBuilder notes = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            notes.append('x');
+        }
+        List<Task> tasks = createTasks(40, notes.toString());
+
+        List<Integer> bytes = mServer.getPostedBytes();
+        assertTrue("expected several posts, got " + bytes.size(), bytes.size() > 5);
+        int creates = 0;
+        for (int i = 0; i < bytes.size(); i++) {
+            assertTrue("post " + i + " has " + bytes.get(i) + " bytes", bytes.get(i) <= 32 * 1024);
+            creates += countActions(mServer.getPostedActionLists().get(i),
+                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE);
+        }
+        assertEquals(40, creates);
+        assertServerOrder(tasks);
+    }
+
+    @Test
+    public void pendingPriorSiblingIsFixedByMoveAfterCreate() throws Exception {
+        List<Task> tasks = createTasks(3, "");
+
+        // 新建动作不引用同一批中还没有gid的任务
+        List<JSONArray> posts = mServer.getPostedActionLists();
+        assertEquals(2, posts.size());
+        JSONArray creates = posts.get(0);
+        assertEquals(3, creates.length());
+        for (int i = 0; i < creates.length(); i++) {
+            assertFalse(creates.getJSONObject(i).has(
+                    GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+        }
+
+        // 移动动作留在缓存中，下一次提交时按新建顺序把后两个任务移到前一个之后
+        JSONArray moves = posts.get(1);
+        assertEquals(2, moves.length());
+        for (int i = 0; i < moves.length(); i++) {
+            JSONObject move = moves.getJSONObject(i);
+            assertEquals(GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE,
+                    move.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE));
+            assertEquals(tasks.get(i + 1).getGid(), move.getString(GTaskStringUtils.GTASK_JSON_ID));
+            assertEquals(tasks.get(i).getGid(),
+                    move.getString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+        }
+        assertServerOrder(tasks);
+    }
+
+    @Test
+    public void priorSiblingFromEarlierBatchUsesGid() throws Exception {
+        createTasks(100, "");
+        Task next = new Task();
+        next.setName("task 100");
+        mList.addChildTask(next);
+        mClient.createTask(next);
+        mClient.commitUpdate();
+
+        List<JSONArray> posts = mServer.getPostedActionLists();
+        JSONObject action = posts.get(posts.size() - 1).getJSONObject(0);
+        assertEquals(GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE,
+                action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE));
+        assertEquals(next.getPriorSibling().getGid(),
+                action.getString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+    }
+
+    @Test
+    public void updatesShareBatchesWithCreates() throws Exception {
+        List<Task> tasks = createTasks(150, "");
+        mServer.resetCounts();
+
+        for (Task task : tasks) {
+            task.setNotes("changed");
+            mClient.addUpdateNode(task);
+        }
+        mClient.commitUpdate();
+
+        assertEquals(2, mServer.getPostCount());
+        for (Task task : tasks) {
+            assertEquals("changed", mServer.getTask(task.getGid()).notes);
+        }
+    }
+
+    private static int countActions(JSONArray actions, String type) throws Exception {
+        int count = 0;
+        for (int i = 0; i < actions.length(); i++) {
+            if (type.equals(actions.getJSONObject(i).getString(
+                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private List<Task> createTasks(int count, String notes) throws Exception {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < count; i++) {
+            Task task = new Task();
+            task.setName("task " + i);
+            task.setNotes(notes);
+            mList.addChildTask(task);
+            mClient.createTask(task);
+            tasks.add(task);
+        }
+        mClient.commitUpdate();
+        // 提交调整位置的移动动作
+        mClient.commitUpdate();
+        return tasks;
+    }
+
+    private void assertServerOrder(List<Task> tasks) {
+        List<GTaskStubServer.Entity> remote = mServer.getTasks(mList.getGid());
+        assertEquals(tasks.size(), remote.size());
+        HashMap<String, Task> byGid = new HashMap<String, Task>();
+        for (int i = 0; i < tasks.size(); i++) {
+            assertNotNull("task " + i + " has no gid", tasks.get(i).getGid());
+            assertEquals(tasks.get(i).getGid(), remote.get(i).id);
+            assertNull(byGid.put(tasks.get(i).getGid(), tasks.get(i)));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.gtask.exception.AuthFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * 幂等请求的退避重试：断开连接时重试，会话失效时不重试
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GTaskClientRetryTest {
+    private GTaskStubServer mServer;
+
+    private GTaskClient mClient;
+
+    private Task mTask;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new GTaskStubServer();
+        mClient = mServer.connect(RuntimeEnvironment.getApplication());
+
+        TaskList list = new TaskList();
+        list.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX + "retry");
+        list.setGid(mServer.addList(list.getName()).id);
+        mTask = new Task();
+        mTask.setName("task");
+        list.addChildTask(mTask);
+        mTask.setGid(mServer.addTask(list.getGid(), "task", null).id);
+        mServer.resetCounts();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.resetUpdateArray();
+        mServer.stop();
+    }
+
+    @Test
+    public void updateRetriedAfterDroppedConnection() throws Exception {
+        mServer.failNextRequests(2);
+        mTask.setNotes("changed");
+        mClient.addUpdateNode(mTask);
+        mClient.commitUpdate();
+
+        assertEquals(1, mServer.getPostCount());
+        assertEquals("changed", mServer.getTask(mTask.getGid()).notes);
+    }
+
+    @Test
+    public void updateGivesUpAfterMaxRetries() throws Exception {
+        mServer.failNextRequests(100);
+        mClient.addUpdateNode(mTask);
+        try {
+            mClient.commitUpdate();
+            fail("expected NetworkFailureException");
+        } catch (NetworkFailureException e) {
+            // expected
+        }
+        assertEquals(0, mServer.getPostCount());
+    }
+
+    @Test
+    public void rejectedSessionNotRetried() throws Exception {
+        mServer.setRejectSession(true);
+        mClient.addUpdateNode(mTask);
+        long start = System.currentTimeMillis();
+        try {
+            mClient.commitUpdate();
+            fail("expected AuthFailureException");
+        } catch (AuthFailureException e) {
+            // expected
+        }
+        // 重新登录失败后不再退避重试
+        assertEquals(1, mServer.getPostCount());
+        assertTrue(System.currentTimeMillis() - start < 500);
+    }
+
+    @Test
+    public void cancelWakesBackoff() throws Exception {
+        mServer.failNextRequests(100);
+        mClient.addUpdateNode(mTask);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mClient.cancel();
+            }
+        }).start();
+        long start = System.currentTimeMillis();
+        try {
+            mClient.commitUpdate();
+            fail("expected NetworkFailureException");
+        } catch (NetworkFailureException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Description：进程内的GTask服务器，用于同步相关的JVM测试
+ * GET返回带_setup(...)的任务页面，POST处理action_list中的create/update/move/get_all，
+ * 新建动作按action_id返回new_id，prior_sibling_id必须是已经存在的任务id，否则请求失败
+ * 可以注入延迟（动作执行之后、响应之前）和断开连接的失败，可以在某种动作前暂停，并统计请求数
+ */
+class GTaskStubServer {
+    static final String ACCOUNT = "stub@gmail.com";
+
+    private static final String GET_PATH = "/tasks/ig";
+
+    private static final String POST_PATH = "/tasks/r/ig";
+
+    private static final long CLIENT_VERSION = 1;
+
+    // 服务器上的任务或任务列表
+    static class Entity {
+        String id;
+        String name;
+        String notes;
+        boolean deleted;
+        boolean completed;
+        long lastModified;
+        // 任务所在的列表，任务列表为null
+        String listId;
+    }
+
+    private final HttpServer mServer;
+
+    private final ExecutorService mExecutor;
+
+    private final LinkedHashMap<String, Entity> mLists = new LinkedHashMap<String, Entity>();
+
+    private final HashMap<String, Entity> mTasks = new HashMap<String, Entity>();
+
+    // 列表id到其中任务id的顺序
+    private final HashMap<String, ArrayList<String>> mChildren = new HashMap<String, ArrayList<String>>();
+
+    private final ArrayList<JSONArray> mPostedActionLists = new ArrayList<JSONArray>();
+
+    private final ArrayList<Integer> mPostedBytes = new ArrayList<Integer>();
+
+    private int mNextId = 1;
+
+    private long mClock = 1000000L;
+
+    private int mGetCount;
+
+    private int mPostCount;
+
+    // 收到的请求体和发出的响应体的字节数
+    private long mBytesIn;
+
+    private long mBytesOut;
+
+    private volatile long mLatencyMs;
+
+    // 还要断开的请求数
+    private int mFailNext;
+
+    // 成功处理这么多个POST之后，之后的POST都断开，-1表示不限制
+    private int mFailPostsAfter = -1;
+
+    // 为true时所有请求都返回401，模拟会话失效
+    private volatile boolean mRejectSession;
+
+    // 收到包含这种动作的POST时，执行之前先暂停，直到resume
+    private volatile String mPauseActionType;
+
+    private final CountDownLatch mPaused = new CountDownLatch(1);
+
+    private final CountDownLatch mResumed = new CountDownLatch(1);
+
+    GTaskStubServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.createContext(GET_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleGet(exchange);
+            }
+        });
+        mServer.createContext(POST_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handlePost(exchange);
+            }
+        });
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    /*
+     * 把保存的会话指向这个服务器并登录，不经过AccountManager
+     */
+    GTaskClient connect(Context context) {
+        context.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME, Context.MODE_PRIVATE)
+                .edit().putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT)
+                .commit();
+        GTaskClient client = GTaskClient.getInstance();
+        client.logout(context);
+        client.resetUpdateArray();
+        client.resetCancelled();
+
+        BasicClientCookie cookie = new BasicClientCookie("SID", "stub");
+        cookie.setDomain("127.0.0.1");
+        cookie.setPath("/");
+        List<Cookie> cookies = new ArrayList<Cookie>();
+        cookies.add(cookie);
+        GTaskAuthSession.capture(ACCOUNT, getUrl(GET_PATH), getUrl(POST_PATH), CLIENT_VERSION,
+                cookies).save(context);
+        if (!client.login(context)) {
+            throw new IllegalStateException("login with stub session failed");
+        }
+        return client;
+    }
+
+    /*
+     * 动作执行之后、发送响应之前等待的时间
+     */
+    void setLatency(long ms) {
+        mLatencyMs = ms;
+    }
+
+    synchronized void failNextRequests(int count) {
+        mFailNext = count;
+    }
+
+    synchronized void failPostsAfter(int posts) {
+        mFailPostsAfter = posts;
+    }
+
+    void setRejectSession(boolean reject) {
+        mRejectSession = reject;
+    }
+
+    /*
+     * 第一个包含actionType动作的POST在执行前暂停，用于在同步进行中检查客户端的状态
+     */
+    void pauseOnAction(String actionType) {
+        mPauseActionType = actionType;
+    }
+
+    boolean awaitPaused(long ms) throws InterruptedException {
+        return mPaused.await(ms, TimeUnit.MILLISECONDS);
+    }
+
+    void resume() {
+        mPauseActionType = null;
+        mResumed.countDown();
+    }
+
+    synchronized int getGetCount() {
+        return mGetCount;
+    }
+
+    synchronized int getPostCount() {
+        return mPostCount;
+    }
+
+    synchronized int getRequestCount() {
+        return mGetCount + mPostCount;
+    }
+
+    synchronized void resetCounts() {
+        mGetCount = 0;
+        mPostCount = 0;
+        mPostedActionLists.clear();
+        mPostedBytes.clear();
+        mBytesIn = 0;
+        mBytesOut = 0;
+    }
+
+    synchronized long getBytesIn() {
+        return mBytesIn;
+    }
+
+    synchronized long getBytesOut() {
+        return mBytesOut;
+    }
+
+    synchronized List<JSONArray> getPostedActionLists() {
+        return new ArrayList<JSONArray>(mPostedActionLists);
+    }
+
+    /*
+     * 每个POST中action_list的字节数
+     */
+    synchronized List<Integer> getPostedBytes() {
+        return new ArrayList<Integer>(mPostedBytes);
+    }
+
+    synchronized Entity addList(String name) {
+        Entity list = new Entity();
+        list.id = newId();
+        list.name = name;
+        list.lastModified = tick();
+        mLists.put(list.id, list);
+        mChildren.put(list.id, new ArrayList<String>());
+        return list;
+    }
+
+    synchronized Entity addTask(String listId, String name, String notes) {
+        Entity task = newTask(listId, name, notes);
+        mChildren.get(listId).add(task.id);
+        return task;
+    }
+
+    synchronized Entity findList(String name) {
+        for (Entity list : mLists.values()) {
+            if (list.name.equals(name)) {
+                return list;
+            }
+        }
+        return null;
+    }
+
+    synchronized Entity getTask(String id) {
+        return mTasks.get(id);
+    }
+
+    /*
+     * 模拟在网页上修改任务，修改时间前进，下次同步时视为远端修改
+     */
+    synchronized void editTask(String id, String name) {
+        Entity task = mTasks.get(id);
+        task.name = name;
+        task.lastModified = tick();
+    }
+
+    /*
+     * 列表中没有删除的任务，按服务器上的顺序
+     */
+    synchronized List<Entity> getTasks(String listId) {
+        ArrayList<Entity> tasks = new ArrayList<Entity>();
+        List<String> children = mChildren.get(listId);
+        if (children == null) {
+            return tasks;
+        }
+        for (String id : children) {
+            Entity task = mTasks.get(id);
+            if (!task.deleted) {
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    synchronized List<Entity> getLists() {
+        return Collections.unmodifiableList(new ArrayList<Entity>(mLists.values()));
+    }
+
+    private Entity newTask(String listId, String name, String notes) {
+        Entity task = new Entity();
+        task.id = newId();
+        task.name = name;
+        task.notes = notes;
+        task.listId = listId;
+        task.lastModified = tick();
+        mTasks.put(task.id, task);
+        return task;
+    }
+
+    private String newId() {
+        return "stub:" + (mNextId++);
+    }
+
+    private long tick() {
+        return ++mClock;
+    }
+
+    /*
+     * 返回true表示这个请求应该断开连接
+     */
+    private synchronized boolean shouldFail(boolean post) {
+        if (mFailNext > 0) {
+            mFailNext--;
+            return true;
+        }
+        return post && mFailPostsAfter >= 0 && mPostCount >= mFailPostsAfter;
+    }
+
+    private void handleGet(HttpExchange exchange) throws IOException {
+        if (shouldFail(false)) {
+            exchange.close();
+            return;
+        }
+        if (reject(exchange, false)) {
+            return;
+        }
+        String page;
+        synchronized (this) {
+            mGetCount++;
+            JSONArray lists = new JSONArray();
+            try {
+                for (Entity list : mLists.values()) {
+                    lists.put(toJson(list));
+                }
+                JSONObject t = new JSONObject();
+                t.put(GTaskStringUtils.GTASK_JSON_LISTS, lists);
+                JSONObject setup = new JSONObject();
+                setup.put("v", CLIENT_VERSION);
+                setup.put("t", t);
+                page = "<html><script>_setup(" + setup + ")}</script></html>";
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+        respond(exchange, page);
+    }
+
+    private void handlePost(HttpExchange exchange) throws IOException {
+        String body = readBody(exchange.getRequestBody());
+        synchronized (this) {
+            mBytesIn += body.getBytes(StandardCharsets.UTF_8).length;
+        }
+        if (shouldFail(true)) {
+            exchange.close();
+            return;
+        }
+        if (reject(exchange, true)) {
+            return;
+        }
+        String response;
+        try {
+            JSONObject request = new JSONObject(parseForm(body));
+            JSONArray actions = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+            pauseIfRequested(actions);
+            response = apply(actions).toString();
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        long latency = mLatencyMs;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                exchange.close();
+                return;
+            }
+        }
+        respond(exchange, response);
+    }
+
+    private void pauseIfRequested(JSONArray actions) throws JSONException {
+        String type = mPauseActionType;
+        if (type == null) {
+            return;
+        }
+        for (int i = 0; i < actions.length(); i++) {
+            if (type.equals(actions.getJSONObject(i).getString(
+                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE))) {
+                mPaused.countDown();
+                try {
+                    mResumed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+        }
+    }
+
+    /*
+     * 会话失效时计入请求数并返回401
+     */
+    private boolean reject(HttpExchange exchange, boolean post) throws IOException {
+        if (!mRejectSession) {
+            return false;
+        }
+        synchronized (this) {
+            if (post) {
+                mPostCount++;
+            } else {
+                mGetCount++;
+            }
+        }
+        exchange.sendResponseHeaders(401, -1);
+        exchange.close();
+        return true;
+    }
+
+    private synchronized JSONObject apply(JSONArray actions) throws JSONException {
+        mPostCount++;
+        mPostedActionLists.add(actions);
+        mPostedBytes.add(actions.toString().getBytes(StandardCharsets.UTF_8).length);
+
+        JSONArray results = new JSONArray();
+        JSONObject response = new JSONObject();
+        for (int i = 0; i < actions.length(); i++) {
+            JSONObject action = actions.getJSONObject(i);
+            String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+            int actionId = action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID);
+            JSONObject result = new JSONObject();
+            result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+
+            if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+                String id = applyCreate(action);
+                result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, id);
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+                applyUpdate(action);
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE.equals(type)) {
+                applyMove(action);
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                JSONArray tasks = new JSONArray();
+                List<String> children = mChildren.get(action.getString(
+                        GTaskStringUtils.GTASK_JSON_LIST_ID));
+                boolean getDeleted = action.optBoolean(GTaskStringUtils.GTASK_JSON_GET_DELETED);
+                if (children != null) {
+                    for (String id : children) {
+                        Entity task = mTasks.get(id);
+                        if (getDeleted || !task.deleted) {
+                            tasks.put(toJson(task));
+                        }
+                    }
+                }
+                response.put(GTaskStringUtils.GTASK_JSON_TASKS, tasks);
+            }
+            results.put(result);
+        }
+        response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+        return response;
+    }
+
+    private String applyCreate(JSONObject action) throws JSONException {
+        JSONObject delta = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        String name = delta.getString(GTaskStringUtils.GTASK_JSON_NAME);
+        if (GTaskStringUtils.GTASK_JSON_TYPE_GROUP.equals(
+                delta.getString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))) {
+            return addList(name).id;
+        }
+
+        String listId = action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID);
+        ArrayList<String> children = mChildren.get(listId);
+        if (children == null) {
+            throw new JSONException("no such list " + listId);
+        }
+        Entity task = newTask(listId, name, delta.optString(GTaskStringUtils.GTASK_JSON_NOTES, null));
+        insert(children, task.id, action.optString(
+                GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null));
+        return task.id;
+    }
+
+    private void applyUpdate(JSONObject action) throws JSONException {
+        String id = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        Entity entity = mTasks.containsKey(id) ? mTasks.get(id) : mLists.get(id);
+        if (entity == null) {
+            throw new JSONException("no such node " + id);
+        }
+        JSONObject delta = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        if (delta.has(GTaskStringUtils.GTASK_JSON_NAME)) {
+            entity.name = delta.getString(GTaskStringUtils.GTASK_JSON_NAME);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_NOTES)) {
+            entity.notes = delta.getString(GTaskStringUtils.GTASK_JSON_NOTES);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_DELETED)) {
+            entity.deleted = delta.getBoolean(GTaskStringUtils.GTASK_JSON_DELETED);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_COMPLETED)) {
+            entity.completed = delta.getBoolean(GTaskStringUtils.GTASK_JSON_COMPLETED);
+        }
+        entity.lastModified = tick();
+    }
+
+    private void applyMove(JSONObject action) throws JSONException {
+        Entity task = mTasks.get(action.getString(GTaskStringUtils.GTASK_JSON_ID));
+        if (task == null) {
+            throw new JSONException("no such task");
+        }
+        mChildren.get(task.listId).remove(task.id);
+        if (action.has(GTaskStringUtils.GTASK_JSON_DEST_LIST)) {
+            task.listId = action.getString(GTaskStringUtils.GTASK_JSON_DEST_LIST);
+        }
+        insert(mChildren.get(task.listId), task.id, action.optString(
+                GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null));
+        task.lastModified = tick();
+    }
+
+    /*
+     * 没有prior_sibling_id时放在最前面，和真实的服务器一样只接受已经存在的任务的gid
+     */
+    private static void insert(ArrayList<String> children, String id, String priorSiblingId)
+            throws JSONException {
+        int index = priorSiblingId == null ? -1 : children.indexOf(priorSiblingId);
+        if (priorSiblingId != null && index < 0) {
+            throw new JSONException("no such prior sibling " + priorSiblingId);
+        }
+        children.add(index + 1, id);
+    }
+
+    private static JSONObject toJson(Entity entity) throws JSONException {
+        JSONObject js = new JSONObject();
+        js.put(GTaskStringUtils.GTASK_JSON_ID, entity.id);
+        js.put(GTaskStringUtils.GTASK_JSON_NAME, entity.name);
+        js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, entity.lastModified);
+        if (entity.listId != null) {
+            if (entity.notes != null) {
+                js.put(GTaskStringUtils.GTASK_JSON_NOTES, entity.notes);
+            }
+            js.put(GTaskStringUtils.GTASK_JSON_DELETED, entity.deleted);
+            js.put(GTaskStringUtils.GTASK_JSON_COMPLETED, entity.completed);
+        }
+        return js;
+    }
+
+    private static String parseForm(String body) throws IOException {
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && "r".equals(pair.substring(0, eq))) {
+                return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        throw new IOException("no action list in request");
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void respond(HttpExchange exchange, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            mBytesOut += bytes.length;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Looper;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.TestNotes;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 通过桩服务器同步100、10k、50k条便签，输出每个阶段的耗时和请求数，以及同步过程中持有的内存
+ * 10k、50k和内存测量需要几分钟或依赖GC，默认跳过，用-Dgtask.benchmark.large=true运行
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GTaskSyncBenchmarkTest {
+    private static final String LARGE_PROPERTY = "gtask.benchmark.large";
+
+    // 第三阶段修改的便签比例
+    private static final int EDIT_PERCENT = 1;
+
+    // 每条便签允许的同步时间，加上固定的一分钟
+    private static final long TIMEOUT_MS_PER_NOTE = 20;
+
+    private static final long TIMEOUT_MS = 60000;
+
+    private static final int MEMORY_NOTE_COUNT = 3000;
+
+    // 每个便签在远端有一个任务和一个meta，meta的JSON是其中最大的部分
+    private static final long MAX_BYTES_PER_NOTE = 1536;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private GTaskStubServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = TestNotes.setUp();
+        mServer = new GTaskStubServer();
+        mServer.connect(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        GTaskClient.getInstance().resetUpdateArray();
+        mServer.stop();
+    }
+
+    @Test
+    public void sync100Notes() throws Exception {
+        benchmark(100);
+    }
+
+    @Test
+    public void sync10kNotes() throws Exception {
+        assumeTrue(Boolean.getBoolean(LARGE_PROPERTY));
+        benchmark(10000);
+    }
+
+    @Test
+    public void sync50kNotes() throws Exception {
+        assumeTrue(Boolean.getBoolean(LARGE_PROPERTY));
+        benchmark(50000);
+    }
+
+    @Test
+    public void remoteStateRetainedPerNoteIsBounded() throws Exception {
+        assumeTrue(Boolean.getBoolean(LARGE_PROPERTY));
+        long changed = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "changed");
+        for (int i = 1; i < MEMORY_NOTE_COUNT; i++) {
+            TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "note " + i);
+        }
+        assertEquals(GTaskManager.STATE_SUCCESS, sync(TIMEOUT_MS));
+
+        // 第二次同步读完所有远端任务和meta之后，在发出第一个修改时暂停，
+        // 和同步结束、所有状态释放之后比较，得到同步过程中持有的内存
+        TestNotes.updateNote(mResolver, changed, "changed again");
+        mServer.pauseOnAction(GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE);
+        AtomicInteger state = startSync();
+        assertTrue(mServer.awaitPaused(TIMEOUT_MS));
+        long peak = usedHeap();
+        mServer.resume();
+        assertEquals(GTaskManager.STATE_SUCCESS, awaitSync(state, TIMEOUT_MS));
+        long retained = peak - usedHeap();
+
+        long perNote = retained / MEMORY_NOTE_COUNT;
+        System.out.println("GTask sync " + MEMORY_NOTE_COUNT + " notes: retained "
+                + retained / 1024 + "KB during sync, " + perNote + " bytes per note");
+        assertTrue("retained " + perNote + " bytes per note", perNote < MAX_BYTES_PER_NOTE);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void benchmark(int count) throws Exception {
+        long timeout = TIMEOUT_MS + count * TIMEOUT_MS_PER_NOTE;
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "note " + i);
+        }
+
+        // 第一次同步：上传所有便签
+        measure(count, "upload", timeout);
+        assertEquals(count, remoteNoteCount());
+        assertEquals(0, unsyncedNotes());
+
+        // 没有任何修改时再次同步
+        Stats idle = measure(count, "unchanged", timeout);
+        assertEquals(0, idle.writes);
+
+        // 修改1%的便签
+        int edits = Math.max(1, count * EDIT_PERCENT / 100);
+        for (int i = 0; i < edits; i++) {
+            TestNotes.updateNote(mResolver, ids[i * (count / edits)], "edited " + i);
+        }
+        Stats edited = measure(count, "edit " + edits, timeout);
+        assertTrue(edited.writes >= edits);
+        assertEquals(0, unsyncedNotes());
+
+        // 新设备上的空数据库：下载所有便签
+        mResolver = TestNotes.setUp();
+        measure(count, "download", timeout);
+        assertEquals(count, TestNotes.count(mResolver, Notes.CONTENT_NOTE_URI,
+                NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, null));
+        assertEquals(0, unsyncedNotes());
+    }
+
+    private static class Stats {
+        int writes;
+    }
+
+    private Stats measure(int count, String phase, long timeout) throws Exception {
+        mServer.resetCounts();
+        long start = System.nanoTime();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync(timeout));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        Stats stats = new Stats();
+        long bytes = 0;
+        for (int size : mServer.getPostedBytes()) {
+            bytes += size;
+        }
+        for (JSONArray actions : mServer.getPostedActionLists()) {
+            for (int i = 0; i < actions.length(); i++) {
+                String type = actions.getJSONObject(i).getString(
+                        GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+                if (!GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                    stats.writes++;
+                }
+            }
+        }
+        System.out.println("GTask sync " + count + " notes, " + phase + ": " + elapsedMs + "ms, "
+                + mServer.getGetCount() + " GET, " + mServer.getPostCount() + " POST, "
+                + stats.writes + " write actions, " + bytes / 1024 + "KB posted");
+        return stats;
+    }
+
+    private int sync(long timeout) throws InterruptedException {
+        return awaitSync(startSync(), timeout);
+    }
+
+    private AtomicInteger startSync() {
+        final AtomicInteger state = new AtomicInteger(-1);
+        GTaskASyncTask task = new GTaskASyncTask(mContext, null) {
+            @Override
+            protected void onPostExecute(Integer result) {
+                super.onPostExecute(result);
+                state.set(result);
+            }
+        };
+        task.setShowNotification(false);
+        task.execute();
+        return state;
+    }
+
+    private int awaitSync(AtomicInteger state, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (state.get() < 0 && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(10);
+        }
+        return state.get();
+    }
+
+    private int remoteNoteCount() {
+        int count = 0;
+        for (GTaskStubServer.Entity list : mServer.getLists()) {
+            if (!list.name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + GTaskStringUtils.FOLDER_META)) {
+                count += mServer.getTasks(list.id).size();
+            }
+        }
+        return count;
+    }
+
+    private int unsyncedNotes() {
+        return TestNotes.count(mResolver, Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "="
+                + Notes.TYPE_NOTE + " AND " + NoteColumns.LOCAL_MODIFIED + "=1", null);
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Looper;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.TestNotes;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.tool.TextMerger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 通过桩服务器执行完整的同步：中断后重新同步不会重复创建已经提交的任务
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GTaskSyncTest {
+    private static final int NOTE_COUNT = 120;
+
+    private static final long SYNC_TIMEOUT_MS = 60000;
+
+    // 慢速服务器在新建任务之后、返回new_id之前等待的时间
+    private static final long SLOW_RESPONSE_MS = 5000;
+
+    // 取消中止正在等待的请求，远小于服务器返回new_id前等待的时间；留足余量，不测量速度
+    private static final long MAX_CANCEL_MS = SLOW_RESPONSE_MS / 2;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private GTaskStubServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = TestNotes.setUp();
+        mServer = new GTaskStubServer();
+        mServer.connect(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        GTaskClient.getInstance().resetUpdateArray();
+        mServer.stop();
+    }
+
+    /*
+     * 和后台定时同步一样在网络线程池中执行，结果在主线程上回调
+     */
+    private AtomicInteger startSync() {
+        final AtomicInteger state = new AtomicInteger(-1);
+        GTaskASyncTask task = new GTaskASyncTask(mContext, null) {
+            @Override
+            protected void onPostExecute(Integer result) {
+                super.onPostExecute(result);
+                state.set(result);
+            }
+        };
+        task.setShowNotification(false);
+        task.execute();
+        return state;
+    }
+
+    private int awaitSync(AtomicInteger state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+        while (state.get() < 0 && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(10);
+        }
+        return state.get();
+    }
+
+    private int sync() throws InterruptedException {
+        return awaitSync(startSync());
+    }
+
+    private void insertNotes(int count) {
+        for (int i = 0; i < count; i++) {
+            TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "note " + i);
+        }
+    }
+
+    /*
+     * 服务器上除元数据列表外所有任务的名字
+     */
+    private List<String> remoteNoteNames(HashSet<String> unique) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (GTaskStubServer.Entity list : mServer.getLists()) {
+            if (list.name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + GTaskStringUtils.FOLDER_META)) {
+                continue;
+            }
+            for (GTaskStubServer.Entity task : mServer.getTasks(list.id)) {
+                names.add(task.name);
+                unique.add(task.name);
+            }
+        }
+        return names;
+    }
+
+    /*
+     * 发出的新建便签动作数，不含元数据
+     */
+    private int postedCreates() throws Exception {
+        int creates = 0;
+        for (JSONArray actions : mServer.getPostedActionLists()) {
+            for (int i = 0; i < actions.length(); i++) {
+                JSONObject action = actions.getJSONObject(i);
+                if (!GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(
+                        action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE))) {
+                    continue;
+                }
+                JSONObject delta = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+                if (GTaskStringUtils.GTASK_JSON_TYPE_TASK.equals(
+                        delta.optString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))
+                        && !GTaskStringUtils.META_NOTE_NAME.equals(
+                                delta.optString(GTaskStringUtils.GTASK_JSON_NAME))) {
+                    creates++;
+                }
+            }
+        }
+        return creates;
+    }
+
+    private int unsyncedNotes() {
+        return TestNotes.count(mResolver, Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "="
+                + Notes.TYPE_NOTE + " AND " + NoteColumns.LOCAL_MODIFIED + "=1", null);
+    }
+
+    @Test
+    public void secondSyncCreatesNothing() throws Exception {
+        insertNotes(NOTE_COUNT);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        HashSet<String> unique = new HashSet<String>();
+        assertEquals(NOTE_COUNT, remoteNoteNames(unique).size());
+        assertEquals(NOTE_COUNT, unique.size());
+        assertEquals(0, unsyncedNotes());
+
+        mServer.resetCounts();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, postedCreates());
+        assertEquals(NOTE_COUNT, remoteNoteNames(new HashSet<String>()).size());
+    }
+
+    @Test
+    public void interruptedSyncResumesWithoutDuplicates() throws Exception {
+        insertNotes(NOTE_COUNT);
+        // 建好三个文件夹列表、提交了第一批便签和元数据之后网络断开
+        mServer.failPostsAfter(6);
+        assertEquals(GTaskManager.STATE_NETWORK_ERROR, sync());
+        int firstCreates = postedCreates();
+        int committed = remoteNoteNames(new HashSet<String>()).size();
+        assertTrue("nothing committed before the failure", committed > 0);
+        assertTrue("everything committed before the failure", committed < NOTE_COUNT);
+        assertEquals(NOTE_COUNT - committed, unsyncedNotes());
+
+        mServer.failPostsAfter(-1);
+        mServer.resetCounts();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        // 已经提交的便签在本地记录了gid，不会再次创建
+        HashSet<String> unique = new HashSet<String>();
+        assertEquals(NOTE_COUNT, remoteNoteNames(unique).size());
+        assertEquals(NOTE_COUNT, unique.size());
+        assertEquals(NOTE_COUNT - committed, postedCreates());
+        assertTrue(firstCreates > 0);
+        assertEquals(0, unsyncedNotes());
+    }
+
+    @Test
+    public void cancelAbortsCreateAndNextSyncAdoptsIt() throws Exception {
+        TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "first");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        insertNotes(NOTE_COUNT);
+
+        // 第一批新建请求到达后服务器变慢：任务已经建好，new_id迟迟不返回
+        mServer.resetCounts();
+        mServer.pauseOnAction(GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE);
+        AtomicInteger state = startSync();
+        assertTrue(mServer.awaitPaused(SYNC_TIMEOUT_MS));
+        mServer.setLatency(SLOW_RESPONSE_MS);
+        mServer.resume();
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+        while (postedCreates() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(postedCreates() > 0);
+
+        long start = System.nanoTime();
+        GTaskManager.getInstance().cancelSync();
+        assertEquals(GTaskManager.STATE_SYNC_CANCELLED, awaitSync(state));
+        long cancelMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("cancel took " + cancelMs + "ms", cancelMs < MAX_CANCEL_MS);
+
+        // 服务器上已经有这一批任务，本地没有拿到gid
+        int created = remoteNoteNames(new HashSet<String>()).size() - 1;
+        assertTrue(created > 0);
+        assertEquals(NOTE_COUNT, unsyncedNotes());
+
+        // 下次同步认领这些任务，只新建剩下的便签
+        mServer.setLatency(0);
+        mServer.resetCounts();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        HashSet<String> unique = new HashSet<String>();
+        assertEquals(NOTE_COUNT + 1, remoteNoteNames(unique).size());
+        assertEquals(NOTE_COUNT + 1, unique.size());
+        assertEquals(NOTE_COUNT - created, postedCreates());
+        assertEquals(0, unsyncedNotes());
+        assertEquals(NOTE_COUNT + 1, TestNotes.count(mResolver, Notes.CONTENT_NOTE_URI,
+                NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, null));
+    }
+
+    @Test
+    public void unconfirmedCreateDoesNotAdoptOlderTaskWithSameText() throws Exception {
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        // 用户在网页上建了一个任务，还没有同步下来时在本地建了同名的便签
+        GTaskStubServer.Entity list = mServer.findList(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                + GTaskStringUtils.FOLDER_DEFAULT);
+        GTaskStubServer.Entity webTask = mServer.addTask(list.id, "buy milk", null);
+        long noteId = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "buy milk");
+
+        // 每个列表读取一次之后的新建请求没有到达服务器，便签记为没有确认的新建
+        mServer.resetCounts();
+        mServer.failPostsAfter(mServer.getLists().size());
+        assertEquals(GTaskManager.STATE_NETWORK_ERROR, sync());
+        assertEquals(0, postedCreates());
+        assertEquals(1, unsyncedNotes());
+
+        // 网页上的任务在发出请求之前就存在，不是这个请求建的，不能认领
+        mServer.failPostsAfter(-1);
+        mServer.resetCounts();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(1, postedCreates());
+        assertFalse(webTask.id.equals(gidOf(noteId)));
+        List<String> names = remoteNoteNames(new HashSet<String>());
+        assertEquals(2, names.size());
+        assertEquals(Arrays.asList("buy milk", "buy milk"), names);
+        assertEquals(Arrays.asList("buy milk", "buy milk"), TestNotes.noteContents(mResolver));
+        assertEquals(0, unsyncedNotes());
+    }
+
+    private String gidOf(long noteId) {
+        Cursor c = mResolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),
+                new String[] {
+                        NoteColumns.GTASK_ID
+                }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private int outboxRows() {
+        return TestNotes.count(mResolver, Notes.CONTENT_OUTBOX_URI, null, null);
+    }
+
+    @Test
+    public void outboxRecordsOnlyUserDeletes() throws Exception {
+        long edited = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "edited");
+        long trashed = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "trashed");
+        long deleted = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "deleted");
+        // 新建的便签不记录
+        assertEquals(0, outboxRows());
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        // 同步写入gtask_id和清除local_modified不记录
+        assertEquals(0, outboxRows());
+        String trashedGid = gidOf(trashed);
+        String deletedGid = gidOf(deleted);
+
+        // 修改和移入回收站由扫描处理，不记录
+        TestNotes.updateNote(mResolver, edited, "edited again");
+        TestNotes.moveToTrash(mResolver, trashed);
+        assertEquals(0, outboxRows());
+        // 从数据库中删除的便签只能通过记录找到
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, deleted), null, null);
+        assertEquals(1, outboxRows());
+
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertTrue(mServer.getTask(deletedGid).deleted);
+        assertTrue(mServer.getTask(trashedGid).deleted);
+        assertEquals("edited again", mServer.getTask(gidOf(edited)).name);
+        // 同步自己删除回收站中的便签时一起清掉了触发器写入的记录
+        assertNull(gidOf(trashed));
+        assertEquals(0, outboxRows());
+    }
+
+    @Test
+    public void remoteDeleteLeavesNoOutboxRow() throws Exception {
+        long noteId = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "remote deleted");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        mServer.getTask(gidOf(noteId)).deleted = true;
+
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertNull(gidOf(noteId));
+        assertEquals(0, outboxRows());
+    }
+
+    private String noteText(long noteId) {
+        Cursor c = mResolver.query(Notes.CONTENT_DATA_URI, new String[] {
+                DataColumns.CONTENT
+        }, DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?", new String[] {
+                String.valueOf(noteId), Notes.DataConstants.NOTE
+        }, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void editsOnBothSidesAreMergedLineByLine() throws Exception {
+        long noteId = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "line a\nline b\nline c");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        String gid = gidOf(noteId);
+
+        // 两边修改不同的行，合并后两边的修改都保留，并上传到远端
+        TestNotes.updateNote(mResolver, noteId, "line A\nline b\nline c");
+        mServer.editTask(gid, "line a\nline b\nline C");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals("line A\nline b\nline C", noteText(noteId));
+        assertEquals("line A\nline b\nline C", mServer.getTask(gid).name);
+        assertEquals(0, unsyncedNotes());
+
+        // 两边修改同一行，保留两份并加上冲突标记
+        TestNotes.updateNote(mResolver, noteId, "line A\nlocal b\nline C");
+        mServer.editTask(gid, "line A\nremote b\nline C");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        String expected = "line A\n"
+                + TextMerger.MARKER_LOCAL + mContext.getString(R.string.sync_conflict_local)
+                + "\nlocal b\n"
+                + TextMerger.MARKER_SEPARATOR
+                + "\nremote b\n"
+                + TextMerger.MARKER_REMOTE + mContext.getString(R.string.sync_conflict_remote)
+                + "\nline C";
+        assertEquals(expected, noteText(noteId));
+        assertEquals(expected, mServer.getTask(gid).name);
+    }
+
+    @Test
+    public void conflictWithoutSyncBaseKeepsLocalNote() throws Exception {
+        long noteId = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "line a\nline b\nline c");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        String gid = gidOf(noteId);
+
+        // 升级前同步过的便签没有基础版本，和以前一样本地的修改覆盖远端
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.SYNC_BASE, "");
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+        TestNotes.updateNote(mResolver, noteId, "line A\nline b\nline c");
+        mServer.editTask(gid, "line a\nline b\nline C");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals("line A\nline b\nline c", noteText(noteId));
+        assertEquals("line A\nline b\nline c", mServer.getTask(gid).name);
+        assertEquals(0, unsyncedNotes());
+    }
+
+    /*
+     * 发出的更新动作数，id为null时包括元数据在内的所有更新
+     */
+    private int postedUpdates(String id) throws Exception {
+        int count = 0;
+        for (JSONArray actions : mServer.getPostedActionLists()) {
+            for (int i = 0; i < actions.length(); i++) {
+                JSONObject action = actions.getJSONObject(i);
+                if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(
+                        action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE))
+                        && (id == null || id.equals(
+                                action.optString(GTaskStringUtils.GTASK_JSON_ID)))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void unchangedResaveUploadsNothing() throws Exception {
+        long noteId = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "saved again");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        // 只打开保存，内容和上次同步时相同，只清除本地修改标记
+        TestNotes.updateNote(mResolver, noteId, "saved again");
+        assertEquals(1, unsyncedNotes());
+        mServer.resetCounts();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, postedUpdates(null));
+        assertEquals(0, unsyncedNotes());
+
+        // 内容真正改变时才上传
+        TestNotes.updateNote(mResolver, noteId, "changed");
+        mServer.resetCounts();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(1, postedUpdates(gidOf(noteId)));
+        assertEquals("changed", mServer.getTask(gidOf(noteId)).name);
+    }
+
+    @Test
+    public void unchangedResaveTakesRemoteEditInConflict() throws Exception {
+        long noteId = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "line a\nline b");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        String gid = gidOf(noteId);
+
+        // 两边都标记为修改，但本地内容没变，直接使用远端的内容，不合并也不上传任务，只更新meta
+        TestNotes.updateNote(mResolver, noteId, "line a\nline b");
+        mServer.editTask(gid, "line a\nremote b");
+        mServer.resetCounts();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals("line a\nremote b", noteText(noteId));
+        assertEquals("line a\nremote b", mServer.getTask(gid).name);
+        assertEquals(0, postedUpdates(gid));
+        assertEquals(0, unsyncedNotes());
+        // 没有经过合并，不算作冲突
+        assertEquals(0, SyncMetrics.getHistory(mContext, 1).getJSONObject(0)
+                .getInt(SyncMetrics.KEY_CONFLICTS));
+    }
+}
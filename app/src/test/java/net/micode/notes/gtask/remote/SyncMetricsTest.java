@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Looper;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.TestNotes;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 每次同步的阶段耗时和流量追加到日志文件，文件过大时滚动，读取时从新到旧
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SyncMetricsTest {
+    private static final long MAX_LOG_SIZE = 64 * 1024;
+
+    private static final long SYNC_TIMEOUT_MS = 60000;
+
+    private Context mContext;
+
+    private File mLog;
+
+    private File mOldLog;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mLog = new File(mContext.getFilesDir(), "sync_metrics.log");
+        mOldLog = new File(mContext.getFilesDir(), "sync_metrics.log.1");
+        mLog.delete();
+        mOldLog.delete();
+    }
+
+    private static void advance(long millis) {
+        ShadowSystemClock.advanceBy(Duration.ofMillis(millis));
+    }
+
+    private void finishSync(int result) {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.setResult(result);
+        metrics.finish(mContext);
+    }
+
+    private static List<Integer> results(JSONArray history) throws Exception {
+        ArrayList<Integer> results = new ArrayList<Integer>();
+        for (int i = 0; i < history.length(); i++) {
+            results.add(history.getJSONObject(i).getInt(SyncMetrics.KEY_RESULT));
+        }
+        return results;
+    }
+
+    private static JSONArray readLog(File file) throws Exception {
+        JSONArray lines = new JSONArray();
+        for (String line : new String(Files.readAllBytes(file.toPath()),
+                StandardCharsets.UTF_8).split("\n")) {
+            lines.put(new JSONObject(line));
+        }
+        return lines;
+    }
+
+    @Test
+    public void finishRecordsPhasesAndCounters() throws Exception {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.beginPhase(SyncMetrics.PHASE_LOGIN);
+        advance(100);
+        metrics.beginPhase(SyncMetrics.PHASE_NOTES);
+        metrics.onRequest(300);
+        metrics.onRequest(-1);
+        metrics.onBytesReceived(1200);
+        advance(50);
+        // 同一阶段再次开始时耗时累加，顺序按第一次开始
+        metrics.beginPhase(SyncMetrics.PHASE_LOGIN);
+        advance(20);
+        metrics.addRowsWritten(7);
+        metrics.onConflict();
+        metrics.setResult(GTaskManager.STATE_SUCCESS);
+        metrics.finish(mContext);
+        // finish之后的时间不计入
+        advance(1000);
+
+        JSONArray history = SyncMetrics.getHistory(mContext, 10);
+        assertEquals(1, history.length());
+        JSONObject js = history.getJSONObject(0);
+        assertEquals(metrics.toJSON().toString(), js.toString());
+        assertEquals(170, js.getLong(SyncMetrics.KEY_TOTAL_TIME));
+        JSONObject phases = js.getJSONObject(SyncMetrics.KEY_PHASES);
+        Iterator<String> keys = phases.keys();
+        assertEquals(SyncMetrics.PHASE_LOGIN, keys.next());
+        assertEquals(SyncMetrics.PHASE_NOTES, keys.next());
+        assertFalse(keys.hasNext());
+        assertEquals(120, phases.getLong(SyncMetrics.PHASE_LOGIN));
+        assertEquals(50, phases.getLong(SyncMetrics.PHASE_NOTES));
+        assertEquals(2, js.getInt(SyncMetrics.KEY_REQUESTS));
+        assertEquals(300, js.getLong(SyncMetrics.KEY_BYTES_UP));
+        assertEquals(1200, js.getLong(SyncMetrics.KEY_BYTES_DOWN));
+        assertEquals(7, js.getInt(SyncMetrics.KEY_ROWS_WRITTEN));
+        assertEquals(1, js.getInt(SyncMetrics.KEY_CONFLICTS));
+        assertEquals(GTaskManager.STATE_SUCCESS, js.getInt(SyncMetrics.KEY_RESULT));
+    }
+
+    @Test
+    public void historyIsNewestFirstAndSkipsBrokenLines() throws Exception {
+        assertEquals(0, SyncMetrics.getHistory(mContext, 10).length());
+        finishSync(1);
+        finishSync(2);
+        // 写入时被中断的行
+        OutputStream out = new FileOutputStream(mLog, true);
+        try {
+            out.write("{\"result\":".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        finishSync(3);
+
+        assertEquals(Arrays.asList(3, 2, 1), results(SyncMetrics.getHistory(mContext, 10)));
+        assertEquals(Arrays.asList(3, 2), results(SyncMetrics.getHistory(mContext, 2)));
+    }
+
+    @Test
+    public void logRollsPastMaxSizeAndKeepsTwoFiles() throws Exception {
+        int count = 0;
+        while (!mOldLog.exists()) {
+            finishSync(count++);
+        }
+        // 超过上限后的下一次写入前滚动，新文件只有这一条
+        assertTrue(mOldLog.length() > MAX_LOG_SIZE);
+        assertEquals(Arrays.asList(count - 1), results(readLog(mLog)));
+        int firstFile = count - 1;
+
+        // 读取跨过两个文件，顺序连续
+        List<Integer> history = results(SyncMetrics.getHistory(mContext, count));
+        assertEquals(count, history.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(count - 1 - i, (int) history.get(i));
+        }
+
+        // 再滚动一次，最早的文件被丢弃
+        while (mLog.length() <= MAX_LOG_SIZE) {
+            finishSync(count++);
+        }
+        finishSync(count++);
+        history = results(SyncMetrics.getHistory(mContext, Integer.MAX_VALUE));
+        assertEquals(count - firstFile, history.size());
+        assertEquals(firstFile, (int) history.get(history.size() - 1));
+        assertEquals(count - 1, (int) history.get(0));
+    }
+
+    @Test
+    public void syncRecordsEveryPhaseAndTheTraffic() throws Exception {
+        ContentResolver resolver = TestNotes.setUp();
+        for (int i = 0; i < 30; i++) {
+            TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "note " + i);
+        }
+        GTaskStubServer server = new GTaskStubServer();
+        try {
+            server.connect(mContext);
+            server.resetCounts();
+            final AtomicInteger state = new AtomicInteger(-1);
+            GTaskASyncTask task = new GTaskASyncTask(mContext, null) {
+                @Override
+                protected void onPostExecute(Integer result) {
+                    super.onPostExecute(result);
+                    state.set(result);
+                }
+            };
+            task.setShowNotification(false);
+            task.execute();
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+            while (state.get() < 0 && System.currentTimeMillis() < deadline) {
+                shadowOf(Looper.getMainLooper()).idle();
+                Thread.sleep(10);
+            }
+            assertEquals(GTaskManager.STATE_SUCCESS, state.get());
+
+            JSONArray history = SyncMetrics.getHistory(mContext, 10);
+            assertEquals(1, history.length());
+            JSONObject js = history.getJSONObject(0);
+            assertEquals(GTaskManager.STATE_SUCCESS, js.getInt(SyncMetrics.KEY_RESULT));
+
+            // 每个阶段都有记录，按执行顺序，合计不超过总耗时
+            JSONObject phases = js.getJSONObject(SyncMetrics.KEY_PHASES);
+            List<String> names = new ArrayList<String>();
+            long sum = 0;
+            for (Iterator<String> keys = phases.keys(); keys.hasNext();) {
+                String name = keys.next();
+                names.add(name);
+                assertTrue(name, phases.getLong(name) >= 0);
+                sum += phases.getLong(name);
+            }
+            assertEquals(Arrays.asList(SyncMetrics.PHASE_LOGIN, SyncMetrics.PHASE_INIT_LIST,
+                    SyncMetrics.PHASE_FOLDERS, SyncMetrics.PHASE_NOTES,
+                    SyncMetrics.PHASE_REFRESH), names);
+            assertTrue(sum <= js.getLong(SyncMetrics.KEY_TOTAL_TIME));
+
+            // 请求数和字节数与服务器看到的一致
+            assertEquals(server.getRequestCount(), js.getInt(SyncMetrics.KEY_REQUESTS));
+            assertEquals(server.getBytesIn(), js.getLong(SyncMetrics.KEY_BYTES_UP));
+            assertEquals(server.getBytesOut(), js.getLong(SyncMetrics.KEY_BYTES_DOWN));
+            assertTrue(js.getInt(SyncMetrics.KEY_ROWS_WRITTEN) >= 30);
+            assertEquals(0, js.getInt(SyncMetrics.KEY_CONFLICTS));
+        } finally {
+            GTaskClient.getInstance().resetUpdateArray();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.Context;
+
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+/**
+ * 推送同步合并连续的修改，最多推迟到上限；同一时间只执行一个同步，被跳过的推送之后重新安排
+ */
+@RunWith(RobolectricTestRunner.class)
+// SyncScheduler 用 System.currentTimeMillis 计时，插桩后跟随 Robolectric 的时钟
+@Config(instrumentedPackages = "net.micode.notes.gtask.remote")
+public class SyncSchedulerTest {
+    private static final long PUSH_DELAY = 30 * 1000L;
+
+    private static final long PUSH_MAX_DELAY = 5 * 60 * 1000L;
+
+    private Context mContext;
+
+    private JobScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit()
+                .putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, "a@gmail.com")
+                .commit();
+        mScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        // 调度状态保存在静态变量中，同一个进程中的测试之间需要清空
+        SyncScheduler.cancelAll(mContext);
+        SyncScheduler.onJobFinished(mContext);
+        setManualSync(null);
+        // Robolectric 的时钟从接近0开始，和"没有请求过"的0区分开
+        advance(PUSH_MAX_DELAY);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        setManualSync(null);
+        SyncScheduler.cancelAll(mContext);
+        SyncScheduler.onJobFinished(mContext);
+    }
+
+    private static void setManualSync(GTaskASyncTask task) throws Exception {
+        Field field = GTaskSyncService.class.getDeclaredField("mSyncTask");
+        field.setAccessible(true);
+        field.set(null, task);
+    }
+
+    private static void advance(long millis) {
+        ShadowSystemClock.advanceBy(Duration.ofMillis(millis));
+    }
+
+    private long pushLatency() {
+        JobInfo job = mScheduler.getPendingJob(SyncScheduler.JOB_ID_PUSH);
+        return job == null ? -1 : job.getMinLatencyMillis();
+    }
+
+    /*
+     * 系统开始执行推送同步时它不再是等待中的任务
+     */
+    private void startPushJob() {
+        mScheduler.cancel(SyncScheduler.JOB_ID_PUSH);
+        assertTrue(SyncScheduler.onJobStarted(SyncScheduler.JOB_ID_PUSH));
+    }
+
+    @Test
+    public void pushWaitsForQuietPeriodUpToMaxDelay() {
+        SyncScheduler.requestPush(mContext);
+        assertEquals(PUSH_DELAY, pushLatency());
+
+        // 每次修改都重新等待，但从第一次修改算起不超过上限
+        long elapsed = 0;
+        while (elapsed + 20 * 1000L < PUSH_MAX_DELAY - PUSH_DELAY) {
+            advance(20 * 1000L);
+            elapsed += 20 * 1000L;
+            SyncScheduler.requestPush(mContext);
+            assertEquals(PUSH_DELAY, pushLatency());
+        }
+        advance(PUSH_MAX_DELAY - PUSH_DELAY + 10 * 1000L - elapsed);
+        SyncScheduler.requestPush(mContext);
+        assertEquals(PUSH_DELAY - 10 * 1000L, pushLatency());
+
+        // 到达上限后不再往后推
+        advance(20 * 1000L);
+        SyncScheduler.requestPush(mContext);
+        assertEquals(PUSH_DELAY - 10 * 1000L, pushLatency());
+
+        // 同步之后的修改重新计算
+        startPushJob();
+        SyncScheduler.onJobFinished(mContext);
+        assertEquals(-1, pushLatency());
+        SyncScheduler.requestPush(mContext);
+        assertEquals(PUSH_DELAY, pushLatency());
+    }
+
+    @Test
+    public void pushRequestedDuringSyncIsScheduledAfterIt() {
+        SyncScheduler.requestPush(mContext);
+        startPushJob();
+
+        // 执行期间重新安排同一个任务会停止它，先记下
+        advance(5 * 1000L);
+        SyncScheduler.requestPush(mContext);
+        assertEquals(-1, pushLatency());
+
+        SyncScheduler.onJobFinished(mContext);
+        assertEquals(PUSH_DELAY, pushLatency());
+    }
+
+    @Test
+    public void onlyOneJobRunsAtATime() {
+        assertTrue(SyncScheduler.onJobStarted(SyncScheduler.JOB_ID_PERIODIC));
+        assertFalse(SyncScheduler.onJobStarted(SyncScheduler.JOB_ID_PERIODIC));
+        assertFalse(SyncScheduler.onJobStarted(SyncScheduler.JOB_ID_PUSH));
+        assertEquals(-1, pushLatency());
+
+        // 被拒绝的推送同步在定时同步结束后重新安排，被拒绝的定时同步等下一个周期
+        SyncScheduler.onJobFinished(mContext);
+        assertEquals(PUSH_DELAY, pushLatency());
+        assertTrue(SyncScheduler.onJobStarted(SyncScheduler.JOB_ID_PUSH));
+    }
+
+    @Test
+    public void pushSkippedDuringManualSyncIsScheduledAfterIt() throws Exception {
+        setManualSync(new GTaskASyncTask(mContext, null));
+        assertFalse(SyncScheduler.onJobStarted(SyncScheduler.JOB_ID_PERIODIC));
+        assertFalse(SyncScheduler.onJobStarted(SyncScheduler.JOB_ID_PUSH));
+        assertEquals(-1, pushLatency());
+
+        setManualSync(null);
+        SyncScheduler.onManualSyncFinished(mContext);
+        assertEquals(PUSH_DELAY, pushLatency());
+
+        // 没有跳过推送同步时不安排
+        mScheduler.cancel(SyncScheduler.JOB_ID_PUSH);
+        SyncScheduler.onManualSyncFinished(mContext);
+        assertEquals(-1, pushLatency());
+    }
+}
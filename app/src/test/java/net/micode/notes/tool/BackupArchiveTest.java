@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.TestNotes;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 备份文件写出后在新的数据库中恢复，内容和原来的一致；损坏和不完整的文件被拒绝，不留下恢复了一半的便签
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BackupArchiveTest {
+    private static final int FOLDER_COUNT = 10;
+
+    private static final int LARGE_NOTE_COUNT = 50000;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = TestNotes.setUp();
+    }
+
+    /*
+     * 在 FOLDER_COUNT 个文件夹和根目录中插入便签，每 500 条便签一个事务
+     */
+    private void insertNotes(int count) throws Exception {
+        ArrayList<Long> folders = new ArrayList<Long>();
+        for (int i = 0; i < FOLDER_COUNT; i++) {
+            folders.add(TestNotes.insertFolder(mResolver, "folder " + i));
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+            values.put(NoteColumns.PARENT_ID, i % 5 == 0 ? Notes.ID_ROOT_FOLDER
+                    : folders.get(i % FOLDER_COUNT));
+            values.put(NoteColumns.BG_COLOR_ID, i % 5);
+            values.put(NoteColumns.CREATED_DATE, 1000000L + i);
+            values.put(NoteColumns.MODIFIED_DATE, 2000000L + i);
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            int noteIndex = operations.size();
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(values).build());
+
+            values = new ContentValues();
+            values.put(DataColumns.MIME_TYPE, Notes.DataConstants.NOTE);
+            values.put(DataColumns.CONTENT, "note " + i + "\n第二行 " + i);
+            values.put(DataColumns.DATA1, i % 2);
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(values).withValueBackReference(DataColumns.NOTE_ID, noteIndex)
+                    .build());
+            if (operations.size() >= 1000) {
+                mResolver.applyBatch(Notes.AUTHORITY, operations);
+                operations.clear();
+            }
+        }
+        mResolver.applyBatch(Notes.AUTHORITY, operations);
+    }
+
+    /*
+     * 备份的列按 ID 排列，恢复到空数据库时 ID 不变，可以直接比较
+     */
+    private List<String> snapshot() {
+        ArrayList<String> rows = new ArrayList<String>();
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID, NoteColumns.PARENT_ID, NoteColumns.TYPE, NoteColumns.BG_COLOR_ID,
+                NoteColumns.CREATED_DATE, NoteColumns.MODIFIED_DATE, NoteColumns.SNIPPET
+        }, NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM, null, NoteColumns.ID);
+        try {
+            while (c.moveToNext()) {
+                rows.add(c.getLong(0) + "|" + c.getLong(1) + "|" + c.getInt(2) + "|"
+                        + c.getInt(3) + "|" + c.getLong(4) + "|" + c.getLong(5) + "|"
+                        + c.getString(6));
+            }
+        } finally {
+            c.close();
+        }
+        c = mResolver.query(Notes.CONTENT_DATA_URI, new String[] {
+                DataColumns.NOTE_ID, DataColumns.MIME_TYPE, DataColumns.CONTENT, DataColumns.DATA1
+        }, null, null, DataColumns.NOTE_ID + "," + DataColumns.ID);
+        try {
+            while (c.moveToNext()) {
+                rows.add("data " + c.getLong(0) + "|" + c.getString(1) + "|" + c.getString(2)
+                        + "|" + c.getLong(3));
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    private int noteCount() {
+        return TestNotes.count(mResolver, Notes.CONTENT_NOTE_URI,
+                NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM, null);
+    }
+
+    private File backupFile(String name) {
+        return new File(mContext.getCacheDir(), name);
+    }
+
+    @Test
+    public void fullBackupRoundTrip() throws Exception {
+        insertNotes(LARGE_NOTE_COUNT);
+        List<String> expected = snapshot();
+        File file = backupFile("full.bak");
+
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                new BackupArchive(mContext).write(file, "chain", -1));
+
+        // 新设备上的空数据库
+        mResolver = TestNotes.setUp();
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                new BackupArchive(mContext).restore(file, new File[0]));
+
+        assertEquals(expected, snapshot());
+    }
+
+    @Test
+    public void restoreAppendsAfterExistingNotes() throws Exception {
+        insertNotes(100);
+        File file = backupFile("full.bak");
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                new BackupArchive(mContext).write(file, "chain", -1));
+        int count = noteCount();
+
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                new BackupArchive(mContext).restore(file, new File[0]));
+        assertEquals(count * 2, noteCount());
+        List<String> contents = TestNotes.noteContents(mResolver);
+        assertEquals(contents.subList(0, 100), contents.subList(100, 200));
+    }
+
+    @Test
+    public void incrementalBackupRoundTrip() throws Exception {
+        insertNotes(100);
+        File full = backupFile("full.bak");
+        BackupArchive archive = new BackupArchive(mContext);
+        assertEquals(BackupUtils.STATE_SUCCESS, archive.write(full, "chain", -1));
+
+        // 修改、删除、移动和新建便签之后写出增量备份
+        List<Long> ids = noteIds();
+        TestNotes.updateNote(mResolver, ids.get(20), "edited");
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, ids.get(30)),
+                null, null);
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, ids.get(31)),
+                null, null);
+        TestNotes.moveToTrash(mResolver, ids.get(40));
+        long folder = TestNotes.insertFolder(mResolver, "new folder");
+        TestNotes.insertNote(mResolver, folder, "added");
+        File increment = backupFile("increment.bak");
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                archive.write(increment, "chain", archive.getJournalTo()));
+        List<String> expected = snapshot();
+
+        mResolver = TestNotes.setUp();
+        assertEquals(BackupUtils.STATE_SUCCESS, new BackupArchive(mContext).restore(full,
+                new File[] {
+                        increment
+                }));
+        assertEquals(expected, snapshot());
+    }
+
+    @Test
+    public void incrementFromAnotherChainIsRejected() throws Exception {
+        insertNotes(10);
+        File full = backupFile("full.bak");
+        BackupArchive archive = new BackupArchive(mContext);
+        assertEquals(BackupUtils.STATE_SUCCESS, archive.write(full, "chain", -1));
+        TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "added");
+        File increment = backupFile("increment.bak");
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                archive.write(increment, "other", archive.getJournalTo()));
+
+        mResolver = TestNotes.setUp();
+        assertEquals(BackupUtils.STATE_DATA_DESTROIED, new BackupArchive(mContext).restore(full,
+                new File[] {
+                        increment
+                }));
+        assertEquals(0, noteCount());
+    }
+
+    @Test
+    public void attachmentsAreRestoredIntoImageDir() throws Exception {
+        File image = backupFile("photo.jpg");
+        byte[] bytes = new byte[200 * 1024];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        FileOutputStream fos = new FileOutputStream(image);
+        fos.write(bytes);
+        fos.close();
+        TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "photo [local]" + image.getAbsolutePath() + "[/local]");
+        File file = backupFile("full.bak");
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                new BackupArchive(mContext).write(file, "chain", -1));
+
+        mResolver = TestNotes.setUp();
+        assertTrue(image.delete());
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                new BackupArchive(mContext).restore(file, new File[0]));
+        String content = TestNotes.noteContents(mResolver).get(0);
+        int start = content.indexOf("[local]") + "[local]".length();
+        File restored = new File(content.substring(start, content.indexOf("[/local]")));
+        assertTrue(restored.isFile());
+        assertArrayEquals(bytes, readFile(restored));
+    }
+
+    @Test
+    public void corruptedBackupIsRejected() throws Exception {
+        insertNotes(2000);
+        File file = backupFile("full.bak");
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                new BackupArchive(mContext).write(file, "chain", -1));
+        byte[] bytes = readFile(file);
+        mResolver = TestNotes.setUp();
+
+        // 文件头、压缩流的开头、中间和结尾各改一个字节
+        int[] offsets = {
+                0, 12, bytes.length / 2, bytes.length - 3
+        };
+        for (int offset : offsets) {
+            byte[] corrupted = Arrays.copyOf(bytes, bytes.length);
+            corrupted[offset] ^= 0x5a;
+            File bad = backupFile("corrupted.bak");
+            writeFile(bad, corrupted, corrupted.length);
+            assertEquals("offset " + offset, BackupUtils.STATE_DATA_DESTROIED,
+                    new BackupArchive(mContext).restore(bad, new File[0]));
+            assertEquals("offset " + offset, 0, noteCount());
+        }
+    }
+
+    @Test
+    public void truncatedBackupIsRejected() throws Exception {
+        insertNotes(2000);
+        File file = backupFile("full.bak");
+        assertEquals(BackupUtils.STATE_SUCCESS,
+                new BackupArchive(mContext).write(file, "chain", -1));
+        byte[] bytes = readFile(file);
+        mResolver = TestNotes.setUp();
+
+        // 最后一个字节可能只是压缩流的结束标记，去掉它时记录和校验和仍然完整
+        int[] lengths = {
+                0, 4, 20, bytes.length / 2, bytes.length - 2, bytes.length - 1
+        };
+        for (int length : lengths) {
+            File bad = backupFile("truncated.bak");
+            writeFile(bad, bytes, length);
+            assertEquals("length " + length, BackupUtils.STATE_DATA_DESTROIED,
+                    new BackupArchive(mContext).restore(bad, new File[0]));
+            assertEquals("length " + length, 0, noteCount());
+        }
+    }
+
+    private List<Long> noteIds() {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID
+        }, NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, null, NoteColumns.ID);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] bytes, int length) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(bytes, 0, length);
+        } finally {
+            fos.close();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentResolver;
+import android.os.CancellationSignal;
+import android.os.Environment;
+import android.text.format.DateFormat;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.TestNotes;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowEnvironment;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * 文本导出的逐行写出和日期格式化，和原来 PrintStream 加 String.format 的写法输出相同；
+ * 导出的进度回调、取消和读快照
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BackupUtilsTest {
+    // 和 R.string.format_datetime_mdhm 相同
+    private static final String DATE_PATTERN = "MMMd kk:mm";
+
+    // 和 R.array.format_for_exported_note 相同
+    private static final String DATE_FORMAT = "--%s";
+    private static final String CONTENT_FORMAT = "--%s";
+
+    private static final int TIMING_NOTE_COUNT = 100000;
+
+    private static long localTime(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    private static String writeLine(String format, String value) throws IOException {
+        StringWriter writer = new StringWriter();
+        BackupUtils.writeFormattedLine(writer, format, value);
+        return writer.toString();
+    }
+
+    @Test
+    public void writeFormattedLineMatchesStringFormat() throws IOException {
+        String[] formats = {
+                "-%s", "--%s", "%s", "[%s]", "no value", "%% %s", "%1$s/%1$s", "%-6s|"
+        };
+        String[] values = {
+                "", "folder", "第二行\n内容", "100%", null
+        };
+        for (String format : formats) {
+            for (String value : values) {
+                assertEquals(format + " " + value, String.format(format, value) + "\n",
+                        writeLine(format, value));
+            }
+        }
+    }
+
+    @Test
+    public void minuteDateFormatterFormatsOncePerMinute() {
+        BackupUtils.MinuteDateFormatter formatter =
+                new BackupUtils.MinuteDateFormatter(DATE_PATTERN);
+        long base = localTime(2023, Calendar.NOVEMBER, 14, 22, 13);
+
+        // 同一分钟内返回缓存的同一个字符串
+        String first = formatter.format(base);
+        assertEquals("Nov14 22:13", first);
+        assertSame(first, formatter.format(base + 59999));
+        assertEquals("Nov14 22:14", formatter.format(base + 60000));
+        String again = formatter.format(base + 1);
+        assertEquals("Nov14 22:13", again);
+        assertNotSame(first, again);
+    }
+
+    @Test
+    public void minuteDateFormatterMatchesDateFormat() {
+        BackupUtils.MinuteDateFormatter formatter =
+                new BackupUtils.MinuteDateFormatter(DATE_PATTERN);
+        // 零点写成 00，和原来导出的文本一致；1970 年之前的时间按向下取整的分钟区分
+        long midnight = localTime(2023, Calendar.NOVEMBER, 15, 0, 0);
+        long[] times = {
+                midnight, midnight + 59999, 30 * 1000, -30 * 1000, -60 * 1000, 0
+        };
+        for (long time : times) {
+            assertEquals(String.valueOf(time), DateFormat.format(DATE_PATTERN, time).toString(),
+                    formatter.format(time));
+        }
+        assertEquals("Nov15 00:00", formatter.format(midnight));
+    }
+
+    @Test
+    public void exportLinesMatchPrintStreamAndAreFaster() throws IOException {
+        File dir = RuntimeEnvironment.getApplication().getCacheDir();
+        File before = new File(dir, "before.txt");
+        File after = new File(dir, "after.txt");
+        long start = localTime(2023, Calendar.NOVEMBER, 14, 20, 0);
+
+        // 原来的写法：每行 String.format，日期每次重新格式化，直接写到未缓冲的 PrintStream
+        long begin = System.nanoTime();
+        PrintStream ps = new PrintStream(new FileOutputStream(before));
+        try {
+            for (int i = 0; i < TIMING_NOTE_COUNT; i++) {
+                ps.println(String.format(DATE_FORMAT,
+                        DateFormat.format(DATE_PATTERN, start + i * 7000L)));
+                ps.println(String.format(CONTENT_FORMAT, "note " + i));
+            }
+        } finally {
+            ps.close();
+        }
+        long beforeMs = (System.nanoTime() - begin) / 1000000;
+
+        begin = System.nanoTime();
+        BackupUtils.MinuteDateFormatter formatter =
+                new BackupUtils.MinuteDateFormatter(DATE_PATTERN);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(after),
+                StandardCharsets.UTF_8), 64 * 1024);
+        try {
+            for (int i = 0; i < TIMING_NOTE_COUNT; i++) {
+                BackupUtils.writeFormattedLine(writer, DATE_FORMAT,
+                        formatter.format(start + i * 7000L));
+                BackupUtils.writeFormattedLine(writer, CONTENT_FORMAT, "note " + i);
+            }
+        } finally {
+            writer.close();
+        }
+        long afterMs = (System.nanoTime() - begin) / 1000000;
+
+        assertTrue(Arrays.equals(readFile(before), readFile(after)));
+        assertTrue(afterMs < beforeMs);
+    }
+
+    /*
+     * 重新创建单例，使用当前测试的 Application；导出的文件写到外部存储
+     */
+    private static BackupUtils newBackupUtils() throws Exception {
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        Field instance = BackupUtils.class.getDeclaredField("sInstance");
+        instance.setAccessible(true);
+        instance.set(null, null);
+        return BackupUtils.getInstance(RuntimeEnvironment.getApplication());
+    }
+
+    private static File exportedFile(BackupUtils backupUtils) {
+        return new File(Environment.getExternalStorageDirectory()
+                + backupUtils.getExportedTextFileDir() + backupUtils.getExportedTextFileName());
+    }
+
+    private static void insertNotes(ContentResolver resolver, int count) {
+        for (int i = 0; i < count; i++) {
+            TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "note " + i);
+        }
+    }
+
+    /*
+     * 记录每次进度回调的参数：已导出便签数、总数和已写入字节数
+     */
+    private static class RecordingListener implements BackupUtils.ExportProgressListener {
+        final List<long[]> calls = new ArrayList<long[]>();
+
+        @Override
+        public void onProgress(int exportedNotes, int totalNotes, long writtenBytes) {
+            calls.add(new long[] {
+                    exportedNotes, totalNotes, writtenBytes
+            });
+        }
+    }
+
+    @Test
+    public void exportReportsProgressAtMostOncePerInterval() throws Exception {
+        insertNotes(TestNotes.setUp(), 50);
+        BackupUtils backupUtils = newBackupUtils();
+        // 测试中时钟不走，距离开机超过间隔时只有第一个便签和结束时回调
+        ShadowSystemClock.advanceBy(Duration.ofSeconds(1));
+        RecordingListener listener = new RecordingListener();
+
+        assertEquals(BackupUtils.STATE_SUCCESS, backupUtils.exportToText(listener, null));
+        assertEquals(2, listener.calls.size());
+        assertArrayEquals(new long[] {
+                0, 50, 0
+        }, listener.calls.get(0));
+        assertArrayEquals(new long[] {
+                50, 50, exportedFile(backupUtils).length()
+        }, listener.calls.get(1));
+    }
+
+    @Test
+    public void cancelledExportDeletesPartialFile() throws Exception {
+        insertNotes(TestNotes.setUp(), 200);
+        BackupUtils backupUtils = newBackupUtils();
+        ShadowSystemClock.advanceBy(Duration.ofSeconds(1));
+        final CancellationSignal signal = new CancellationSignal();
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onProgress(int exportedNotes, int totalNotes, long writtenBytes) {
+                super.onProgress(exportedNotes, totalNotes, writtenBytes);
+                signal.cancel();
+            }
+        };
+
+        assertEquals(BackupUtils.STATE_CANCELLED, backupUtils.exportToText(listener, signal));
+        assertEquals(1, listener.calls.size());
+        assertFalse(exportedFile(backupUtils).exists());
+
+        // 开始前已经取消时不查询也不留下文件
+        assertEquals(BackupUtils.STATE_CANCELLED, backupUtils.exportToText(null, signal));
+        assertFalse(exportedFile(backupUtils).exists());
+    }
+
+    @Test
+    public void writesDuringExportDoNotBlockAndAreNotExported() throws Exception {
+        final ContentResolver resolver = TestNotes.setUp();
+        insertNotes(resolver, 100);
+        BackupUtils backupUtils = newBackupUtils();
+        ShadowSystemClock.advanceBy(Duration.ofSeconds(1));
+        final AtomicBoolean written = new AtomicBoolean();
+        final AtomicBoolean writtenDuringExport = new AtomicBoolean();
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onProgress(int exportedNotes, int totalNotes, long writtenBytes) {
+                super.onProgress(exportedNotes, totalNotes, writtenBytes);
+                if (calls.size() > 1) {
+                    return;
+                }
+                // 导出的读快照中，另一个线程写入一个便签
+                Thread writer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "written later");
+                        written.set(true);
+                    }
+                });
+                writer.start();
+                try {
+                    writer.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                writtenDuringExport.set(written.get());
+            }
+        };
+
+        assertEquals(BackupUtils.STATE_SUCCESS, backupUtils.exportToText(listener, null));
+        assertTrue(writtenDuringExport.get());
+        assertEquals(100, listener.calls.get(listener.calls.size() - 1)[0]);
+        String text = new String(readFile(exportedFile(backupUtils)), StandardCharsets.UTF_8);
+        assertTrue(text.contains("note 99"));
+        assertFalse(text.contains("written later"));
+        assertEquals(101, TestNotes.noteContents(resolver).size());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentResolver;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Environment;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.TestNotes;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowEnvironment;
+import org.robolectric.shadows.ShadowSystemClock;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * 导出为 Markdown/HTML zip：目录结构、图片、取消，以及系统不支持只读事务时的快照重试
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DocumentExportTest {
+    private static final byte[] IMAGE = {
+            (byte) 0x89, 'P', 'N', 'G', 0, 1, 2, 3
+    };
+
+    /*
+     * 重新创建单例，使用当前测试的 Application；导出的文件写到外部存储
+     */
+    private static BackupUtils newBackupUtils() throws Exception {
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        Field instance = BackupUtils.class.getDeclaredField("sInstance");
+        instance.setAccessible(true);
+        instance.set(null, null);
+        return BackupUtils.getInstance(RuntimeEnvironment.getApplication());
+    }
+
+    private static File writeImage(String name) throws IOException {
+        File file = new File(RuntimeEnvironment.getApplication().getCacheDir(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(IMAGE);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /*
+     * 读出 zip 中每个条目的名字和内容，按写入的顺序
+     */
+    private static Map<String, byte[]> readZip(File file) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+        try {
+            ZipEntry entry;
+            byte[] buffer = new byte[8192];
+            while ((entry = in.getNextEntry()) != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                entries.put(entry.getName(), out.toByteArray());
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    private static String text(Map<String, byte[]> entries, String name) {
+        byte[] bytes = entries.get(name);
+        assertNotNull(name + " in " + entries.keySet(), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void markdownHasFolderDirsRootNotesAndImages() throws Exception {
+        ContentResolver resolver = TestNotes.setUp();
+        File image = writeImage("photo.png");
+        long work = TestNotes.insertFolder(resolver, "Work");
+        TestNotes.insertNote(resolver, work, "Plan\nsee [local]" + image.getAbsolutePath()
+                + "[/local]");
+        TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "Hello\n[local]"
+                + image.getAbsolutePath() + "[/local]");
+        long deleted = TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "Deleted");
+        TestNotes.moveToTrash(resolver, deleted);
+        BackupUtils backupUtils = newBackupUtils();
+
+        assertEquals(BackupUtils.STATE_SUCCESS, backupUtils.exportToDocuments(
+                BackupUtils.EXPORT_FORMAT_MARKDOWN, null, null));
+        Map<String, byte[]> entries = readZip(backupUtils.getExportedDocumentFile());
+
+        // 根文件夹下的便签在前，同一个图片只写一次，文件夹中的便签用上一级目录的相对路径
+        assertEquals(Arrays.asList("Hello.md", "images/photo.png", "Work/Plan.md"),
+                Arrays.asList(entries.keySet().toArray()));
+        assertEquals("Plan  \nsee ![](../images/photo.png)  \n", text(entries, "Work/Plan.md"));
+        assertEquals("Hello  \n![](images/photo.png)  \n", text(entries, "Hello.md"));
+        assertArrayEquals(IMAGE, entries.get("images/photo.png"));
+    }
+
+    @Test
+    public void htmlEscapesTextAndKeepsMissingImages() throws Exception {
+        ContentResolver resolver = TestNotes.setUp();
+        TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER,
+                "a <b> & c\n[local]/no/such/file.png[/local]");
+        BackupUtils backupUtils = newBackupUtils();
+
+        assertEquals(BackupUtils.STATE_SUCCESS, backupUtils.exportToDocuments(
+                BackupUtils.EXPORT_FORMAT_HTML, null, null));
+        Map<String, byte[]> entries = readZip(backupUtils.getExportedDocumentFile());
+
+        assertEquals(1, entries.size());
+        String html = text(entries, "a _b_ & c.html");
+        assertTrue(html, html.contains("<title>a &lt;b&gt; &amp; c</title>"));
+        assertTrue(html, html.contains("a &lt;b&gt; &amp; c<br>\n"
+                + "[local]/no/such/file.png[/local]<br>\n</body>"));
+    }
+
+    @Test
+    public void cancelledExportDeletesPartialZip() throws Exception {
+        ContentResolver resolver = TestNotes.setUp();
+        for (int i = 0; i < 50; i++) {
+            TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "note " + i);
+        }
+        BackupUtils backupUtils = newBackupUtils();
+        ShadowSystemClock.advanceBy(Duration.ofSeconds(1));
+        final CancellationSignal signal = new CancellationSignal();
+        final int[] calls = new int[1];
+        BackupUtils.ExportProgressListener listener = new BackupUtils.ExportProgressListener() {
+            @Override
+            public void onProgress(int exportedNotes, int totalNotes, long writtenBytes) {
+                assertEquals(50, totalNotes);
+                calls[0]++;
+                signal.cancel();
+            }
+        };
+
+        assertEquals(BackupUtils.STATE_CANCELLED, backupUtils.exportToDocuments(
+                BackupUtils.EXPORT_FORMAT_MARKDOWN, listener, signal));
+        assertEquals(1, calls[0]);
+        assertNull(backupUtils.getExportedDocumentFile());
+        File dir = new File(Environment.getExternalStorageDirectory()
+                + RuntimeEnvironment.getApplication().getString(R.string.file_path));
+        String[] files = dir.list();
+        assertTrue(Arrays.toString(files), files == null || files.length == 0);
+    }
+
+    @Test
+    public void exportWithoutSnapshotRetriesWhenNotesChange() throws Exception {
+        final ContentResolver resolver = TestNotes.setUp();
+        for (int i = 0; i < 10; i++) {
+            TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "note " + i);
+        }
+        BackupUtils backupUtils = newBackupUtils();
+        ShadowSystemClock.advanceBy(Duration.ofSeconds(1));
+        // 每次从头导出时第一个便签的进度回调中记下总数
+        final List<Integer> totals = new ArrayList<Integer>();
+        BackupUtils.ExportProgressListener listener = new BackupUtils.ExportProgressListener() {
+            @Override
+            public void onProgress(int exportedNotes, int totalNotes, long writtenBytes) {
+                if (exportedNotes != 0) {
+                    return;
+                }
+                totals.add(totalNotes);
+                if (totals.size() == 1) {
+                    // 第一次导出中途写入一个便签，导出结束时发现变更记录变化而重新导出
+                    TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "written later");
+                }
+            }
+        };
+
+        // 系统不支持只读事务时先不开始事务导出
+        int sdk = Build.VERSION.SDK_INT;
+        ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT",
+                Build.VERSION_CODES.UPSIDE_DOWN_CAKE);
+        try {
+            assertEquals(BackupUtils.STATE_SUCCESS, backupUtils.exportToDocuments(
+                    BackupUtils.EXPORT_FORMAT_MARKDOWN, listener, null));
+        } finally {
+            ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT", sdk);
+        }
+
+        assertEquals(Arrays.asList(10, 11), totals);
+        Map<String, byte[]> entries = readZip(backupUtils.getExportedDocumentFile());
+        assertEquals(11, entries.size());
+        assertTrue(entries.containsKey("written later.md"));
+    }
+
+    @Test
+    public void snapshotExportBlocksWritersAfterRepeatedChanges() {
+        final ContentResolver resolver = TestNotes.setUp();
+        final int[] attempts = new int[1];
+        int sdk = Build.VERSION.SDK_INT;
+        ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT",
+                Build.VERSION_CODES.UPSIDE_DOWN_CAKE);
+        try {
+            int state = BackupUtils.exportInSnapshot(RuntimeEnvironment.getApplication(),
+                    new BackupUtils.SnapshotExport() {
+                        @Override
+                        public int export() {
+                            // 前两次都有写入，最后一次在阻塞写入的事务中导出，不再检查
+                            if (attempts[0]++ < 2) {
+                                TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER,
+                                        "note " + attempts[0]);
+                            }
+                            return BackupUtils.STATE_SUCCESS;
+                        }
+                    });
+            assertEquals(BackupUtils.STATE_SUCCESS, state);
+            assertEquals(3, attempts[0]);
+
+            // 失败的导出不重试
+            attempts[0] = 0;
+            state = BackupUtils.exportInSnapshot(RuntimeEnvironment.getApplication(),
+                    new BackupUtils.SnapshotExport() {
+                        @Override
+                        public int export() {
+                            attempts[0]++;
+                            TestNotes.insertNote(resolver, Notes.ID_ROOT_FOLDER, "failed");
+                            return BackupUtils.STATE_SYSTEM_ERROR;
+                        }
+                    });
+            assertEquals(BackupUtils.STATE_SYSTEM_ERROR, state);
+            assertEquals(1, attempts[0]);
+        } finally {
+            ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT", sdk);
+        }
+    }
+}
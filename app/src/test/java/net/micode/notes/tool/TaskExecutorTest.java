@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 取消后无论任务是否已经出队，都在主线程回调一次onCancelled；后台出错时回调onFailed
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskExecutorTest {
+    private static class RecordingTask extends TaskExecutor.BackgroundTask<Integer> {
+        final AtomicInteger background = new AtomicInteger();
+        final AtomicInteger posted = new AtomicInteger();
+        final AtomicInteger cancelled = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        RecordingTask(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        protected Integer doInBackground() {
+            background.incrementAndGet();
+            started.countDown();
+            if (release != null) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return 1;
+        }
+
+        @Override
+        protected void onPostExecute(Integer result) {
+            posted.incrementAndGet();
+        }
+
+        @Override
+        protected void onCancelled() {
+            cancelled.incrementAndGet();
+        }
+
+        @Override
+        protected void onFailed(RuntimeException e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    private static class FailingTask extends RecordingTask {
+        FailingTask(CountDownLatch release) {
+            super(release);
+        }
+
+        @Override
+        protected Integer doInBackground() {
+            super.doInBackground();
+            throw new IllegalStateException("disk full");
+        }
+    }
+
+    @Test
+    public void queuedTaskCancelledCallsOnCancelled() throws Exception {
+        TaskExecutor executor = TaskExecutor.getInstance();
+        CountDownLatch release = new CountDownLatch(1);
+        // 网络池只有一个线程，第一个任务占住线程，第二个任务排队
+        RecordingTask running = new RecordingTask(release);
+        RecordingTask queued = new RecordingTask(null);
+        executor.execute(TaskExecutor.POOL_NETWORK, TaskExecutor.PRIORITY_USER, this, running);
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+        executor.execute(TaskExecutor.POOL_NETWORK, TaskExecutor.PRIORITY_USER, this, queued);
+
+        queued.cancel();
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(1, queued.cancelled.get());
+        assertEquals(0, queued.posted.get());
+
+        release.countDown();
+        waitForPool(executor);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(0, queued.background.get());
+        assertEquals(1, queued.cancelled.get());
+        assertEquals(1, running.posted.get());
+    }
+
+    @Test
+    public void runningTaskCancelledCallsOnCancelledOnce() throws Exception {
+        TaskExecutor executor = TaskExecutor.getInstance();
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTask running = new RecordingTask(release);
+        executor.execute(TaskExecutor.POOL_DISK, TaskExecutor.PRIORITY_USER, this, running);
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+
+        executor.cancelAll(this);
+        release.countDown();
+        waitForPool(executor);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(1, running.cancelled.get());
+        assertEquals(0, running.posted.get());
+    }
+
+    @Test
+    public void failedTaskCallsOnFailedAndPoolKeepsRunning() throws Exception {
+        TaskExecutor executor = TaskExecutor.getInstance();
+        FailingTask failing = new FailingTask(null);
+        RecordingTask next = new RecordingTask(null);
+        executor.execute(TaskExecutor.POOL_NETWORK, TaskExecutor.PRIORITY_USER, this, failing);
+        executor.execute(TaskExecutor.POOL_NETWORK, TaskExecutor.PRIORITY_USER, this, next);
+        waitForPool(executor);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(1, failing.failed.get());
+        assertEquals(0, failing.posted.get());
+        assertEquals(0, failing.cancelled.get());
+        // 出错的任务不影响之后的任务，也不再留在按owner取消的列表中
+        assertEquals(1, next.posted.get());
+        assertEquals(0, next.failed.get());
+        executor.cancelAll(this);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(0, failing.cancelled.get());
+
+        // 已经取消的任务出错时仍然只回调onCancelled
+        CountDownLatch release = new CountDownLatch(1);
+        FailingTask cancelled = new FailingTask(release);
+        executor.execute(TaskExecutor.POOL_DISK, TaskExecutor.PRIORITY_USER, this, cancelled);
+        assertTrue(cancelled.started.await(5, TimeUnit.SECONDS));
+        cancelled.cancel();
+        release.countDown();
+        waitForPool(executor);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(1, cancelled.cancelled.get());
+        assertEquals(0, cancelled.failed.get());
+    }
+
+    private static void waitForPool(TaskExecutor executor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((executor.getActiveCount(TaskExecutor.POOL_NETWORK) > 0
+                || executor.getActiveCount(TaskExecutor.POOL_DISK) > 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // 任务结束后才把回调放到主线程
+        Thread.sleep(50);
+    }
+}
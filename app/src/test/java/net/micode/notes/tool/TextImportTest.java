@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Environment;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.data.TestNotes;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowEnvironment;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 导入 exportToText 格式的文本：文件夹、便签、续行、分隔行、根文件夹标记和没有年份的日期
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TextImportTest {
+    // 和导出时 writeNoteSeparator 写出的行相同
+    private static final String SEPARATOR = "\r";
+
+    private static final int THROUGHPUT_NOTE_COUNT = 100000;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private TextImport mImport;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = TestNotes.setUp();
+        mImport = new TextImport(mContext);
+    }
+
+    private static long localTime(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    private File writeText(long lastModified, String lineEnd, String... lines) throws IOException {
+        File file = new File(mContext.getCacheDir(), "notes.txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8);
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write(lineEnd);
+            }
+        } finally {
+            writer.close();
+        }
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+
+    /*
+     * 便签正文到所在文件夹名称，根文件夹为空字符串
+     */
+    private Map<String, String> notesByFolder() {
+        HashMap<Long, String> folders = new HashMap<Long, String>();
+        folders.put((long) Notes.ID_ROOT_FOLDER, "");
+        folders.put((long) Notes.ID_CALL_RECORD_FOLDER,
+                mContext.getString(R.string.call_record_folder_name));
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID, NoteColumns.SNIPPET
+        }, NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER, null, null);
+        try {
+            while (c.moveToNext()) {
+                folders.put(c.getLong(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+
+        HashMap<String, String> notes = new HashMap<String, String>();
+        c = mResolver.query(Notes.CONTENT_NOTE_DATA_URI, new String[] {
+                DataColumns.CONTENT, NoteColumns.PARENT_ID
+        }, NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, null, null);
+        try {
+            while (c.moveToNext()) {
+                notes.put(c.getString(0), folders.get(c.getLong(1)));
+            }
+        } finally {
+            c.close();
+        }
+        return notes;
+    }
+
+    private long modifiedDate(String content) {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_DATA_URI, new String[] {
+                NotesDatabaseHelper.TABLE.NOTE + "." + NoteColumns.MODIFIED_DATE
+        }, DataColumns.CONTENT + "=?", new String[] {
+                content
+        }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private int folderCount() {
+        return TestNotes.count(mResolver, Notes.CONTENT_NOTE_URI,
+                NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER, null);
+    }
+
+    @Test
+    public void importsFoldersNotesAndContinuationLines() throws Exception {
+        File file = writeText(localTime(2023, Calendar.NOVEMBER, 20, 12, 0), "\n",
+                "-Work",
+                "--Nov14 22:13",
+                "--first",
+                "second line of first",
+                "--another paragraph",
+                SEPARATOR,
+                "--Nov15 00:05",
+                "--in work",
+                SEPARATOR,
+                "-",
+                "--Nov16 09:30",
+                "--in root",
+                SEPARATOR);
+        assertEquals(BackupUtils.STATE_SUCCESS, mImport.importFromText(file));
+        assertEquals(3, mImport.getImportedNoteCount());
+
+        Map<String, String> notes = notesByFolder();
+        assertEquals(3, notes.size());
+        assertEquals("Work", notes.get("first\nsecond line of first\nanother paragraph"));
+        assertEquals("Work", notes.get("in work"));
+        assertEquals("", notes.get("in root"));
+        assertEquals(localTime(2023, Calendar.NOVEMBER, 14, 22, 13),
+                modifiedDate("first\nsecond line of first\nanother paragraph"));
+        assertEquals(localTime(2023, Calendar.NOVEMBER, 15, 0, 5), modifiedDate("in work"));
+    }
+
+    @Test
+    public void crlfFileMergesIntoExistingFolder() throws Exception {
+        TestNotes.insertFolder(mResolver, "Work");
+        int folders = folderCount();
+        // 换行转换后分隔行变成 "\r\r\n"
+        File file = writeText(localTime(2023, Calendar.NOVEMBER, 20, 12, 0), "\r\n",
+                "-Work",
+                "--Nov14 22:13",
+                "--crlf note",
+                "continued",
+                SEPARATOR,
+                "-" + mContext.getString(R.string.call_record_folder_name),
+                "--Nov15 08:00",
+                "--call note",
+                SEPARATOR);
+        assertEquals(BackupUtils.STATE_SUCCESS, mImport.importFromText(file));
+
+        Map<String, String> notes = notesByFolder();
+        assertEquals("Work", notes.get("crlf note\ncontinued"));
+        assertEquals(mContext.getString(R.string.call_record_folder_name),
+                notes.get("call note"));
+        assertEquals(folders, folderCount());
+    }
+
+    @Test
+    public void dateAfterFileTimeBelongsToPreviousYear() throws Exception {
+        File file = writeText(localTime(2024, Calendar.MARCH, 1, 12, 0), "\n",
+                "--Dec31 23:00",
+                "--last year",
+                SEPARATOR,
+                "--Feb29 10:00",
+                "--this year",
+                SEPARATOR);
+        assertEquals(BackupUtils.STATE_SUCCESS, mImport.importFromText(file));
+        assertEquals(localTime(2023, Calendar.DECEMBER, 31, 23, 0), modifiedDate("last year"));
+        assertEquals(localTime(2024, Calendar.FEBRUARY, 29, 10, 0), modifiedDate("this year"));
+
+        // 不是闰年时 2 月 29 日属于最近的闰年
+        file = writeText(localTime(2025, Calendar.MARCH, 1, 12, 0), "\n",
+                "--Feb29 11:00",
+                "--leap day",
+                SEPARATOR);
+        assertEquals(BackupUtils.STATE_SUCCESS, mImport.importFromText(file));
+        assertEquals(localTime(2024, Calendar.FEBRUARY, 29, 11, 0), modifiedDate("leap day"));
+    }
+
+    @Test
+    public void unknownLinesOutsideNotesAreSkipped() throws Exception {
+        int folders = folderCount();
+        File file = writeText(localTime(2023, Calendar.NOVEMBER, 20, 12, 0), "\n",
+                "",
+                "not an exported line",
+                "--not a date",
+                "--Nov14 22:13",
+                "--kept",
+                SEPARATOR);
+        assertEquals(BackupUtils.STATE_SUCCESS, mImport.importFromText(file));
+        assertEquals(1, mImport.getImportedNoteCount());
+        // "--not a date" 不是日期，按文件夹格式是 "-not a date"
+        assertEquals(folders + 1, folderCount());
+        assertEquals("-not a date", notesByFolder().get("kept"));
+    }
+
+    @Test
+    public void exportedTextImportsIntoSameFolders() throws Exception {
+        long work = TestNotes.insertFolder(mResolver, "Work");
+        long home = TestNotes.insertFolder(mResolver, "Home");
+        TestNotes.insertNote(mResolver, work, "work 1");
+        TestNotes.insertNote(mResolver, work, "work 2\nsecond line");
+        TestNotes.insertNote(mResolver, home, "home 1");
+        TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "root 1");
+        TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "root 2");
+        Map<String, String> expected = notesByFolder();
+
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        Field instance = BackupUtils.class.getDeclaredField("sInstance");
+        instance.setAccessible(true);
+        instance.set(null, null);
+        BackupUtils backupUtils = BackupUtils.getInstance(mContext);
+        assertEquals(BackupUtils.STATE_SUCCESS, backupUtils.exportToText(null, null));
+        File file = new File(Environment.getExternalStorageDirectory()
+                + backupUtils.getExportedTextFileDir() + backupUtils.getExportedTextFileName());
+
+        // 导入到新设备上的空数据库
+        mResolver = TestNotes.setUp();
+        assertEquals(BackupUtils.STATE_SUCCESS, mImport.importFromText(file));
+        assertEquals(5, mImport.getImportedNoteCount());
+        assertEquals(expected, notesByFolder());
+    }
+
+    @Test
+    public void importsSeveralHundredThousandLines() throws Exception {
+        long reference = localTime(2023, Calendar.NOVEMBER, 20, 12, 0);
+        File file = new File(mContext.getCacheDir(), "large.txt");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8));
+        try {
+            for (int i = 0; i < THROUGHPUT_NOTE_COUNT; i++) {
+                if (i % 1000 == 0) {
+                    writer.write(i < THROUGHPUT_NOTE_COUNT / 2 ? "-folder " + i / 1000 : "-");
+                    writer.write('\n');
+                }
+                writer.write("--Nov" + (1 + i % 19) + " 1" + i % 10 + ":" + (10 + i % 50)
+                        + "\n--note " + i + "\ncontinued " + i + "\n" + SEPARATOR + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        assertTrue(file.setLastModified(reference));
+
+        assertEquals(BackupUtils.STATE_SUCCESS, mImport.importFromText(file));
+
+        assertEquals(THROUGHPUT_NOTE_COUNT, mImport.getImportedNoteCount());
+        assertEquals(THROUGHPUT_NOTE_COUNT / 2, TestNotes.count(mResolver,
+                Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND "
+                        + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER, null));
+        List<String> contents = new ArrayList<String>(TestNotes.noteContents(mResolver));
+        assertEquals("note 0\ncontinued 0", contents.get(0));
+        assertEquals("note " + (THROUGHPUT_NOTE_COUNT - 1) + "\ncontinued "
+                + (THROUGHPUT_NOTE_COUNT - 1), contents.get(THROUGHPUT_NOTE_COUNT - 1));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TextMergerTest {
+    private static String merge(String base, String local, String remote) {
+        return TextMerger.merge(base, local, remote, "local", "remote");
+    }
+
+    private static String lines(String... lines) {
+        return String.join("\n", lines);
+    }
+
+    private static String conflict(String local, String remote) {
+        return lines(TextMerger.MARKER_LOCAL + "local", local, TextMerger.MARKER_SEPARATOR,
+                remote, TextMerger.MARKER_REMOTE + "remote");
+    }
+
+    @Test
+    public void unchangedSideTakesOther() {
+        String base = lines("a", "b");
+        assertEquals("x", merge(base, base, "x"));
+        assertEquals("x", merge(base, "x", base));
+        assertEquals("x", merge(base, "x", "x"));
+        assertEquals("x", merge(null, null, "x"));
+    }
+
+    @Test
+    public void changesToDifferentLinesMergeCleanly() {
+        String base = lines("a", "b", "c", "d");
+        assertEquals(lines("a", "B", "c", "D"),
+                merge(base, lines("a", "B", "c", "d"), lines("a", "b", "c", "D")));
+    }
+
+    @Test
+    public void checklistItemsMergeCleanly() {
+        String base = lines("[ ] milk", "[ ] eggs", "[ ] bread");
+        String local = lines("[x] milk", "[ ] eggs", "[ ] bread");
+        String remote = lines("[ ] milk", "[ ] eggs", "[x] bread", "[ ] butter");
+        assertEquals(lines("[x] milk", "[ ] eggs", "[x] bread", "[ ] butter"),
+                merge(base, local, remote));
+    }
+
+    @Test
+    public void sameChangeOnBothSidesIsNotAConflict() {
+        String base = lines("a", "b", "c");
+        String changed = lines("a", "X", "c", "d");
+        assertEquals(changed, merge(base, changed, lines("a", "X", "c", "d")));
+        assertEquals(lines("a", "X", "c", "e"),
+                merge(base, lines("a", "X", "c"), lines("a", "X", "c", "e")));
+    }
+
+    @Test
+    public void overlappingChangesConflict() {
+        String base = lines("a", "b", "c");
+        assertEquals(lines("a", conflict("L", "R"), "c"),
+                merge(base, lines("a", "L", "c"), lines("a", "R", "c")));
+    }
+
+    @Test
+    public void conflictKeepsCleanChangesAround() {
+        String base = lines("a", "b", "c", "d", "e");
+        String local = lines("A", "b", "L", "d", "e");
+        String remote = lines("a", "b", "R", "d", "E");
+        assertEquals(lines("A", "b", conflict("L", "R"), "d", "E"), merge(base, local, remote));
+    }
+
+    @Test
+    public void insertsAtBothEnds() {
+        String base = lines("a", "b");
+        assertEquals(lines("first", "a", "b", "last"),
+                merge(base, lines("first", "a", "b"), lines("a", "b", "last")));
+    }
+
+    @Test
+    public void deletesAtBothEnds() {
+        String base = lines("a", "b", "c", "d");
+        assertEquals(lines("b", "c"), merge(base, lines("b", "c", "d"), lines("a", "b", "c")));
+    }
+
+    @Test
+    public void deleteAgainstEditConflicts() {
+        String base = lines("a", "b", "c");
+        assertEquals(lines("a", TextMerger.MARKER_LOCAL + "local", TextMerger.MARKER_SEPARATOR, "B",
+                TextMerger.MARKER_REMOTE + "remote", "c"),
+                merge(base, lines("a", "c"), lines("a", "B", "c")));
+    }
+
+    @Test
+    public void differentAppendsAtEndConflict() {
+        String base = lines("a");
+        assertEquals(lines("a", conflict("L", "R")),
+                merge(base, lines("a", "L"), lines("a", "R")));
+    }
+
+    @Test
+    public void insertAtStartAgainstEmptyBase() {
+        assertEquals(conflict("L", "R"), merge("", "L", "R"));
+    }
+
+    @Test
+    public void editDistanceOverLimitFallsBackToWholeBlock() {
+        // 中间3000行全部被本地替换，差异超过MAX_EDIT_DISTANCE，中间部分不再逐行对应
+        String[] baseLines = new String[3002];
+        String[] localLines = new String[3002];
+        baseLines[0] = localLines[0] = "header";
+        for (int i = 1; i <= 3000; i++) {
+            baseLines[i] = "base " + i;
+            localLines[i] = "local " + i;
+        }
+        baseLines[3001] = localLines[3001] = "footer";
+        String base = lines(baseLines);
+        String local = lines(localLines);
+        String remote = base + "\ntail";
+
+        long start = System.nanoTime();
+        String merged = merge(base, local, remote);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(local + "\ntail", merged);
+        assertTrue("merge took " + elapsedMs + "ms", elapsedMs < 2000);
+    }
+
+    @Test
+    public void editDistanceOverLimitWithBothSidesChangedConflicts() {
+        StringBuilder base = new StringBuilder();
+        StringBuilder local = new StringBuilder();
+        StringBuilder remote = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            if (i > 0) {
+                base.append('\n');
+                local.append('\n');
+                remote.append('\n');
+            }
+            base.append("base ").append(i);
+            local.append("local ").append(i);
+            remote.append(i == 1999 ? "remote end" : "base " + i);
+        }
+        String merged = merge(base.toString(), local.toString(), remote.toString());
+
+        assertTrue(merged.startsWith(TextMerger.MARKER_LOCAL + "local\nlocal 0\n"));
+        assertTrue(merged.contains("\n" + TextMerger.MARKER_SEPARATOR + "\nbase 0\n"));
+        assertTrue(merged.endsWith("\nremote end\n" + TextMerger.MARKER_REMOTE + "remote"));
+    }
+
+    @Test
+    public void largeNoteWithFewEditsMergesLineByLine() {
+        String[] baseLines = new String[20000];
+        for (int i = 0; i < baseLines.length; i++) {
+            baseLines[i] = "line " + i;
+        }
+        String[] localLines = baseLines.clone();
+        String[] remoteLines = baseLines.clone();
+        for (int i = 100; i < baseLines.length; i += 1000) {
+            localLines[i] = "local " + i;
+            remoteLines[i + 500] = "remote " + (i + 500);
+        }
+        String[] expected = localLines.clone();
+        for (int i = 600; i < baseLines.length; i += 1000) {
+            expected[i] = "remote " + i;
+        }
+        assertEquals(lines(expected), merge(lines(baseLines), lines(localLines),
+                lines(remoteLines)));
+    }
+}
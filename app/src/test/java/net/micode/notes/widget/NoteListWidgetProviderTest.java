@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.TestNotes;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 从文件夹菜单固定到桌面的列表小部件记住它的文件夹，从选择器添加的显示根文件夹
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = RecordingAppWidgetManager.class)
+public class NoteListWidgetProviderTest {
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = TestNotes.setUp();
+        RecordingAppWidgetManager.reset();
+    }
+
+    private static Intent pinCallback(long folderId, int widgetId) {
+        Intent intent = new Intent(NoteListWidgetPinReceiver.ACTION_PIN_FOLDER);
+        intent.putExtra(Notes.INTENT_EXTRA_FOLDER_ID, folderId);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, widgetId);
+        return intent;
+    }
+
+    @Test
+    public void pinnedWidgetShowsItsFolderUntilDeleted() {
+        NoteListWidgetProvider provider = new NoteListWidgetProvider();
+        NoteListWidgetPinReceiver receiver = new NoteListWidgetPinReceiver();
+        long folder = TestNotes.insertFolder(mResolver, "Work");
+        assertEquals(Notes.ID_ROOT_FOLDER, NoteListWidgetProvider.getFolderId(mContext, 5));
+
+        receiver.onReceive(mContext, pinCallback(folder, 5));
+        assertEquals(folder, NoteListWidgetProvider.getFolderId(mContext, 5));
+        // 回调中立即推送一次整个小部件
+        assertEquals(Arrays.asList(5), RecordingAppWidgetManager.takeUpdated());
+
+        // 系统没有填入小部件ID时忽略
+        receiver.onReceive(mContext, pinCallback(folder, AppWidgetManager.INVALID_APPWIDGET_ID));
+        assertTrue(RecordingAppWidgetManager.takeUpdated().isEmpty());
+
+        provider.onDeleted(mContext, new int[] {
+                5
+        });
+        assertEquals(Notes.ID_ROOT_FOLDER, NoteListWidgetProvider.getFolderId(mContext, 5));
+    }
+
+    @Test
+    public void pinCallbackAcceptsOnlyVisibleUserFolders() {
+        NoteListWidgetPinReceiver receiver = new NoteListWidgetPinReceiver();
+        long folder = TestNotes.insertFolder(mResolver, "Work");
+        long note = TestNotes.insertNote(mResolver, folder, "a note");
+
+        // 导出的小部件接收者不再处理固定的回调
+        new NoteListWidgetProvider().onReceive(mContext, pinCallback(folder, 5));
+        assertEquals(Notes.ID_ROOT_FOLDER, NoteListWidgetProvider.getFolderId(mContext, 5));
+
+        // 回收站、系统文件夹、便签和不存在的ID都不接受
+        for (long id : new long[] {
+                Notes.ID_TRASH_FOLER, Notes.ID_CALL_RECORD_FOLDER, note, 12345
+        }) {
+            receiver.onReceive(mContext, pinCallback(id, 5));
+            assertEquals(Notes.ID_ROOT_FOLDER, NoteListWidgetProvider.getFolderId(mContext, 5));
+        }
+        assertTrue(RecordingAppWidgetManager.takeUpdated().isEmpty());
+
+        receiver.onReceive(mContext, pinCallback(folder, 5));
+        assertEquals(folder, NoteListWidgetProvider.getFolderId(mContext, 5));
+
+        // 文件夹移到回收站后不能再固定
+        TestNotes.moveToTrash(mResolver, folder);
+        receiver.onReceive(mContext, pinCallback(folder, 6));
+        assertEquals(Notes.ID_ROOT_FOLDER, NoteListWidgetProvider.getFolderId(mContext, 6));
+
+        receiver.onReceive(mContext, pinCallback(Notes.ID_ROOT_FOLDER, 6));
+        assertEquals(Arrays.asList(5, 6), RecordingAppWidgetManager.takeUpdated());
+    }
+
+    @Test
+    public void pinRequestDependsOnLauncherSupport() {
+        AppWidgetManager manager = AppWidgetManager.getInstance(mContext);
+        shadowOf(manager).setRequestPinAppWidgetSupported(false);
+        assertFalse(NoteListWidgetProvider.requestPinFolder(mContext, 42));
+
+        shadowOf(manager).setRequestPinAppWidgetSupported(true);
+        assertTrue(NoteListWidgetProvider.requestPinFolder(mContext, 42));
+    }
+}
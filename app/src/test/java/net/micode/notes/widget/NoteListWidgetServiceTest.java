@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.TestNotes;
+import net.micode.notes.ui.NoteEditActivity;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * 列表小部件按页读取文件夹中的便签，只缓存最近用到的几页，文件夹改名时更新标题
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = RecordingAppWidgetManager.class)
+public class NoteListWidgetServiceTest {
+    private static final int WIDGET_ID = 9;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = TestNotes.setUp();
+        RecordingAppWidgetManager.reset();
+    }
+
+    /*
+     * 插入便签，返回的ID按列表的顺序排列：修改时间相同时ID大的在前
+     */
+    private long[] insertNotes(long folderId, int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[count - 1 - i] = TestNotes.insertNote(mResolver, folderId, "note " + i);
+        }
+        return ids;
+    }
+
+    private void setModifiedDate(long noteId, long modifiedDate) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.MODIFIED_DATE, modifiedDate);
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+    }
+
+    private NoteListWidgetService.NoteListFactory newFactory(long folderId) {
+        NoteListWidgetService.NoteListFactory factory =
+                new NoteListWidgetService.NoteListFactory(mContext, WIDGET_ID, folderId);
+        factory.onCreate();
+        factory.onDataSetChanged();
+        return factory;
+    }
+
+    @Test
+    public void rowsFollowNoteListOrderAcrossPages() {
+        long folder = TestNotes.insertFolder(mResolver, "Work");
+        long[] ids = insertNotes(folder, 120);
+        insertNotes(Notes.ID_ROOT_FOLDER, 3);
+        // 最近修改的便签排在最前面
+        setModifiedDate(ids[119], Long.MAX_VALUE);
+
+        NoteListWidgetService.NoteListFactory factory = newFactory(folder);
+        assertEquals(120, factory.getCount());
+        assertTrue(factory.hasStableIds());
+        assertEquals(ids[119], factory.getItemId(0));
+        for (int i = 1; i < 120; i++) {
+            assertEquals(String.valueOf(i), ids[i - 1], factory.getItemId(i));
+        }
+        // 超出范围的位置没有行
+        assertEquals(-121, factory.getItemId(120));
+        assertNull(factory.getViewAt(120));
+    }
+
+    @Test
+    public void pagesAreLoadedLazilyAndLeastRecentlyUsedIsDropped() {
+        long[] ids = insertNotes(Notes.ID_ROOT_FOLDER, 250);
+        NoteListWidgetService.NoteListFactory factory = newFactory(Notes.ID_ROOT_FOLDER);
+        assertEquals(250, factory.getCount());
+
+        // 读取第 0 页到第 4 页，缓存最多四页，第 0 页被丢弃
+        for (int page = 0; page < 5; page++) {
+            assertEquals(ids[page * 50], factory.getItemId(page * 50));
+        }
+
+        // 新便签排在最前面，还没有 onDataSetChanged；缓存的页保持原来的行，丢弃的页重新查询
+        long newest = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "newest");
+        assertEquals(250, factory.getCount());
+        assertEquals(ids[200], factory.getItemId(200));
+        assertEquals(ids[50], factory.getItemId(50));
+        assertEquals(newest, factory.getItemId(0));
+
+        // 数据变化后丢弃全部缓存
+        factory.onDataSetChanged();
+        assertEquals(251, factory.getCount());
+        assertEquals(ids[199], factory.getItemId(200));
+        assertEquals(ids[249], factory.getItemId(250));
+    }
+
+    @Test
+    public void folderRenameUpdatesOnlyTheTitle() {
+        long folder = TestNotes.insertFolder(mResolver, "Work");
+        insertNotes(folder, 2);
+        NoteListWidgetService.NoteListFactory factory = newFactory(folder);
+        // 第一次读取时标题已经由 NoteListWidgetProvider 设置
+        assertEquals(Collections.emptyList(), RecordingAppWidgetManager.takePartiallyUpdated());
+
+        factory.onDataSetChanged();
+        assertEquals(Collections.emptyList(), RecordingAppWidgetManager.takePartiallyUpdated());
+
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.SNIPPET, "Office");
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, folder), values,
+                null, null);
+        factory.onDataSetChanged();
+        assertEquals(Arrays.asList(WIDGET_ID), RecordingAppWidgetManager.takePartiallyUpdated());
+        assertEquals(Collections.emptyList(), RecordingAppWidgetManager.takeUpdated());
+        assertEquals("Office", NoteListWidgetService.getFolderName(mContext, folder));
+    }
+
+    @Test
+    public void folderNames() {
+        assertEquals(mContext.getString(R.string.app_name),
+                NoteListWidgetService.getFolderName(mContext, Notes.ID_ROOT_FOLDER));
+        assertEquals(mContext.getString(R.string.call_record_folder_name),
+                NoteListWidgetService.getFolderName(mContext, Notes.ID_CALL_RECORD_FOLDER));
+        // 文件夹已经被删除
+        assertEquals("", NoteListWidgetService.getFolderName(mContext, 12345));
+    }
+
+    @Test
+    public void titleIsFirstLineWithoutImagesAndCheckMarks() {
+        assertEquals("", NoteListWidgetService.NoteListFactory.formatTitle(null));
+        assertEquals("buy milk", NoteListWidgetService.NoteListFactory.formatTitle(
+                "[local]/sdcard/a.png[/local] " + NoteEditActivity.TAG_CHECKED
+                        + " buy milk\n" + NoteEditActivity.TAG_UNCHECKED + " eggs"));
+        assertEquals("plain", NoteListWidgetService.NoteListFactory.formatTitle("  plain  "));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.SparseIntArray;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.TestNotes;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 一次查询多个小部件的便签，内容没有变化的小部件不再推送
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = RecordingAppWidgetManager.class)
+public class NoteWidgetProviderTest {
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private AppWidgetManager mManager;
+
+    private NoteWidgetProvider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = TestNotes.setUp();
+        mManager = AppWidgetManager.getInstance(mContext);
+        mProvider = new NoteWidgetProvider_2x();
+        // 推送过的内容缓存在静态变量中，同一个进程中的测试之间需要清空
+        Field states = NoteWidgetProvider.class.getDeclaredField("sPushedStates");
+        states.setAccessible(true);
+        SparseIntArray pushed = (SparseIntArray) states.get(null);
+        synchronized (pushed) {
+            pushed.clear();
+        }
+        RecordingAppWidgetManager.reset();
+    }
+
+    static void placeOnWidget(ContentResolver resolver, long noteId, int widgetId,
+            int widgetType) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.WIDGET_ID, widgetId);
+        values.put(NoteColumns.WIDGET_TYPE, widgetType);
+        resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+    }
+
+    private long insertWidgetNote(int widgetId, String content) {
+        long noteId = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, content);
+        placeOnWidget(mResolver, noteId, widgetId, Notes.TYPE_WIDGET_2X);
+        return noteId;
+    }
+
+    private List<Integer> update(int... widgetIds) {
+        mProvider.onUpdate(mContext, mManager, widgetIds);
+        List<Integer> updated = RecordingAppWidgetManager.takeUpdated();
+        Collections.sort(updated);
+        return updated;
+    }
+
+    @Test
+    public void unchangedWidgetsAreNotPushedAgain() {
+        insertWidgetNote(1, "first");
+        long second = insertWidgetNote(2, "second");
+        insertWidgetNote(3, "third");
+
+        // 第一次全部推送，没有便签的小部件显示提示文字
+        assertEquals(Arrays.asList(1, 2, 3, 4), update(1, 2, 3, 4));
+        assertEquals(Collections.emptyList(), update(1, 2, 3, 4));
+
+        TestNotes.updateNote(mResolver, second, "second changed");
+        assertEquals(Arrays.asList(2), update(1, 2, 3, 4));
+
+        // 便签移到回收站后小部件变成空的
+        TestNotes.moveToTrash(mResolver, second);
+        assertEquals(Arrays.asList(2), update(1, 2, 3, 4));
+        assertEquals(Collections.emptyList(), update(1, 2, 3, 4));
+    }
+
+    @Test
+    public void deletedWidgetIsPushedWhenAddedAgain() {
+        long noteId = insertWidgetNote(7, "note");
+        assertEquals(Arrays.asList(7), update(7));
+
+        mProvider.onDeleted(mContext, new int[] {
+                7
+        });
+        assertEquals(0, TestNotes.count(mResolver, Notes.CONTENT_NOTE_URI,
+                NoteColumns.WIDGET_ID + "=7", null));
+
+        // 同一个ID的新小部件即使显示同样的便签也要推送
+        placeOnWidget(mResolver, noteId, 7, Notes.TYPE_WIDGET_2X);
+        assertEquals(Arrays.asList(7), update(7));
+    }
+
+    @Test
+    public void widgetWithSeveralNotesDoesNotStopTheOthers() {
+        insertWidgetNote(1, "first");
+        insertWidgetNote(2, "duplicate a");
+        insertWidgetNote(2, "duplicate b");
+        insertWidgetNote(3, "third");
+
+        assertEquals(Arrays.asList(1, 3), update(1, 2, 3,
+                AppWidgetManager.INVALID_APPWIDGET_ID));
+    }
+
+    @Test
+    public void widgetsBeyondOneQueryBatchAreMatched() {
+        // 超过一次查询的参数个数，分批查询的结果和小部件一一对应
+        int count = 1200;
+        int[] widgetIds = new int[count];
+        long[] noteIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            widgetIds[i] = 1000 + i;
+            noteIds[i] = insertWidgetNote(widgetIds[i], "note " + i);
+        }
+        assertEquals(count, update(widgetIds).size());
+
+        for (int i : new int[] {
+                0, 499, 500, 999, 1000, 1199
+        }) {
+            TestNotes.updateNote(mResolver, noteIds[i], "changed " + i);
+        }
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i : new int[] {
+                0, 499, 500, 999, 1000, 1199
+        }) {
+            expected.add(widgetIds[i]);
+        }
+        assertEquals(expected, update(widgetIds));
+    }
+}
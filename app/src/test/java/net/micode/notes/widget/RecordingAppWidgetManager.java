@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.widget.RemoteViews;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowAppWidgetManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 记录推送到桌面、部分更新和通知列表数据变化的小部件ID，不在测试中创建小部件的视图
+ * 用法：@Config(shadows = RecordingAppWidgetManager.class)，每个测试开始时调用 reset()
+ */
+@Implements(AppWidgetManager.class)
+public class RecordingAppWidgetManager extends ShadowAppWidgetManager {
+    private static final List<Integer> sUpdated = new ArrayList<Integer>();
+
+    private static final List<Integer> sPartiallyUpdated = new ArrayList<Integer>();
+
+    private static final List<Integer> sDataChanged = new ArrayList<Integer>();
+
+    public static synchronized void reset() {
+        sUpdated.clear();
+        sPartiallyUpdated.clear();
+        sDataChanged.clear();
+    }
+
+    /*
+     * 返回上次调用之后推送过的小部件ID，按推送的顺序
+     */
+    public static synchronized List<Integer> takeUpdated() {
+        List<Integer> updated = new ArrayList<Integer>(sUpdated);
+        sUpdated.clear();
+        return updated;
+    }
+
+    /*
+     * 返回上次调用之后部分更新过的小部件ID
+     */
+    public static synchronized List<Integer> takePartiallyUpdated() {
+        List<Integer> updated = new ArrayList<Integer>(sPartiallyUpdated);
+        sPartiallyUpdated.clear();
+        return updated;
+    }
+
+    /*
+     * 返回上次调用之后通知过列表数据变化的小部件ID
+     */
+    public static synchronized List<Integer> takeDataChanged() {
+        List<Integer> changed = new ArrayList<Integer>(sDataChanged);
+        sDataChanged.clear();
+        return changed;
+    }
+
+    @Implementation
+    protected void partiallyUpdateAppWidget(int appWidgetId, RemoteViews views) {
+        synchronized (RecordingAppWidgetManager.class) {
+            sPartiallyUpdated.add(appWidgetId);
+        }
+    }
+
+    @Implementation
+    protected void notifyAppWidgetViewDataChanged(int[] appWidgetIds, int viewId) {
+        synchronized (RecordingAppWidgetManager.class) {
+            for (int appWidgetId : appWidgetIds) {
+                sDataChanged.add(appWidgetId);
+            }
+        }
+    }
+
+    @Implementation
+    @Override
+    protected void updateAppWidget(int appWidgetId, RemoteViews views) {
+        synchronized (RecordingAppWidgetManager.class) {
+            sUpdated.add(appWidgetId);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.app.Application;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.os.Looper;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.TestNotes;
+import net.micode.notes.tool.TaskExecutor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 便签变化时只通知受影响的小部件，连续的变化合并为一次更新
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = RecordingAppWidgetManager.class)
+public class WidgetUpdateCoordinatorTest {
+    private static final String PROVIDER_2X = NoteWidgetProvider_2x.class.getName();
+    private static final String PROVIDER_4X = NoteWidgetProvider_4x.class.getName();
+
+    private Application mApplication;
+
+    private ContentResolver mResolver;
+
+    private long mNote2x;
+
+    private long mNote4x;
+
+    private long mPlainNote;
+
+    @Before
+    public void setUp() throws Exception {
+        mApplication = RuntimeEnvironment.getApplication();
+        // 单例在 NotesProvider 创建时开始监听，每个测试重新创建，监听当前测试的数据库
+        Field instance = WidgetUpdateCoordinator.class.getDeclaredField("sInstance");
+        instance.setAccessible(true);
+        instance.set(null, null);
+        mResolver = TestNotes.setUp();
+
+        mNote2x = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "on 2x widget");
+        NoteWidgetProviderTest.placeOnWidget(mResolver, mNote2x, 1, Notes.TYPE_WIDGET_2X);
+        mNote4x = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "on 4x widget");
+        NoteWidgetProviderTest.placeOnWidget(mResolver, mNote4x, 2, Notes.TYPE_WIDGET_4X);
+        mPlainNote = TestNotes.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "not on a widget");
+        idleFor(2000);
+        takeUpdates();
+    }
+
+    /*
+     * 主线程的时钟前进，到期的合并更新提交到数据库线程池，等它执行完，
+     * 再把它发出的广播交给主线程上的接收者，不留到下一次前进时钟
+     */
+    private static void idleFor(long millis) throws InterruptedException {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(millis));
+        TaskExecutor executor = TaskExecutor.getInstance();
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((executor.getActiveCount(TaskExecutor.POOL_DB) > 0
+                || executor.getQueueDepth(TaskExecutor.POOL_DB) > 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    /*
+     * 返回上次调用之后发出的小部件更新广播，每个写成 "接收者类名 [小部件ID]"
+     */
+    private List<String> takeUpdates() {
+        List<String> updates = new ArrayList<String>();
+        for (Intent intent : shadowOf(mApplication).getBroadcastIntents()) {
+            if (AppWidgetManager.ACTION_APPWIDGET_UPDATE.equals(intent.getAction())) {
+                int[] widgetIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+                Arrays.sort(widgetIds);
+                updates.add(intent.getComponent().getClassName() + " "
+                        + Arrays.toString(widgetIds));
+            }
+        }
+        shadowOf(mApplication).clearBroadcastIntents();
+        Collections.sort(updates);
+        return updates;
+    }
+
+    private void bindWidget(int widgetId, Class<?> provider) {
+        shadowOf(AppWidgetManager.getInstance(mApplication)).bindAppWidgetId(widgetId,
+                new ComponentName(mApplication, provider));
+    }
+
+    @Test
+    public void changedNoteUpdatesOnlyItsWidget() throws Exception {
+        TestNotes.updateNote(mResolver, mNote2x, "2x changed");
+        idleFor(500);
+        assertEquals(Arrays.asList(PROVIDER_2X + " [1]"), takeUpdates());
+
+        // 不在桌面上的便签变化不发出广播
+        TestNotes.updateNote(mResolver, mPlainNote, "plain changed");
+        idleFor(500);
+        assertEquals(Collections.emptyList(), takeUpdates());
+
+        TestNotes.moveToTrash(mResolver, mNote4x);
+        idleFor(500);
+        assertEquals(Arrays.asList(PROVIDER_4X + " [2]"), takeUpdates());
+    }
+
+    @Test
+    public void burstOfChangesIsMergedIntoOneUpdatePerProvider() throws Exception {
+        TestNotes.updateNote(mResolver, mNote2x, "first");
+        idleFor(300);
+        TestNotes.updateNote(mResolver, mNote4x, "second");
+        idleFor(300);
+        TestNotes.updateNote(mResolver, mNote2x, "third");
+        idleFor(499);
+        assertEquals(Collections.emptyList(), takeUpdates());
+
+        idleFor(1);
+        assertEquals(Arrays.asList(PROVIDER_2X + " [1]", PROVIDER_4X + " [2]"), takeUpdates());
+    }
+
+    @Test
+    public void continuousChangesAreUpdatedAfterMaxDelay() throws Exception {
+        // 每 400ms 变化一次，合并的等待不会一直延后，第一次变化 2 秒后更新
+        for (int i = 0; i < 4; i++) {
+            TestNotes.updateNote(mResolver, mNote2x, "change " + i);
+            idleFor(400);
+        }
+        TestNotes.updateNote(mResolver, mNote2x, "change 4");
+        idleFor(399);
+        assertEquals(Collections.emptyList(), takeUpdates());
+
+        idleFor(1);
+        assertEquals(Arrays.asList(PROVIDER_2X + " [1]"), takeUpdates());
+    }
+
+    @Test
+    public void deletedNoteRefreshesAllWidgets() throws Exception {
+        bindWidget(1, NoteWidgetProvider_2x.class);
+        bindWidget(2, NoteWidgetProvider_4x.class);
+        bindWidget(3, NoteWidgetProvider_2x.class);
+
+        // 彻底删除的便签找不到原来的小部件，全部更新，内容没变的小部件由 NoteWidgetProvider 跳过
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mPlainNote), null,
+                null);
+        idleFor(500);
+        assertEquals(Arrays.asList(PROVIDER_2X + " [1, 3]", PROVIDER_4X + " [2]"),
+                takeUpdates());
+    }
+
+    @Test
+    public void listWidgetsRereadDataOnAnyChange() throws Exception {
+        bindWidget(5, NoteListWidgetProvider.class);
+        bindWidget(6, NoteListWidgetProvider.class);
+        RecordingAppWidgetManager.reset();
+
+        // 列表小部件显示整个文件夹，不在桌面上的便签变化也要重新读取，但不重新推送
+        TestNotes.updateNote(mResolver, mPlainNote, "plain changed");
+        idleFor(500);
+        assertEquals(Arrays.asList(5, 6), RecordingAppWidgetManager.takeDataChanged());
+        assertEquals(Collections.emptyList(), takeUpdates());
+        assertEquals(Collections.emptyList(), RecordingAppWidgetManager.takeUpdated());
+
+        // 同步回写 local_modified 这样不显示的列时变更记录不前进，不通知
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.LOCAL_MODIFIED, 0);
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mPlainNote), values,
+                null, null);
+        idleFor(500);
+        assertEquals(Collections.emptyList(), RecordingAppWidgetManager.takeDataChanged());
+    }
+
+    @Test
+    public void prunedJournalRefreshesAllWidgets() throws Exception {
+        bindWidget(1, NoteWidgetProvider_2x.class);
+        bindWidget(2, NoteWidgetProvider_4x.class);
+
+        // 清理变更记录时只通知变更记录的 URI，还没处理的记录可能已经不在了
+        mResolver.notifyChange(Notes.CONTENT_BACKUP_JOURNAL_URI, null);
+        idleFor(500);
+        assertEquals(Arrays.asList(PROVIDER_2X + " [1]", PROVIDER_4X + " [2]"), takeUpdates());
+
+        idleFor(2000);
+        assertEquals(Collections.emptyList(), takeUpdates());
+    }
+
+    @Test
+    public void changesArriveWhileAnUpdateIsRunning() throws Exception {
+        bindWidget(1, NoteWidgetProvider_2x.class);
+        bindWidget(2, NoteWidgetProvider_4x.class);
+        WidgetUpdateCoordinator coordinator = WidgetUpdateCoordinator.getInstance(mApplication);
+        Field field = WidgetUpdateCoordinator.class.getDeclaredField("mUpdateLock");
+        field.setAccessible(true);
+        final Object updateLock = field.get(coordinator);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // 另一个线程占住更新的锁，模拟一次还在查询、发广播的更新
+        Thread running = new Thread() {
+            @Override
+            public void run() {
+                synchronized (updateLock) {
+                    locked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // 测试结束
+                    }
+                }
+            }
+        };
+        running.start();
+        locked.await();
+        try {
+            // 主线程记下变化并提交更新，不等待正在执行的更新
+            mResolver.notifyChange(Notes.CONTENT_BACKUP_JOURNAL_URI, null);
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(500));
+            assertEquals(Collections.emptyList(), takeUpdates());
+        } finally {
+            release.countDown();
+            running.join();
+        }
+
+        // 前一次更新结束后，主线程设置的全部更新仍然生效
+        idleFor(0);
+        assertEquals(Arrays.asList(PROVIDER_2X + " [1]", PROVIDER_4X + " [2]"), takeUpdates());
+    }
+}